@@ -0,0 +1,194 @@
+package cc.bran.tumblr.api;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits the rate of API requests with a token bucket per credential and endpoint, adapting each
+ * bucket's rate to what the server allows. The rate grows additively while requests succeed and is
+ * cut in half when the server pushes back (e.g. with a 429 or a 5xx response), at which point
+ * requests also back off exponentially, with jitter so that clients sharing a credential do not
+ * retry in lockstep. This keeps throughput close to the allowed limit without repeatedly tripping
+ * it. One limiter should be shared by everything that uses the same credentials.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class AdaptiveRateLimiter {
+
+  /**
+   * The rate, tokens and backoff state of one credential's use of one endpoint.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Bucket {
+
+    private long backoffUntilNanos;
+
+    private int consecutiveFailures;
+
+    private long lastRefillNanos;
+
+    private double rate;
+
+    private double tokens;
+
+    public Bucket(double rate) {
+      this.lastRefillNanos = System.nanoTime();
+      this.backoffUntilNanos = lastRefillNanos;
+      this.consecutiveFailures = 0;
+      this.rate = rate;
+      this.tokens = 1;
+    }
+
+    /**
+     * Takes a token if one is available and the bucket is not backing off.
+     * 
+     * @return 0 if a token was taken, or else how long to wait before trying again, in nanoseconds
+     */
+    public synchronized long tryAcquire() {
+      long nowNanos = System.nanoTime();
+      tokens = Math.min(Math.max(1, rate), tokens + rate * (nowNanos - lastRefillNanos)
+              / NANOS_PER_SECOND);
+      lastRefillNanos = nowNanos;
+
+      // Compare by difference, since nanoTime() values may be negative or wrap around.
+      if (nowNanos - backoffUntilNanos < 0) {
+        return backoffUntilNanos - nowNanos;
+      }
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) ((1 - tokens) * NANOS_PER_SECOND / rate));
+    }
+  }
+
+  private static final Joiner KEY_JOINER = Joiner.on('\0');
+
+  private static final int MAX_BACKOFF_DOUBLINGS = 30;
+
+  private static final double MIN_RATE = 0.1;
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final Duration baseBackoff;
+
+  private final Map<String, Bucket> bucketByKey;
+
+  private final double initialRate;
+
+  private final Duration maxBackoff;
+
+  private final double maxRate;
+
+  private final Random random;
+
+  /**
+   * Creates a new rate limiter.
+   * 
+   * @param initialRate
+   *          the rate each bucket starts at, in requests per second
+   * @param maxRate
+   *          the rate no bucket grows beyond, in requests per second
+   * @param baseBackoff
+   *          how long to back off after the first failure in a row; each further failure doubles
+   *          it
+   * @param maxBackoff
+   *          the longest to back off for
+   */
+  public AdaptiveRateLimiter(double initialRate, double maxRate, Duration baseBackoff,
+          Duration maxBackoff) {
+    Preconditions.checkArgument(initialRate >= MIN_RATE);
+    Preconditions.checkArgument(maxRate >= initialRate);
+
+    this.baseBackoff = baseBackoff;
+    this.bucketByKey = new ConcurrentHashMap<>();
+    this.initialRate = initialRate;
+    this.maxBackoff = maxBackoff;
+    this.maxRate = maxRate;
+    this.random = new Random();
+  }
+
+  /**
+   * Waits until a request may be made.
+   * 
+   * @param credential
+   *          the credential the request is made with
+   * @param endpoint
+   *          the endpoint the request is made to
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void acquire(String credential, String endpoint) throws InterruptedException {
+    Bucket bucket = getBucket(credential, endpoint);
+    for (long waitNanos = bucket.tryAcquire(); waitNanos > 0; waitNanos = bucket.tryAcquire()) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  private Bucket getBucket(String credential, String endpoint) {
+    String key = KEY_JOINER.join(credential, endpoint);
+    Bucket bucket = bucketByKey.get(key);
+    if (bucket == null) {
+      synchronized (bucketByKey) {
+        bucket = bucketByKey.get(key);
+        if (bucket == null) {
+          bucket = new Bucket(initialRate);
+          bucketByKey.put(key, bucket);
+        }
+      }
+    }
+    return bucket;
+  }
+
+  /**
+   * Gets the current rate for a credential's requests to an endpoint, in requests per second.
+   */
+  public double getRate(String credential, String endpoint) {
+    Bucket bucket = getBucket(credential, endpoint);
+    synchronized (bucket) {
+      return bucket.rate;
+    }
+  }
+
+  /**
+   * Records that a request succeeded, growing the rate. As in TCP congestion avoidance, each
+   * success adds the reciprocal of the rate, so the rate grows by about one request per second
+   * every second.
+   */
+  public void onSuccess(String credential, String endpoint) {
+    Bucket bucket = getBucket(credential, endpoint);
+    synchronized (bucket) {
+      bucket.consecutiveFailures = 0;
+      bucket.rate = Math.min(maxRate, bucket.rate + 1 / bucket.rate);
+    }
+  }
+
+  /**
+   * Records that the server pushed back on a request, halving the rate and backing off.
+   */
+  public void onThrottled(String credential, String endpoint) {
+    Bucket bucket = getBucket(credential, endpoint);
+    synchronized (bucket) {
+      bucket.consecutiveFailures = Math.min(bucket.consecutiveFailures + 1, MAX_BACKOFF_DOUBLINGS);
+      bucket.rate = Math.max(MIN_RATE, bucket.rate / 2);
+      bucket.tokens = 0;
+
+      // Back off for between half and all of the exponential delay.
+      long backoffMillis = Math.min(maxBackoff.getMillis(),
+              baseBackoff.getMillis() << (bucket.consecutiveFailures - 1));
+      backoffMillis = (long) (backoffMillis * (0.5 + random.nextDouble() / 2));
+      long backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+      if (backoffUntilNanos - bucket.backoffUntilNanos > 0) {
+        bucket.backoffUntilNanos = backoffUntilNanos;
+      }
+    }
+  }
+}
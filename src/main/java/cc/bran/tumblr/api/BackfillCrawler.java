@@ -0,0 +1,214 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Backfills all of a blog's posts by fetching disjoint ranges of offsets concurrently, rather than
+ * walking every offset in sequence as {@link TumblrApi#getAllPosts(String)} does. The ranges are
+ * split from the blog's post count when the crawl starts, and the posts fetched are merged and
+ * deduplicated by id.
+ * 
+ * Posts published or deleted during the crawl shift every later offset. Each range therefore
+ * checks the post count before and after it is fetched: the range is widened by how far the count
+ * has moved since the crawl started, and fetched again if the count moved while it was being
+ * fetched. This assumes that changes happen at the newest end of the blog, as publishing does.
+ * 
+ * Every request, including those of crawls running at the same time, counts against one budget of
+ * requests in flight.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class BackfillCrawler {
+
+  private static final int MAX_RESCANS = 3;
+
+  private static final Comparator<Post> NEWEST_FIRST = new Comparator<Post>() {
+
+    @Override
+    public int compare(Post post1, Post post2) {
+      int result = post2.getPostedInstant().compareTo(post1.getPostedInstant());
+      if (result != 0) {
+        return result;
+      }
+      return Long.compare(post2.getId(), post1.getId());
+    }
+  };
+
+  private static final int RANGES_PER_WORKER = 4;
+
+  private final TumblrApi api;
+
+  private final AtomicLong requestCount;
+
+  private final Semaphore requestPermits;
+
+  private final AtomicLong rescanCount;
+
+  private final int workerCount;
+
+  /**
+   * Creates a new backfill crawler.
+   * 
+   * @param api
+   *          the API to fetch posts from
+   * @param workerCount
+   *          the number of ranges each crawl fetches at once
+   * @param maxRequestsInFlight
+   *          the maximum number of requests in flight at once, across all crawls
+   */
+  public BackfillCrawler(TumblrApi api, int workerCount, int maxRequestsInFlight) {
+    Preconditions.checkArgument(workerCount > 0);
+    Preconditions.checkArgument(maxRequestsInFlight > 0);
+
+    this.api = api;
+    this.requestCount = new AtomicLong();
+    this.requestPermits = new Semaphore(maxRequestsInFlight);
+    this.rescanCount = new AtomicLong();
+    this.workerCount = workerCount;
+  }
+
+  /**
+   * Fetches all of a blog's posts.
+   * 
+   * @return the blog's posts, newest first
+   */
+  public List<Post> crawl(final String blogName) throws InterruptedException {
+    final int initialPostCount = getPostCount(blogName);
+    final Map<Long, Post> postsById = new ConcurrentHashMap<>();
+
+    int rangeSize = divideRoundingUp(initialPostCount, workerCount * RANGES_PER_WORKER);
+    rangeSize = TumblrApi.PAGE_SIZE * Math.max(1, divideRoundingUp(rangeSize, TumblrApi.PAGE_SIZE));
+
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("BackfillCrawler worker %d").build());
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int start = 0; start < initialPostCount; start += rangeSize) {
+        final int rangeStart = start;
+        final int rangeEnd = Math.min(start + rangeSize, initialPostCount);
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws InterruptedException {
+            crawlRange(blogName, rangeStart, rangeEnd, initialPostCount, postsById);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException exception) {
+          Throwable cause = exception.getCause();
+          if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw (Error) cause;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<Post> posts = new ArrayList<>(postsById.values());
+    Collections.sort(posts, NEWEST_FIRST);
+    return ImmutableList.copyOf(posts);
+  }
+
+  private void crawlRange(String blogName, int start, int end, int initialPostCount,
+          Map<Long, Post> postsById) throws InterruptedException {
+    // The range's posts are wherever the post counts seen so far have shifted them to.
+    int minShift = 0;
+    int maxShift = 0;
+    int postCount = getPostCount(blogName);
+    for (int rescans = 0;; ++rescans) {
+      minShift = Math.min(minShift, postCount - initialPostCount);
+      maxShift = Math.max(maxShift, postCount - initialPostCount);
+      fetchRange(blogName, Math.max(0, start + minShift), end + maxShift, postsById);
+
+      int newPostCount = getPostCount(blogName);
+      if (newPostCount == postCount || rescans == MAX_RESCANS) {
+        return;
+      }
+      rescanCount.incrementAndGet();
+      postCount = newPostCount;
+    }
+  }
+
+  private void fetchRange(String blogName, int start, int end, Map<Long, Post> postsById)
+          throws InterruptedException {
+    int offset = start;
+    while (offset < end) {
+      List<Post> posts = getPosts(blogName, offset);
+      if (posts.isEmpty()) {
+        return;
+      }
+
+      for (Post post : posts) {
+        postsById.put(post.getId(), post);
+      }
+      offset += posts.size();
+    }
+  }
+
+  private int getPostCount(String blogName) throws InterruptedException {
+    requestPermits.acquire();
+    try {
+      requestCount.incrementAndGet();
+      return api.getPostCount(blogName);
+    } finally {
+      requestPermits.release();
+    }
+  }
+
+  private List<Post> getPosts(String blogName, int offset) throws InterruptedException {
+    requestPermits.acquire();
+    try {
+      requestCount.incrementAndGet();
+      return api.getPosts(blogName, offset);
+    } finally {
+      requestPermits.release();
+    }
+  }
+
+  /**
+   * Gets the number of requests made so far, across all crawls.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Gets the number of times a range has been fetched again because the post count moved while it
+   * was being fetched, across all crawls.
+   */
+  public long getRescanCount() {
+    return rescanCount.get();
+  }
+
+  private static int divideRoundingUp(int dividend, int divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+}
@@ -1,9 +1,15 @@
 package cc.bran.tumblr.api;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.Instant;
 
@@ -21,11 +27,15 @@ import cc.bran.tumblr.types.QuotePost;
 import cc.bran.tumblr.types.TextPost;
 import cc.bran.tumblr.types.VideoPost;
 import cc.bran.tumblr.types.VideoPost.Video;
+import cc.bran.util.Either;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.exceptions.JumblrException;
 
 /**
  * A {@link TumblrApi} implementation backed by the Jumblr API.
@@ -34,70 +44,287 @@ import com.tumblr.jumblr.JumblrClient;
  */
 public class JumblrTumblrApi implements TumblrApi {
 
-  private class PostsIterator implements Iterator<Post> {
+  /**
+   * Fetches the pages of a {@link PostsIterator} on a background thread. It holds its iterator only
+   * weakly: if the iterator is abandoned without being closed, the fetcher exits once the iterator
+   * has been garbage collected, rather than waiting on the full buffer forever.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private class PageFetcher implements Runnable {
 
     private final String blogName;
 
+    private volatile boolean closed;
+
+    private final WeakReference<PostsIterator> consumer;
+
     private final Map<String, ?> options;
 
-    private int offset;
+    private final BlockingQueue<Either<List<Post>, Throwable>> pages;
+
+    public PageFetcher(PostsIterator consumer, String blogName, Map<String, ?> options,
+            BlockingQueue<Either<List<Post>, Throwable>> pages) {
+      this.blogName = blogName;
+      this.closed = false;
+      this.consumer = new WeakReference<>(consumer);
+      this.options = options;
+      this.pages = pages;
+    }
+
+    public void close() {
+      closed = true;
+    }
+
+    private boolean isAbandoned() {
+      return closed || consumer.get() == null;
+    }
+
+    /**
+     * Hands a page to the consumer, waiting while the buffer is full.
+     * 
+     * @return false if the consumer went away before there was room for the page
+     */
+    private boolean offer(Either<List<Post>, Throwable> page) throws InterruptedException {
+      while (!pages.offer(page, CONSUMER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (isAbandoned()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      PostCursor cursor = new PostCursor();
+      OffsetPager pager = new OffsetPager();
+      try {
+        while (!isAbandoned()) {
+          List<Post> page;
+          switch (pagination) {
+          case OFFSET:
+            page = pager.advance(requestPosts(blogName, options, null, pager.getOffset()));
+            if (page.isEmpty() && !pager.isDone()) {
+              continue;
+            }
+            break;
+          case TIMESTAMP_CURSOR:
+            page = requestPosts(blogName, options, cursor.getBefore(), cursor.getOffset());
+            if (!page.isEmpty()) {
+              page = cursor.advance(page);
+              if (page.isEmpty()) {
+                continue;
+              }
+            }
+            break;
+          default:
+            throw new AssertionError(String.format("Impossible pagination %s.", pagination));
+          }
+
+          // An empty page marks the end of the posts.
+          if (!offer(Either.<List<Post>, Throwable> fromLeft(page)) || page.isEmpty()) {
+            return;
+          }
+        }
+      } catch (InterruptedException exception) {
+        // Interrupted by close(); nobody is waiting for more pages.
+      } catch (Throwable throwable) {
+        // Errors end the iteration too; otherwise the consumer would wait for a page forever.
+        try {
+          offer(Either.<List<Post>, Throwable> fromRight(throwable));
+        } catch (InterruptedException interruptedException) {
+          // Interrupted by close(); nobody is waiting for the failure.
+        }
+      }
+    }
+  }
+
+  /**
+   * How iterations over all of a blog's posts page through them.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public enum Pagination {
+    /**
+     * Pages by a growing offset. Deep offsets are slow for the server, and posts published or
+     * deleted during the iteration shift later pages; see {@link OffsetPager} for how the
+     * resulting duplicates and gaps are handled.
+     */
+    OFFSET,
+
+    /**
+     * Pages by the posted time and id of the last post seen; see {@link PostCursor}.
+     */
+    TIMESTAMP_CURSOR
+  }
+
+  /**
+   * Iterates over a blog's posts, fetching pages on a background thread so that each API round trip
+   * overlaps with consumption of the page before it. Fetched pages wait in a bounded buffer; the
+   * fetcher blocks while it is full. If a fetch fails, the failure is rethrown from
+   * {@link #hasNext()} once the pages fetched before it have been consumed.
+   * 
+   * Callers that stop iterating before the end should {@link #close()} the iterator to stop its
+   * fetcher thread right away. An iterator that is abandoned without being closed stops its fetcher
+   * once it has been garbage collected.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public class PostsIterator implements Iterator<Post>, AutoCloseable {
 
-    private List<Post> queuedPosts;
+    private boolean done;
+
+    private final PageFetcher fetcher;
+
+    private final Thread fetcherThread;
+
+    private final BlockingQueue<Either<List<Post>, Throwable>> pages;
+
+    private final Deque<Post> queuedPosts;
 
     public PostsIterator(String blogName, Map<String, ?> options) {
-      this.blogName = blogName;
-      this.options = ImmutableMap.copyOf(options);
-      this.queuedPosts = new LinkedList<Post>();
-      this.offset = 0;
+      this.done = false;
+      this.pages = new ArrayBlockingQueue<>(prefetchPages);
+      this.queuedPosts = new ArrayDeque<>();
+      this.fetcher = new PageFetcher(this, blogName, ImmutableMap.copyOf(options), pages);
+      this.fetcherThread = new Thread(fetcher, "JumblrTumblrApi fetcher for " + blogName);
+      this.fetcherThread.setDaemon(true);
+      this.fetcherThread.start();
+    }
 
-      requestPosts();
+    /**
+     * Stops fetching and discards any buffered posts. A request already in flight is not waited
+     * for; its result is dropped.
+     */
+    @Override
+    public void close() {
+      done = true;
+      fetcher.close();
+      fetcherThread.interrupt();
+      pages.clear();
+      queuedPosts.clear();
     }
 
     @Override
     public boolean hasNext() {
+      while (queuedPosts.isEmpty() && !done) {
+        Either<List<Post>, Throwable> page;
+        try {
+          page = pages.take();
+        } catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+          close();
+          throw new IllegalStateException("Interrupted while waiting for posts.", exception);
+        }
+
+        if (page.getValueType() == Either.ValueType.RIGHT) {
+          done = true;
+          throw Throwables.propagate(page.getRight());
+        }
+        if (page.getLeft().isEmpty()) {
+          done = true;
+        }
+        queuedPosts.addAll(page.getLeft());
+      }
+
       return !queuedPosts.isEmpty();
     }
 
     @Override
     public Post next() {
-      Post post = queuedPosts.get(0);
-      queuedPosts.remove(0);
-
-      if (queuedPosts.isEmpty()) {
-        requestPosts();
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
-
-      return post;
+      return queuedPosts.removeFirst();
     }
 
     @Override
     public void remove() {
       throw new NotImplementedException();
     }
+  }
 
-    private void requestPosts() {
-      Instant retrievedInstant = Instant.now();
+  /**
+   * A call to the Jumblr client that makes one request.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private interface Request<T> {
 
-      ImmutableMap.Builder<String, Object> currentOptionsBuilder = ImmutableMap.builder();
-      currentOptionsBuilder.putAll(options);
-      currentOptionsBuilder.put("offset", offset);
-      Map<String, Object> currentOptions = currentOptionsBuilder.build();
+    T send();
+  }
 
-      List<com.tumblr.jumblr.types.Post> posts = client.blogPosts(blogName, currentOptions);
-      offset += posts.size();
+  /**
+   * How often a fetcher blocked on a full buffer checks whether its iterator has gone away.
+   */
+  private static final long CONSUMER_CHECK_MILLIS = 1000;
 
-      for (com.tumblr.jumblr.types.Post post : posts) {
-        queuedPosts.add(fromJumblrPost(post, retrievedInstant));
-      }
-    }
-  }
+  private static final int DEFAULT_PREFETCH_PAGES = 2;
+
+  private static final String INFO_ENDPOINT = "info";
+
+  private static final int MAX_ATTEMPTS = 5;
 
   private static final long MILLIS_PER_SECOND = 1000;
 
+  private static final String POSTS_ENDPOINT = "posts";
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
   private final JumblrClient client;
 
+  private final String credential;
+
+  private final Pagination pagination;
+
+  private final int prefetchPages;
+
+  private final AdaptiveRateLimiter rateLimiter;
+
   public JumblrTumblrApi(JumblrClient client) {
+    this(client, DEFAULT_PREFETCH_PAGES, Pagination.TIMESTAMP_CURSOR);
+  }
+
+  /**
+   * Creates a new API wrapper.
+   * 
+   * @param client
+   *          the Jumblr client to make requests with
+   * @param prefetchPages
+   *          the number of pages of posts each iteration may fetch ahead of its consumer
+   * @param pagination
+   *          how iterations page through posts
+   */
+  public JumblrTumblrApi(JumblrClient client, int prefetchPages, Pagination pagination) {
+    this(client, prefetchPages, pagination, null, null);
+  }
+
+  /**
+   * Creates a new API wrapper whose requests are paced by a rate limiter. Requests that the server
+   * pushes back on with a 429 or 5xx response are retried, up to {@value #MAX_ATTEMPTS} attempts in
+   * all, once the limiter allows.
+   * 
+   * @param client
+   *          the Jumblr client to make requests with
+   * @param prefetchPages
+   *          the number of pages of posts each iteration may fetch ahead of its consumer
+   * @param pagination
+   *          how iterations page through posts
+   * @param rateLimiter
+   *          the rate limiter to pace requests with, or null to not limit requests
+   * @param credential
+   *          the name of the client's credentials, for the rate limiter
+   */
+  public JumblrTumblrApi(JumblrClient client, int prefetchPages, Pagination pagination,
+          AdaptiveRateLimiter rateLimiter, String credential) {
+    Preconditions.checkArgument(prefetchPages > 0);
+    Preconditions.checkArgument(rateLimiter == null || credential != null);
+
     this.client = client;
+    this.credential = credential;
+    this.pagination = pagination;
+    this.prefetchPages = prefetchPages;
+    this.rateLimiter = rateLimiter;
   }
 
   @Override
@@ -123,8 +350,98 @@ public class JumblrTumblrApi implements TumblrApi {
   }
 
   @Override
-  public Post getPost(String blogName, long id) {
-    return fromJumblrPost(client.blogPost(blogName, id));
+  public Post getPost(final String blogName, final long id) {
+    com.tumblr.jumblr.types.Post post = sendRequest(POSTS_ENDPOINT,
+            new Request<com.tumblr.jumblr.types.Post>() {
+
+              @Override
+              public com.tumblr.jumblr.types.Post send() {
+                return client.blogPost(blogName, id);
+              }
+            });
+    return fromJumblrPost(post);
+  }
+
+  @Override
+  public int getPostCount(final String blogName) {
+    return sendRequest(INFO_ENDPOINT, new Request<Integer>() {
+
+      @Override
+      public Integer send() {
+        return client.blogInfo(blogName).getPostCount();
+      }
+    });
+  }
+
+  @Override
+  public List<Post> getPosts(String blogName, int offset) {
+    return requestPosts(blogName, ImmutableMap.<String, Object> of(), null, offset);
+  }
+
+  @Override
+  public List<Post> getPostsBefore(String blogName, Instant before, int offset) {
+    return requestPosts(blogName, ImmutableMap.<String, Object> of(), before, offset);
+  }
+
+  private List<Post> requestPosts(final String blogName, Map<String, ?> options, Instant before,
+          int offset) {
+    Instant retrievedInstant = Instant.now();
+
+    ImmutableMap.Builder<String, Object> currentOptionsBuilder = ImmutableMap.builder();
+    currentOptionsBuilder.putAll(options);
+    if (before != null) {
+      currentOptionsBuilder.put("before", before.getMillis() / MILLIS_PER_SECOND);
+    }
+    currentOptionsBuilder.put("offset", offset);
+    final Map<String, Object> currentOptions = currentOptionsBuilder.build();
+
+    List<com.tumblr.jumblr.types.Post> posts = sendRequest(POSTS_ENDPOINT,
+            new Request<List<com.tumblr.jumblr.types.Post>>() {
+
+              @Override
+              public List<com.tumblr.jumblr.types.Post> send() {
+                return client.blogPosts(blogName, currentOptions);
+              }
+            });
+
+    ImmutableList.Builder<Post> postsBuilder = ImmutableList.builder();
+    for (com.tumblr.jumblr.types.Post post : posts) {
+      postsBuilder.add(fromJumblrPost(post, retrievedInstant));
+    }
+    return postsBuilder.build();
+  }
+
+  private <T> T sendRequest(String endpoint, Request<T> request) {
+    for (int attempt = 1;; ++attempt) {
+      if (rateLimiter != null) {
+        try {
+          rateLimiter.acquire(credential, endpoint);
+        } catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting to make a request.",
+                  exception);
+        }
+      }
+
+      T result;
+      try {
+        result = request.send();
+      } catch (JumblrException exception) {
+        if (rateLimiter == null || !isThrottled(exception)) {
+          throw exception;
+        }
+        rateLimiter.onThrottled(credential, endpoint);
+        if (attempt == MAX_ATTEMPTS) {
+          throw exception;
+        }
+        continue;
+      }
+
+      if (rateLimiter != null) {
+        rateLimiter.onSuccess(credential, endpoint);
+      }
+      return result;
+    }
   }
 
   private static void fromJumblrAnswerPost(AnswerPost.Builder builder,
@@ -270,4 +587,12 @@ public class JumblrTumblrApi implements TumblrApi {
     builder.setCaption(post.getCaption());
     builder.setPlayers(videosBuilder.build());
   }
+
+  /**
+   * Determines whether a failed request was pushed back on by the server, as opposed to being
+   * invalid.
+   */
+  private static boolean isThrottled(JumblrException exception) {
+    return exception.getResponseCode() == TOO_MANY_REQUESTS || exception.getResponseCode() >= 500;
+  }
 }
@@ -0,0 +1,140 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cc.bran.tumblr.types.Post;
+
+/**
+ * Pages through a blog's posts by offset, detecting the duplicates and gaps caused by posts that
+ * are published or deleted during the iteration. Each page is requested so that it overlaps the
+ * previous one by a post, and is expected to start no later than the last post returned:
+ * 
+ * <ul>
+ * <li>If posts were published, later posts shift to higher offsets and reappear. Posts already
+ * returned are dropped by id, as are the new posts, which are newer than the last post returned.
+ * <li>If posts were deleted, later posts shift to lower offsets, and the page starts past the last
+ * post returned, so posts in between may have been skipped. The window just before the page is
+ * requested again, stepping back until the pages connect.
+ * </ul>
+ * 
+ * Only the affected window is requested again, rather than the whole blog.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class OffsetPager {
+
+  private boolean done;
+
+  private int duplicateCount;
+
+  private int gapCount;
+
+  private Post lastPost;
+
+  private int offset;
+
+  private final Set<Long> seenIds;
+
+  public OffsetPager() {
+    this.done = false;
+    this.duplicateCount = 0;
+    this.gapCount = 0;
+    this.lastPost = null;
+    this.offset = 0;
+    this.seenIds = new HashSet<>();
+  }
+
+  /**
+   * Moves the pager past a page of posts requested at {@link #getOffset()}.
+   * 
+   * @param page
+   *          the posts returned, newest first
+   * @return the posts in the page that have not been returned before, which may be empty even if
+   *         there are more posts; see {@link #isDone()}
+   */
+  public List<Post> advance(List<Post> page) {
+    boolean connected = (lastPost == null) || (offset == 0)
+            || (!page.isEmpty() && !PostCursor.isBefore(page.get(0), lastPost));
+    if (!connected) {
+      ++gapCount;
+      offset = Math.max(0, offset - (TumblrApi.PAGE_SIZE - 1));
+      return new ArrayList<>();
+    }
+
+    List<Post> newPosts = new ArrayList<>(page.size());
+    for (Post post : page) {
+      if (seenIds.contains(post.getId())) {
+        if (post.getId() != lastPost.getId()) {
+          ++duplicateCount;
+        }
+        continue;
+      }
+      if (lastPost != null && !PostCursor.isBefore(post, lastPost)) {
+        // Published since the iteration started.
+        continue;
+      }
+
+      seenIds.add(post.getId());
+      newPosts.add(post);
+    }
+
+    if (newPosts.isEmpty() && page.size() < TumblrApi.PAGE_SIZE) {
+      done = true;
+      return newPosts;
+    }
+
+    offset += Math.max(1, page.size() - 1);
+    if (!newPosts.isEmpty()) {
+      lastPost = newPosts.get(newPosts.size() - 1);
+    }
+    return newPosts;
+  }
+
+  /**
+   * Gets the number of posts dropped because they had already been returned, not counting the post
+   * that each page is expected to overlap the previous one by.
+   */
+  public int getDuplicateCount() {
+    return duplicateCount;
+  }
+
+  /**
+   * Gets the number of times a page did not connect to the posts before it, and the window before
+   * it was requested again.
+   */
+  public int getGapCount() {
+    return gapCount;
+  }
+
+  /**
+   * Gets the offset to request the next page at.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Determines whether all posts have been returned.
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Gets the next page of posts not returned before from the API.
+   * 
+   * @return the new posts, newest first, or an empty list if there are no more posts
+   */
+  public List<Post> nextPage(TumblrApi api, String blogName) {
+    while (!done) {
+      List<Post> newPosts = advance(api.getPosts(blogName, offset));
+      if (!newPosts.isEmpty()) {
+        return newPosts;
+      }
+    }
+    return new ArrayList<>();
+  }
+}
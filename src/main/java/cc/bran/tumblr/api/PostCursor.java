@@ -0,0 +1,147 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A position in a blog's posts that, unlike an offset, stays put when posts are published or
+ * deleted. Posts are ordered newest first by posted instant, then by id; the cursor is the last
+ * post seen.
+ * 
+ * Tumblr's {@code before} parameter has whole-second resolution and is exclusive, so the next page
+ * is requested from the end of the cursor's second, skipping the posts already seen within that
+ * second. Any post returned that is not past the cursor is dropped, which also covers posts that
+ * moved in between requests. Deep pages thus cost the same as shallow ones.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class PostCursor {
+
+  private static final long MILLIS_PER_SECOND = 1000;
+
+  private Post lastPost;
+
+  private int offset;
+
+  public PostCursor() {
+    this.lastPost = null;
+    this.offset = 0;
+  }
+
+  /**
+   * Creates a cursor positioned after a post that has already been seen, e.g. to resume a saved
+   * position.
+   * 
+   * @param lastPost
+   *          the last post seen
+   * @param offset
+   *          the number of posts seen in the last post's second, including the last post
+   */
+  public PostCursor(Post lastPost, int offset) {
+    Preconditions.checkNotNull(lastPost);
+    Preconditions.checkArgument(offset > 0);
+
+    this.lastPost = lastPost;
+    this.offset = offset;
+  }
+
+  /**
+   * Moves the cursor past a page of posts requested with {@link #getBefore()} and
+   * {@link #getOffset()}.
+   * 
+   * @param page
+   *          the posts returned, newest first
+   * @return the posts in the page that are past the cursor
+   */
+  public List<Post> advance(List<Post> page) {
+    List<Post> newPosts = new ArrayList<>(page.size());
+    for (Post post : page) {
+      if (lastPost != null && !isBefore(post, lastPost)) {
+        continue;
+      }
+
+      if (lastPost != null && getSecond(post) == getSecond(lastPost)) {
+        ++offset;
+      } else {
+        offset = 1;
+      }
+      lastPost = post;
+      newPosts.add(post);
+    }
+
+    if (newPosts.isEmpty()) {
+      // Everything was seen already; skip past it so that the next request makes progress.
+      offset += page.size();
+    }
+    return newPosts;
+  }
+
+  /**
+   * Gets the exclusive upper bound on the posted instant of the next page's posts, or null if no
+   * posts have been seen yet and the next page is the newest.
+   */
+  public Instant getBefore() {
+    if (lastPost == null) {
+      return null;
+    }
+    return new Instant(MILLIS_PER_SECOND * (getSecond(lastPost) + 1));
+  }
+
+  /**
+   * Gets the last post seen, or null if no posts have been seen yet.
+   */
+  public Post getLastPost() {
+    return lastPost;
+  }
+
+  /**
+   * Gets the number of posts to skip at the start of the next page.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Gets the next page of posts past the cursor from the API, moving the cursor past them.
+   * 
+   * @return the new posts, newest first, or an empty list if there are no more posts
+   */
+  public List<Post> nextPage(TumblrApi api, String blogName) {
+    while (true) {
+      Instant before = getBefore();
+      List<Post> page = (before == null) ? api.getPosts(blogName, offset) : api.getPostsBefore(
+              blogName, before, offset);
+      if (page.isEmpty()) {
+        return page;
+      }
+
+      List<Post> newPosts = advance(page);
+      if (!newPosts.isEmpty()) {
+        return newPosts;
+      }
+    }
+  }
+
+  private static long getSecond(Post post) {
+    return post.getPostedInstant().getMillis() / MILLIS_PER_SECOND;
+  }
+
+  /**
+   * Determines whether a post comes after another in newest-first order, comparing posted instants
+   * at tumblr's resolution of one second and breaking ties by id.
+   */
+  static boolean isBefore(Post post, Post otherPost) {
+    long second = getSecond(post);
+    long otherSecond = getSecond(otherPost);
+    if (second != otherSecond) {
+      return second < otherSecond;
+    }
+    return post.getId() < otherPost.getId();
+  }
+}
@@ -1,5 +1,9 @@
 package cc.bran.tumblr.api;
 
+import java.util.List;
+
+import org.joda.time.Instant;
+
 import cc.bran.tumblr.types.Post;
 
 /**
@@ -8,10 +12,33 @@ import cc.bran.tumblr.types.Post;
  * @author Brandon Pitman (brandon.pitman@gmail.com)
  */
 public interface TumblrApi {
+
+  /**
+   * The number of posts in each full page returned by {@link #getPosts(String, int)}.
+   */
+  int PAGE_SIZE = 20;
   
   Post getPost(String blogName, long id);
   
   Iterable<Post> getAllPosts(String blogName);
 
   Iterable<Post> getAllPostsWithTag(String blogName, String tag);
+
+  /**
+   * Gets the number of posts the blog currently has.
+   */
+  int getPostCount(String blogName);
+
+  /**
+   * Gets one page of the blog's posts, newest first, starting at the given offset. The page is
+   * empty once the offset is past the blog's oldest post.
+   */
+  List<Post> getPosts(String blogName, int offset);
+
+  /**
+   * Gets one page of the blog's posts posted before the given instant, newest first, skipping the
+   * first {@code offset} of them. Only whole seconds of the instant are significant, as tumblr
+   * keeps posted times to the second.
+   */
+  List<Post> getPostsBefore(String blogName, Instant before, int offset);
 }
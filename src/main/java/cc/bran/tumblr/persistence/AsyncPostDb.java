@@ -0,0 +1,62 @@
+package cc.bran.tumblr.persistence;
+
+import java.util.Collection;
+import java.util.List;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An asynchronous version of {@link PostDb}. Each method starts the operation and returns
+ * immediately; the returned future completes when the operation does, or fails with the exception
+ * that the operation threw.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public interface AsyncPostDb {
+
+  /**
+   * Deletes a post from the database. Deleting a nonexistent post is a no-op.
+   * 
+   * @param id
+   *          the ID of the post to delete
+   * @return a future that completes when the post has been deleted
+   */
+  ListenableFuture<Void> delete(long id);
+
+  /**
+   * Gets a post from the database. The future's value is null if there is no such post.
+   * 
+   * @param id
+   *          the ID of the post to retrieve
+   * @return a future for the post
+   */
+  ListenableFuture<Post> get(long id);
+
+  /**
+   * Gets all posts from the database. Cancelling the returned future stops the scan.
+   * 
+   * @return a future for a list of all of the posts in the database
+   */
+  ListenableFuture<List<Post>> getAll();
+
+  /**
+   * Puts a collection of posts into the database. If there are already posts with the same ID, they
+   * will be overwritten.
+   * 
+   * @param posts
+   *          the posts to put into the database
+   * @return a future that completes when the posts have been put
+   */
+  ListenableFuture<Void> put(Collection<Post> posts);
+
+  /**
+   * Puts a post into the database. If there is already a post with the same ID, it is overwritten.
+   * 
+   * @param post
+   *          the post to put into the database
+   * @return a future that completes when the post has been put
+   */
+  ListenableFuture<Void> put(Post post);
+}
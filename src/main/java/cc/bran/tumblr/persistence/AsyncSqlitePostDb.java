@@ -0,0 +1,204 @@
+package cc.bran.tumblr.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * An {@link AsyncPostDb} that runs the blocking calls of a {@link SqlitePostDb} on an executor.
+ * 
+ * The number of operations in flight (queued on the executor or running) is bounded. Once the limit
+ * is reached, new operations fail immediately with a {@link RejectedExecutionException} instead of
+ * queueing without bound; callers should treat this as a signal to slow down. Cancelling a future
+ * before its operation starts frees its slot right away; a running operation keeps its slot until
+ * it returns. Scans read the database in batches and stop between batches if their future is
+ * cancelled with interruption.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class AsyncSqlitePostDb implements AsyncPostDb {
+
+  /**
+   * An operation holding an in-flight permit. The permit is released when the operation finishes
+   * running, or when its future is cancelled before it starts, whichever claims it first; a running
+   * operation keeps its permit even if its future is cancelled.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private class Operation<T> implements Callable<T> {
+
+    private final Callable<T> callable;
+
+    private final AtomicBoolean claimed;
+
+    public Operation(Callable<T> callable) {
+      this.callable = callable;
+      this.claimed = new AtomicBoolean(false);
+    }
+
+    @Override
+    public T call() throws Exception {
+      if (!claimed.compareAndSet(false, true)) {
+        // The future was cancelled, and the permit released, just as the operation started.
+        throw new CancellationException();
+      }
+
+      try {
+        return callable.call();
+      } finally {
+        inFlightPermits.release();
+      }
+    }
+
+    public void onCancelled() {
+      if (claimed.compareAndSet(false, true)) {
+        inFlightPermits.release();
+      }
+    }
+  }
+
+  private static final int SCAN_BATCH_SIZE = 500;
+
+  private final Executor executor;
+
+  private final Semaphore inFlightPermits;
+
+  private final int maxInFlight;
+
+  private final SqlitePostDb postDb;
+
+  /**
+   * Creates a new asynchronous post database.
+   * 
+   * @param postDb
+   *          the database to wrap; open it with read connections to let reads run in parallel
+   * @param executor
+   *          the executor to run operations on
+   * @param maxInFlight
+   *          the maximum number of operations that may be queued or running at once
+   */
+  public AsyncSqlitePostDb(SqlitePostDb postDb, Executor executor, int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0);
+
+    this.executor = executor;
+    this.inFlightPermits = new Semaphore(maxInFlight);
+    this.maxInFlight = maxInFlight;
+    this.postDb = postDb;
+  }
+
+  @Override
+  public ListenableFuture<Void> delete(final long id) {
+    return submit(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.delete(id);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Post> get(final long id) {
+    return submit(new Callable<Post>() {
+
+      @Override
+      public Post call() throws Exception {
+        return postDb.get(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<List<Post>> getAll() {
+    return submit(new Callable<List<Post>>() {
+
+      @Override
+      public List<Post> call() throws Exception {
+        ImmutableList.Builder<Post> resultBuilder = ImmutableList.builder();
+        for (List<Long> ids : Iterables.partition(postDb.getIds(), SCAN_BATCH_SIZE)) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException("Scan was cancelled.");
+          }
+          resultBuilder.addAll(postDb.getAll(ids));
+        }
+        return resultBuilder.build();
+      }
+    });
+  }
+
+  /**
+   * Gets the number of operations that are queued or running.
+   */
+  public int getInFlightCount() {
+    return maxInFlight - inFlightPermits.availablePermits();
+  }
+
+  @Override
+  public ListenableFuture<Void> put(final Collection<Post> posts) {
+    // Copy, since the caller may modify the collection before the put runs.
+    final List<Post> postsCopy = ImmutableList.copyOf(posts);
+    return submit(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.put(postsCopy);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> put(final Post post) {
+    return submit(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.put(post);
+        return null;
+      }
+    });
+  }
+
+  private <T> ListenableFuture<T> submit(Callable<T> callable) {
+    if (!inFlightPermits.tryAcquire()) {
+      return Futures.immediateFailedFuture(new RejectedExecutionException(String.format(
+              "Too many operations in flight (limit %d).", maxInFlight)));
+    }
+
+    final Operation<T> operation = new Operation<>(callable);
+    final ListenableFutureTask<T> task = ListenableFutureTask.create(operation);
+    task.addListener(new Runnable() {
+
+      @Override
+      public void run() {
+        if (task.isCancelled()) {
+          operation.onCancelled();
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException exception) {
+      task.cancel(false);
+      return Futures.immediateFailedFuture(exception);
+    }
+    return task;
+  }
+}
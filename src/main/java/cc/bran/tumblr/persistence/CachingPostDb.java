@@ -0,0 +1,227 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A {@link PostDb} that caches the results of {@link #get(long)} in front of another database.
+ * Lookups of missing posts are cached too, so repeated requests for a nonexistent ID do not reach
+ * the underlying database. The cache is bounded by entry count or by the approximate encoded size
+ * of the cached posts, evicting the least recently used entries first. Puts and deletes go straight
+ * to the underlying database and invalidate the posts they touch.
+ * 
+ * The set of cached IDs can be saved with {@link #saveHotSet(File)} at shutdown and preloaded with
+ * {@link #loadHotSet(File)} at startup, so that a restarted server does not begin cold. This class
+ * is safe for use from multiple threads if the underlying database is.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class CachingPostDb implements PostDb, AutoCloseable {
+
+  private static final int MISSING_POST_WEIGHT = 16;
+
+  private final Cache<Long, Optional<Post>> cache;
+
+  private final PostDb postDb;
+
+  private long writeCount;
+
+  private CachingPostDb(PostDb postDb, Cache<Long, Optional<Post>> cache) {
+    this.cache = cache;
+    this.postDb = postDb;
+    this.writeCount = 0;
+  }
+
+  /**
+   * Creates a cache that holds up to the given number of lookups.
+   * 
+   * @param postDb
+   *          the underlying database
+   * @param maximumSize
+   *          the maximum number of cached lookups, including lookups of missing posts
+   * @return the caching database
+   */
+  public static CachingPostDb withMaximumSize(PostDb postDb, long maximumSize) {
+    Cache<Long, Optional<Post>> cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+            .recordStats().build();
+    return new CachingPostDb(postDb, cache);
+  }
+
+  /**
+   * Creates a cache that holds lookups up to the given total weight, where a post weighs the size
+   * of its {@link PostCodec} encoding. This bounds the cache's memory use more closely than an
+   * entry count when post sizes vary widely.
+   * 
+   * @param postDb
+   *          the underlying database
+   * @param maximumBytes
+   *          the maximum total encoded size of the cached posts
+   * @return the caching database
+   */
+  public static CachingPostDb withMaximumWeight(PostDb postDb, long maximumBytes) {
+    Cache<Long, Optional<Post>> cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes)
+            .weigher(new Weigher<Long, Optional<Post>>() {
+
+              @Override
+              public int weigh(Long id, Optional<Post> post) {
+                if (!post.isPresent()) {
+                  return MISSING_POST_WEIGHT;
+                }
+                return PostCodec.encode(post.get()).length;
+              }
+            }).recordStats().build();
+    return new CachingPostDb(postDb, cache);
+  }
+
+  /**
+   * Empties the cache. The underlying database is not closed.
+   */
+  @Override
+  public void close() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public void delete(long id) throws Exception {
+    try {
+      postDb.delete(id);
+    } finally {
+      invalidate(ImmutableList.of(id));
+    }
+  }
+
+  @Override
+  public Post get(long id) throws Exception {
+    Optional<Post> cachedPost = cache.getIfPresent(id);
+    if (cachedPost != null) {
+      return cachedPost.orNull();
+    }
+
+    // Only cache the result if no write ran during the lookup, since the write's invalidation may
+    // have come before the lookup's result was stored.
+    long startWriteCount;
+    synchronized (this) {
+      startWriteCount = writeCount;
+    }
+    Post post = postDb.get(id);
+    synchronized (this) {
+      if (writeCount == startWriteCount) {
+        cache.put(id, Optional.fromNullable(post));
+      }
+    }
+    return post;
+  }
+
+  /**
+   * Gets all posts from the underlying database. Scans bypass the cache.
+   */
+  @Override
+  public List<Post> getAll() throws Exception {
+    return postDb.getAll();
+  }
+
+  /**
+   * Gets hit, miss and eviction counts for the cache.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Preloads the posts whose IDs were saved by {@link #saveHotSet(File)}. A missing file is
+   * ignored, as it is on first startup.
+   * 
+   * @param file
+   *          the file the hot set was saved to
+   * @return the number of posts loaded
+   * @throws Exception
+   *           if the file cannot be read or the underlying database fails
+   */
+  public int loadHotSet(File file) throws Exception {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    List<Long> ids = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+            file)))) {
+      while (true) {
+        ids.add(in.readLong());
+      }
+    } catch (EOFException exception) {
+      // End of the hot set.
+    }
+
+    int loadedCount = 0;
+    for (long id : ids) {
+      if (get(id) != null) {
+        ++loadedCount;
+      }
+    }
+    return loadedCount;
+  }
+
+  @Override
+  public void put(Collection<Post> posts) throws Exception {
+    List<Long> ids = new ArrayList<>(posts.size());
+    for (Post post : posts) {
+      ids.add(post.getId());
+    }
+
+    try {
+      postDb.put(posts);
+    } finally {
+      invalidate(ids);
+    }
+  }
+
+  @Override
+  public void put(Post post) throws Exception {
+    put(ImmutableList.of(post));
+  }
+
+  /**
+   * Saves the IDs of the posts currently in the cache, for {@link #loadHotSet(File)} to preload
+   * after a restart.
+   * 
+   * @param file
+   *          the file to save the hot set to; it is replaced if it exists
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public void saveHotSet(File file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)))) {
+      for (Map.Entry<Long, Optional<Post>> entry : cache.asMap().entrySet()) {
+        if (entry.getValue().isPresent()) {
+          out.writeLong(entry.getKey());
+        }
+      }
+    }
+  }
+
+  private synchronized void invalidate(Collection<Long> ids) {
+    ++writeCount;
+    cache.invalidateAll(ids);
+  }
+}
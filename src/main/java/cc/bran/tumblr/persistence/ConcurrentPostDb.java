@@ -0,0 +1,262 @@
+package cc.bran.tumblr.persistence;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Duration;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A thread-safe {@link PostDb} that funnels all writes through a single dedicated writer thread.
+ * Writes are queued in a bounded queue; callers block while the queue is full, and then until their
+ * write has been committed. Reads bypass the queue and go straight to the underlying database, so
+ * they proceed in parallel with each other and with the writer.
+ * 
+ * The underlying database must support reads concurrent with a single writer, such as a
+ * {@link SqlitePostDb} opened with a pool of read connections.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class ConcurrentPostDb implements PostDb, AutoCloseable {
+
+  /**
+   * A write waiting in the queue, along with the time it was enqueued.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class WriteTask extends FutureTask<Void> {
+
+    private final long enqueuedNanos;
+
+    public WriteTask(Callable<Void> callable) {
+      super(callable);
+      this.enqueuedNanos = System.nanoTime();
+    }
+  }
+
+  private static final WriteTask SHUTDOWN_TASK = new WriteTask(new Callable<Void>() {
+
+    @Override
+    public Void call() {
+      return null;
+    }
+  });
+
+  private volatile boolean closed;
+
+  private final AtomicLong maxWaitNanos;
+
+  private final PostDb postDb;
+
+  private final AtomicLong totalWaitNanos;
+
+  private final AtomicLong writeCount;
+
+  private final BlockingQueue<WriteTask> writeQueue;
+
+  private final Thread writerThread;
+
+  /**
+   * Creates a new concurrent post database and starts its writer thread.
+   * 
+   * @param postDb
+   *          the underlying database; all writes to it must go through this instance
+   * @param maxQueuedWrites
+   *          the maximum number of writes waiting for the writer thread before callers block
+   */
+  public ConcurrentPostDb(PostDb postDb, int maxQueuedWrites) {
+    Preconditions.checkArgument(maxQueuedWrites > 0);
+
+    this.closed = false;
+    this.maxWaitNanos = new AtomicLong();
+    this.postDb = postDb;
+    this.totalWaitNanos = new AtomicLong();
+    this.writeCount = new AtomicLong();
+    this.writeQueue = new ArrayBlockingQueue<>(maxQueuedWrites);
+    this.writerThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        runWriter();
+      }
+    }, "ConcurrentPostDb writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Stops accepting writes, waits for queued writes to finish, and stops the writer thread. The
+   * underlying database is not closed.
+   * 
+   * @throws SQLException
+   *           if interrupted while waiting for the writer thread; the interrupt flag is restored,
+   *           and the writer thread still stops once it reaches the end of the queue
+   */
+  @Override
+  public void close() throws SQLException {
+    synchronized (this) {
+      if (!closed) {
+        closed = true;
+        // Queue the shutdown task even if interrupted; a later close() will not queue it again.
+        Uninterruptibles.putUninterruptibly(writeQueue, SHUTDOWN_TASK);
+      }
+    }
+
+    try {
+      writerThread.join();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for queued writes.", exception);
+    }
+  }
+
+  @Override
+  public void delete(final long id) throws Exception {
+    write(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.delete(id);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Post get(long id) throws Exception {
+    return postDb.get(id);
+  }
+
+  @Override
+  public List<Post> getAll() throws Exception {
+    return postDb.getAll();
+  }
+
+  /**
+   * Gets the average time that completed writes spent waiting in the queue before the writer
+   * thread picked them up.
+   */
+  public Duration getAverageWaitTime() {
+    long count = writeCount.get();
+    if (count == 0) {
+      return Duration.ZERO;
+    }
+    return new Duration(TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count));
+  }
+
+  /**
+   * Gets the longest time that any write spent waiting in the queue.
+   */
+  public Duration getMaxWaitTime() {
+    return new Duration(TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+  }
+
+  /**
+   * Gets the number of writes currently waiting for the writer thread, not counting the one it is
+   * working on.
+   */
+  public int getQueueDepth() {
+    return writeQueue.size();
+  }
+
+  /**
+   * Gets the number of writes the writer thread has picked up so far.
+   */
+  public long getWriteCount() {
+    return writeCount.get();
+  }
+
+  @Override
+  public void put(final Collection<Post> posts) throws Exception {
+    // Copy, since the caller may modify the collection while the write is queued.
+    final List<Post> postsCopy = ImmutableList.copyOf(posts);
+    write(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.put(postsCopy);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void put(final Post post) throws Exception {
+    write(new Callable<Void>() {
+
+      @Override
+      public Void call() throws Exception {
+        postDb.put(post);
+        return null;
+      }
+    });
+  }
+
+  private void runWriter() {
+    while (true) {
+      WriteTask task;
+      try {
+        task = writeQueue.take();
+      } catch (InterruptedException exception) {
+        // Nobody else interrupts this thread; the only way out is the shutdown task.
+        continue;
+      }
+      if (task == SHUTDOWN_TASK) {
+        // Anything behind the shutdown task raced with close(); fail it rather than leave its
+        // caller waiting forever.
+        List<WriteTask> abandonedTasks = new ArrayList<>();
+        writeQueue.drainTo(abandonedTasks);
+        for (WriteTask abandonedTask : abandonedTasks) {
+          abandonedTask.cancel(false);
+        }
+        return;
+      }
+
+      long waitNanos = System.nanoTime() - task.enqueuedNanos;
+      totalWaitNanos.addAndGet(waitNanos);
+      writeCount.incrementAndGet();
+      long currentMaxWaitNanos;
+      do {
+        currentMaxWaitNanos = maxWaitNanos.get();
+      } while (waitNanos > currentMaxWaitNanos
+              && !maxWaitNanos.compareAndSet(currentMaxWaitNanos, waitNanos));
+
+      task.run();
+    }
+  }
+
+  private void write(Callable<Void> callable) throws Exception {
+    Preconditions.checkState(!closed, "ConcurrentPostDb is closed");
+
+    WriteTask task = new WriteTask(callable);
+    writeQueue.put(task);
+    if (closed && writeQueue.remove(task)) {
+      // close() ran while this task was being queued, so the writer thread may already have drained
+      // the queue and exited. A task the writer took is run or cancelled by it; this one it missed.
+      throw new IllegalStateException("ConcurrentPostDb is closed");
+    }
+    try {
+      task.get();
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+}
@@ -0,0 +1,472 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.util.LongLongHashMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link PostDb} stored in append-only segment files, for write-heavy ingestion. Puts and deletes
+ * append records (posts encoded with {@link PostCodec}, or deletion markers) to the newest segment;
+ * nothing is ever updated in place. Segments are preallocated and memory-mapped, so appends are
+ * memory copies and reads decode straight out of the mapping. An in-memory index maps each post ID
+ * to the location of its newest record, and is rebuilt by replaying the segments when the database
+ * is opened.
+ * 
+ * Records superseded by a later put or delete become garbage. Once most of a full segment is
+ * garbage, a background thread copies its remaining live records forward and deletes the segment.
+ * 
+ * Each call to {@link #put(Collection)} or {@link #delete(long)} is flushed to disk before it
+ * returns. A put of several posts is not atomic, though: after a crash, any prefix of the posts may
+ * have been stored. Torn records at the end of a segment are detected by checksum and ignored. This
+ * class is safe for use from multiple threads.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class LogStructuredPostDb implements PostDb, AutoCloseable {
+
+  /**
+   * A memory-mapped segment file.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Segment {
+
+    private final MappedByteBuffer buffer;
+
+    private final File file;
+
+    private long liveBytes;
+
+    private final int number;
+
+    private int writePosition;
+
+    public Segment(int number, File file, MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.file = file;
+      this.liveBytes = 0;
+      this.number = number;
+      this.writePosition = 0;
+    }
+
+    /**
+     * Determines if enough of this segment is garbage that it is worth compacting.
+     */
+    public boolean shouldCompact() {
+      return liveBytes < writePosition * COMPACTION_THRESHOLD;
+    }
+  }
+
+  private static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final byte DELETE_RECORD = 2;
+
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 1;
+
+  private static final long NO_LOCATION = -1;
+
+  private static final byte PUT_RECORD = 1;
+
+  private static final String SEGMENT_FILE_FORMAT = "segment-%08d.log";
+
+  private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("segment-(\\d+)\\.log");
+
+  private Segment activeSegment;
+
+  private boolean closed;
+
+  private boolean compactionScheduled;
+
+  private final ExecutorService compactor;
+
+  private final File directory;
+
+  private final LongLongHashMap locationById;
+
+  private final int segmentSize;
+
+  private final TreeMap<Integer, Segment> segments;
+
+  /**
+   * Opens a database with the default segment size, creating the directory if it does not exist.
+   * 
+   * @param directory
+   *          the directory that holds the segment files
+   * @throws IOException
+   *           if the segment files cannot be read or created
+   */
+  public LogStructuredPostDb(String directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens a database, creating the directory if it does not exist.
+   * 
+   * @param directory
+   *          the directory that holds the segment files
+   * @param segmentSize
+   *          the size in bytes of each new segment; a post too large to fit gets a segment of its
+   *          own
+   * @throws IOException
+   *           if the segment files cannot be read or created
+   */
+  public LogStructuredPostDb(String directory, int segmentSize) throws IOException {
+    Preconditions.checkArgument(segmentSize > HEADER_SIZE);
+
+    this.closed = false;
+    this.compactionScheduled = false;
+    this.compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("LogStructuredPostDb-%d").build());
+    this.directory = new File(directory);
+    this.locationById = new LongLongHashMap(NO_LOCATION);
+    this.segmentSize = segmentSize;
+    this.segments = new TreeMap<>();
+
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException(String.format("Could not create directory %s.", directory));
+    }
+
+    // Replay the existing segments in order, so that later records override earlier ones.
+    Map<Integer, File> segmentFileByNumber = new TreeMap<>();
+    for (File file : this.directory.listFiles()) {
+      Matcher matcher = SEGMENT_FILE_PATTERN.matcher(file.getName());
+      if (matcher.matches()) {
+        segmentFileByNumber.put(Integer.parseInt(matcher.group(1)), file);
+      }
+    }
+    for (Map.Entry<Integer, File> entry : segmentFileByNumber.entrySet()) {
+      Segment segment = new Segment(entry.getKey(), entry.getValue(), map(entry.getValue(), 0));
+      segments.put(segment.number, segment);
+      replay(segment);
+    }
+
+    if (segments.isEmpty()) {
+      activeSegment = createSegment(0, segmentSize);
+    } else {
+      activeSegment = segments.lastEntry().getValue();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    compactor.shutdown();
+    activeSegment.buffer.force();
+
+    // Mapped buffers are unmapped when they are garbage collected; there is no way to unmap them
+    // sooner.
+    segments.clear();
+    locationById.clear();
+  }
+
+  /**
+   * Compacts every full segment that is mostly garbage, copying its live records to the newest
+   * segment and deleting it. This is done automatically in the background, but may be called
+   * directly.
+   * 
+   * @return the number of segments that were deleted
+   * @throws IOException
+   *           if a segment cannot be written
+   */
+  public synchronized int compact() throws IOException {
+    List<Segment> compactableSegments = new ArrayList<>();
+    for (Segment segment : segments.values()) {
+      if (segment != activeSegment && segment.shouldCompact()) {
+        compactableSegments.add(segment);
+      }
+    }
+
+    for (Segment segment : compactableSegments) {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int offset = 0;
+      while (offset < segment.writePosition) {
+        int recordLength = buffer.getInt(offset);
+        long id = buffer.getLong(offset + 8);
+        byte recordType = buffer.get(offset + 16);
+
+        if (recordType == PUT_RECORD) {
+          if (locationById.get(id) == getLocation(segment.number, offset)) {
+            copyRecord(buffer, offset, recordLength, id);
+          }
+        } else if (!locationById.containsKey(id) && segments.firstKey() < segment.number) {
+          // The deletion must outlive any older segment that may still hold a put of the post.
+          copyRecord(buffer, offset, recordLength, id);
+        }
+
+        offset += recordLength;
+      }
+
+      // Make the copies durable before the originals are gone.
+      activeSegment.buffer.force();
+      segments.remove(segment.number);
+      segment.file.delete();
+    }
+
+    return compactableSegments.size();
+  }
+
+  @Override
+  public synchronized void delete(long id) throws IOException {
+    Preconditions.checkState(!closed, "Database is closed.");
+
+    long location = locationById.remove(id);
+    if (location == NO_LOCATION) {
+      return;
+    }
+    release(location);
+
+    append(DELETE_RECORD, id, new byte[0]);
+    activeSegment.buffer.force();
+    scheduleCompactionIfNeeded();
+  }
+
+  @Override
+  public synchronized Post get(long id) {
+    Preconditions.checkState(!closed, "Database is closed.");
+
+    long location = locationById.get(id);
+    if (location == NO_LOCATION) {
+      return null;
+    }
+    return read(location);
+  }
+
+  @Override
+  public synchronized List<Post> getAll() {
+    Preconditions.checkState(!closed, "Database is closed.");
+
+    // Read in file order, which keeps access to the mappings sequential.
+    long[] locations = locationById.values();
+    Arrays.sort(locations);
+
+    ImmutableList.Builder<Post> postsBuilder = ImmutableList.builder();
+    for (long location : locations) {
+      postsBuilder.add(read(location));
+    }
+    return postsBuilder.build();
+  }
+
+  /**
+   * Gets the number of segment files.
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  @Override
+  public synchronized void put(Collection<Post> posts) throws IOException {
+    Preconditions.checkState(!closed, "Database is closed.");
+
+    for (Post post : posts) {
+      long location = append(PUT_RECORD, post.getId(), PostCodec.encode(post));
+      long previousLocation = locationById.put(post.getId(), location);
+      if (previousLocation != NO_LOCATION) {
+        release(previousLocation);
+      }
+    }
+    activeSegment.buffer.force();
+    scheduleCompactionIfNeeded();
+  }
+
+  @Override
+  public void put(Post post) throws IOException {
+    put(ImmutableList.of(post));
+  }
+
+  /**
+   * Appends a record to the active segment, starting a new segment if it does not fit. A put
+   * record is counted as live; the caller must update the index.
+   * 
+   * @return the location of the new record
+   */
+  private long append(byte recordType, long id, byte[] payload) throws IOException {
+    int recordLength = HEADER_SIZE + payload.length;
+    if (activeSegment.writePosition + recordLength > activeSegment.buffer.capacity()) {
+      activeSegment.buffer.force();
+      activeSegment = createSegment(activeSegment.number + 1, Math.max(segmentSize, recordLength));
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(recordLength);
+    record.putInt(recordLength);
+    record.putInt(0);
+    record.putLong(id);
+    record.put(recordType);
+    record.put(payload);
+    CRC32 checksum = new CRC32();
+    checksum.update(record.array(), 8, recordLength - 8);
+    record.putInt(4, (int) checksum.getValue());
+
+    int offset = activeSegment.writePosition;
+    ByteBuffer buffer = activeSegment.buffer.duplicate();
+    buffer.position(offset);
+    buffer.put(record.array());
+    activeSegment.writePosition += recordLength;
+    if (recordType == PUT_RECORD) {
+      activeSegment.liveBytes += recordLength;
+    }
+    return getLocation(activeSegment.number, offset);
+  }
+
+  /**
+   * Copies a record from a segment being compacted to the active segment, pointing the index at the
+   * copy if it is a put.
+   */
+  private void copyRecord(ByteBuffer buffer, int offset, int recordLength, long id)
+          throws IOException {
+    byte[] payload = new byte[recordLength - HEADER_SIZE];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset + HEADER_SIZE);
+    source.get(payload);
+
+    byte recordType = buffer.get(offset + 16);
+    long location = append(recordType, id, payload);
+    if (recordType == PUT_RECORD) {
+      locationById.put(id, location);
+    }
+  }
+
+  private Segment createSegment(int number, int capacity) throws IOException {
+    File file = new File(directory, String.format(SEGMENT_FILE_FORMAT, number));
+    Segment segment = new Segment(number, file, map(file, capacity));
+    segments.put(number, segment);
+    return segment;
+  }
+
+  private Post read(long location) {
+    Segment segment = segments.get(getSegmentNumber(location));
+    int offset = getOffset(location);
+
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.limit(offset + buffer.getInt(offset));
+    buffer.position(offset + HEADER_SIZE);
+    return PostCodec.decode(buffer);
+  }
+
+  /**
+   * Marks the record at the given location as garbage.
+   */
+  private void release(long location) {
+    Segment segment = segments.get(getSegmentNumber(location));
+    segment.liveBytes -= segment.buffer.getInt(getOffset(location));
+  }
+
+  /**
+   * Reads a segment's records into the index. Reading stops at the end of the written part of the
+   * segment, or at the first record that is incomplete or fails its checksum.
+   */
+  private void replay(Segment segment) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int offset = 0;
+    while (offset + HEADER_SIZE <= buffer.capacity()) {
+      int recordLength = buffer.getInt(offset);
+      if (recordLength < HEADER_SIZE || recordLength > buffer.capacity() - offset) {
+        break;
+      }
+
+      byte[] checkedBytes = new byte[recordLength - 8];
+      buffer.position(offset + 8);
+      buffer.get(checkedBytes);
+      CRC32 checksum = new CRC32();
+      checksum.update(checkedBytes);
+      if (buffer.getInt(offset + 4) != (int) checksum.getValue()) {
+        break;
+      }
+
+      long id = buffer.getLong(offset + 8);
+      long previousLocation;
+      if (buffer.get(offset + 16) == PUT_RECORD) {
+        previousLocation = locationById.put(id, getLocation(segment.number, offset));
+        segment.liveBytes += recordLength;
+      } else {
+        previousLocation = locationById.remove(id);
+      }
+      if (previousLocation != NO_LOCATION) {
+        release(previousLocation);
+      }
+
+      offset += recordLength;
+    }
+    segment.writePosition = offset;
+  }
+
+  private void scheduleCompactionIfNeeded() {
+    if (compactionScheduled) {
+      return;
+    }
+
+    for (Segment segment : segments.values()) {
+      if (segment != activeSegment && segment.shouldCompact()) {
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            synchronized (LogStructuredPostDb.this) {
+              compactionScheduled = false;
+              if (closed) {
+                return;
+              }
+
+              try {
+                compact();
+              } catch (IOException exception) {
+                // Leave the segments as they are; compaction is retried after the next write.
+              }
+            }
+          }
+        });
+        return;
+      }
+    }
+  }
+
+  private static long getLocation(int segmentNumber, int offset) {
+    return ((long) segmentNumber << 32) | offset;
+  }
+
+  private static int getOffset(long location) {
+    return (int) location;
+  }
+
+  private static int getSegmentNumber(long location) {
+    return (int) (location >>> 32);
+  }
+
+  /**
+   * Maps a segment file into memory. If capacity is positive, the file is created (or extended) to
+   * that size; otherwise, the file's existing length is used.
+   */
+  private static MappedByteBuffer map(File file, int capacity) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      long size = capacity > 0 ? capacity : randomAccessFile.length();
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package cc.bran.tumblr.persistence;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.util.LongLongHashMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * An in-memory {@link PostDb} that keeps posts encoded with {@link PostCodec} in direct (off-heap)
+ * buffers, and decodes them on each read. The garbage collector sees a handful of large buffers and
+ * a primitive ID index rather than millions of post objects, so a large archive can be held in
+ * memory without GC pressure. The memory used is bounded by {@code -XX:MaxDirectMemorySize}, not by
+ * the heap size.
+ * 
+ * Replacing or deleting a post leaves its old encoding behind as garbage. Once more than half of
+ * the allocated space is garbage, the live posts are copied into fresh buffers. Nothing is
+ * persisted; use {@link #loadFrom(SqlitePostDb)} and {@link #dumpTo(PostDb)} to move posts in and
+ * out. This class is safe for use from multiple threads.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class OffHeapPostDb implements PostDb, AutoCloseable {
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  private static final long NO_LOCATION = -1;
+
+  private final int chunkSize;
+
+  private final List<ByteBuffer> chunks;
+
+  private long garbageBytes;
+
+  private final LongLongHashMap locationById;
+
+  /**
+   * Creates an empty database that allocates memory in chunks of the default size.
+   */
+  public OffHeapPostDb() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates an empty database.
+   * 
+   * @param chunkSize
+   *          the size in bytes of each buffer; a post too large to fit gets a buffer of its own
+   */
+  public OffHeapPostDb(int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 4);
+
+    this.chunkSize = chunkSize;
+    this.chunks = new ArrayList<>();
+    this.garbageBytes = 0;
+    this.locationById = new LongLongHashMap(NO_LOCATION);
+  }
+
+  /**
+   * Appends an encoded post to the last chunk, allocating a new chunk if it does not fit.
+   * 
+   * @return the location of the encoded post
+   */
+  private long append(ByteBuffer encodedPost) {
+    int recordLength = 4 + encodedPost.remaining();
+    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (chunk == null || chunk.remaining() < recordLength) {
+      chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, recordLength));
+      chunks.add(chunk);
+    }
+
+    int offset = chunk.position();
+    chunk.putInt(recordLength);
+    chunk.put(encodedPost);
+    return getLocation(chunks.size() - 1, offset);
+  }
+
+  /**
+   * Releases the memory held by the database. Direct buffers are freed when they are garbage
+   * collected.
+   */
+  @Override
+  public synchronized void close() {
+    chunks.clear();
+    locationById.clear();
+    garbageBytes = 0;
+  }
+
+  /**
+   * Copies the live posts into fresh chunks, if enough of the allocated space is garbage.
+   */
+  private void compactIfNeeded() {
+    long allocatedBytes = getAllocatedBytes();
+    if (allocatedBytes <= chunkSize || garbageBytes * 2 <= allocatedBytes) {
+      return;
+    }
+
+    List<ByteBuffer> oldChunks = new ArrayList<>(chunks);
+    chunks.clear();
+    garbageBytes = 0;
+    for (long id : locationById.keys()) {
+      long location = locationById.get(id);
+      ByteBuffer record = oldChunks.get(getChunkIndex(location)).duplicate();
+      int offset = getOffset(location);
+      record.limit(offset + record.getInt(offset));
+      record.position(offset + 4);
+      locationById.put(id, append(record));
+    }
+  }
+
+  @Override
+  public synchronized void delete(long id) {
+    long location = locationById.remove(id);
+    if (location != NO_LOCATION) {
+      release(location);
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Puts every post in this database into another database, in batches.
+   * 
+   * @param postDb
+   *          the database to put the posts into
+   * @throws Exception
+   *           if the other database fails
+   */
+  public void dumpTo(PostDb postDb) throws Exception {
+    long[] ids;
+    synchronized (this) {
+      ids = locationById.keys();
+    }
+
+    List<Post> batch = new ArrayList<>(BATCH_SIZE);
+    for (long id : ids) {
+      Post post = get(id);
+      if (post != null) {
+        batch.add(post);
+      }
+      if (batch.size() == BATCH_SIZE) {
+        postDb.put(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      postDb.put(batch);
+    }
+  }
+
+  @Override
+  public synchronized Post get(long id) {
+    long location = locationById.get(id);
+    if (location == NO_LOCATION) {
+      return null;
+    }
+    return read(location);
+  }
+
+  @Override
+  public synchronized List<Post> getAll() {
+    ImmutableList.Builder<Post> postsBuilder = ImmutableList.builder();
+    for (long location : locationById.values()) {
+      postsBuilder.add(read(location));
+    }
+    return postsBuilder.build();
+  }
+
+  /**
+   * Gets the number of bytes of off-heap memory allocated, including garbage.
+   */
+  public synchronized long getAllocatedBytes() {
+    long allocatedBytes = 0;
+    for (ByteBuffer chunk : chunks) {
+      allocatedBytes += chunk.capacity();
+    }
+    return allocatedBytes;
+  }
+
+  /**
+   * Puts every post in a SQLite database into this database. Posts are read in batches, so the heap
+   * never holds more than one batch of decoded posts.
+   * 
+   * @param postDb
+   *          the database to load posts from
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public void loadFrom(SqlitePostDb postDb) throws SQLException {
+    for (List<Long> ids : Iterables.partition(postDb.getIds(), BATCH_SIZE)) {
+      put(postDb.getAll(ids));
+    }
+  }
+
+  @Override
+  public synchronized void put(Collection<Post> posts) {
+    for (Post post : posts) {
+      long location = append(ByteBuffer.wrap(PostCodec.encode(post)));
+      long previousLocation = locationById.put(post.getId(), location);
+      if (previousLocation != NO_LOCATION) {
+        release(previousLocation);
+      }
+    }
+    compactIfNeeded();
+  }
+
+  @Override
+  public void put(Post post) {
+    put(ImmutableList.of(post));
+  }
+
+  private Post read(long location) {
+    ByteBuffer buffer = chunks.get(getChunkIndex(location)).duplicate();
+    int offset = getOffset(location);
+    buffer.limit(offset + buffer.getInt(offset));
+    buffer.position(offset + 4);
+    return PostCodec.decode(buffer);
+  }
+
+  /**
+   * Marks the post at the given location as garbage.
+   */
+  private void release(long location) {
+    garbageBytes += chunks.get(getChunkIndex(location)).getInt(getOffset(location));
+  }
+
+  private static int getChunkIndex(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static long getLocation(int chunkIndex, int offset) {
+    return ((long) chunkIndex << 32) | offset;
+  }
+
+  private static int getOffset(long location) {
+    return (int) location;
+  }
+}
@@ -0,0 +1,393 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.AnswerPost;
+import cc.bran.tumblr.types.AudioPost;
+import cc.bran.tumblr.types.ChatPost;
+import cc.bran.tumblr.types.ChatPost.Dialogue;
+import cc.bran.tumblr.types.LinkPost;
+import cc.bran.tumblr.types.PhotoPost;
+import cc.bran.tumblr.types.PhotoPost.Photo;
+import cc.bran.tumblr.types.PhotoPost.Photo.PhotoSize;
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.QuotePost;
+import cc.bran.tumblr.types.TextPost;
+import cc.bran.tumblr.types.VideoPost;
+import cc.bran.tumblr.types.VideoPost.Video;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A compact binary encoding of {@link Post}s, for storage outside of SQLite. A post is encoded as a
+ * type code followed by its fields in a fixed order; strings are a length and UTF-8 bytes, and
+ * lists are a count followed by their elements. Type codes are part of the format and must never be
+ * reused.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public final class PostCodec {
+
+  private static final byte ANSWER_TYPE_CODE = 4;
+
+  private static final byte AUDIO_TYPE_CODE = 6;
+
+  private static final byte CHAT_TYPE_CODE = 8;
+
+  private static final byte LINK_TYPE_CODE = 3;
+
+  private static final byte PHOTO_TYPE_CODE = 7;
+
+  private static final byte QUOTE_TYPE_CODE = 2;
+
+  private static final byte TEXT_TYPE_CODE = 1;
+
+  private static final byte VIDEO_TYPE_CODE = 5;
+
+  private PostCodec() {
+    // Not instantiable.
+  }
+
+  /**
+   * Decodes a post starting at the buffer's position, leaving the position just after the post.
+   * 
+   * @param buffer
+   *          the buffer to read from
+   * @return the decoded post
+   * @throws IllegalArgumentException
+   *           if the buffer does not hold an encoded post
+   */
+  public static Post decode(ByteBuffer buffer) {
+    byte typeCode = buffer.get();
+    long id = buffer.getLong();
+    String blogName = getString(buffer);
+    String postUrl = getString(buffer);
+    Instant postedInstant = new Instant(buffer.getLong());
+    Instant retrievedInstant = new Instant(buffer.getLong());
+    ImmutableList.Builder<String> tagsBuilder = ImmutableList.builder();
+    for (int tagCount = buffer.getInt(); tagCount > 0; --tagCount) {
+      tagsBuilder.add(getString(buffer));
+    }
+
+    Post.Builder postBuilder;
+    switch (typeCode) {
+    case ANSWER_TYPE_CODE:
+      AnswerPost.Builder answerBuilder = new AnswerPost.Builder();
+      answerBuilder.setAskingName(getString(buffer));
+      answerBuilder.setAskingUrl(getString(buffer));
+      answerBuilder.setQuestion(getString(buffer));
+      answerBuilder.setAnswer(getString(buffer));
+      postBuilder = answerBuilder;
+      break;
+    case AUDIO_TYPE_CODE:
+      AudioPost.Builder audioBuilder = new AudioPost.Builder();
+      audioBuilder.setCaption(getString(buffer));
+      audioBuilder.setPlayer(getString(buffer));
+      audioBuilder.setPlays(buffer.getInt());
+      audioBuilder.setAlbumArt(getString(buffer));
+      audioBuilder.setArtist(getString(buffer));
+      audioBuilder.setAlbum(getString(buffer));
+      audioBuilder.setTrackName(getString(buffer));
+      audioBuilder.setTrackNumber(buffer.getInt());
+      audioBuilder.setYear(buffer.getInt());
+      postBuilder = audioBuilder;
+      break;
+    case CHAT_TYPE_CODE:
+      ChatPost.Builder chatBuilder = new ChatPost.Builder();
+      chatBuilder.setTitle(getString(buffer));
+      chatBuilder.setBody(getString(buffer));
+      ImmutableList.Builder<Dialogue> dialogueBuilder = ImmutableList.builder();
+      for (int dialogueCount = buffer.getInt(); dialogueCount > 0; --dialogueCount) {
+        String name = getString(buffer);
+        String label = getString(buffer);
+        String phrase = getString(buffer);
+        dialogueBuilder.add(new Dialogue(name, label, phrase));
+      }
+      chatBuilder.setDialogue(dialogueBuilder.build());
+      postBuilder = chatBuilder;
+      break;
+    case LINK_TYPE_CODE:
+      LinkPost.Builder linkBuilder = new LinkPost.Builder();
+      linkBuilder.setTitle(getString(buffer));
+      linkBuilder.setUrl(getString(buffer));
+      linkBuilder.setDescription(getString(buffer));
+      postBuilder = linkBuilder;
+      break;
+    case PHOTO_TYPE_CODE:
+      PhotoPost.Builder photoBuilder = new PhotoPost.Builder();
+      ImmutableList.Builder<Photo> photosBuilder = ImmutableList.builder();
+      for (int photoCount = buffer.getInt(); photoCount > 0; --photoCount) {
+        String photoCaption = getString(buffer);
+        ImmutableList.Builder<PhotoSize> photoSizesBuilder = ImmutableList.builder();
+        for (int photoSizeCount = buffer.getInt(); photoSizeCount > 0; --photoSizeCount) {
+          int width = buffer.getInt();
+          int height = buffer.getInt();
+          String url = getString(buffer);
+          photoSizesBuilder.add(new PhotoSize(width, height, url));
+        }
+        photosBuilder.add(new Photo(photoCaption, photoSizesBuilder.build()));
+      }
+      photoBuilder.setPhotos(photosBuilder.build());
+      photoBuilder.setCaption(getString(buffer));
+      photoBuilder.setWidth(getOptionalInt(buffer));
+      photoBuilder.setHeight(getOptionalInt(buffer));
+      postBuilder = photoBuilder;
+      break;
+    case QUOTE_TYPE_CODE:
+      QuotePost.Builder quoteBuilder = new QuotePost.Builder();
+      quoteBuilder.setText(getString(buffer));
+      quoteBuilder.setSource(getString(buffer));
+      postBuilder = quoteBuilder;
+      break;
+    case TEXT_TYPE_CODE:
+      TextPost.Builder textBuilder = new TextPost.Builder();
+      textBuilder.setTitle(getString(buffer));
+      textBuilder.setBody(getString(buffer));
+      postBuilder = textBuilder;
+      break;
+    case VIDEO_TYPE_CODE:
+      VideoPost.Builder videoBuilder = new VideoPost.Builder();
+      videoBuilder.setCaption(getString(buffer));
+      ImmutableList.Builder<Video> playersBuilder = ImmutableList.builder();
+      for (int playerCount = buffer.getInt(); playerCount > 0; --playerCount) {
+        int width = buffer.getInt();
+        String embedCode = getString(buffer);
+        playersBuilder.add(new Video(width, embedCode));
+      }
+      videoBuilder.setPlayers(playersBuilder.build());
+      postBuilder = videoBuilder;
+      break;
+    default:
+      throw new IllegalArgumentException(String.format("Unknown post type code %d.", typeCode));
+    }
+
+    postBuilder.setId(id);
+    postBuilder.setBlogName(blogName);
+    postBuilder.setPostUrl(postUrl);
+    postBuilder.setPostedInstant(postedInstant);
+    postBuilder.setRetrievedInstant(retrievedInstant);
+    postBuilder.setTags(tagsBuilder.build());
+    return postBuilder.build();
+  }
+
+  /**
+   * Encodes a post.
+   * 
+   * @param post
+   *          the post to encode
+   * @return the encoded post
+   */
+  public static byte[] encode(Post post) {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try {
+      encode(post, new DataOutputStream(outputStream));
+    } catch (IOException exception) {
+      throw new AssertionError("ByteArrayOutputStream does not throw IOException", exception);
+    }
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Encodes a post to the given output.
+   * 
+   * @param post
+   *          the post to encode
+   * @param out
+   *          the output to write the encoded post to
+   * @throws IOException
+   *           if the output cannot be written
+   */
+  public static void encode(Post post, DataOutput out) throws IOException {
+    encode(post, post.getRetrievedInstant().getMillis(), out);
+  }
+
+  private static void encode(Post post, long retrievedMillis, DataOutput out) throws IOException {
+    out.writeByte(getTypeCode(post));
+    out.writeLong(post.getId());
+    putString(out, post.getBlogName());
+    putString(out, post.getPostUrl());
+    out.writeLong(post.getPostedInstant().getMillis());
+    out.writeLong(retrievedMillis);
+    out.writeInt(post.getTags().size());
+    for (String tag : post.getTags()) {
+      putString(out, tag);
+    }
+
+    switch (post.getType()) {
+    case ANSWER:
+      AnswerPost answerPost = (AnswerPost) post;
+      putString(out, answerPost.getAskingName());
+      putString(out, answerPost.getAskingUrl());
+      putString(out, answerPost.getQuestion());
+      putString(out, answerPost.getAnswer());
+      break;
+    case AUDIO:
+      AudioPost audioPost = (AudioPost) post;
+      putString(out, audioPost.getCaption());
+      putString(out, audioPost.getPlayer());
+      out.writeInt(audioPost.getPlays());
+      putString(out, audioPost.getAlbumArt());
+      putString(out, audioPost.getArtist());
+      putString(out, audioPost.getAlbum());
+      putString(out, audioPost.getTrackName());
+      out.writeInt(audioPost.getTrackNumber());
+      out.writeInt(audioPost.getYear());
+      break;
+    case CHAT:
+      ChatPost chatPost = (ChatPost) post;
+      putString(out, chatPost.getTitle());
+      putString(out, chatPost.getBody());
+      out.writeInt(chatPost.getDialogue().size());
+      for (Dialogue dialogue : chatPost.getDialogue()) {
+        putString(out, dialogue.getName());
+        putString(out, dialogue.getLabel());
+        putString(out, dialogue.getPhrase());
+      }
+      break;
+    case LINK:
+      LinkPost linkPost = (LinkPost) post;
+      putString(out, linkPost.getTitle());
+      putString(out, linkPost.getUrl());
+      putString(out, linkPost.getDescription());
+      break;
+    case PHOTO:
+      PhotoPost photoPost = (PhotoPost) post;
+      out.writeInt(photoPost.getPhotos().size());
+      for (Photo photo : photoPost.getPhotos()) {
+        putString(out, photo.getCaption());
+        out.writeInt(photo.getPhotoSizes().size());
+        for (PhotoSize photoSize : photo.getPhotoSizes()) {
+          out.writeInt(photoSize.getWidth());
+          out.writeInt(photoSize.getHeight());
+          putString(out, photoSize.getUrl());
+        }
+      }
+      putString(out, photoPost.getCaption());
+      putOptionalInt(out, photoPost.getWidth());
+      putOptionalInt(out, photoPost.getHeight());
+      break;
+    case QUOTE:
+      QuotePost quotePost = (QuotePost) post;
+      putString(out, quotePost.getText());
+      putString(out, quotePost.getSource());
+      break;
+    case TEXT:
+      TextPost textPost = (TextPost) post;
+      putString(out, textPost.getTitle());
+      putString(out, textPost.getBody());
+      break;
+    case VIDEO:
+      VideoPost videoPost = (VideoPost) post;
+      putString(out, videoPost.getCaption());
+      out.writeInt(videoPost.getPlayers().size());
+      for (Video video : videoPost.getPlayers()) {
+        out.writeInt(video.getWidth());
+        putString(out, video.getEmbedCode());
+      }
+      break;
+    default:
+      throw new AssertionError(String.format("Unknown post type %s.", post.getType()));
+    }
+  }
+
+  private static byte[] encodeContent(Post post) {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try {
+      encode(post, 0, new DataOutputStream(outputStream));
+    } catch (IOException exception) {
+      throw new AssertionError("ByteArrayOutputStream does not throw IOException", exception);
+    }
+    return outputStream.toByteArray();
+  }
+
+  private static Integer getOptionalInt(ByteBuffer buffer) {
+    if (buffer.get() == 0) {
+      return null;
+    }
+    return buffer.getInt();
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+              StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+
+  private static byte getTypeCode(Post post) {
+    switch (post.getType()) {
+    case ANSWER:
+      return ANSWER_TYPE_CODE;
+    case AUDIO:
+      return AUDIO_TYPE_CODE;
+    case CHAT:
+      return CHAT_TYPE_CODE;
+    case LINK:
+      return LINK_TYPE_CODE;
+    case PHOTO:
+      return PHOTO_TYPE_CODE;
+    case QUOTE:
+      return QUOTE_TYPE_CODE;
+    case TEXT:
+      return TEXT_TYPE_CODE;
+    case VIDEO:
+      return VIDEO_TYPE_CODE;
+    default:
+      throw new AssertionError(String.format("Unknown post type %s.", post.getType()));
+    }
+  }
+
+  /**
+   * Determines whether two posts have the same content, ignoring when each was retrieved.
+   * 
+   * @param post
+   *          a post
+   * @param otherPost
+   *          the post to compare it with
+   * @return true if the posts differ at most in their retrieved instants
+   */
+  public static boolean hasSameContent(Post post, Post otherPost) {
+    return Arrays.equals(encodeContent(post), encodeContent(otherPost));
+  }
+
+  private static void putOptionalInt(DataOutput out, Optional<Integer> value) throws IOException {
+    if (value.isPresent()) {
+      out.writeByte(1);
+      out.writeInt(value.get());
+    } else {
+      out.writeByte(0);
+    }
+  }
+
+  private static void putString(DataOutput out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
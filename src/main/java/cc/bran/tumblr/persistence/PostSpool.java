@@ -0,0 +1,539 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.joda.time.DateTimeUtils;
+import org.joda.time.Duration;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A durable, append-only spool of posts on disk, which decouples fetching posts from writing them
+ * to a {@link PostDb}: fetchers {@link #append(Collection)} posts as they arrive, and a writer
+ * {@link #drain(PostDb, int)}s them into the database in large batches. Neither waits on the other,
+ * so a busy database does not stall fetching and throttled fetching does not leave the writer with
+ * nothing to do but small writes.
+ * 
+ * Posts are appended to segment files as records encoded with {@link PostCodec}, each with a
+ * checksum and the time it was appended, and are flushed to disk before {@link #append(Collection)}
+ * returns. Each segment is named for its starting position in the spool. The position up to which
+ * posts have been written to the database is saved in its own file once each batch is committed,
+ * and segments wholly before it are deleted. On opening, the spool resumes from the saved
+ * position, and a torn record at the end, left by a crash during an append, is cut off.
+ * 
+ * Delivery is at least once: a batch written to the database just before a crash, with its
+ * position not yet saved, is written again. Since putting a post overwrites any post with the same
+ * ID, this is harmless. This class is safe for use from multiple threads.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class PostSpool implements AutoCloseable {
+
+  /**
+   * A segment file, holding the records from its starting position onward.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Segment {
+
+    private final FileChannel channel;
+
+    private final File file;
+
+    private long size;
+
+    private final long startPosition;
+
+    public Segment(long startPosition, File file, FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.file = file;
+      this.size = channel.size();
+      this.startPosition = startPosition;
+    }
+
+    public long getEndPosition() {
+      return startPosition + size;
+    }
+  }
+
+  private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+
+  private static final String POSITION_FILE_NAME = "position";
+
+  private static final String POSITION_TEMP_FILE_NAME = "position.tmp";
+
+  private static final String SEGMENT_FILE_FORMAT = "spool-%020d.log";
+
+  private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("spool-(\\d+)\\.log");
+
+  /**
+   * Serializes appends. When more than one lock is held, they are taken in the order
+   * {@code drainLock}, {@code appendLock}, {@code this}.
+   */
+  private final Object appendLock;
+
+  private boolean closed;
+
+  private long committedPosition;
+
+  private final File directory;
+
+  /**
+   * Serializes drains.
+   */
+  private final Object drainLock;
+
+  private long endPosition;
+
+  private long lagPostCount;
+
+  private long oldestAppendedMillis;
+
+  private final long segmentSize;
+
+  private final TreeMap<Long, Segment> segments;
+
+  /**
+   * Opens a spool with the default segment size, creating the directory if it does not exist.
+   * 
+   * @param directory
+   *          the directory that holds the spool's files
+   * @throws IOException
+   *           if the spool's files cannot be read or created
+   */
+  public PostSpool(String directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens a spool, creating the directory if it does not exist.
+   * 
+   * @param directory
+   *          the directory that holds the spool's files
+   * @param segmentSize
+   *          the size in bytes past which appends start a new segment; a segment can be deleted
+   *          only once all of its posts have been drained
+   * @throws IOException
+   *           if the spool's files cannot be read or created
+   */
+  public PostSpool(String directory, long segmentSize) throws IOException {
+    Preconditions.checkArgument(segmentSize > 0);
+
+    this.appendLock = new Object();
+    this.closed = false;
+    this.directory = new File(directory);
+    this.drainLock = new Object();
+    this.lagPostCount = 0;
+    this.oldestAppendedMillis = 0;
+    this.segmentSize = segmentSize;
+    this.segments = new TreeMap<>();
+
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException(String.format("Could not create directory %s.", directory));
+    }
+
+    this.committedPosition = readCommittedPosition();
+    for (File file : this.directory.listFiles()) {
+      Matcher matcher = SEGMENT_FILE_PATTERN.matcher(file.getName());
+      if (matcher.matches()) {
+        long startPosition = Long.parseLong(matcher.group(1));
+        segments.put(startPosition, new Segment(startPosition, file, open(file)));
+      }
+    }
+
+    // Segments drained before a crash may not have been deleted yet.
+    while (segments.size() > 1
+            && segments.firstEntry().getValue().getEndPosition() <= committedPosition) {
+      delete(segments.pollFirstEntry().getValue());
+    }
+    if (segments.isEmpty()) {
+      createSegment(committedPosition);
+    }
+    committedPosition = Math.max(committedPosition, segments.firstKey());
+
+    recover();
+  }
+
+  /**
+   * Appends posts to the spool, returning once they are on disk.
+   * 
+   * @param posts
+   *          the posts to append
+   * @throws IOException
+   *           if the posts cannot be written
+   */
+  public void append(Collection<Post> posts) throws IOException {
+    if (posts.isEmpty()) {
+      return;
+    }
+
+    long appendedMillis = DateTimeUtils.currentTimeMillis();
+    List<byte[]> payloads = new ArrayList<>(posts.size());
+    int length = 0;
+    for (Post post : posts) {
+      byte[] payload = PostCodec.encode(post);
+      payloads.add(payload);
+      length += HEADER_SIZE + payload.length;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (byte[] payload : payloads) {
+      int recordStart = buffer.position();
+      buffer.putInt(HEADER_SIZE + payload.length);
+      buffer.putInt(0);
+      buffer.putLong(appendedMillis);
+      buffer.put(payload);
+
+      CRC32 checksum = new CRC32();
+      checksum.update(buffer.array(), recordStart + 8, HEADER_SIZE - 8 + payload.length);
+      buffer.putInt(recordStart + 4, (int) checksum.getValue());
+    }
+    buffer.flip();
+
+    synchronized (appendLock) {
+      Segment segment;
+      synchronized (this) {
+        Preconditions.checkState(!closed, "Spool is closed.");
+        segment = segments.lastEntry().getValue();
+        if (segment.size >= segmentSize) {
+          segment = createSegment(segment.getEndPosition());
+        }
+      }
+
+      while (buffer.hasRemaining()) {
+        segment.channel.write(buffer, segment.size + buffer.position());
+      }
+      segment.channel.force(false);
+
+      synchronized (this) {
+        if (lagPostCount == 0) {
+          oldestAppendedMillis = appendedMillis;
+        }
+        segment.size += length;
+        endPosition += length;
+        lagPostCount += posts.size();
+        notifyAll();
+      }
+    }
+  }
+
+  public void append(Post post) throws IOException {
+    append(ImmutableList.of(post));
+  }
+
+  /**
+   * Waits until the spool holds posts that have not been drained.
+   * 
+   * @param timeoutMillis
+   *          the longest time to wait, in milliseconds
+   * @return true if there are posts to drain, or false if the wait timed out or the spool was
+   *         closed
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public synchronized boolean awaitPosts(long timeoutMillis) throws InterruptedException {
+    long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    while (lagPostCount == 0 && !closed) {
+      long remainingMillis = deadlineMillis - System.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return false;
+      }
+      wait(remainingMillis);
+    }
+    return lagPostCount > 0 && !closed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (drainLock) {
+      synchronized (appendLock) {
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+
+          closed = true;
+          notifyAll();
+          IOException exception = null;
+          for (Segment segment : segments.values()) {
+            try {
+              segment.channel.close();
+            } catch (IOException ex) {
+              if (exception != null) {
+                ex.addSuppressed(exception);
+              }
+              exception = ex;
+            }
+          }
+          segments.clear();
+
+          if (exception != null) {
+            throw exception;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Saves the position up to which posts have been written to the database, then deletes the
+   * segments wholly before it.
+   */
+  private void commit(long position, int postCount) throws IOException {
+    File tempFile = new File(directory, POSITION_TEMP_FILE_NAME);
+    try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(fileOut)) {
+      out.writeLong(position);
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    Files.move(tempFile.toPath(), new File(directory, POSITION_FILE_NAME).toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+
+    List<Segment> drainedSegments = new ArrayList<>();
+    synchronized (this) {
+      committedPosition = position;
+      lagPostCount -= postCount;
+      if (lagPostCount > 0) {
+        oldestAppendedMillis = readHeader(position).getLong(8);
+      }
+
+      // The last segment is kept for appends, even once drained.
+      while (segments.size() > 1
+              && segments.firstEntry().getValue().getEndPosition() <= position) {
+        drainedSegments.add(segments.pollFirstEntry().getValue());
+      }
+    }
+    for (Segment segment : drainedSegments) {
+      delete(segment);
+    }
+  }
+
+  private Segment createSegment(long startPosition) throws IOException {
+    File file = new File(directory, String.format(SEGMENT_FILE_FORMAT, startPosition));
+    Segment segment = new Segment(startPosition, file, open(file));
+    segments.put(startPosition, segment);
+    return segment;
+  }
+
+  /**
+   * Writes the oldest posts in the spool to a database in one batch, and removes them from the
+   * spool once the write has returned.
+   * 
+   * @param postDb
+   *          the database to write to
+   * @param maxBatchSize
+   *          the largest number of posts to write
+   * @return the number of posts written, which is zero if the spool was empty
+   * @throws Exception
+   *           if the spool cannot be read, or writing to the database fails; the posts stay in the
+   *           spool
+   */
+  public int drain(PostDb postDb, int maxBatchSize) throws Exception {
+    Preconditions.checkArgument(maxBatchSize > 0);
+
+    synchronized (drainLock) {
+      long position;
+      long drainEndPosition;
+      synchronized (this) {
+        Preconditions.checkState(!closed, "Spool is closed.");
+        position = committedPosition;
+        drainEndPosition = endPosition;
+      }
+
+      List<Post> batch = new ArrayList<>();
+      while (position < drainEndPosition && batch.size() < maxBatchSize) {
+        ByteBuffer record = readRecord(position);
+        if (record == null) {
+          throw new IOException(String.format("Corrupt record at position %d of spool %s.",
+                  position, directory));
+        }
+        record.position(HEADER_SIZE);
+        batch.add(PostCodec.decode(record.slice()));
+        position += record.capacity();
+      }
+
+      if (batch.isEmpty()) {
+        return 0;
+      }
+      postDb.put(batch);
+      commit(position, batch.size());
+      return batch.size();
+    }
+  }
+
+  /**
+   * Gets how long the oldest post that has not been drained has been in the spool, or zero if the
+   * spool is empty.
+   */
+  public synchronized Duration getLag() {
+    if (lagPostCount == 0) {
+      return Duration.ZERO;
+    }
+    return new Duration(Math.max(0, DateTimeUtils.currentTimeMillis() - oldestAppendedMillis));
+  }
+
+  /**
+   * Gets the size in bytes of the records that have not been drained.
+   */
+  public synchronized long getLagBytes() {
+    return endPosition - committedPosition;
+  }
+
+  /**
+   * Gets the number of posts that have not been drained.
+   */
+  public synchronized long getLagPostCount() {
+    return lagPostCount;
+  }
+
+  /**
+   * Gets the number of segment files.
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  private long readCommittedPosition() throws IOException {
+    File file = new File(directory, POSITION_FILE_NAME);
+    if (!file.exists()) {
+      return 0;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readLong();
+    }
+  }
+
+  /**
+   * Reads the header of the record at a position, which must be in a segment.
+   */
+  private ByteBuffer readHeader(long position) throws IOException {
+    Segment segment;
+    synchronized (this) {
+      segment = segments.floorEntry(position).getValue();
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(segment.channel, header, position - segment.startPosition);
+    return header;
+  }
+
+  /**
+   * Reads the record at a position, which must be in a segment, checking its checksum.
+   * 
+   * @return the record, including its header, or null if it is torn or corrupt
+   */
+  private ByteBuffer readRecord(long position) throws IOException {
+    Segment segment;
+    synchronized (this) {
+      segment = segments.floorEntry(position).getValue();
+    }
+    long offset = position - segment.startPosition;
+    if (segment.size - offset < HEADER_SIZE) {
+      return null;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(segment.channel, header, offset);
+    int recordLength = header.getInt(0);
+    if (recordLength < HEADER_SIZE || recordLength > segment.size - offset) {
+      return null;
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(recordLength);
+    readFully(segment.channel, record, offset);
+    CRC32 checksum = new CRC32();
+    checksum.update(record.array(), 8, recordLength - 8);
+    if (record.getInt(4) != (int) checksum.getValue()) {
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * Counts the posts after the committed position, and cuts the spool off at the first torn or
+   * corrupt record.
+   */
+  private void recover() throws IOException {
+    long position = committedPosition;
+    List<Segment> undrainedSegments = new ArrayList<>(segments.tailMap(
+            segments.floorKey(position)).values());
+    for (Segment segment : undrainedSegments) {
+      if (position < segment.startPosition) {
+        // A crash while starting a new segment can leave a gap; nothing after it was acknowledged.
+        truncateAfter(position);
+        break;
+      }
+
+      while (position < segment.getEndPosition()) {
+        ByteBuffer record = readRecord(position);
+        if (record == null) {
+          break;
+        }
+        if (lagPostCount == 0) {
+          oldestAppendedMillis = record.getLong(8);
+        }
+        ++lagPostCount;
+        position += record.capacity();
+      }
+      if (position < segment.getEndPosition()) {
+        truncateAfter(position);
+        break;
+      }
+    }
+    endPosition = position;
+  }
+
+  /**
+   * Cuts the spool off at a position in its last valid segment, deleting everything after it.
+   */
+  private void truncateAfter(long position) throws IOException {
+    Segment segment = segments.floorEntry(position).getValue();
+    segment.channel.truncate(position - segment.startPosition);
+    segment.size = position - segment.startPosition;
+    while (segments.lastKey() > segment.startPosition) {
+      delete(segments.pollLastEntry().getValue());
+    }
+  }
+
+  private static void delete(Segment segment) throws IOException {
+    segment.channel.close();
+    if (!segment.file.delete()) {
+      throw new IOException(String.format("Could not delete %s.", segment.file));
+    }
+  }
+
+  private static FileChannel open(File file) throws IOException {
+    return new RandomAccessFile(file, "rw").getChannel();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of spool segment.");
+      }
+    }
+  }
+}
@@ -0,0 +1,467 @@
+package cc.bran.tumblr.persistence;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+
+import org.joda.time.LocalDate;
+import org.joda.time.YearMonth;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.PostType;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A {@link PostDb} that caches the results of the counting, calendar, top-tag and search queries of
+ * a {@link SqlitePostDb}. Each cached result records the blogs, tags and post types it depends on,
+ * and a put or delete evicts only the results that depend on the posts it changes, before or after
+ * the change. Search results depend on the text of every post, so any write evicts them.
+ * 
+ * The cache is bounded by the estimated size in bytes of the cached results, evicting the least
+ * recently used results first. Single-post reads and scans are not cached. This class is safe for
+ * use from multiple threads; writes made through it run one at a time.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class QueryCachingPostDb implements PostDb, AutoCloseable {
+
+  /**
+   * A cached query result, along with what it depends on.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class CachedResult {
+
+    private final ImmutableSet<String> dependencies;
+
+    private final Object value;
+
+    private final int weight;
+
+    public CachedResult(String key, Object value, ImmutableSet<String> dependencies) {
+      this.dependencies = dependencies;
+      this.value = value;
+      this.weight = estimateSize(key) + estimateSize(value);
+    }
+  }
+
+  private static final String ANY_POST_DEPENDENCY = "post";
+
+  private static final String ANY_TAG_DEPENDENCY = "tag";
+
+  private static final Joiner KEY_JOINER = Joiner.on('\0').useForNull("");
+
+  private static final int OBJECT_OVERHEAD = 16;
+
+  private final Cache<String, CachedResult> cache;
+
+  private final SqlitePostDb postDb;
+
+  private final Map<String, Set<String>> queriesByDependency;
+
+  private long writeCount;
+
+  private final Object writeLock;
+
+  /**
+   * Creates a query cache in front of a SQLite database.
+   * 
+   * @param postDb
+   *          the underlying database
+   * @param maximumBytes
+   *          the maximum estimated total size of the cached results
+   */
+  public QueryCachingPostDb(SqlitePostDb postDb, long maximumBytes) {
+    this.cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes)
+            .weigher(new Weigher<String, CachedResult>() {
+
+              @Override
+              public int weigh(String key, CachedResult result) {
+                return result.weight;
+              }
+            }).removalListener(new RemovalListener<String, CachedResult>() {
+
+              @Override
+              public void onRemoval(RemovalNotification<String, CachedResult> notification) {
+                // A replaced result is re-registered by the store that replaced it.
+                if (notification.getCause() != RemovalCause.REPLACED) {
+                  unregister(notification.getKey(), notification.getValue());
+                }
+              }
+            }).recordStats().build();
+    this.postDb = postDb;
+    this.queriesByDependency = new HashMap<>();
+    this.writeCount = 0;
+    this.writeLock = new Object();
+  }
+
+  /**
+   * Empties the cache. The underlying database is not closed.
+   */
+  @Override
+  public void close() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public void delete(long id) throws SQLException {
+    synchronized (writeLock) {
+      Post oldPost = postDb.get(id);
+      try {
+        postDb.delete(id);
+      } finally {
+        invalidate(oldPost == null ? ImmutableList.<Post> of() : ImmutableList.of(oldPost));
+      }
+    }
+  }
+
+  @Override
+  public Post get(long id) throws SQLException {
+    return postDb.get(id);
+  }
+
+  @Override
+  public List<Post> getAll() throws SQLException {
+    return postDb.getAll();
+  }
+
+  /**
+   * Gets the number of posts from the given blog on each day of a month, as in
+   * {@link SqlitePostDb#getDailyPostCounts(String, YearMonth)}.
+   */
+  public Map<LocalDate, Long> getDailyPostCounts(final String blogName, final YearMonth month)
+          throws SQLException {
+    return query(getKey("dailyPostCounts", blogName, month), getBlogDependency(blogName),
+            new Callable<Map<LocalDate, Long>>() {
+
+              @Override
+              public Map<LocalDate, Long> call() throws SQLException {
+                return postDb.getDailyPostCounts(blogName, month);
+              }
+            });
+  }
+
+  /**
+   * Gets the earliest post from the given blog on the given day, as in
+   * {@link SqlitePostDb#getFirstPost(String, LocalDate)}.
+   */
+  public Post getFirstPost(final String blogName, final LocalDate day) throws SQLException {
+    return query(getKey("firstPostOfDay", blogName, day), getBlogDependency(blogName),
+            new Callable<Post>() {
+
+              @Override
+              public Post call() throws SQLException {
+                return postDb.getFirstPost(blogName, day);
+              }
+            });
+  }
+
+  /**
+   * Gets the earliest post from the given blog in the given month, as in
+   * {@link SqlitePostDb#getFirstPost(String, YearMonth)}.
+   */
+  public Post getFirstPost(final String blogName, final YearMonth month) throws SQLException {
+    return query(getKey("firstPostOfMonth", blogName, month), getBlogDependency(blogName),
+            new Callable<Post>() {
+
+              @Override
+              public Post call() throws SQLException {
+                return postDb.getFirstPost(blogName, month);
+              }
+            });
+  }
+
+  /**
+   * Gets the number of posts from the given blog in each month, as in
+   * {@link SqlitePostDb#getMonthlyPostCounts(String)}.
+   */
+  public Map<YearMonth, Long> getMonthlyPostCounts(final String blogName) throws SQLException {
+    return query(getKey("monthlyPostCounts", blogName), getBlogDependency(blogName),
+            new Callable<Map<YearMonth, Long>>() {
+
+              @Override
+              public Map<YearMonth, Long> call() throws SQLException {
+                return postDb.getMonthlyPostCounts(blogName);
+              }
+            });
+  }
+
+  /**
+   * Gets the number of posts from the given blog, as in
+   * {@link SqlitePostDb#getPostCountForBlog(String)}.
+   */
+  public long getPostCountForBlog(final String blogName) throws SQLException {
+    return query(getKey("postCountForBlog", blogName), getBlogDependency(blogName),
+            new Callable<Long>() {
+
+              @Override
+              public Long call() throws SQLException {
+                return postDb.getPostCountForBlog(blogName);
+              }
+            });
+  }
+
+  /**
+   * Gets the number of posts with the given tag, as in
+   * {@link SqlitePostDb#getPostCountForTag(String)}.
+   */
+  public long getPostCountForTag(final String tag) throws SQLException {
+    return query(getKey("postCountForTag", tag), getTagDependency(tag), new Callable<Long>() {
+
+      @Override
+      public Long call() throws SQLException {
+        return postDb.getPostCountForTag(tag);
+      }
+    });
+  }
+
+  /**
+   * Gets the number of posts of the given type, as in
+   * {@link SqlitePostDb#getPostCountForType(PostType)}.
+   */
+  public long getPostCountForType(final PostType type) throws SQLException {
+    return query(getKey("postCountForType", type), getTypeDependency(type), new Callable<Long>() {
+
+      @Override
+      public Long call() throws SQLException {
+        return postDb.getPostCountForType(type);
+      }
+    });
+  }
+
+  /**
+   * Gets hit, miss and eviction counts for the cache.
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Gets the most-used tags, as in {@link SqlitePostDb#getTopTags(int)}. The result depends on
+   * every tag, so it is evicted by any write that adds or removes a tag.
+   */
+  public Map<String, Long> getTopTags(final int limit) throws SQLException {
+    return query(getKey("topTags", limit), ANY_TAG_DEPENDENCY, new Callable<Map<String, Long>>() {
+
+      @Override
+      public Map<String, Long> call() throws SQLException {
+        return postDb.getTopTags(limit);
+      }
+    });
+  }
+
+  /**
+   * Gets the number of posts from the given blog in each year, as in
+   * {@link SqlitePostDb#getYearlyPostCounts(String)}.
+   */
+  public Map<Integer, Long> getYearlyPostCounts(final String blogName) throws SQLException {
+    return query(getKey("yearlyPostCounts", blogName), getBlogDependency(blogName),
+            new Callable<Map<Integer, Long>>() {
+
+              @Override
+              public Map<Integer, Long> call() throws SQLException {
+                return postDb.getYearlyPostCounts(blogName);
+              }
+            });
+  }
+
+  /**
+   * Evicts the results that depend on any of the given posts.
+   */
+  private synchronized void invalidate(Collection<Post> posts) {
+    ++writeCount;
+
+    Set<String> dependencies = new HashSet<>();
+    dependencies.add(ANY_POST_DEPENDENCY);
+    for (Post post : posts) {
+      dependencies.add(getBlogDependency(post.getBlogName()));
+      dependencies.add(getTypeDependency(post.getType()));
+      for (String tag : post.getTags()) {
+        dependencies.add(getTagDependency(tag));
+      }
+      if (!post.getTags().isEmpty()) {
+        dependencies.add(ANY_TAG_DEPENDENCY);
+      }
+    }
+
+    Set<String> keys = new HashSet<>();
+    for (String dependency : dependencies) {
+      Set<String> dependentKeys = queriesByDependency.get(dependency);
+      if (dependentKeys != null) {
+        keys.addAll(dependentKeys);
+      }
+    }
+    cache.invalidateAll(keys);
+  }
+
+  @Override
+  public void put(Collection<Post> posts) throws SQLException {
+    List<Long> ids = new ArrayList<>(posts.size());
+    for (Post post : posts) {
+      ids.add(post.getId());
+    }
+
+    // The old versions of the posts matter too: moving a post out of a blog or removing a tag
+    // changes results for the old blog or tag. Writes are serialized so that the old versions read
+    // here are the ones the write replaces.
+    synchronized (writeLock) {
+      List<Post> changedPosts = new ArrayList<>(postDb.getAll(ids));
+      changedPosts.addAll(posts);
+      try {
+        postDb.put(posts);
+      } finally {
+        invalidate(changedPosts);
+      }
+    }
+  }
+
+  @Override
+  public void put(Post post) throws SQLException {
+    put(ImmutableList.of(post));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T query(String key, String dependency, Callable<T> loader) throws SQLException {
+    CachedResult cachedResult = cache.getIfPresent(key);
+    if (cachedResult != null) {
+      return (T) cachedResult.value;
+    }
+
+    long startWriteCount;
+    synchronized (this) {
+      startWriteCount = writeCount;
+    }
+    T value;
+    try {
+      value = loader.call();
+    } catch (SQLException | RuntimeException exception) {
+      throw exception;
+    } catch (Exception exception) {
+      throw new AssertionError(exception);
+    }
+
+    // A write that ran during the query may already have evicted this key, so only a result that
+    // no write overlapped is cached.
+    CachedResult result = new CachedResult(key, value, ImmutableSet.of(dependency));
+    synchronized (this) {
+      if (writeCount == startWriteCount) {
+        for (String resultDependency : result.dependencies) {
+          Set<String> dependentKeys = queriesByDependency.get(resultDependency);
+          if (dependentKeys == null) {
+            dependentKeys = new HashSet<>();
+            queriesByDependency.put(resultDependency, dependentKeys);
+          }
+          dependentKeys.add(key);
+        }
+        cache.put(key, result);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Searches the text content of posts, as in {@link SqlitePostDb#searchPosts(String, int, int)}.
+   * Queries that differ only in case, punctuation or spacing share a cached result.
+   */
+  public List<Post> searchPosts(final String query, final int offset, final int limit)
+          throws SQLException {
+    List<String> terms = new ArrayList<>();
+    Matcher matcher = SqlitePostDb.SEARCH_TERM_PATTERN.matcher(query);
+    while (matcher.find()) {
+      terms.add(matcher.group().toLowerCase(Locale.ROOT));
+    }
+    final String normalizedQuery = Joiner.on(' ').join(terms);
+
+    return query(getKey("searchPosts", normalizedQuery, offset, limit), ANY_POST_DEPENDENCY,
+            new Callable<List<Post>>() {
+
+              @Override
+              public List<Post> call() throws SQLException {
+                return postDb.searchPosts(normalizedQuery, offset, limit);
+              }
+            });
+  }
+
+  private synchronized void unregister(String key, CachedResult result) {
+    // Removal notifications can arrive after the key has been cached again, and the new result
+    // shares the old one's registrations.
+    CachedResult currentResult = cache.asMap().get(key);
+    if (currentResult != null && currentResult != result) {
+      return;
+    }
+
+    for (String dependency : result.dependencies) {
+      Set<String> dependentKeys = queriesByDependency.get(dependency);
+      if (dependentKeys != null) {
+        dependentKeys.remove(key);
+        if (dependentKeys.isEmpty()) {
+          queriesByDependency.remove(dependency);
+        }
+      }
+    }
+  }
+
+  /**
+   * Estimates the number of bytes of heap used by a query result.
+   */
+  private static int estimateSize(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return OBJECT_OVERHEAD + 2 * ((String) value).length();
+    }
+    if (value instanceof Post) {
+      return OBJECT_OVERHEAD + PostCodec.encode((Post) value).length;
+    }
+    if (value instanceof Collection) {
+      int size = OBJECT_OVERHEAD;
+      for (Object element : (Collection<?>) value) {
+        size += 8 + estimateSize(element);
+      }
+      return size;
+    }
+    if (value instanceof Map) {
+      int size = OBJECT_OVERHEAD;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += OBJECT_OVERHEAD + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+      }
+      return size;
+    }
+    return OBJECT_OVERHEAD + 8;
+  }
+
+  private static String getBlogDependency(String blogName) {
+    return getKey("blog", blogName);
+  }
+
+  private static String getKey(String query, Object... arguments) {
+    return KEY_JOINER.join(query, KEY_JOINER.join(arguments));
+  }
+
+  private static String getTagDependency(String tag) {
+    return getKey("tag", tag);
+  }
+
+  private static String getTypeDependency(PostType type) {
+    return getKey("type", type);
+  }
+}
@@ -0,0 +1,385 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link PostDb} that spreads posts across several SQLite files ("shards"), one per hash bucket
+ * of blog name. Each shard has its own write lock and its own (smaller) indexes, so a write that
+ * touches several shards writes them in parallel, and shards can be vacuumed or backed up
+ * independently.
+ * 
+ * Posts are routed by ID through an in-memory index, which is built from the shards when the
+ * database is opened. Operations that touch every shard, such as {@link #getAll()}, run on all of
+ * them in parallel. Writes are not atomic across shards: if a write fails, some shards may have
+ * been written and others not, but its posts are then routed to whichever shards hold them. The
+ * number of shards must not change once the database has been created.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class ShardedPostDb implements PostDb, AutoCloseable {
+
+  private final ExecutorService executor;
+
+  private final Map<Long, Integer> shardById;
+
+  private final ImmutableList<Lock> shardLocks;
+
+  private final ImmutableList<SqlitePostDb> shards;
+
+  /**
+   * Opens a sharded database, creating any missing shard files.
+   * 
+   * @param directory
+   *          the directory that holds the shard files
+   * @param shardCount
+   *          the number of shards
+   * @throws Exception
+   *           if a database error occurs
+   */
+  public ShardedPostDb(String directory, int shardCount) throws Exception {
+    Preconditions.checkArgument(shardCount > 0);
+
+    this.executor = Executors.newFixedThreadPool(shardCount, new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("ShardedPostDb-%d").build());
+    this.shardById = new ConcurrentHashMap<>();
+
+    List<SqlitePostDb> openedShards = new ArrayList<>();
+    try {
+      ImmutableList.Builder<Lock> shardLocksBuilder = ImmutableList.builder();
+      for (int shard = 0; shard < shardCount; ++shard) {
+        File shardFile = new File(directory, String.format("shard-%d.db", shard));
+        shardLocksBuilder.add(new ReentrantLock());
+        openedShards.add(new SqlitePostDb(shardFile.getPath()));
+      }
+      this.shardLocks = shardLocksBuilder.build();
+      this.shards = ImmutableList.copyOf(openedShards);
+
+      // Build the routing index.
+      List<Callable<List<Long>>> tasks = new ArrayList<>();
+      for (final SqlitePostDb shardPostDb : shards) {
+        tasks.add(new Callable<List<Long>>() {
+
+          @Override
+          public List<Long> call() throws SQLException {
+            return shardPostDb.getIds();
+          }
+        });
+      }
+      List<List<Long>> idsByShard = invokeAll(tasks);
+      for (int shard = 0; shard < shardCount; ++shard) {
+        for (long id : idsByShard.get(shard)) {
+          shardById.put(id, shard);
+        }
+      }
+    } catch (Exception exception) {
+      // Nobody can close a database that failed to open, so release what was opened so far.
+      executor.shutdownNow();
+      for (SqlitePostDb shardPostDb : openedShards) {
+        try {
+          shardPostDb.close();
+        } catch (SQLException closeException) {
+          exception.addSuppressed(closeException);
+        }
+      }
+      throw exception;
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    // Let in-flight shard tasks finish before the shards they use are closed.
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for shard tasks.", ex);
+    }
+
+    SQLException exception = null;
+    for (SqlitePostDb shardPostDb : shards) {
+      try {
+        shardPostDb.close();
+      } catch (SQLException ex) {
+        if (exception != null) {
+          ex.addSuppressed(exception);
+        }
+        exception = ex;
+      }
+    }
+
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  @Override
+  public void delete(long id) throws Exception {
+    while (true) {
+      Integer shard = shardById.get(id);
+      if (shard == null) {
+        return;
+      }
+
+      Lock lock = shardLocks.get(shard);
+      lock.lock();
+      try {
+        // The post may have moved to another shard while we waited for the lock.
+        if (shard.equals(shardById.get(id))) {
+          shards.get(shard).delete(id);
+          shardById.remove(id);
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void doPut(Collection<Post> posts) throws Exception {
+    // Group posts by their shard. A post whose blog has changed must also be removed from the shard
+    // it used to live in, which happens only once every shard has been written, so a failed write
+    // never loses a post.
+    Map<Integer, List<Post>> postsByShard = new HashMap<>();
+    Map<Integer, List<Long>> movedIdsByShard = new HashMap<>();
+    for (Post post : posts) {
+      int shard = getShard(post.getBlogName());
+      addToGroup(postsByShard, shard, post);
+
+      Integer currentShard = shardById.get(post.getId());
+      if (currentShard != null && currentShard != shard) {
+        addToGroup(movedIdsByShard, currentShard, post.getId());
+      }
+    }
+
+    try {
+      List<Callable<Void>> putTasks = new ArrayList<>();
+      for (Map.Entry<Integer, List<Post>> entry : postsByShard.entrySet()) {
+        final SqlitePostDb shardPostDb = shards.get(entry.getKey());
+        final List<Post> shardPosts = entry.getValue();
+        putTasks.add(new Callable<Void>() {
+
+          @Override
+          public Void call() throws SQLException {
+            shardPostDb.put(shardPosts);
+            return null;
+          }
+        });
+      }
+      invokeAll(putTasks);
+
+      List<Callable<Void>> deleteTasks = new ArrayList<>();
+      for (Map.Entry<Integer, List<Long>> entry : movedIdsByShard.entrySet()) {
+        final SqlitePostDb shardPostDb = shards.get(entry.getKey());
+        final List<Long> movedIds = entry.getValue();
+        deleteTasks.add(new Callable<Void>() {
+
+          @Override
+          public Void call() throws SQLException {
+            for (long id : movedIds) {
+              shardPostDb.delete(id);
+            }
+            return null;
+          }
+        });
+      }
+      invokeAll(deleteTasks);
+    } catch (Throwable throwable) {
+      rebuildRouting(posts, throwable);
+      throw throwable;
+    }
+
+    for (Map.Entry<Integer, List<Post>> entry : postsByShard.entrySet()) {
+      for (Post post : entry.getValue()) {
+        shardById.put(post.getId(), entry.getKey());
+      }
+    }
+  }
+
+  @Override
+  public Post get(long id) throws Exception {
+    Integer shard = shardById.get(id);
+    if (shard == null) {
+      return null;
+    }
+    return shards.get(shard).get(id);
+  }
+
+  @Override
+  public List<Post> getAll() throws Exception {
+    List<Callable<List<Post>>> tasks = new ArrayList<>();
+    for (final SqlitePostDb shardPostDb : shards) {
+      tasks.add(new Callable<List<Post>>() {
+
+        @Override
+        public List<Post> call() throws SQLException {
+          return shardPostDb.getAll();
+        }
+      });
+    }
+
+    ImmutableList.Builder<Post> resultBuilder = ImmutableList.builder();
+    for (List<Post> shardPosts : invokeAll(tasks)) {
+      resultBuilder.addAll(shardPosts);
+    }
+    return resultBuilder.build();
+  }
+
+  /**
+   * Gets the shards that a write of the given posts touches: the shards they are written to, and
+   * the shards that currently hold any of them.
+   */
+  private SortedSet<Integer> getInvolvedShards(Collection<Post> posts) {
+    SortedSet<Integer> involvedShards = new TreeSet<>();
+    for (Post post : posts) {
+      involvedShards.add(getShard(post.getBlogName()));
+
+      Integer currentShard = shardById.get(post.getId());
+      if (currentShard != null) {
+        involvedShards.add(currentShard);
+      }
+    }
+    return involvedShards;
+  }
+
+  /**
+   * Gets the shard that holds posts from the given blog.
+   */
+  public int getShard(String blogName) {
+    return (blogName.hashCode() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  /**
+   * Gets the number of shards.
+   */
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  private void lockShards(SortedSet<Integer> shardIndexes) {
+    // Locks are always taken in shard order, so concurrent writers can't deadlock.
+    for (int shard : shardIndexes) {
+      shardLocks.get(shard).lock();
+    }
+  }
+
+  @Override
+  public void put(Collection<Post> posts) throws Exception {
+    if (posts.isEmpty()) {
+      return;
+    }
+
+    // Only the shards involved are locked, so writes to other shards proceed in parallel. A
+    // concurrent write may move one of the posts to another shard while we wait for the locks, in
+    // which case we retry with that shard locked as well.
+    SortedSet<Integer> lockedShards = getInvolvedShards(posts);
+    while (true) {
+      SortedSet<Integer> involvedShards;
+      lockShards(lockedShards);
+      try {
+        involvedShards = getInvolvedShards(posts);
+        if (lockedShards.containsAll(involvedShards)) {
+          doPut(posts);
+          return;
+        }
+      } finally {
+        unlockShards(lockedShards);
+      }
+      lockedShards.addAll(involvedShards);
+    }
+  }
+
+  @Override
+  public void put(Post post) throws Exception {
+    put(ImmutableList.of(post));
+  }
+
+  /**
+   * Runs the given tasks in parallel, returning their results in order. If any task fails, the
+   * exception it threw is rethrown once all of the tasks have finished.
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+    if (tasks.size() == 1) {
+      // Skip the thread hop when only one shard is involved, as for most writes.
+      return Collections.singletonList(tasks.get(0).call());
+    }
+
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : executor.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException exception) {
+        Throwable cause = exception.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        throw (Error) cause;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Routes each of the given posts to the shard that holds it after a failed write, which may have
+   * written some shards but not others. A post that reached its new shard is routed there and
+   * removed from its old one; any other post is still wherever it was before the write. Exceptions
+   * thrown along the way are added to the write's failure as suppressed exceptions.
+   */
+  private void rebuildRouting(Collection<Post> posts, Throwable failure) {
+    for (Post post : posts) {
+      long id = post.getId();
+      int shard = getShard(post.getBlogName());
+      try {
+        if (shards.get(shard).get(id) == null) {
+          continue;
+        }
+
+        Integer oldShard = shardById.put(id, shard);
+        if (oldShard != null && oldShard != shard) {
+          shards.get(oldShard).delete(id);
+        }
+      } catch (Exception exception) {
+        failure.addSuppressed(exception);
+      }
+    }
+  }
+
+  private void unlockShards(SortedSet<Integer> shardIndexes) {
+    for (int shard : shardIndexes) {
+      shardLocks.get(shard).unlock();
+    }
+  }
+
+  private static <K, V> void addToGroup(Map<K, List<V>> groups, K key, V value) {
+    List<V> group = groups.get(key);
+    if (group == null) {
+      group = new ArrayList<>();
+      groups.put(key, group);
+    }
+    group.add(value);
+  }
+}
@@ -1,20 +1,34 @@
 package cc.bran.tumblr.persistence;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
+import org.joda.time.LocalDate;
+import org.joda.time.YearMonth;
+import org.sqlite.Function;
+import org.sqlite.SQLiteConfig;
 
 import cc.bran.tumblr.types.AnswerPost;
 import cc.bran.tumblr.types.AudioPost;
@@ -30,11 +44,14 @@ import cc.bran.tumblr.types.QuotePost;
 import cc.bran.tumblr.types.TextPost;
 import cc.bran.tumblr.types.VideoPost;
 import cc.bran.tumblr.types.VideoPost.Video;
+import cc.bran.util.Html;
+import cc.bran.util.LongObjectHashMap;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Longs;
 
 /**
  * Persists {@link Post}s using an SQLite backend.
@@ -43,31 +60,107 @@ import com.google.common.collect.Iterables;
  */
 public class SqlitePostDb implements PostDb, AutoCloseable {
 
-  private class ListQuery<T> implements AutoCloseable {
+  /**
+   * Accumulates changes to the post counters over the course of a transaction, so that each
+   * counter row is written at most once no matter how many posts are touched.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class CountDeltas {
+
+    private final Map<String, Long> deltaByBlogName = new HashMap<>();
+
+    private final Map<String, Map<LocalDate, Long>> deltaByBlogNameAndDay = new HashMap<>();
+
+    private final Map<Integer, Long> deltaByPostTypeId = new HashMap<>();
+
+    private final Map<Integer, Long> deltaByTagId = new HashMap<>();
+
+    private final Map<Integer, String> tagById = new HashMap<>();
+
+    public void addBlogDelta(String blogName, long delta) {
+      addDelta(deltaByBlogName, blogName, delta);
+    }
+
+    public void addDayDelta(String blogName, LocalDate day, long delta) {
+      Map<LocalDate, Long> deltaByDay = deltaByBlogNameAndDay.get(blogName);
+      if (deltaByDay == null) {
+        deltaByDay = new HashMap<>();
+        deltaByBlogNameAndDay.put(blogName, deltaByDay);
+      }
+      addDelta(deltaByDay, day, delta);
+    }
+
+    public void addPostTypeDelta(int postTypeId, long delta) {
+      addDelta(deltaByPostTypeId, postTypeId, delta);
+    }
+
+    public void addTagDelta(int tagId, String tag, long delta) {
+      addDelta(deltaByTagId, tagId, delta);
+      tagById.put(tagId, tag);
+    }
+
+    private static <K> void addDelta(Map<K, Long> deltaByKey, K key, long delta) {
+      Long currentDelta = deltaByKey.get(key);
+      deltaByKey.put(key, (currentDelta == null ? 0 : currentDelta) + delta);
+    }
+  }
+
+  /**
+   * Runs a query with an {@code IN} clause over a list of post IDs or strings, split into as many
+   * queries as SQLite's parameter limit requires. Post IDs are bound straight from a primitive
+   * array.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private class ListQuery implements AutoCloseable {
+
+    private boolean closed;
 
     private int idCount;
 
-    private Iterator<List<T>> iterator;
+    private final long[] ids;
+
+    private int position;
 
     private PreparedStatement preparedStatement;
 
     private ResultSet resultSet;
 
+    private final Session session;
+
+    private final int size;
+
     private final String sqlTemplate;
 
-    public ListQuery(String sqlTemplate, Collection<T> ids) {
-      this.sqlTemplate = sqlTemplate;
-      this.iterator = Iterables.partition(ids, MAX_IDS_PER_QUERY).iterator();
-      this.resultSet = null;
-      this.preparedStatement = null;
+    private final List<String> strings;
+
+    public ListQuery(Session session, String sqlTemplate, Collection<String> strings) {
+      this(session, sqlTemplate, null, ImmutableList.copyOf(strings));
+    }
+
+    public ListQuery(Session session, String sqlTemplate, long[] ids) {
+      this(session, sqlTemplate, ids, null);
+    }
+
+    private ListQuery(Session session, String sqlTemplate, long[] ids, List<String> strings) {
+      this.closed = false;
       this.idCount = -1;
+      this.ids = ids;
+      this.position = 0;
+      this.preparedStatement = null;
+      this.resultSet = null;
+      this.session = session;
+      this.size = (ids != null) ? ids.length : strings.size();
+      this.sqlTemplate = sqlTemplate;
+      this.strings = strings;
     }
 
     @Override
     public void close() throws SQLException {
       SQLException exception = null;
 
-      iterator = null;
+      closed = true;
 
       if (preparedStatement != null) {
         try {
@@ -94,7 +187,7 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
 
     public ResultSet getResultSet() {
-      if (iterator == null) {
+      if (closed) {
         throw new IllegalStateException("PostIdQuery is closed");
       }
 
@@ -102,7 +195,7 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
 
     public boolean next() throws SQLException {
-      if (iterator == null) {
+      if (closed) {
         throw new IllegalStateException("PostIdQuery is closed");
       }
 
@@ -113,7 +206,7 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
       }
 
       // Check to see if there are any additional results.
-      if (!iterator.hasNext()) {
+      if (position == size) {
         if (preparedStatement != null) {
           preparedStatement.close();
           preparedStatement = null;
@@ -122,26 +215,157 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
       }
 
       // Set up the next query & return its result set.
-      List<T> ids = iterator.next();
-      if (idCount != ids.size()) {
+      int count = Math.min(size - position, MAX_IDS_PER_QUERY);
+      if (idCount != count) {
         if (preparedStatement != null) {
           preparedStatement.close();
         }
 
-        String sql = String.format(sqlTemplate, buildInQuery(ids.size()));
-        preparedStatement = connection.prepareStatement(sql);
-        idCount = ids.size();
+        String sql = String.format(sqlTemplate, buildInQuery(count));
+        preparedStatement = session.connection.prepareStatement(sql);
+        idCount = count;
       }
 
-      int index = 1;
-      for (T id : ids) {
-        preparedStatement.setObject(index++, id);
+      for (int i = 0; i < count; ++i) {
+        if (ids != null) {
+          preparedStatement.setLong(i + 1, ids[position + i]);
+        } else {
+          preparedStatement.setString(i + 1, strings.get(position + i));
+        }
       }
+      position += count;
       resultSet = preparedStatement.executeQuery();
       return true;
     }
   }
 
+  /**
+   * Represents a read-only transaction. Read transactions run on a connection borrowed from the
+   * pool of read connections, if there is one, so that they see a consistent snapshot of the
+   * database without blocking (or being blocked by) writes. Otherwise, they run on the write
+   * connection.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   * @param <E>
+   *          the type that is returned from the transaction
+   */
+  private abstract class ReadTransaction<E> {
+
+    /**
+     * Executes the transaction on a read connection, returning the connection to the pool
+     * afterward.
+     * 
+     * @return the value that is returned from the transaction code
+     * @throws SQLException
+     *           if a database error occurs
+     */
+    public E execute() throws SQLException {
+      final Session session = acquireReadSession();
+      try {
+        return new Transaction<E, SQLException>(session) {
+
+          @Override
+          E runTransaction() throws SQLException {
+            return ReadTransaction.this.runTransaction(session);
+          }
+        }.execute();
+      } finally {
+        releaseReadSession(session);
+      }
+    }
+
+    /**
+     * Runs the code in the transaction. This code can assume that it is inside of a transaction,
+     * and must do all of its work through the given session.
+     */
+    abstract E runTransaction(Session session) throws SQLException;
+  }
+
+  /**
+   * Ranks full-text search matches, given the output of the FTS {@code matchinfo} function in its
+   * default format. Each query phrase contributes the fraction of its hits across all posts that
+   * occur in the post being ranked, so rare terms outweigh common ones.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class SearchRankFunction extends Function {
+
+    @Override
+    protected void xFunc() throws SQLException {
+      IntBuffer matchInfo = ByteBuffer.wrap(value_blob(0)).order(ByteOrder.nativeOrder())
+              .asIntBuffer();
+      int phraseCount = matchInfo.get(0);
+      int columnCount = matchInfo.get(1);
+
+      double rank = 0;
+      for (int phrase = 0; phrase < phraseCount; ++phrase) {
+        for (int column = 0; column < columnCount; ++column) {
+          int index = 2 + 3 * (phrase * columnCount + column);
+          int hitsInRow = matchInfo.get(index);
+          int hitsInAllRows = matchInfo.get(index + 1);
+          if (hitsInRow > 0) {
+            rank += (double) hitsInRow / hitsInAllRows;
+          }
+        }
+      }
+      result(rank);
+    }
+  }
+
+  /**
+   * A connection to the database along with the statements that have been prepared on it. A
+   * session is only ever used by one thread at a time.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Session {
+
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> preparedStatements;
+
+    private boolean searchRankRegistered;
+
+    public Session(Connection connection) {
+      this.connection = connection;
+      this.preparedStatements = new HashMap<>();
+      this.searchRankRegistered = false;
+    }
+
+    public void closeStatements() throws SQLException {
+      SQLException exception = null;
+
+      for (PreparedStatement statement : preparedStatements.values()) {
+        try {
+          statement.close();
+        } catch (SQLException ex) {
+          if (exception != null) {
+            ex.addSuppressed(exception);
+          }
+          exception = ex;
+        }
+      }
+      preparedStatements.clear();
+
+      if (exception != null) {
+        throw exception;
+      }
+    }
+
+    /**
+     * Gets a prepared statement for the given SQL, preparing it on first use. Statements are cached
+     * until {@link #closeStatements()} is called.
+     */
+    public PreparedStatement getStatement(String sql) throws SQLException {
+      PreparedStatement statement = preparedStatements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        preparedStatements.put(sql, statement);
+      }
+      return statement;
+    }
+  }
+
   /**
    * Represents a transaction that can be executed.
    * 
@@ -153,9 +377,23 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
    */
   private abstract class Transaction<E, Ex extends Exception> {
 
+    private final Session session;
+
+    /**
+     * Creates a transaction that runs on the write connection.
+     */
+    public Transaction() {
+      this(writer);
+    }
+
+    public Transaction(Session session) {
+      this.session = session;
+    }
+
     /**
      * Executes the transaction, committing if the code returns without throwing an exception, and
-     * rolling back if the function throws an exception.
+     * rolling back if the function throws an exception. Transactions on the same session are
+     * serialized.
      * 
      * If the attempt to rollback throws an exception, it will be included in the suppressed
      * exceptions for the thrown exception.
@@ -167,21 +405,29 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
      *           if the attempt to commit throws an exception
      */
     public E execute() throws Ex, SQLException {
-      E result;
+      synchronized (session) {
+        E result;
 
-      try {
-        result = runTransaction();
-        connection.commit();
-      } catch (Exception exception) {
         try {
-          connection.rollback();
-        } catch (SQLException sqlException) {
-          exception.addSuppressed(sqlException);
+          result = runTransaction();
+          session.connection.commit();
+        } catch (Exception exception) {
+          try {
+            session.connection.rollback();
+          } catch (SQLException sqlException) {
+            exception.addSuppressed(sqlException);
+          }
+          if (session == writer) {
+            afterRollback();
+          }
+          throw exception;
         }
-        throw exception;
-      }
 
-      return result;
+        if (session == writer) {
+          afterCommit();
+        }
+        return result;
+      }
     }
 
     /**
@@ -198,6 +444,26 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
   private static final String AUDIO_POSTS_REQUEST_SQL_TEMPLATE = "SELECT id, album, albumArt, artist, caption, player, plays, trackName, trackNumber, year FROM audioPosts WHERE id IN (%s);";
 
+  private static final String BLOG_COUNT_DELETE_SQL = "DELETE FROM blogCounts WHERE blogName = ? AND postCount <= 0;";
+
+  private static final String BLOG_COUNT_INSERT_SQL = "INSERT OR IGNORE INTO blogCounts (blogName, postCount) VALUES (?, 0);";
+
+  private static final String BLOG_COUNT_REQUEST_SQL = "SELECT postCount FROM blogCounts WHERE blogName = ?;";
+
+  private static final String BLOG_COUNT_UPDATE_SQL = "UPDATE blogCounts SET postCount = postCount + ? WHERE blogName = ?;";
+
+  private static final String CALENDAR_DAY_COUNTS_REQUEST_SQL = "SELECT day, postCount FROM postCalendar WHERE blogName = ? AND year = ? AND month = ? ORDER BY day;";
+
+  private static final String CALENDAR_DELETE_SQL = "DELETE FROM postCalendar WHERE blogName = ? AND year = ? AND month = ? AND day = ? AND postCount <= 0;";
+
+  private static final String CALENDAR_INSERT_SQL = "INSERT OR IGNORE INTO postCalendar (blogName, year, month, day, postCount) VALUES (?, ?, ?, ?, 0);";
+
+  private static final String CALENDAR_MONTH_COUNTS_REQUEST_SQL = "SELECT year, month, SUM(postCount) AS postCount FROM postCalendar WHERE blogName = ? GROUP BY year, month ORDER BY year, month;";
+
+  private static final String CALENDAR_UPDATE_SQL = "UPDATE postCalendar SET postCount = postCount + ? WHERE blogName = ? AND year = ? AND month = ? AND day = ?;";
+
+  private static final String CALENDAR_YEAR_COUNTS_REQUEST_SQL = "SELECT year, SUM(postCount) AS postCount FROM postCalendar WHERE blogName = ? GROUP BY year ORDER BY year;";
+
   private static final String CHAT_POST_DIALOGUE_INSERT_SQL = "INSERT INTO chatPostDialogue (postId, dialogueId, dialogueIndex) VALUES (?, ?, ?);";
 
   private static final String CHAT_POST_DIALOGUE_REQUEST_SQL_TEMPLATE = "SELECT chatPostDialogue.postId, dialogue.label, dialogue.name, dialogue.phrase FROM chatPostDialogue JOIN dialogue ON dialogue.id = chatPostDialogue.dialogueId WHERE chatPostDialogue.postId IN (%s) ORDER BY chatPostDialogue.dialogueIndex;";
@@ -230,6 +496,8 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
   private static final String DELETE_POST_TAGS_SQL_TEMPLATE = "DELETE FROM postTags WHERE postId IN (%s);";
 
+  private static final String DELETE_POST_TEXT_SQL_TEMPLATE = "DELETE FROM postText WHERE docid IN (%s);";
+
   private static final String DELETE_POSTS_SQL_TEMPLATE = "DELETE FROM posts WHERE id IN (%s);";
 
   private static final String DELETE_QUOTE_POSTS_SQL_TEMPLATE = "DELETE FROM quotePosts WHERE id IN (%s);";
@@ -244,12 +512,16 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
   private static final String DIALOGUE_INSERT_SQL = "INSERT INTO dialogue (label, name, phrase) VALUES (?, ?, ?);";
 
+  private static final String LATEST_POST_REQUEST_SQL = "SELECT posts.id, posts.blogName, posts.postUrl, posts.postedTimestamp, posts.retrievedTimestamp, postTypes.type FROM posts JOIN postTypes ON posts.postTypeId = postTypes.id WHERE posts.blogName = ? ORDER BY posts.postedTimestamp DESC, posts.id DESC LIMIT 1;";
+
   private static final String LINK_POST_INSERT_SQL = "INSERT INTO linkPosts (id, description, title, url) VALUES (?, ?, ?, ?);";
 
   private static final String LINK_POSTS_REQUEST_SQL_TEMPLATE = "SELECT id, description, title, url FROM linkPosts WHERE id IN (%s);";
 
   private static final int MAX_IDS_PER_QUERY = 999;
 
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
   private static final String PHOTO_INSERT_SQL = "INSERT INTO photos (caption) VALUES (?);";
 
   private static final String PHOTO_PHOTO_SIZE_INSERT_SQL = "INSERT INTO photoPhotoSizes (photoId, photoSizeId, photoSizeIndex) VALUES (?, ?, ?);";
@@ -266,18 +538,64 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
   private static final String PHOTOS_REQUEST_SQL_TEMPLATE = "SELECT photoPostPhotos.postId, photoPostPhotos.photoId, photos.caption FROM photoPostPhotos JOIN photos ON photos.id = photoPostPhotos.photoId WHERE photoPostPhotos.postId IN (%s) ORDER BY photoPostPhotos.photoIndex;";
 
+  private static final String POST_COUNTS_BY_POST_REQUEST_SQL_TEMPLATE = "SELECT blogName, postTypeId, postedTimestamp / 86400000 AS postedDay, COUNT(*) AS postCount FROM posts WHERE id IN (%s) GROUP BY blogName, postTypeId, postedDay;";
+
+  private static final String POST_IDS_REQUEST_SQL = "SELECT id FROM posts;";
+
+  private static final String POST_IN_RANGE_REQUEST_SQL = "SELECT posts.id, posts.blogName, posts.postUrl, posts.postedTimestamp, posts.retrievedTimestamp, postTypes.type FROM posts JOIN postTypes ON posts.postTypeId = postTypes.id WHERE posts.blogName = ? AND posts.postedTimestamp >= ? AND posts.postedTimestamp < ? ORDER BY posts.postedTimestamp, posts.id LIMIT 1;";
+
   private static final String POST_INSERT_SQL = "INSERT INTO posts (id, blogName, postUrl, postedTimestamp, retrievedTimestamp, postTypeId) SELECT ?, ?, ?, ?, ?, id FROM postTypes WHERE type = ?;";
 
   private static final String POST_REQUEST_SQL = "SELECT posts.id, posts.blogName, posts.postUrl, posts.postedTimestamp, posts.retrievedTimestamp, postTypes.type FROM posts JOIN postTypes ON posts.postTypeId = postTypes.id WHERE posts.id = ?;";
 
+  private static final String POST_SEARCH_REQUEST_SQL = "SELECT docid FROM postText WHERE content MATCH ? ORDER BY searchRank(matchinfo(postText)) DESC, docid DESC LIMIT ? OFFSET ?;";
+
   private static final String POST_TAG_INSERT_SQL = "INSERT INTO postTags (postId, tagId, tagIndex) VALUES (?, ?, ?);";
 
+  private static final String POST_TEXT_INSERT_SQL = "INSERT INTO postText (docid, content) VALUES (?, ?);";
+
+  private static final String POST_TYPE_COUNT_DELETE_SQL = "DELETE FROM postTypeCounts WHERE postTypeId = ? AND postCount <= 0;";
+
+  private static final String POST_TYPE_COUNT_INSERT_SQL = "INSERT OR IGNORE INTO postTypeCounts (postTypeId, postCount) VALUES (?, 0);";
+
+  private static final String POST_TYPE_COUNT_REQUEST_SQL = "SELECT postTypeCounts.postCount FROM postTypeCounts JOIN postTypes ON postTypes.id = postTypeCounts.postTypeId WHERE postTypes.type = ?;";
+
+  private static final String POST_TYPE_COUNT_UPDATE_SQL = "UPDATE postTypeCounts SET postCount = postCount + ? WHERE postTypeId = ?;";
+
+  private static final String POSTS_BY_ID_REQUEST_SQL_TEMPLATE = "SELECT posts.id, posts.blogName, posts.postUrl, posts.postedTimestamp, posts.retrievedTimestamp, postTypes.type FROM posts JOIN postTypes ON posts.postTypeId = postTypes.id WHERE posts.id IN (%s);";
+
   private static final String POSTS_REQUEST_SQL = "SELECT posts.id, posts.blogName, posts.postUrl, posts.postedTimestamp, posts.retrievedTimestamp, postTypes.type FROM posts JOIN postTypes ON posts.postTypeId = postTypes.id;";
 
   private static final String QUOTE_POST_INSERT_SQL = "INSERT INTO quotePosts (id, source, text) VALUES (?, ?, ?);";
 
   private static final String QUOTE_POSTS_REQUEST_SQL_TEMPLATE = "SELECT id, source, text FROM quotePosts WHERE id IN (%s);";
 
+  /**
+   * The schema version this code expects, stored in the database's {@code user_version}. Bump this
+   * and add a case to {@link #migrateSchema(Statement, int)} whenever the schema changes.
+   */
+  private static final int SCHEMA_VERSION = 5;
+
+  static final Pattern SEARCH_TERM_PATTERN = Pattern.compile("[\\p{L}\\p{N}]+");
+
+  private static final String SYNC_CHECKPOINT_DELETE_SQL = "DELETE FROM syncCheckpoints WHERE blogName = ?;";
+
+  private static final String SYNC_CHECKPOINT_INSERT_SQL = "INSERT OR REPLACE INTO syncCheckpoints (blogName, runId, lastPostId, postOffset, cutoffTimestamp) VALUES (?, ?, ?, ?, ?);";
+
+  private static final String SYNC_CHECKPOINT_REQUEST_SQL = "SELECT runId, lastPostId, postOffset, cutoffTimestamp FROM syncCheckpoints WHERE blogName = ?;";
+
+  private static final String TAG_COUNT_DELETE_SQL = "DELETE FROM tagCounts WHERE tagId = ? AND postCount <= 0;";
+
+  private static final String TAG_COUNT_INSERT_SQL = "INSERT OR IGNORE INTO tagCounts (tagId, postCount) VALUES (?, 0);";
+
+  private static final String TAG_COUNT_REQUEST_SQL = "SELECT tagCounts.postCount FROM tagCounts JOIN tags ON tags.id = tagCounts.tagId WHERE tags.tag = ?;";
+
+  private static final String TAG_COUNT_UPDATE_SQL = "UPDATE tagCounts SET postCount = postCount + ? WHERE tagId = ?;";
+
+  private static final String TAG_COUNTS_REQUEST_SQL = "SELECT tags.tag, tagCounts.postCount FROM tagCounts JOIN tags ON tags.id = tagCounts.tagId;";
+
+  private static final String TAG_COUNTS_BY_POST_REQUEST_SQL_TEMPLATE = "SELECT postTags.tagId, tags.tag, COUNT(*) AS postCount FROM postTags JOIN tags ON tags.id = postTags.tagId WHERE postTags.postId IN (%s) GROUP BY postTags.tagId;";
+
   private static final String TAG_INSERT_SQL = "INSERT INTO tags (tag) VALUES (?);";
 
   private static final String TAG_REQUEST_BY_NAME_SQL_TEMPLATE = "SELECT id, tag FROM tags WHERE tag IN (%s);";
@@ -288,6 +606,8 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
   private static final String TEXT_POSTS_REQUEST_SQL_TEMPLATE = "SELECT id, title, body FROM textPosts WHERE id IN (%s);";
 
+  private static final String TOP_TAGS_REQUEST_SQL = "SELECT tags.tag, tagCounts.postCount FROM tagCounts JOIN tags ON tags.id = tagCounts.tagId ORDER BY tagCounts.postCount DESC, tags.tag LIMIT ?;";
+
   private static final String VIDEO_INSERT_SQL = "INSERT INTO videos (embedCode, width) VALUES (?, ?);";
 
   private static final String VIDEO_POST_INSERT_SQL = "INSERT INTO videoPosts (id, caption) VALUES (?, ?);";
@@ -306,105 +626,193 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
   }
 
-  private final PreparedStatement answerPostInsertStatement;
-
-  private final PreparedStatement audioPostInsertStatement;
+  private final BlockingQueue<Session> idleReadSessions;
 
-  private final PreparedStatement chatPostDialogueInsertStatement;
+  private final boolean ownsWriteConnection;
 
-  private final PreparedStatement chatPostInsertStatement;
+  private final ImmutableList<Session> readSessions;
 
-  private final Connection connection;
+  private volatile TagIndex tagIndex;
 
-  private final PreparedStatement dialogueInsertStatement;
+  private final List<CountDeltas> uncommittedCountDeltas;
 
-  private final PreparedStatement linkPostInsertStatement;
+  private final Session writer;
 
-  private final PreparedStatement photoInsertStatement;
-
-  private final PreparedStatement photoPhotoSizeInsertStatement;
-
-  private final PreparedStatement photoPostInsertStatement;
+  @VisibleForTesting
+  SqlitePostDb(Connection connection) throws SQLException {
+    this(connection, null, 0);
+  }
 
-  private final PreparedStatement photoPostPhotoInsertStatement;
+  private SqlitePostDb(Connection connection, String dbFile, int readConnectionCount)
+          throws SQLException {
+    Preconditions.checkArgument(readConnectionCount >= 0);
+
+    this.idleReadSessions = new LinkedBlockingQueue<>();
+    this.ownsWriteConnection = (dbFile != null);
+    this.tagIndex = null;
+    this.uncommittedCountDeltas = new ArrayList<>();
+    this.writer = new Session(connection);
+
+    // The journal mode can't be changed inside a transaction, so this must happen before
+    // initConnection() turns off auto-commit.
+    if (readConnectionCount > 0) {
+      try (Statement statement = connection.createStatement();
+              ResultSet resultSet = statement.executeQuery("PRAGMA journal_mode = WAL;")) {
+        if (!resultSet.getString(1).equalsIgnoreCase("wal")) {
+          throw new SQLException(String.format("Could not enable WAL mode for %s.", dbFile));
+        }
+      }
+    }
+    initConnection();
 
-  private final PreparedStatement photoSizeInsertStatement;
+    ImmutableList.Builder<Session> readSessionsBuilder = ImmutableList.builder();
+    if (readConnectionCount > 0) {
+      SQLiteConfig readConfig = new SQLiteConfig();
+      readConfig.setReadOnly(true);
+      for (int i = 0; i < readConnectionCount; ++i) {
+        Connection readConnection = DriverManager.getConnection(getUrl(dbFile),
+                readConfig.toProperties());
+        readConnection.setAutoCommit(false);
+        readSessionsBuilder.add(new Session(readConnection));
+      }
+    }
+    this.readSessions = readSessionsBuilder.build();
+    this.idleReadSessions.addAll(readSessions);
+  }
 
-  private final PreparedStatement postInsertStatement;
+  /**
+   * Opens the database with a single connection, creating the file if it does not exist. Opening is
+   * cheap: statements are prepared on first use, so an up-to-date database costs one connection and
+   * a schema version check.
+   * 
+   * @param dbFile
+   *          the path of the database file
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public SqlitePostDb(String dbFile) throws SQLException {
+    this(DriverManager.getConnection(getUrl(dbFile)), dbFile, 0);
+  }
 
-  private final PreparedStatement postRequestStatement;
+  /**
+   * Opens the database in WAL journal mode, with a single connection for writes and a pool of
+   * read-only connections for reads. Each read runs in its own transaction on a pooled connection,
+   * so it sees a consistent snapshot of the database and runs concurrently with writes and with
+   * other reads. This instance may then be shared between threads; writes are still serialized.
+   * 
+   * @param dbFile
+   *          the path of the database file
+   * @param readConnectionCount
+   *          the number of read-only connections to open; reads wait for a free connection
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public SqlitePostDb(String dbFile, int readConnectionCount) throws SQLException {
+    this(DriverManager.getConnection(getUrl(dbFile)), dbFile, readConnectionCount);
+  }
 
-  private final PreparedStatement postsRequestStatement;
+  private Session acquireReadSession() throws SQLException {
+    if (readSessions.isEmpty()) {
+      return writer;
+    }
 
-  private final PreparedStatement postTagInsertStatement;
+    try {
+      return idleReadSessions.take();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a read connection.", exception);
+    }
+  }
 
-  private final PreparedStatement quotePostInsertStatement;
+  private void afterCommit() {
+    if (tagIndex != null) {
+      for (CountDeltas countDeltas : uncommittedCountDeltas) {
+        for (Map.Entry<Integer, Long> entry : countDeltas.deltaByTagId.entrySet()) {
+          tagIndex.adjust(countDeltas.tagById.get(entry.getKey()), entry.getValue());
+        }
+      }
+    }
+    uncommittedCountDeltas.clear();
+  }
 
-  private final PreparedStatement tagInsertStatement;
+  private void afterRollback() {
+    uncommittedCountDeltas.clear();
+  }
 
-  private final PreparedStatement textPostInsertStatement;
+  /**
+   * Finds the most-used tags starting with the given prefix, ignoring case. Lookups are served from
+   * an in-memory index of the tag vocabulary, which is built on first use and kept up to date as
+   * posts are put and deleted.
+   * 
+   * @param prefix
+   *          the prefix to complete
+   * @param limit
+   *          the maximum number of tags to return
+   * @return an ordered map from tag to the number of posts with that tag, most-used first
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Map<String, Long> autocompleteTags(String prefix, int limit) throws SQLException {
+    TagIndex currentTagIndex = tagIndex;
+    if (currentTagIndex == null) {
+      // Load on the write connection, so that no commit can land between reading the counts and
+      // publishing the index (which would lose that commit's changes to the index).
+      currentTagIndex = new Transaction<TagIndex, SQLException>() {
+
+        @Override
+        TagIndex runTransaction() throws SQLException {
+          TagIndex newTagIndex = new TagIndex();
+          try (ResultSet resultSet = writer.getStatement(TAG_COUNTS_REQUEST_SQL).executeQuery()) {
+            while (resultSet.next()) {
+              newTagIndex.adjust(resultSet.getString("tag"), resultSet.getLong("postCount"));
+            }
+          }
+          tagIndex = newTagIndex;
+          return newTagIndex;
+        }
+      }.execute();
+    }
 
-  private final PreparedStatement videoInsertStatement;
+    return currentTagIndex.complete(prefix, limit);
+  }
 
-  private final PreparedStatement videoPostInsertStatement;
+  @Override
+  public void close() throws SQLException {
+    SQLException exception = null;
 
-  private final PreparedStatement videoPostVideoInsertStatement;
+    try {
+      writer.closeStatements();
+    } catch (SQLException ex) {
+      exception = ex;
+    }
 
-  @VisibleForTesting
-  SqlitePostDb(Connection connection) throws SQLException {
-    this.connection = connection;
-    initConnection();
+    for (Session session : readSessions) {
+      try {
+        session.closeStatements();
+        session.connection.close();
+      } catch (SQLException ex) {
+        if (exception != null) {
+          ex.addSuppressed(exception);
+        }
+        exception = ex;
+      }
+    }
 
-    answerPostInsertStatement = connection.prepareStatement(ANSWER_POST_INSERT_SQL);
-    audioPostInsertStatement = connection.prepareStatement(AUDIO_POST_INSERT_SQL);
-    chatPostInsertStatement = connection.prepareStatement(CHAT_POST_INSERT_SQL);
-    chatPostDialogueInsertStatement = connection.prepareStatement(CHAT_POST_DIALOGUE_INSERT_SQL);
-    dialogueInsertStatement = connection.prepareStatement(DIALOGUE_INSERT_SQL);
-    linkPostInsertStatement = connection.prepareStatement(LINK_POST_INSERT_SQL);
-    photoInsertStatement = connection.prepareStatement(PHOTO_INSERT_SQL);
-    photoPhotoSizeInsertStatement = connection.prepareStatement(PHOTO_PHOTO_SIZE_INSERT_SQL);
-    photoPostInsertStatement = connection.prepareStatement(PHOTO_POST_INSERT_SQL);
-    photoPostPhotoInsertStatement = connection.prepareStatement(PHOTO_POST_PHOTO_INSERT_SQL);
-    photoSizeInsertStatement = connection.prepareStatement(PHOTO_SIZE_INSERT_SQL);
-    postRequestStatement = connection.prepareStatement(POST_REQUEST_SQL);
-    postsRequestStatement = connection.prepareStatement(POSTS_REQUEST_SQL);
-    postInsertStatement = connection.prepareStatement(POST_INSERT_SQL);
-    postTagInsertStatement = connection.prepareStatement(POST_TAG_INSERT_SQL);
-    quotePostInsertStatement = connection.prepareStatement(QUOTE_POST_INSERT_SQL);
-    tagInsertStatement = connection.prepareStatement(TAG_INSERT_SQL);
-    textPostInsertStatement = connection.prepareStatement(TEXT_POST_INSERT_SQL);
-    videoInsertStatement = connection.prepareStatement(VIDEO_INSERT_SQL);
-    videoPostInsertStatement = connection.prepareStatement(VIDEO_POST_INSERT_SQL);
-    videoPostVideoInsertStatement = connection.prepareStatement(VIDEO_POST_VIDEO_INSERT_SQL);
-  }
-
-  public SqlitePostDb(String dbFile) throws ClassNotFoundException, SQLException {
-    this(DriverManager.getConnection(String.format("jdbc:sqlite:%s", new File(dbFile).getPath())));
-  }
+    // A connection passed in by the caller is left for the caller to close.
+    if (ownsWriteConnection) {
+      try {
+        writer.connection.close();
+      } catch (SQLException ex) {
+        if (exception != null) {
+          ex.addSuppressed(exception);
+        }
+        exception = ex;
+      }
+    }
 
-  @Override
-  public void close() throws SQLException {
-    answerPostInsertStatement.close();
-    audioPostInsertStatement.close();
-    chatPostInsertStatement.close();
-    chatPostDialogueInsertStatement.close();
-    dialogueInsertStatement.close();
-    linkPostInsertStatement.close();
-    photoInsertStatement.close();
-    photoPhotoSizeInsertStatement.close();
-    photoPostInsertStatement.close();
-    photoPostPhotoInsertStatement.close();
-    photoSizeInsertStatement.close();
-    postRequestStatement.close();
-    postsRequestStatement.close();
-    postInsertStatement.close();
-    postTagInsertStatement.close();
-    quotePostInsertStatement.close();
-    tagInsertStatement.close();
-    textPostInsertStatement.close();
-    videoInsertStatement.close();
-    videoPostInsertStatement.close();
-    videoPostVideoInsertStatement.close();
+    if (exception != null) {
+      throw exception;
+    }
   }
 
   @Override
@@ -413,56 +821,260 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
       @Override
       Void runTransaction() throws SQLException {
-        doDelete(ImmutableList.of(id));
+        CountDeltas countDeltas = new CountDeltas();
+        doDelete(new long[] { id }, countDeltas);
+        doApplyCountDeltas(countDeltas);
         return null;
       }
     }.execute();
   }
 
-  private void doDelete(Collection<Long> ids) throws SQLException {
-    // Delete answer post-related data.
-    runDeleteQuery(ids, DELETE_ANSWER_POSTS_SQL_TEMPLATE);
+  /**
+   * Deletes a blog's sync checkpoint, once its sync has finished. Deleting a nonexistent checkpoint
+   * is a no-op.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public void deleteSyncCheckpoint(final String blogName) throws SQLException {
+    new Transaction<Void, SQLException>() {
 
-    // Delete audio post-related data.
-    runDeleteQuery(ids, DELETE_AUDIO_POSTS_SQL_TEMPLATE);
+      @Override
+      Void runTransaction() throws SQLException {
+        PreparedStatement syncCheckpointDeleteStatement = writer
+                .getStatement(SYNC_CHECKPOINT_DELETE_SQL);
+        syncCheckpointDeleteStatement.setString(1, blogName);
+        syncCheckpointDeleteStatement.execute();
+        return null;
+      }
+    }.execute();
+  }
 
-    // Delete chat post-related data.
-    runDeleteQuery(ids, DELETE_DIALOGUE_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_CHAT_POST_DIALOGUE_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_CHAT_POSTS_SQL_TEMPLATE);
+  private void doApplyCountDeltas(CountDeltas countDeltas) throws SQLException {
+    doApplyCountDeltas(countDeltas.deltaByBlogName, BLOG_COUNT_INSERT_SQL, BLOG_COUNT_UPDATE_SQL,
+            BLOG_COUNT_DELETE_SQL);
+    doApplyCountDeltas(countDeltas.deltaByPostTypeId, POST_TYPE_COUNT_INSERT_SQL,
+            POST_TYPE_COUNT_UPDATE_SQL, POST_TYPE_COUNT_DELETE_SQL);
+    doApplyCountDeltas(countDeltas.deltaByTagId, TAG_COUNT_INSERT_SQL, TAG_COUNT_UPDATE_SQL,
+            TAG_COUNT_DELETE_SQL);
+    doApplyCalendarDeltas(countDeltas.deltaByBlogNameAndDay);
+    uncommittedCountDeltas.add(countDeltas);
+  }
 
-    // Delete link post-related data.
-    runDeleteQuery(ids, DELETE_LINK_POSTS_SQL_TEMPLATE);
+  private void doApplyCalendarDeltas(Map<String, Map<LocalDate, Long>> deltaByBlogNameAndDay)
+          throws SQLException {
+    PreparedStatement insertStatement = null;
+    PreparedStatement updateStatement = null;
+    PreparedStatement deleteStatement = null;
 
-    // Delete photo post-related data.
-    runDeleteQuery(ids, DELETE_PHOTO_SIZES_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_PHOTO_PHOTO_SIZES_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_PHOTOS_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_PHOTO_POST_PHOTOS_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_PHOTO_POSTS_SQL_TEMPLATE);
+    for (Map.Entry<String, Map<LocalDate, Long>> blogEntry : deltaByBlogNameAndDay.entrySet()) {
+      String blogName = blogEntry.getKey();
 
-    // Delete quote post-related data.
-    runDeleteQuery(ids, DELETE_QUOTE_POSTS_SQL_TEMPLATE);
+      for (Map.Entry<LocalDate, Long> dayEntry : blogEntry.getValue().entrySet()) {
+        LocalDate day = dayEntry.getKey();
+        long delta = dayEntry.getValue();
 
-    // Delete text post-related data.
-    runDeleteQuery(ids, DELETE_TEXT_POSTS_SQL_TEMPLATE);
+        if (delta == 0) {
+          continue;
+        }
 
-    // Delete video post-related data.
-    runDeleteQuery(ids, DELETE_VIDEOS_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_VIDEO_POST_VIDEOS_SQL_TEMPLATE);
-    runDeleteQuery(ids, DELETE_VIDEO_POSTS_SQL_TEMPLATE);
+        if (insertStatement == null) {
+          insertStatement = writer.getStatement(CALENDAR_INSERT_SQL);
+          updateStatement = writer.getStatement(CALENDAR_UPDATE_SQL);
+          deleteStatement = writer.getStatement(CALENDAR_DELETE_SQL);
+        }
 
-    // Delete tag-related data.
-    runDeleteQuery(ids, DELETE_POST_TAGS_SQL_TEMPLATE);
+        if (delta > 0) {
+          insertStatement.setString(1, blogName);
+          insertStatement.setInt(2, day.getYear());
+          insertStatement.setInt(3, day.getMonthOfYear());
+          insertStatement.setInt(4, day.getDayOfMonth());
+          insertStatement.addBatch();
+        }
+
+        updateStatement.setLong(1, delta);
+        updateStatement.setString(2, blogName);
+        updateStatement.setInt(3, day.getYear());
+        updateStatement.setInt(4, day.getMonthOfYear());
+        updateStatement.setInt(5, day.getDayOfMonth());
+        updateStatement.addBatch();
+
+        if (delta < 0) {
+          deleteStatement.setString(1, blogName);
+          deleteStatement.setInt(2, day.getYear());
+          deleteStatement.setInt(3, day.getMonthOfYear());
+          deleteStatement.setInt(4, day.getDayOfMonth());
+          deleteStatement.addBatch();
+        }
+      }
+    }
+
+    if (insertStatement == null) {
+      return;
+    }
+    insertStatement.executeBatch();
+    updateStatement.executeBatch();
+    deleteStatement.executeBatch();
+  }
+
+  private <K> void doApplyCountDeltas(Map<K, Long> deltaByKey, String insertSql, String updateSql,
+          String deleteSql) throws SQLException {
+    PreparedStatement insertStatement = null;
+    PreparedStatement updateStatement = null;
+    PreparedStatement deleteStatement = null;
+
+    for (Map.Entry<K, Long> entry : deltaByKey.entrySet()) {
+      K key = entry.getKey();
+      long delta = entry.getValue();
+
+      if (delta == 0) {
+        continue;
+      }
+
+      if (insertStatement == null) {
+        insertStatement = writer.getStatement(insertSql);
+        updateStatement = writer.getStatement(updateSql);
+        deleteStatement = writer.getStatement(deleteSql);
+      }
+
+      // Only increments can create a counter row; only decrements can empty one.
+      if (delta > 0) {
+        insertStatement.setObject(1, key);
+        insertStatement.addBatch();
+      }
+
+      updateStatement.setLong(1, delta);
+      updateStatement.setObject(2, key);
+      updateStatement.addBatch();
+
+      if (delta < 0) {
+        deleteStatement.setObject(1, key);
+        deleteStatement.addBatch();
+      }
+    }
+
+    if (insertStatement == null) {
+      return;
+    }
+    insertStatement.executeBatch();
+    updateStatement.executeBatch();
+    deleteStatement.executeBatch();
+  }
+
+  /**
+   * Adds the contribution of the given posts, as currently stored, to the post counters.
+   * 
+   * @param ids
+   *          the IDs of the posts to count
+   * @param sign
+   *          1 to count the posts as added, -1 to count them as removed
+   * @param countDeltas
+   *          the deltas to add to
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  private void doCollectCounts(long[] ids, int sign, CountDeltas countDeltas)
+          throws SQLException {
+    if (ids.length == 0) {
+      return;
+    }
+
+    try (ListQuery postCountsQuery = new ListQuery(writer,
+            POST_COUNTS_BY_POST_REQUEST_SQL_TEMPLATE, ids)) {
+      while (postCountsQuery.next()) {
+        ResultSet resultSet = postCountsQuery.getResultSet();
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int postCountColumn = resultSet.findColumn("postCount");
+        int blogNameColumn = resultSet.findColumn("blogName");
+        int postTypeIdColumn = resultSet.findColumn("postTypeId");
+        int postedDayColumn = resultSet.findColumn("postedDay");
+        do {
+          long postCount = sign * resultSet.getLong(postCountColumn);
+          countDeltas.addBlogDelta(resultSet.getString(blogNameColumn), postCount);
+          countDeltas.addPostTypeDelta(resultSet.getInt(postTypeIdColumn), postCount);
+
+          Instant postedDayInstant = new Instant(resultSet.getLong(postedDayColumn)
+                  * MILLIS_PER_DAY);
+          countDeltas.addDayDelta(resultSet.getString(blogNameColumn), new LocalDate(
+                  postedDayInstant, DateTimeZone.UTC), postCount);
+        } while (resultSet.next());
+      }
+    }
+
+    try (ListQuery tagCountsQuery = new ListQuery(writer,
+            TAG_COUNTS_BY_POST_REQUEST_SQL_TEMPLATE, ids)) {
+      while (tagCountsQuery.next()) {
+        ResultSet resultSet = tagCountsQuery.getResultSet();
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int tagIdColumn = resultSet.findColumn("tagId");
+        int tagColumn = resultSet.findColumn("tag");
+        int postCountColumn = resultSet.findColumn("postCount");
+        do {
+          countDeltas.addTagDelta(resultSet.getInt(tagIdColumn), resultSet.getString(tagColumn),
+                  sign * resultSet.getLong(postCountColumn));
+        } while (resultSet.next());
+      }
+    }
+  }
+
+  private void doDelete(long[] ids, CountDeltas countDeltas) throws SQLException {
+    doCollectCounts(ids, -1, countDeltas);
+
+    // Delete answer post-related data.
+    runDeleteQuery(ids, DELETE_ANSWER_POSTS_SQL_TEMPLATE);
+
+    // Delete audio post-related data.
+    runDeleteQuery(ids, DELETE_AUDIO_POSTS_SQL_TEMPLATE);
+
+    // Delete chat post-related data.
+    runDeleteQuery(ids, DELETE_DIALOGUE_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_CHAT_POST_DIALOGUE_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_CHAT_POSTS_SQL_TEMPLATE);
+
+    // Delete link post-related data.
+    runDeleteQuery(ids, DELETE_LINK_POSTS_SQL_TEMPLATE);
+
+    // Delete photo post-related data.
+    runDeleteQuery(ids, DELETE_PHOTO_SIZES_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_PHOTO_PHOTO_SIZES_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_PHOTOS_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_PHOTO_POST_PHOTOS_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_PHOTO_POSTS_SQL_TEMPLATE);
+
+    // Delete quote post-related data.
+    runDeleteQuery(ids, DELETE_QUOTE_POSTS_SQL_TEMPLATE);
+
+    // Delete text post-related data.
+    runDeleteQuery(ids, DELETE_TEXT_POSTS_SQL_TEMPLATE);
+
+    // Delete video post-related data.
+    runDeleteQuery(ids, DELETE_VIDEOS_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_VIDEO_POST_VIDEOS_SQL_TEMPLATE);
+    runDeleteQuery(ids, DELETE_VIDEO_POSTS_SQL_TEMPLATE);
+
+    // Delete tag-related data.
+    runDeleteQuery(ids, DELETE_POST_TAGS_SQL_TEMPLATE);
+
+    // Delete search data.
+    runDeleteQuery(ids, DELETE_POST_TEXT_SQL_TEMPLATE);
 
     // Delete post-related data.
     runDeleteQuery(ids, DELETE_POSTS_SQL_TEMPLATE);
   }
 
-  private Post doGet(long id) throws SQLException {
+  private Post doGet(Session session, long id) throws SQLException {
+    PreparedStatement postRequestStatement = session.getStatement(POST_REQUEST_SQL);
     postRequestStatement.setLong(1, id);
     try (ResultSet resultSet = postRequestStatement.executeQuery()) {
-      List<Post> postList = doGetFromResultSet(resultSet);
+      List<Post> postList = doGetFromResultSet(session, resultSet);
 
       if (postList.isEmpty()) {
         return null;
@@ -472,118 +1084,216 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
   }
 
-  private List<Post> doGetAll() throws SQLException {
+  private List<Post> doGetAll(Session session) throws SQLException {
+    PreparedStatement postsRequestStatement = session.getStatement(POSTS_REQUEST_SQL);
     try (ResultSet resultSet = postsRequestStatement.executeQuery()) {
-      return doGetFromResultSet(resultSet);
+      return doGetFromResultSet(session, resultSet);
     }
   }
 
-  private void doGetAnswerPostData(Map<Long, AnswerPost.Builder> builderById) throws SQLException {
+  private List<Post> doGetAll(Session session, long[] ids) throws SQLException {
+    if (ids.length == 0) {
+      return ImmutableList.of();
+    }
+
+    ImmutableList.Builder<Post> resultBuilder = ImmutableList.builder();
+    try (ListQuery postsQuery = new ListQuery(session,
+            POSTS_BY_ID_REQUEST_SQL_TEMPLATE, ids)) {
+      while (postsQuery.next()) {
+        resultBuilder.addAll(doGetFromResultSet(session, postsQuery.getResultSet()));
+      }
+    }
+    return resultBuilder.build();
+  }
+
+  private void doGetAnswerPostData(Session session,
+          LongObjectHashMap<AnswerPost.Builder> builderById) throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
-    try (ListQuery<Long> answerPostsQuery = new ListQuery<Long>(ANSWER_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery answerPostsQuery = new ListQuery(session,
+            ANSWER_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (answerPostsQuery.next()) {
         ResultSet resultSet = answerPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          AnswerPost.Builder postBuilder = builderById.get(resultSet.getLong("id"));
-          postBuilder.setAskingName(resultSet.getString("askingName"));
-          postBuilder.setAskingUrl(resultSet.getString("askingUrl"));
-          postBuilder.setQuestion(resultSet.getString("question"));
-          postBuilder.setAnswer(resultSet.getString("answer"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int askingNameColumn = resultSet.findColumn("askingName");
+        int askingUrlColumn = resultSet.findColumn("askingUrl");
+        int questionColumn = resultSet.findColumn("question");
+        int answerColumn = resultSet.findColumn("answer");
+        do {
+          AnswerPost.Builder postBuilder = builderById.get(resultSet.getLong(idColumn));
+          postBuilder.setAskingName(resultSet.getString(askingNameColumn));
+          postBuilder.setAskingUrl(resultSet.getString(askingUrlColumn));
+          postBuilder.setQuestion(resultSet.getString(questionColumn));
+          postBuilder.setAnswer(resultSet.getString(answerColumn));
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetAudioPostData(Map<Long, AudioPost.Builder> builderById) throws SQLException {
+  private void doGetAudioPostData(Session session, LongObjectHashMap<AudioPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
-    try (ListQuery<Long> audioPostsQuery = new ListQuery<Long>(AUDIO_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery audioPostsQuery = new ListQuery(session,
+            AUDIO_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (audioPostsQuery.next()) {
         ResultSet resultSet = audioPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          AudioPost.Builder postBuilder = builderById.get(resultSet.getLong("id"));
-          postBuilder.setAlbum(resultSet.getString("album"));
-          postBuilder.setAlbumArt(resultSet.getString("albumArt"));
-          postBuilder.setArtist(resultSet.getString("artist"));
-          postBuilder.setCaption(resultSet.getString("caption"));
-          postBuilder.setPlayer(resultSet.getString("player"));
-          postBuilder.setPlays(resultSet.getInt("plays"));
-          postBuilder.setTrackName(resultSet.getString("trackName"));
-          postBuilder.setTrackNumber(resultSet.getInt("trackNumber"));
-          postBuilder.setYear(resultSet.getInt("year"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int albumColumn = resultSet.findColumn("album");
+        int albumArtColumn = resultSet.findColumn("albumArt");
+        int artistColumn = resultSet.findColumn("artist");
+        int captionColumn = resultSet.findColumn("caption");
+        int playerColumn = resultSet.findColumn("player");
+        int playsColumn = resultSet.findColumn("plays");
+        int trackNameColumn = resultSet.findColumn("trackName");
+        int trackNumberColumn = resultSet.findColumn("trackNumber");
+        int yearColumn = resultSet.findColumn("year");
+        do {
+          AudioPost.Builder postBuilder = builderById.get(resultSet.getLong(idColumn));
+          postBuilder.setAlbum(resultSet.getString(albumColumn));
+          postBuilder.setAlbumArt(resultSet.getString(albumArtColumn));
+          postBuilder.setArtist(resultSet.getString(artistColumn));
+          postBuilder.setCaption(resultSet.getString(captionColumn));
+          postBuilder.setPlayer(resultSet.getString(playerColumn));
+          postBuilder.setPlays(resultSet.getInt(playsColumn));
+          postBuilder.setTrackName(resultSet.getString(trackNameColumn));
+          postBuilder.setTrackNumber(resultSet.getInt(trackNumberColumn));
+          postBuilder.setYear(resultSet.getInt(yearColumn));
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetChatPostData(Map<Long, ChatPost.Builder> builderById) throws SQLException {
+  private void doGetChatPostData(Session session, LongObjectHashMap<ChatPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
     // Get basic chat post data.
-    try (ListQuery<Long> chatPostsQuery = new ListQuery<Long>(CHAT_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery chatPostsQuery = new ListQuery(session,
+            CHAT_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (chatPostsQuery.next()) {
         ResultSet resultSet = chatPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          ChatPost.Builder postBuilder = builderById.get(resultSet.getLong("id"));
-          postBuilder.setBody(resultSet.getString("body"));
-          postBuilder.setTitle(resultSet.getString("title"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int bodyColumn = resultSet.findColumn("body");
+        int titleColumn = resultSet.findColumn("title");
+        do {
+          ChatPost.Builder postBuilder = builderById.get(resultSet.getLong(idColumn));
+          postBuilder.setBody(resultSet.getString(bodyColumn));
+          postBuilder.setTitle(resultSet.getString(titleColumn));
+        } while (resultSet.next());
       }
     }
 
     // Get dialogue.
-    Map<Long, ImmutableList.Builder<Dialogue>> dialogueBuilderById = new HashMap<>();
-    for (long id : builderById.keySet()) {
+    LongObjectHashMap<ImmutableList.Builder<Dialogue>> dialogueBuilderById =
+            new LongObjectHashMap<>();
+    for (long id : ids) {
       dialogueBuilderById.put(id, new ImmutableList.Builder<Dialogue>());
     }
 
-    try (ListQuery<Long> chatPostDialogueQuery = new ListQuery<Long>(
-            CHAT_POST_DIALOGUE_REQUEST_SQL_TEMPLATE, builderById.keySet())) {
+    try (ListQuery chatPostDialogueQuery = new ListQuery(session,
+            CHAT_POST_DIALOGUE_REQUEST_SQL_TEMPLATE, ids)) {
       while (chatPostDialogueQuery.next()) {
         ResultSet resultSet = chatPostDialogueQuery.getResultSet();
-        while (resultSet.next()) {
-          ImmutableList.Builder<Dialogue> dialogueBuilder = dialogueBuilderById.get(resultSet
-                  .getLong("postId"));
-          dialogueBuilder.add(new Dialogue(resultSet.getString("name"), resultSet
-                  .getString("label"), resultSet.getString("phrase")));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int postIdColumn = resultSet.findColumn("postId");
+        int nameColumn = resultSet.findColumn("name");
+        int labelColumn = resultSet.findColumn("label");
+        int phraseColumn = resultSet.findColumn("phrase");
+        do {
+          ImmutableList.Builder<Dialogue> dialogueBuilder = dialogueBuilderById.get(resultSet
+                  .getLong(postIdColumn));
+          dialogueBuilder.add(new Dialogue(resultSet.getString(nameColumn), resultSet
+                  .getString(labelColumn), resultSet.getString(phraseColumn)));
+        } while (resultSet.next());
       }
     }
 
-    for (Map.Entry<Long, ChatPost.Builder> entry : builderById.entrySet()) {
-      long id = entry.getKey();
-      ChatPost.Builder postBuilder = entry.getValue();
+    for (long id : ids) {
+      builderById.get(id).setDialogue(dialogueBuilderById.get(id).build());
+    }
+  }
 
-      postBuilder.setDialogue(dialogueBuilderById.get(id).build());
+  private long doGetCount(Session session, String sql, Object key) throws SQLException {
+    PreparedStatement countRequestStatement = session.getStatement(sql);
+    countRequestStatement.setObject(1, key);
+    try (ResultSet resultSet = countRequestStatement.executeQuery()) {
+      if (!resultSet.next()) {
+        return 0;
+      }
+      return resultSet.getLong("postCount");
     }
   }
 
-  private List<Post> doGetFromResultSet(ResultSet resultSet) throws SQLException {
-    Map<Long, Post.Builder> builderById = new HashMap<>();
-    Map<Long, AnswerPost.Builder> answerBuilderById = new HashMap<>();
-    Map<Long, AudioPost.Builder> audioBuilderById = new HashMap<>();
-    Map<Long, ChatPost.Builder> chatBuilderById = new HashMap<>();
-    Map<Long, LinkPost.Builder> linkBuilderById = new HashMap<>();
-    Map<Long, PhotoPost.Builder> photoBuilderById = new HashMap<>();
-    Map<Long, QuotePost.Builder> quoteBuilderById = new HashMap<>();
-    Map<Long, TextPost.Builder> textBuilderById = new HashMap<>();
-    Map<Long, VideoPost.Builder> videoBuilderById = new HashMap<>();
+  private Post doGetFirstPostInRange(Session session, String blogName, Instant start, Instant end)
+          throws SQLException {
+    PreparedStatement postInRangeRequestStatement = session.getStatement(POST_IN_RANGE_REQUEST_SQL);
+    postInRangeRequestStatement.setString(1, blogName);
+    postInRangeRequestStatement.setLong(2, start.getMillis());
+    postInRangeRequestStatement.setLong(3, end.getMillis());
+    try (ResultSet resultSet = postInRangeRequestStatement.executeQuery()) {
+      List<Post> postList = doGetFromResultSet(session, resultSet);
+
+      if (postList.isEmpty()) {
+        return null;
+      }
+
+      return postList.get(0);
+    }
+  }
 
-    // Extract basic data from results & categorize them by type.
-    while (resultSet.next()) {
+  private List<Post> doGetFromResultSet(Session session, ResultSet resultSet) throws SQLException {
+    LongObjectHashMap<Post.Builder> builderById = new LongObjectHashMap<>();
+    LongObjectHashMap<AnswerPost.Builder> answerBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<AudioPost.Builder> audioBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<ChatPost.Builder> chatBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<LinkPost.Builder> linkBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<PhotoPost.Builder> photoBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<QuotePost.Builder> quoteBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<TextPost.Builder> textBuilderById = new LongObjectHashMap<>();
+    LongObjectHashMap<VideoPost.Builder> videoBuilderById = new LongObjectHashMap<>();
+
+    // Extract basic data from results & categorize them by type. Columns are looked up once per
+    // result set: the driver upper-cases every column name on each lookup by name, and it reports
+    // an empty result set as closed, so the lookup has to wait for the first row.
+    if (!resultSet.next()) {
+      return ImmutableList.of();
+    }
+
+    int idColumn = resultSet.findColumn("id");
+    int typeColumn = resultSet.findColumn("type");
+    int blogNameColumn = resultSet.findColumn("blogName");
+    int postUrlColumn = resultSet.findColumn("postUrl");
+    int postedTimestampColumn = resultSet.findColumn("postedTimestamp");
+    int retrievedTimestampColumn = resultSet.findColumn("retrievedTimestamp");
+    do {
       Post.Builder postBuilder;
-      long id = resultSet.getLong("id");
-      PostType postType = PostType.valueOf(resultSet.getString("type"));
+      long id = resultSet.getLong(idColumn);
+      PostType postType = PostType.valueOf(resultSet.getString(typeColumn));
 
       switch (postType) {
       case ANSWER:
@@ -625,24 +1335,24 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
 
       // Set basic data.
       postBuilder.setId(id);
-      postBuilder.setBlogName(resultSet.getString("blogName"));
-      postBuilder.setPostUrl(resultSet.getString("postUrl"));
-      postBuilder.setPostedInstant(new Instant(resultSet.getLong("postedTimestamp")));
-      postBuilder.setRetrievedInstant(new Instant(resultSet.getLong("retrievedTimestamp")));
+      postBuilder.setBlogName(resultSet.getString(blogNameColumn));
+      postBuilder.setPostUrl(resultSet.getString(postUrlColumn));
+      postBuilder.setPostedInstant(new Instant(resultSet.getLong(postedTimestampColumn)));
+      postBuilder.setRetrievedInstant(new Instant(resultSet.getLong(retrievedTimestampColumn)));
 
       builderById.put(id, postBuilder);
-    }
+    } while (resultSet.next());
 
     // Set tag data & post type-specific data.
-    doGetTagData(builderById);
-    doGetAnswerPostData(answerBuilderById);
-    doGetAudioPostData(audioBuilderById);
-    doGetChatPostData(chatBuilderById);
-    doGetLinkPostData(linkBuilderById);
-    doGetPhotoPostData(photoBuilderById);
-    doGetQuotePostData(quoteBuilderById);
-    doGetTextPostData(textBuilderById);
-    doGetVideoPostData(videoBuilderById);
+    doGetTagData(session, builderById);
+    doGetAnswerPostData(session, answerBuilderById);
+    doGetAudioPostData(session, audioBuilderById);
+    doGetChatPostData(session, chatBuilderById);
+    doGetLinkPostData(session, linkBuilderById);
+    doGetPhotoPostData(session, photoBuilderById);
+    doGetQuotePostData(session, quoteBuilderById);
+    doGetTextPostData(session, textBuilderById);
+    doGetVideoPostData(session, videoBuilderById);
 
     // Build result.
     ImmutableList.Builder<Post> resultBuilder = ImmutableList.builder();
@@ -652,64 +1362,111 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     return resultBuilder.build();
   }
 
-  private void doGetLinkPostData(Map<Long, LinkPost.Builder> builderById) throws SQLException {
+  private long[] doGetIds(Session session) throws SQLException {
+    long[] ids = new long[MAX_IDS_PER_QUERY];
+    int count = 0;
+    try (ResultSet resultSet = session.getStatement(POST_IDS_REQUEST_SQL).executeQuery()) {
+      if (!resultSet.next()) {
+        return new long[0];
+      }
+
+      int idColumn = resultSet.findColumn("id");
+      do {
+        if (count == ids.length) {
+          ids = Arrays.copyOf(ids, 2 * count);
+        }
+        ids[count++] = resultSet.getLong(idColumn);
+      } while (resultSet.next());
+    }
+    return Arrays.copyOf(ids, count);
+  }
+
+  private void doGetLinkPostData(Session session, LongObjectHashMap<LinkPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
-    try (ListQuery<Long> linkPostsQuery = new ListQuery<Long>(LINK_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery linkPostsQuery = new ListQuery(session,
+            LINK_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (linkPostsQuery.next()) {
         ResultSet resultSet = linkPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          LinkPost.Builder postBuilder = builderById.get(resultSet.getLong("id"));
-          postBuilder.setDescription(resultSet.getString("description"));
-          postBuilder.setTitle(resultSet.getString("title"));
-          postBuilder.setUrl(resultSet.getString("url"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int descriptionColumn = resultSet.findColumn("description");
+        int titleColumn = resultSet.findColumn("title");
+        int urlColumn = resultSet.findColumn("url");
+        do {
+          LinkPost.Builder postBuilder = builderById.get(resultSet.getLong(idColumn));
+          postBuilder.setDescription(resultSet.getString(descriptionColumn));
+          postBuilder.setTitle(resultSet.getString(titleColumn));
+          postBuilder.setUrl(resultSet.getString(urlColumn));
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetPhotoPostData(Map<Long, PhotoPost.Builder> builderById) throws SQLException {
+  private void doGetPhotoPostData(Session session, LongObjectHashMap<PhotoPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
     // Get photo sizes data.
-    Map<Integer, ImmutableList.Builder<PhotoSize>> photoSizesByPhotoId = new HashMap<>();
+    LongObjectHashMap<ImmutableList.Builder<PhotoSize>> photoSizesByPhotoId =
+            new LongObjectHashMap<>();
 
-    try (ListQuery<Long> photoSizesQuery = new ListQuery<Long>(PHOTO_SIZES_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery photoSizesQuery = new ListQuery(session,
+            PHOTO_SIZES_REQUEST_SQL_TEMPLATE, ids)) {
       while (photoSizesQuery.next()) {
         ResultSet resultSet = photoSizesQuery.getResultSet();
-        while (resultSet.next()) {
-          int photoId = resultSet.getInt("photoId");
-          PhotoSize photoSize = new PhotoSize(resultSet.getInt("width"),
-                  resultSet.getInt("height"), resultSet.getString("url"));
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int photoIdColumn = resultSet.findColumn("photoId");
+        int widthColumn = resultSet.findColumn("width");
+        int heightColumn = resultSet.findColumn("height");
+        int urlColumn = resultSet.findColumn("url");
+        do {
+          int photoId = resultSet.getInt(photoIdColumn);
+          PhotoSize photoSize = new PhotoSize(resultSet.getInt(widthColumn),
+                  resultSet.getInt(heightColumn), resultSet.getString(urlColumn));
 
           if (!photoSizesByPhotoId.containsKey(photoId)) {
             photoSizesByPhotoId.put(photoId, new ImmutableList.Builder<PhotoSize>());
           }
 
           photoSizesByPhotoId.get(photoId).add(photoSize);
-        }
+        } while (resultSet.next());
       }
     }
 
     // Get photos data.
-    Map<Long, ImmutableList.Builder<Photo>> photosByPostId = new HashMap<>();
-    for (long id : builderById.keySet()) {
+    LongObjectHashMap<ImmutableList.Builder<Photo>> photosByPostId = new LongObjectHashMap<>();
+    for (long id : ids) {
       photosByPostId.put(id, new ImmutableList.Builder<Photo>());
     }
 
-    try (ListQuery<Long> photosQuery = new ListQuery<Long>(PHOTOS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery photosQuery = new ListQuery(session,
+            PHOTOS_REQUEST_SQL_TEMPLATE, ids)) {
       while (photosQuery.next()) {
         ResultSet resultSet = photosQuery.getResultSet();
-        while (resultSet.next()) {
-          long postId = resultSet.getLong("postId");
-          int photoId = resultSet.getInt("photoId");
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int postIdColumn = resultSet.findColumn("postId");
+        int photoIdColumn = resultSet.findColumn("photoId");
+        int captionColumn = resultSet.findColumn("caption");
+        do {
+          long postId = resultSet.getLong(postIdColumn);
+          int photoId = resultSet.getInt(photoIdColumn);
 
           List<PhotoSize> photoSizes;
           if (photoSizesByPhotoId.containsKey(photoId)) {
@@ -718,144 +1475,191 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
             photoSizes = ImmutableList.of();
           }
 
-          Photo photo = new Photo(resultSet.getString("caption"), photoSizes);
+          Photo photo = new Photo(resultSet.getString(captionColumn), photoSizes);
           photosByPostId.get(postId).add(photo);
-        }
+        } while (resultSet.next());
       }
     }
 
     // Get photo post data.
-    try (ListQuery<Long> photoPostsQuery = new ListQuery<Long>(PHOTO_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery photoPostsQuery = new ListQuery(session,
+            PHOTO_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (photoPostsQuery.next()) {
         ResultSet resultSet = photoPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          long postId = resultSet.getLong("id");
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int idColumn = resultSet.findColumn("id");
+        int captionColumn = resultSet.findColumn("caption");
+        int heightColumn = resultSet.findColumn("height");
+        int widthColumn = resultSet.findColumn("width");
+        do {
+          long postId = resultSet.getLong(idColumn);
           PhotoPost.Builder builder = builderById.get(postId);
-          builder.setCaption(resultSet.getString("caption"));
+          builder.setCaption(resultSet.getString(captionColumn));
           builder.setPhotos(photosByPostId.get(postId).build());
 
-          int height = resultSet.getInt("height");
+          int height = resultSet.getInt(heightColumn);
           if (!resultSet.wasNull()) {
             builder.setHeight(height);
           }
 
-          int width = resultSet.getInt("width");
+          int width = resultSet.getInt(widthColumn);
           if (!resultSet.wasNull()) {
             builder.setWidth(width);
           }
-        }
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetQuotePostData(Map<Long, QuotePost.Builder> builderById) throws SQLException {
+  private void doGetQuotePostData(Session session, LongObjectHashMap<QuotePost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
-    try (ListQuery<Long> quotePostsQuery = new ListQuery<Long>(QUOTE_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery quotePostsQuery = new ListQuery(session,
+            QUOTE_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (quotePostsQuery.next()) {
         ResultSet resultSet = quotePostsQuery.getResultSet();
-        while (resultSet.next()) {
-          QuotePost.Builder builder = builderById.get(resultSet.getLong("id"));
-          builder.setSource(resultSet.getString("source"));
-          builder.setText(resultSet.getString("text"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int sourceColumn = resultSet.findColumn("source");
+        int textColumn = resultSet.findColumn("text");
+        do {
+          QuotePost.Builder builder = builderById.get(resultSet.getLong(idColumn));
+          builder.setSource(resultSet.getString(sourceColumn));
+          builder.setText(resultSet.getString(textColumn));
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetTagData(Map<Long, Post.Builder> builderById) throws SQLException {
+  private void doGetTagData(Session session, LongObjectHashMap<Post.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
     // Prepare data structures.
-    Map<Long, ImmutableList.Builder<String>> tagListBuilderById = new HashMap<>();
-    for (long id : builderById.keySet()) {
+    LongObjectHashMap<ImmutableList.Builder<String>> tagListBuilderById = new LongObjectHashMap<>();
+    for (long id : ids) {
       tagListBuilderById.put(id, new ImmutableList.Builder<String>());
     }
 
     // Request tags & parse data into structure.
-    try (ListQuery<Long> tagsRequestQuery = new ListQuery<Long>(TAGS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery tagsRequestQuery = new ListQuery(session,
+            TAGS_REQUEST_SQL_TEMPLATE, ids)) {
       while (tagsRequestQuery.next()) {
         ResultSet resultSet = tagsRequestQuery.getResultSet();
 
-        while (resultSet.next()) {
-          long id = resultSet.getLong("postId");
-          String tag = resultSet.getString("tag");
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int postIdColumn = resultSet.findColumn("postId");
+        int tagColumn = resultSet.findColumn("tag");
+        do {
+          long id = resultSet.getLong(postIdColumn);
+          String tag = resultSet.getString(tagColumn);
 
           tagListBuilderById.get(id).add(tag);
-        }
+        } while (resultSet.next());
       }
     }
 
     // Place parsed tags into post builders.
-    for (Map.Entry<Long, Post.Builder> entry : builderById.entrySet()) {
-      long id = entry.getKey();
-      Post.Builder postBuilder = entry.getValue();
-
-      postBuilder.setTags(tagListBuilderById.get(id).build());
+    for (long id : ids) {
+      builderById.get(id).setTags(tagListBuilderById.get(id).build());
     }
   }
 
-  private void doGetTextPostData(Map<Long, TextPost.Builder> builderById) throws SQLException {
+  private void doGetTextPostData(Session session, LongObjectHashMap<TextPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
-    try (ListQuery<Long> textPostsQuery = new ListQuery<Long>(TEXT_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery textPostsQuery = new ListQuery(session,
+            TEXT_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (textPostsQuery.next()) {
         ResultSet resultSet = textPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          TextPost.Builder builder = builderById.get(resultSet.getLong("id"));
-          builder.setTitle(resultSet.getString("title"));
-          builder.setBody(resultSet.getString("body"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int titleColumn = resultSet.findColumn("title");
+        int bodyColumn = resultSet.findColumn("body");
+        do {
+          TextPost.Builder builder = builderById.get(resultSet.getLong(idColumn));
+          builder.setTitle(resultSet.getString(titleColumn));
+          builder.setBody(resultSet.getString(bodyColumn));
+        } while (resultSet.next());
       }
     }
   }
 
-  private void doGetVideoPostData(Map<Long, VideoPost.Builder> builderById) throws SQLException {
+  private void doGetVideoPostData(Session session, LongObjectHashMap<VideoPost.Builder> builderById)
+          throws SQLException {
     if (builderById.isEmpty()) {
       return;
     }
+    long[] ids = builderById.keys();
 
     // Get basic video post information.
-    try (ListQuery<Long> videoPostsQuery = new ListQuery<Long>(VIDEO_POSTS_REQUEST_SQL_TEMPLATE,
-            builderById.keySet())) {
+    try (ListQuery videoPostsQuery = new ListQuery(session,
+            VIDEO_POSTS_REQUEST_SQL_TEMPLATE, ids)) {
       while (videoPostsQuery.next()) {
         ResultSet resultSet = videoPostsQuery.getResultSet();
-        while (resultSet.next()) {
-          VideoPost.Builder postBuilder = builderById.get(resultSet.getLong("id"));
-          postBuilder.setCaption(resultSet.getString("caption"));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int idColumn = resultSet.findColumn("id");
+        int captionColumn = resultSet.findColumn("caption");
+        do {
+          VideoPost.Builder postBuilder = builderById.get(resultSet.getLong(idColumn));
+          postBuilder.setCaption(resultSet.getString(captionColumn));
+        } while (resultSet.next());
       }
     }
 
     // Get videos.
-    Map<Long, ImmutableList.Builder<Video>> videoBuilderById = new HashMap<>();
-    for (long id : builderById.keySet()) {
+    LongObjectHashMap<ImmutableList.Builder<Video>> videoBuilderById = new LongObjectHashMap<>();
+    for (long id : ids) {
       videoBuilderById.put(id, new ImmutableList.Builder<Video>());
     }
 
-    try (ListQuery<Long> videoPostVideosQuery = new ListQuery<Long>(
-            VIDEO_POST_VIDEOS_REQUEST_SQL_TEMPLATE, builderById.keySet())) {
+    try (ListQuery videoPostVideosQuery = new ListQuery(session,
+            VIDEO_POST_VIDEOS_REQUEST_SQL_TEMPLATE, ids)) {
       while (videoPostVideosQuery.next()) {
         ResultSet resultSet = videoPostVideosQuery.getResultSet();
-        while (resultSet.next()) {
-          ImmutableList.Builder<Video> videoBuilder = videoBuilderById.get(resultSet
-                  .getLong("postId"));
-          videoBuilder.add(new Video(resultSet.getInt("width"), resultSet.getString("embedCode")));
+        if (!resultSet.next()) {
+          continue;
         }
+
+        int postIdColumn = resultSet.findColumn("postId");
+        int widthColumn = resultSet.findColumn("width");
+        int embedCodeColumn = resultSet.findColumn("embedCode");
+        do {
+          ImmutableList.Builder<Video> videoBuilder = videoBuilderById.get(resultSet
+                  .getLong(postIdColumn));
+          videoBuilder.add(new Video(resultSet.getInt(widthColumn), resultSet
+                  .getString(embedCodeColumn)));
+        } while (resultSet.next());
       }
     }
 
-    for (long id : builderById.keySet()) {
+    for (long id : ids) {
       builderById.get(id).setPlayers(videoBuilderById.get(id).build());
     }
   }
@@ -866,15 +1670,15 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
 
     // Categorize post by type & update basic post information.
-    Map<Long, Post> postById = new HashMap<>();
-    Map<Long, AnswerPost> answerPostById = new HashMap<>();
-    Map<Long, AudioPost> audioPostById = new HashMap<>();
-    Map<Long, ChatPost> chatPostById = new HashMap<>();
-    Map<Long, LinkPost> linkPostById = new HashMap<>();
-    Map<Long, PhotoPost> photoPostById = new HashMap<>();
-    Map<Long, QuotePost> quotePostById = new HashMap<>();
-    Map<Long, TextPost> textPostById = new HashMap<>();
-    Map<Long, VideoPost> videoPostById = new HashMap<>();
+    LongObjectHashMap<Post> postById = new LongObjectHashMap<>();
+    LongObjectHashMap<AnswerPost> answerPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<AudioPost> audioPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<ChatPost> chatPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<LinkPost> linkPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<PhotoPost> photoPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<QuotePost> quotePostById = new LongObjectHashMap<>();
+    LongObjectHashMap<TextPost> textPostById = new LongObjectHashMap<>();
+    LongObjectHashMap<VideoPost> videoPostById = new LongObjectHashMap<>();
 
     for (Post post : posts) {
       postById.put(post.getId(), post);
@@ -911,9 +1715,12 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
 
     // Delete existing post information.
-    doDelete(postById.keySet());
+    long[] ids = postById.keys();
+    CountDeltas countDeltas = new CountDeltas();
+    doDelete(ids, countDeltas);
 
     // Update basic post information.
+    PreparedStatement postInsertStatement = writer.getStatement(POST_INSERT_SQL);
     for (Post post : posts) {
       postInsertStatement.setLong(1, post.getId());
       postInsertStatement.setString(2, post.getBlogName());
@@ -935,13 +1742,20 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     doPutQuotePostData(quotePostById);
     doPutTextPostData(textPostById);
     doPutVideoPostData(videoPostById);
+    doPutSearchText(postById.values());
+
+    // Update counters.
+    doCollectCounts(ids, 1, countDeltas);
+    doApplyCountDeltas(countDeltas);
   }
 
-  private void doPutAnswerPostData(Map<Long, AnswerPost> postById) throws SQLException {
+  private void doPutAnswerPostData(LongObjectHashMap<AnswerPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement answerPostInsertStatement = writer.getStatement(ANSWER_POST_INSERT_SQL);
+
     for (AnswerPost post : postById.values()) {
       answerPostInsertStatement.setLong(1, post.getId());
       answerPostInsertStatement.setString(2, post.getAskingName());
@@ -953,11 +1767,13 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     answerPostInsertStatement.executeBatch();
   }
 
-  private void doPutAudioPostData(Map<Long, AudioPost> postById) throws SQLException {
+  private void doPutAudioPostData(LongObjectHashMap<AudioPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement audioPostInsertStatement = writer.getStatement(AUDIO_POST_INSERT_SQL);
+
     for (AudioPost post : postById.values()) {
       audioPostInsertStatement.setLong(1, post.getId());
       audioPostInsertStatement.setString(2, post.getAlbum());
@@ -974,16 +1790,20 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     audioPostInsertStatement.executeBatch();
   }
 
-  private void doPutChatPostData(Map<Long, ChatPost> postById) throws SQLException {
+  private void doPutChatPostData(LongObjectHashMap<ChatPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
-    // Insert dialogue.
+    PreparedStatement dialogueInsertStatement = writer.getStatement(DIALOGUE_INSERT_SQL);
+    PreparedStatement chatPostInsertStatement = writer.getStatement(CHAT_POST_INSERT_SQL);
+    PreparedStatement chatPostDialogueInsertStatement = writer
+            .getStatement(CHAT_POST_DIALOGUE_INSERT_SQL);
+
+    // Insert dialogue, batching the chatPostDialogue rows that link it to its post.
     int totalDialogue = 0;
-    Map<Long, List<Integer>> dialogueIdsByPostId = new HashMap<>();
     for (ChatPost post : postById.values()) {
-      List<Integer> dialogueIds = new ArrayList<Integer>();
+      int index = 0;
       for (Dialogue dialogue : post.getDialogue()) {
         totalDialogue++;
 
@@ -993,11 +1813,12 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
         dialogueInsertStatement.execute();
 
         try (ResultSet resultSet = dialogueInsertStatement.getGeneratedKeys()) {
-          int id = resultSet.getInt(1);
-          dialogueIds.add(id);
+          chatPostDialogueInsertStatement.setLong(1, post.getId());
+          chatPostDialogueInsertStatement.setInt(2, resultSet.getInt(1));
+          chatPostDialogueInsertStatement.setInt(3, index++);
+          chatPostDialogueInsertStatement.addBatch();
         }
       }
-      dialogueIdsByPostId.put(post.getId(), dialogueIds);
     }
 
     // Insert chatPosts.
@@ -1013,26 +1834,16 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     if (totalDialogue == 0) {
       return;
     }
-
-    for (long postId : postById.keySet()) {
-      List<Integer> dialogueIds = dialogueIdsByPostId.get(postId);
-
-      int index = 0;
-      for (int dialogueId : dialogueIds) {
-        chatPostDialogueInsertStatement.setLong(1, postId);
-        chatPostDialogueInsertStatement.setInt(2, dialogueId);
-        chatPostDialogueInsertStatement.setInt(3, index++);
-        chatPostDialogueInsertStatement.addBatch();
-      }
-    }
     chatPostDialogueInsertStatement.executeBatch();
   }
 
-  private void doPutLinkPostData(Map<Long, LinkPost> postById) throws SQLException {
+  private void doPutLinkPostData(LongObjectHashMap<LinkPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement linkPostInsertStatement = writer.getStatement(LINK_POST_INSERT_SQL);
+
     for (LinkPost post : postById.values()) {
       linkPostInsertStatement.setLong(1, post.getId());
       linkPostInsertStatement.setString(2, post.getDescription());
@@ -1043,11 +1854,19 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     linkPostInsertStatement.executeBatch();
   }
 
-  private void doPutPhotoPostData(Map<Long, PhotoPost> postById) throws SQLException {
+  private void doPutPhotoPostData(LongObjectHashMap<PhotoPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement photoPostInsertStatement = writer.getStatement(PHOTO_POST_INSERT_SQL);
+    PreparedStatement photoInsertStatement = writer.getStatement(PHOTO_INSERT_SQL);
+    PreparedStatement photoPostPhotoInsertStatement = writer
+            .getStatement(PHOTO_POST_PHOTO_INSERT_SQL);
+    PreparedStatement photoSizeInsertStatement = writer.getStatement(PHOTO_SIZE_INSERT_SQL);
+    PreparedStatement photoPhotoSizeInsertStatement = writer
+            .getStatement(PHOTO_PHOTO_SIZE_INSERT_SQL);
+
     for (PhotoPost post : postById.values()) {
       photoPostInsertStatement.setLong(1, post.getId());
       photoPostInsertStatement.setString(2, post.getCaption());
@@ -1099,11 +1918,13 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     photoPhotoSizeInsertStatement.executeBatch();
   }
 
-  private void doPutQuotePostData(Map<Long, QuotePost> postById) throws SQLException {
+  private void doPutQuotePostData(LongObjectHashMap<QuotePost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement quotePostInsertStatement = writer.getStatement(QUOTE_POST_INSERT_SQL);
+
     for (QuotePost post : postById.values()) {
       quotePostInsertStatement.setLong(1, post.getId());
       quotePostInsertStatement.setString(2, post.getSource());
@@ -1113,7 +1934,21 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     quotePostInsertStatement.executeBatch();
   }
 
-  private void doPutTagData(Map<Long, Post> postById) throws SQLException {
+  private void doPutSearchText(Collection<Post> posts) throws SQLException {
+    if (posts.isEmpty()) {
+      return;
+    }
+
+    PreparedStatement postTextInsertStatement = writer.getStatement(POST_TEXT_INSERT_SQL);
+    for (Post post : posts) {
+      postTextInsertStatement.setLong(1, post.getId());
+      postTextInsertStatement.setString(2, getSearchText(post));
+      postTextInsertStatement.addBatch();
+    }
+    postTextInsertStatement.executeBatch();
+  }
+
+  private void doPutTagData(LongObjectHashMap<Post> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
@@ -1130,16 +1965,25 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
       return;
     }
 
-    try (ListQuery<String> tagRequestByNamesQuery = new ListQuery<String>(
+    PreparedStatement tagInsertStatement = writer.getStatement(TAG_INSERT_SQL);
+    PreparedStatement postTagInsertStatement = writer.getStatement(POST_TAG_INSERT_SQL);
+
+    try (ListQuery tagRequestByNamesQuery = new ListQuery(writer,
             TAG_REQUEST_BY_NAME_SQL_TEMPLATE, idByTag.keySet())) {
       while (tagRequestByNamesQuery.next()) {
         ResultSet resultSet = tagRequestByNamesQuery.getResultSet();
-        while (resultSet.next()) {
-          int id = resultSet.getInt("id");
-          String tag = resultSet.getString("tag");
+        if (!resultSet.next()) {
+          continue;
+        }
+
+        int idColumn = resultSet.findColumn("id");
+        int tagColumn = resultSet.findColumn("tag");
+        do {
+          int id = resultSet.getInt(idColumn);
+          String tag = resultSet.getString(tagColumn);
 
           idByTag.put(tag, id);
-        }
+        } while (resultSet.next());
       }
     }
 
@@ -1171,11 +2015,13 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     postTagInsertStatement.executeBatch();
   }
 
-  private void doPutTextPostData(Map<Long, TextPost> postById) throws SQLException {
+  private void doPutTextPostData(LongObjectHashMap<TextPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement textPostInsertStatement = writer.getStatement(TEXT_POST_INSERT_SQL);
+
     for (TextPost post : postById.values()) {
       textPostInsertStatement.setLong(1, post.getId());
       textPostInsertStatement.setString(2, post.getTitle());
@@ -1185,11 +2031,16 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     textPostInsertStatement.executeBatch();
   }
 
-  private void doPutVideoPostData(Map<Long, VideoPost> postById) throws SQLException {
+  private void doPutVideoPostData(LongObjectHashMap<VideoPost> postById) throws SQLException {
     if (postById.isEmpty()) {
       return;
     }
 
+    PreparedStatement videoPostInsertStatement = writer.getStatement(VIDEO_POST_INSERT_SQL);
+    PreparedStatement videoInsertStatement = writer.getStatement(VIDEO_INSERT_SQL);
+    PreparedStatement videoPostVideoInsertStatement = writer
+            .getStatement(VIDEO_POST_VIDEO_INSERT_SQL);
+
     // Put basic video post data.
     for (VideoPost post : postById.values()) {
       videoPostInsertStatement.setLong(1, post.getId());
@@ -1198,12 +2049,10 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
     videoPostInsertStatement.executeBatch();
 
-    // Put videos.
+    // Put videos, batching the videoPostVideos rows that link them to their posts.
     int totalVideos = 0;
-    Map<Long, List<Integer>> videoIdsByPostId = new HashMap<>();
     for (VideoPost post : postById.values()) {
-      List<Integer> videoIds = new ArrayList<>();
-
+      int index = 0;
       for (Video video : post.getPlayers()) {
         totalVideos++;
         videoInsertStatement.setString(1, video.getEmbedCode());
@@ -1211,150 +2060,477 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
         videoInsertStatement.execute();
 
         try (ResultSet resultSet = videoInsertStatement.getGeneratedKeys()) {
-          int id = resultSet.getInt(1);
-          videoIds.add(id);
+          videoPostVideoInsertStatement.setLong(1, post.getId());
+          videoPostVideoInsertStatement.setInt(2, resultSet.getInt(1));
+          videoPostVideoInsertStatement.setInt(3, index++);
+          videoPostVideoInsertStatement.addBatch();
         }
       }
-
-      videoIdsByPostId.put(post.getId(), videoIds);
     }
 
     // Put videoPostVideos.
     if (totalVideos == 0) {
       return;
     }
+    videoPostVideoInsertStatement.executeBatch();
+  }
 
-    for (Map.Entry<Long, List<Integer>> entry : videoIdsByPostId.entrySet()) {
-      long postId = entry.getKey();
-      List<Integer> videoIds = entry.getValue();
+  private void doRebuildCalendar(Statement statement) throws SQLException {
+    statement.execute("DELETE FROM postCalendar;");
+    statement
+            .execute("INSERT INTO postCalendar (blogName, year, month, day, postCount) SELECT blogName, CAST(strftime('%Y', postedTimestamp / 1000, 'unixepoch') AS INTEGER) AS year, CAST(strftime('%m', postedTimestamp / 1000, 'unixepoch') AS INTEGER) AS month, CAST(strftime('%d', postedTimestamp / 1000, 'unixepoch') AS INTEGER) AS day, COUNT(*) FROM posts GROUP BY blogName, year, month, day;");
+  }
 
-      int index = 0;
-      for (int videoId : videoIds) {
-        videoPostVideoInsertStatement.setLong(1, postId);
-        videoPostVideoInsertStatement.setInt(2, videoId);
-        videoPostVideoInsertStatement.setInt(3, index++);
-        videoPostVideoInsertStatement.addBatch();
+  private void doRebuildSearchIndex() throws SQLException {
+    try (Statement statement = writer.connection.createStatement()) {
+      statement.execute("DELETE FROM postText;");
+    }
+
+    // Index in chunks so that the whole archive is never in memory at once.
+    long[] ids = doGetIds(writer);
+    for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+      doPutSearchText(doGetAll(writer,
+              Arrays.copyOfRange(ids, start, Math.min(ids.length, start + MAX_IDS_PER_QUERY))));
+    }
+  }
+
+  private void doRebuildCounts(Statement statement) throws SQLException {
+    statement.execute("DELETE FROM blogCounts;");
+    statement
+            .execute("INSERT INTO blogCounts (blogName, postCount) SELECT blogName, COUNT(*) FROM posts GROUP BY blogName;");
+    statement.execute("DELETE FROM postTypeCounts;");
+    statement
+            .execute("INSERT INTO postTypeCounts (postTypeId, postCount) SELECT postTypeId, COUNT(*) FROM posts GROUP BY postTypeId;");
+    statement.execute("DELETE FROM tagCounts;");
+    statement
+            .execute("INSERT INTO tagCounts (tagId, postCount) SELECT tagId, COUNT(*) FROM postTags GROUP BY tagId;");
+  }
+
+  private List<Long> doSearch(Session session, String query, int offset, int limit)
+          throws SQLException {
+    // Quote each term so that user input can never be parsed as FTS query syntax.
+    StringBuilder matchBuilder = new StringBuilder();
+    Matcher matcher = SEARCH_TERM_PATTERN.matcher(query);
+    while (matcher.find()) {
+      if (matchBuilder.length() > 0) {
+        matchBuilder.append(' ');
       }
+      matchBuilder.append('"').append(matcher.group()).append('"');
     }
-    videoPostVideoInsertStatement.executeBatch();
+
+    if (matchBuilder.length() == 0 || limit == 0) {
+      return ImmutableList.of();
+    }
+
+    if (!session.searchRankRegistered) {
+      Function.create(session.connection, "searchRank", new SearchRankFunction());
+      session.searchRankRegistered = true;
+    }
+
+    PreparedStatement postSearchRequestStatement = session.getStatement(POST_SEARCH_REQUEST_SQL);
+    postSearchRequestStatement.setString(1, matchBuilder.toString());
+    postSearchRequestStatement.setInt(2, limit);
+    postSearchRequestStatement.setInt(3, offset);
+
+    ImmutableList.Builder<Long> resultBuilder = ImmutableList.builder();
+    try (ResultSet resultSet = postSearchRequestStatement.executeQuery()) {
+      while (resultSet.next()) {
+        resultBuilder.add(resultSet.getLong("docid"));
+      }
+    }
+    return resultBuilder.build();
   }
 
   @Override
   public Post get(final long id) throws SQLException {
-    return new Transaction<Post, SQLException>() {
+    return new ReadTransaction<Post>() {
 
       @Override
-      Post runTransaction() throws SQLException {
-        return doGet(id);
+      Post runTransaction(Session session) throws SQLException {
+        return doGet(session, id);
       }
     }.execute();
   }
 
   @Override
   public List<Post> getAll() throws SQLException {
-    return new Transaction<List<Post>, SQLException>() {
+    return new ReadTransaction<List<Post>>() {
 
       @Override
-      List<Post> runTransaction() throws SQLException {
-        return doGetAll();
+      List<Post> runTransaction(Session session) throws SQLException {
+        return doGetAll(session);
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the posts with the given IDs, in no particular order. IDs that do not match a post are
+   * ignored. This is considerably faster than getting each post individually.
+   * 
+   * @param ids
+   *          the IDs of the posts to retrieve
+   * @return the posts that were found
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public List<Post> getAll(final Collection<Long> ids) throws SQLException {
+    return new ReadTransaction<List<Post>>() {
+
+      @Override
+      List<Post> runTransaction(Session session) throws SQLException {
+        return doGetAll(session, Longs.toArray(ids));
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts from the given blog on each day of the given month, in chronological
+   * order. Days without posts are omitted. Days are in UTC.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @param month
+   *          the month to get daily counts for
+   * @return an ordered map from day to the number of posts on that day
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Map<LocalDate, Long> getDailyPostCounts(final String blogName, final YearMonth month)
+          throws SQLException {
+    return new ReadTransaction<Map<LocalDate, Long>>() {
+
+      @Override
+      Map<LocalDate, Long> runTransaction(Session session) throws SQLException {
+        PreparedStatement dayCountsStatement = session
+                .getStatement(CALENDAR_DAY_COUNTS_REQUEST_SQL);
+        dayCountsStatement.setString(1, blogName);
+        dayCountsStatement.setInt(2, month.getYear());
+        dayCountsStatement.setInt(3, month.getMonthOfYear());
+
+        ImmutableMap.Builder<LocalDate, Long> resultBuilder = ImmutableMap.builder();
+        try (ResultSet resultSet = dayCountsStatement.executeQuery()) {
+          while (resultSet.next()) {
+            resultBuilder.put(month.toLocalDate(resultSet.getInt("day")),
+                    resultSet.getLong("postCount"));
+          }
+        }
+        return resultBuilder.build();
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the earliest post from the given blog on the given day (in UTC). Returns null if the blog
+   * has no posts on that day.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @param day
+   *          the day to get the first post of
+   * @return the post, or null
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Post getFirstPost(final String blogName, final LocalDate day) throws SQLException {
+    return new ReadTransaction<Post>() {
+
+      @Override
+      Post runTransaction(Session session) throws SQLException {
+        return doGetFirstPostInRange(session, blogName, day.toDateTimeAtStartOfDay(DateTimeZone.UTC)
+                .toInstant(), day.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC).toInstant());
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the earliest post from the given blog in the given month (in UTC). Returns null if the
+   * blog has no posts in that month.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @param month
+   *          the month to get the first post of
+   * @return the post, or null
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Post getFirstPost(final String blogName, final YearMonth month) throws SQLException {
+    return new ReadTransaction<Post>() {
+
+      @Override
+      Post runTransaction(Session session) throws SQLException {
+        return doGetFirstPostInRange(session, blogName, month.toLocalDate(1)
+                .toDateTimeAtStartOfDay(DateTimeZone.UTC).toInstant(), month.plusMonths(1)
+                .toLocalDate(1).toDateTimeAtStartOfDay(DateTimeZone.UTC).toInstant());
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the IDs of all posts, in no particular order. Together with {@link #getAll(Collection)},
+   * this allows the database to be read in batches rather than all at once.
+   * 
+   * @return the IDs of all posts
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public List<Long> getIds() throws SQLException {
+    return new ReadTransaction<List<Long>>() {
+
+      @Override
+      List<Long> runTransaction(Session session) throws SQLException {
+        return Collections.unmodifiableList(Longs.asList(doGetIds(session)));
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the latest post from the given blog, breaking ties in posted time by the higher ID.
+   * Returns null if the blog has no posts.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @return the post, or null
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Post getLatestPost(final String blogName) throws SQLException {
+    return new ReadTransaction<Post>() {
+
+      @Override
+      Post runTransaction(Session session) throws SQLException {
+        PreparedStatement latestPostRequestStatement = session
+                .getStatement(LATEST_POST_REQUEST_SQL);
+        latestPostRequestStatement.setString(1, blogName);
+        try (ResultSet resultSet = latestPostRequestStatement.executeQuery()) {
+          List<Post> postList = doGetFromResultSet(session, resultSet);
+
+          if (postList.isEmpty()) {
+            return null;
+          }
+
+          return postList.get(0);
+        }
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts from the given blog in each month that has posts, in chronological
+   * order. Months are in UTC.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @return an ordered map from month to the number of posts in that month
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Map<YearMonth, Long> getMonthlyPostCounts(final String blogName) throws SQLException {
+    return new ReadTransaction<Map<YearMonth, Long>>() {
+
+      @Override
+      Map<YearMonth, Long> runTransaction(Session session) throws SQLException {
+        PreparedStatement monthCountsStatement = session
+                .getStatement(CALENDAR_MONTH_COUNTS_REQUEST_SQL);
+        monthCountsStatement.setString(1, blogName);
+
+        ImmutableMap.Builder<YearMonth, Long> resultBuilder = ImmutableMap.builder();
+        try (ResultSet resultSet = monthCountsStatement.executeQuery()) {
+          while (resultSet.next()) {
+            resultBuilder.put(new YearMonth(resultSet.getInt("year"), resultSet.getInt("month")),
+                    resultSet.getLong("postCount"));
+          }
+        }
+        return resultBuilder.build();
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts from the given blog. This is a single lookup in a counter table that
+   * is maintained as posts are put and deleted.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @return the number of posts from the blog
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public long getPostCountForBlog(final String blogName) throws SQLException {
+    return new ReadTransaction<Long>() {
+
+      @Override
+      Long runTransaction(Session session) throws SQLException {
+        return doGetCount(session, BLOG_COUNT_REQUEST_SQL, blogName);
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts with the given tag. This is a single lookup in a counter table that is
+   * maintained as posts are put and deleted.
+   * 
+   * @param tag
+   *          the tag
+   * @return the number of posts with the tag
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public long getPostCountForTag(final String tag) throws SQLException {
+    return new ReadTransaction<Long>() {
+
+      @Override
+      Long runTransaction(Session session) throws SQLException {
+        return doGetCount(session, TAG_COUNT_REQUEST_SQL, tag);
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts of the given type. This is a single lookup in a counter table that is
+   * maintained as posts are put and deleted.
+   * 
+   * @param type
+   *          the post type
+   * @return the number of posts of the type
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public long getPostCountForType(final PostType type) throws SQLException {
+    return new ReadTransaction<Long>() {
+
+      @Override
+      Long runTransaction(Session session) throws SQLException {
+        return doGetCount(session, POST_TYPE_COUNT_REQUEST_SQL, type.toString());
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the checkpoint of a blog's unfinished sync, or null if there is none.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @return the checkpoint, or null
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public SyncCheckpoint getSyncCheckpoint(final String blogName) throws SQLException {
+    return new ReadTransaction<SyncCheckpoint>() {
+
+      @Override
+      SyncCheckpoint runTransaction(Session session) throws SQLException {
+        PreparedStatement syncCheckpointRequestStatement = session
+                .getStatement(SYNC_CHECKPOINT_REQUEST_SQL);
+        syncCheckpointRequestStatement.setString(1, blogName);
+        try (ResultSet resultSet = syncCheckpointRequestStatement.executeQuery()) {
+          if (!resultSet.next()) {
+            return null;
+          }
+
+          long cutoffTimestamp = resultSet.getLong("cutoffTimestamp");
+          Instant cutoff = resultSet.wasNull() ? null : new Instant(cutoffTimestamp);
+          return new SyncCheckpoint(blogName, resultSet.getString("runId"),
+                  resultSet.getLong("lastPostId"), resultSet.getInt("postOffset"), cutoff);
+        }
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the most-used tags, most-used first. Ties are broken by tag name.
+   * 
+   * @param limit
+   *          the maximum number of tags to return
+   * @return an ordered map from tag to the number of posts with that tag
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Map<String, Long> getTopTags(final int limit) throws SQLException {
+    Preconditions.checkArgument(limit >= 0);
+
+    return new ReadTransaction<Map<String, Long>>() {
+
+      @Override
+      Map<String, Long> runTransaction(Session session) throws SQLException {
+        PreparedStatement topTagsRequestStatement = session.getStatement(TOP_TAGS_REQUEST_SQL);
+        topTagsRequestStatement.setInt(1, limit);
+
+        ImmutableMap.Builder<String, Long> resultBuilder = ImmutableMap.builder();
+        try (ResultSet resultSet = topTagsRequestStatement.executeQuery()) {
+          while (resultSet.next()) {
+            resultBuilder.put(resultSet.getString("tag"), resultSet.getLong("postCount"));
+          }
+        }
+        return resultBuilder.build();
+      }
+    }.execute();
+  }
+
+  /**
+   * Gets the number of posts from the given blog in each year that has posts, in chronological
+   * order. Years are in UTC.
+   * 
+   * @param blogName
+   *          the name of the blog
+   * @return an ordered map from year to the number of posts in that year
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Map<Integer, Long> getYearlyPostCounts(final String blogName) throws SQLException {
+    return new ReadTransaction<Map<Integer, Long>>() {
+
+      @Override
+      Map<Integer, Long> runTransaction(Session session) throws SQLException {
+        PreparedStatement yearCountsStatement = session
+                .getStatement(CALENDAR_YEAR_COUNTS_REQUEST_SQL);
+        yearCountsStatement.setString(1, blogName);
+
+        ImmutableMap.Builder<Integer, Long> resultBuilder = ImmutableMap.builder();
+        try (ResultSet resultSet = yearCountsStatement.executeQuery()) {
+          while (resultSet.next()) {
+            resultBuilder.put(resultSet.getInt("year"), resultSet.getLong("postCount"));
+          }
+        }
+        return resultBuilder.build();
       }
     }.execute();
   }
 
   private void initConnection() throws SQLException {
-    connection.setAutoCommit(false);
+    writer.connection.setAutoCommit(false);
 
     new Transaction<Void, SQLException>() {
 
       @Override
       Void runTransaction() throws SQLException {
-        try (Statement statement = connection.createStatement()) {
+        try (Statement statement = writer.connection.createStatement()) {
           statement.execute("PRAGMA foreign_keys = ON;");
 
-          // Main post tables.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS posts(id INTEGER PRIMARY KEY, blogName TEXT NOT NULL, postUrl TEXT NOT NULL, postedTimestamp INTEGER NOT NULL, retrievedTimestamp INTEGER NOT NULL, postTypeId INTEGER NOT NULL REFERENCES postTypes(id));");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS textPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, body TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS photoPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL, width INTEGER, height INTEGER);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS quotePosts(id INTEGER PRIMARY KEY REFERENCES posts(id), text TEXT NOT NULL, source TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS linkPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, url TEXT NOT NULL, description TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS chatPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, body TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS audioPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL, player TEXT NOT NULL, plays INTEGER NOT NULL, albumArt TEXT NOT NULL, artist TEXT NOT NULL, album TEXT NOT NULL, trackName TEXT NOT NULL, trackNumber INTEGER NOT NULL, year INTEGER NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS videoPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS answerPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), askingName TEXT NOT NULL, askingUrl TEXT NOT NULL, question TEXT NOT NULL, answer TEXT NOT NULL);");
-
-          // Tags tables.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS tags(id INTEGER PRIMARY KEY AUTOINCREMENT, tag TEXT UNIQUE NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS postTags(postId INTEGER NOT NULL REFERENCES posts(id), tagId INTEGER NOT NULL REFERENCES tags(id), tagIndex INTEGER NOT NULL, PRIMARY KEY(postId, tagId));");
-
-          // Photo post-specific tables.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS photos(id INTEGER PRIMARY KEY AUTOINCREMENT, caption TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS photoSizes(id INTEGER PRIMARY KEY AUTOINCREMENT, width INTEGER NOT NULL, height INTEGER NOT NULL, url TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS photoPostPhotos(postId INTEGER NOT NULL REFERENCES photoPosts(id), photoId INTEGER NOT NULL REFERENCES photos(id), photoIndex INTEGER NOT NULL, PRIMARY KEY(postId, photoId));");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS photoPhotoSizes(photoId INTEGER NOT NULL REFERENCES photos(id), photoSizeId INTEGER NOT NULL REFERENCES photoSizes(id), photoSizeIndex INTEGER NOT NULL, PRIMARY KEY(photoId, photoSizeId));");
-
-          // Chat post-specific tables.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS dialogue(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, label TEXT NOT NULL, phrase TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS chatPostDialogue(postId INTEGER NOT NULL REFERENCES chatPosts(id), dialogueId INTEGER NOT NULL REFERENCES dialogue(id), dialogueIndex INTEGER NOT NULL, PRIMARY KEY(postId, dialogueId));");
-
-          // Video post-specific tables.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS videos(id INTEGER PRIMARY KEY AUTOINCREMENT, width TEXT NOT NULL, embedCode TEXT NOT NULL);");
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS videoPostVideos(postId INTEGER NOT NULL REFERENCES videoPosts(id), videoId INTEGER NOT NULL REFERENCES videos(id), videoIndex INTEGER NOT NULL, PRIMARY KEY(postId, videoId));");
-
-          // Types table.
-          statement
-                  .execute("CREATE TABLE IF NOT EXISTS postTypes(id INTEGER PRIMARY KEY AUTOINCREMENT, type STRING UNIQUE NOT NULL);");
-          try (PreparedStatement typeInsertStatement = connection
-                  .prepareStatement("INSERT OR IGNORE INTO postTypes (type) VALUES (?)")) {
-            for (PostType type : PostType.values()) {
-              typeInsertStatement.setString(1, type.toString());
-              typeInsertStatement.addBatch();
-            }
-            typeInsertStatement.executeBatch();
+          int schemaVersion;
+          try (ResultSet resultSet = statement.executeQuery("PRAGMA user_version;")) {
+            schemaVersion = resultSet.getInt(1);
           }
 
-          // Indexes.
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS postsPostTypeIdIndex ON posts(postTypeId);");
-          statement.execute("CREATE INDEX IF NOT EXISTS postTagsPostIdIndex ON postTags(postId);");
-          statement.execute("CREATE INDEX IF NOT EXISTS postTagsTagIdIndex ON postTags(tagId);");
-          statement.execute("CREATE INDEX IF NOT EXISTS tagsTagIndex ON tags(tag);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS photoPostPhotosPostIdIndex ON photoPostPhotos(postId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS photoPostPhotosPhotoIdIndex ON photoPostPhotos(photoId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS photoPhotoSizesPhotoIdIndex ON photoPhotoSizes(photoId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS photoPhotoSizesPhotoSizeIdIndex ON photoPhotoSizes(photoSizeId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS chatPostDialoguePostIdIndex ON chatPostDialogue(postId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS chatPostDialogueDialogueIdIndex ON chatPostDialogue(dialogueId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS videoPostVideosPostIdIndex ON videoPostVideos(postId);");
-          statement
-                  .execute("CREATE INDEX IF NOT EXISTS videoPostVideosVideoIdIndex ON videoPostVideos(videoId);");
-          statement
-                  .execute("CREATE UNIQUE INDEX IF NOT EXISTS postTypesTypeIndex ON postTypes(type);");
+          if (schemaVersion == SCHEMA_VERSION) {
+            return null;
+          }
+          if (schemaVersion > SCHEMA_VERSION) {
+            throw new SQLException(String.format(
+                    "Database schema version %d is newer than the supported version %d.",
+                    schemaVersion, SCHEMA_VERSION));
+          }
+
+          boolean searchIndexStale = false;
+          while (schemaVersion < SCHEMA_VERSION) {
+            searchIndexStale |= migrateSchema(statement, schemaVersion++);
+          }
+          statement.execute(String.format("PRAGMA user_version = %d;", SCHEMA_VERSION));
+
+          // The search index is built by reading posts back, so it waits for the current schema.
+          if (searchIndexStale) {
+            doRebuildSearchIndex();
+          }
 
           return null;
         }
@@ -1362,6 +2538,145 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }.execute();
   }
 
+  /**
+   * Migrates the schema from the given version to the next version. Version 0 is either an empty
+   * database or one created before the schema was versioned, so its migration must tolerate
+   * existing tables.
+   * 
+   * @param statement
+   *          a statement to run the migration with; the caller is responsible for the transaction
+   * @param fromVersion
+   *          the schema version to migrate from
+   * @return whether the full-text search index must be rebuilt once the schema is current
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  private boolean migrateSchema(Statement statement, int fromVersion) throws SQLException {
+    switch (fromVersion) {
+    case 0:
+      // Main post tables.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS posts(id INTEGER PRIMARY KEY, blogName TEXT NOT NULL, postUrl TEXT NOT NULL, postedTimestamp INTEGER NOT NULL, retrievedTimestamp INTEGER NOT NULL, postTypeId INTEGER NOT NULL REFERENCES postTypes(id));");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS textPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, body TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS photoPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL, width INTEGER, height INTEGER);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS quotePosts(id INTEGER PRIMARY KEY REFERENCES posts(id), text TEXT NOT NULL, source TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS linkPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, url TEXT NOT NULL, description TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS chatPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), title TEXT NOT NULL, body TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS audioPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL, player TEXT NOT NULL, plays INTEGER NOT NULL, albumArt TEXT NOT NULL, artist TEXT NOT NULL, album TEXT NOT NULL, trackName TEXT NOT NULL, trackNumber INTEGER NOT NULL, year INTEGER NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS videoPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), caption TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS answerPosts(id INTEGER PRIMARY KEY REFERENCES posts(id), askingName TEXT NOT NULL, askingUrl TEXT NOT NULL, question TEXT NOT NULL, answer TEXT NOT NULL);");
+
+      // Tags tables.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS tags(id INTEGER PRIMARY KEY AUTOINCREMENT, tag TEXT UNIQUE NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS postTags(postId INTEGER NOT NULL REFERENCES posts(id), tagId INTEGER NOT NULL REFERENCES tags(id), tagIndex INTEGER NOT NULL, PRIMARY KEY(postId, tagId));");
+
+      // Photo post-specific tables.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS photos(id INTEGER PRIMARY KEY AUTOINCREMENT, caption TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS photoSizes(id INTEGER PRIMARY KEY AUTOINCREMENT, width INTEGER NOT NULL, height INTEGER NOT NULL, url TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS photoPostPhotos(postId INTEGER NOT NULL REFERENCES photoPosts(id), photoId INTEGER NOT NULL REFERENCES photos(id), photoIndex INTEGER NOT NULL, PRIMARY KEY(postId, photoId));");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS photoPhotoSizes(photoId INTEGER NOT NULL REFERENCES photos(id), photoSizeId INTEGER NOT NULL REFERENCES photoSizes(id), photoSizeIndex INTEGER NOT NULL, PRIMARY KEY(photoId, photoSizeId));");
+
+      // Chat post-specific tables.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS dialogue(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, label TEXT NOT NULL, phrase TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS chatPostDialogue(postId INTEGER NOT NULL REFERENCES chatPosts(id), dialogueId INTEGER NOT NULL REFERENCES dialogue(id), dialogueIndex INTEGER NOT NULL, PRIMARY KEY(postId, dialogueId));");
+
+      // Video post-specific tables.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS videos(id INTEGER PRIMARY KEY AUTOINCREMENT, width TEXT NOT NULL, embedCode TEXT NOT NULL);");
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS videoPostVideos(postId INTEGER NOT NULL REFERENCES videoPosts(id), videoId INTEGER NOT NULL REFERENCES videos(id), videoIndex INTEGER NOT NULL, PRIMARY KEY(postId, videoId));");
+
+      // Types table.
+      statement
+              .execute("CREATE TABLE IF NOT EXISTS postTypes(id INTEGER PRIMARY KEY AUTOINCREMENT, type STRING UNIQUE NOT NULL);");
+      try (PreparedStatement typeInsertStatement = writer.connection
+              .prepareStatement("INSERT OR IGNORE INTO postTypes (type) VALUES (?)")) {
+        for (PostType type : PostType.values()) {
+          typeInsertStatement.setString(1, type.toString());
+          typeInsertStatement.addBatch();
+        }
+        typeInsertStatement.executeBatch();
+      }
+
+      // Indexes.
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS postsPostTypeIdIndex ON posts(postTypeId);");
+      statement.execute("CREATE INDEX IF NOT EXISTS postTagsPostIdIndex ON postTags(postId);");
+      statement.execute("CREATE INDEX IF NOT EXISTS postTagsTagIdIndex ON postTags(tagId);");
+      statement.execute("CREATE INDEX IF NOT EXISTS tagsTagIndex ON tags(tag);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS photoPostPhotosPostIdIndex ON photoPostPhotos(postId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS photoPostPhotosPhotoIdIndex ON photoPostPhotos(photoId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS photoPhotoSizesPhotoIdIndex ON photoPhotoSizes(photoId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS photoPhotoSizesPhotoSizeIdIndex ON photoPhotoSizes(photoSizeId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS chatPostDialoguePostIdIndex ON chatPostDialogue(postId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS chatPostDialogueDialogueIdIndex ON chatPostDialogue(dialogueId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS videoPostVideosPostIdIndex ON videoPostVideos(postId);");
+      statement
+              .execute("CREATE INDEX IF NOT EXISTS videoPostVideosVideoIdIndex ON videoPostVideos(videoId);");
+      statement
+              .execute("CREATE UNIQUE INDEX IF NOT EXISTS postTypesTypeIndex ON postTypes(type);");
+      return false;
+
+    case 1:
+      // Post counter tables.
+      statement
+              .execute("CREATE TABLE blogCounts(blogName TEXT PRIMARY KEY, postCount INTEGER NOT NULL);");
+      statement
+              .execute("CREATE TABLE postTypeCounts(postTypeId INTEGER PRIMARY KEY REFERENCES postTypes(id), postCount INTEGER NOT NULL);");
+      statement
+              .execute("CREATE TABLE tagCounts(tagId INTEGER PRIMARY KEY REFERENCES tags(id), postCount INTEGER NOT NULL);");
+      statement.execute("CREATE INDEX tagCountsPostCountIndex ON tagCounts(postCount);");
+      doRebuildCounts(statement);
+      return false;
+
+    case 2:
+      // Calendar archive index.
+      statement
+              .execute("CREATE TABLE postCalendar(blogName TEXT NOT NULL, year INTEGER NOT NULL, month INTEGER NOT NULL, day INTEGER NOT NULL, postCount INTEGER NOT NULL, PRIMARY KEY(blogName, year, month, day));");
+      statement
+              .execute("CREATE INDEX postsBlogNamePostedTimestampIndex ON posts(blogName, postedTimestamp);");
+      doRebuildCalendar(statement);
+      return false;
+
+    case 3:
+      // Full-text search index, keyed by post ID.
+      statement.execute("CREATE VIRTUAL TABLE postText USING fts3(content);");
+      return true;
+
+    case 4:
+      // Checkpoints of unfinished syncs, one per blog.
+      statement
+              .execute("CREATE TABLE syncCheckpoints(blogName TEXT PRIMARY KEY, runId TEXT NOT NULL, lastPostId INTEGER NOT NULL, postOffset INTEGER NOT NULL, cutoffTimestamp INTEGER);");
+      return false;
+
+    default:
+      throw new AssertionError(String.format("No migration from schema version %d.", fromVersion));
+    }
+  }
+
   @Override
   public void put(final Collection<Post> posts) throws SQLException {
     new Transaction<Void, SQLException>() {
@@ -1386,19 +2701,173 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }.execute();
   }
 
-  private void runDeleteQuery(Collection<Long> ids, String sqlTemplate) throws SQLException {
-    for (List<Long> partitionedIds : Iterables.partition(ids, MAX_IDS_PER_QUERY)) {
-      String sql = String.format(sqlTemplate, buildInQuery(partitionedIds.size()));
-      try (PreparedStatement statement = connection.prepareStatement(sql)) {
-        int index = 1;
-        for (long id : partitionedIds) {
-          statement.setLong(index++, id);
+  /**
+   * Puts a collection of posts into the database and records a blog's sync checkpoint, replacing
+   * any previous checkpoint of the blog, in one transaction. The checkpoint is thus never ahead of
+   * (or behind) the posts that have been written.
+   * 
+   * @param posts
+   *          the posts to put into the database
+   * @param checkpoint
+   *          the checkpoint as of the last of the posts
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public void put(final Collection<Post> posts, final SyncCheckpoint checkpoint)
+          throws SQLException {
+    new Transaction<Void, SQLException>() {
+
+      @Override
+      Void runTransaction() throws SQLException {
+        doPut(posts);
+
+        PreparedStatement syncCheckpointInsertStatement = writer
+                .getStatement(SYNC_CHECKPOINT_INSERT_SQL);
+        syncCheckpointInsertStatement.setString(1, checkpoint.getBlogName());
+        syncCheckpointInsertStatement.setString(2, checkpoint.getRunId());
+        syncCheckpointInsertStatement.setLong(3, checkpoint.getLastPostId());
+        syncCheckpointInsertStatement.setInt(4, checkpoint.getOffset());
+        if (checkpoint.getCutoff() != null) {
+          syncCheckpointInsertStatement.setLong(5, checkpoint.getCutoff().getMillis());
+        } else {
+          syncCheckpointInsertStatement.setNull(5, Types.INTEGER);
+        }
+        syncCheckpointInsertStatement.execute();
+        return null;
+      }
+    }.execute();
+  }
+
+  /**
+   * Rebuilds the post counters and the calendar archive index from scratch. These are kept up to
+   * date incrementally as posts are put and deleted, so this is only needed to repair a database
+   * whose counters have drifted, e.g. because it was modified by other tools.
+   * 
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public void rebuildCounts() throws SQLException {
+    new Transaction<Void, SQLException>() {
+
+      @Override
+      Void runTransaction() throws SQLException {
+        try (Statement statement = writer.connection.createStatement()) {
+          doRebuildCounts(statement);
+          doRebuildCalendar(statement);
+        }
+        return null;
+      }
+    }.execute();
+
+    // The tag index may have drifted along with the counters; rebuild it on next use.
+    tagIndex = null;
+  }
+
+  /**
+   * Rebuilds the full-text search index from scratch. The index is kept up to date incrementally as
+   * posts are put and deleted, so this is only needed for repair.
+   * 
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public void rebuildSearchIndex() throws SQLException {
+    new Transaction<Void, SQLException>() {
+
+      @Override
+      Void runTransaction() throws SQLException {
+        doRebuildSearchIndex();
+        return null;
+      }
+    }.execute();
+  }
+
+  private void releaseReadSession(Session session) {
+    if (session != writer) {
+      idleReadSessions.add(session);
+    }
+  }
+
+  private void runDeleteQuery(long[] ids, String sqlTemplate) throws SQLException {
+    for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+      int count = Math.min(ids.length - start, MAX_IDS_PER_QUERY);
+      String sql = String.format(sqlTemplate, buildInQuery(count));
+      try (PreparedStatement statement = writer.connection.prepareStatement(sql)) {
+        for (int i = 0; i < count; ++i) {
+          statement.setLong(i + 1, ids[start + i]);
         }
         statement.execute();
       }
     }
   }
 
+  /**
+   * Searches the text content of posts. Every word in the query must appear in a post for it to
+   * match; words are matched case-insensitively and punctuation is ignored. Results are ordered by
+   * relevance, most relevant first.
+   * 
+   * @param query
+   *          the words to search for
+   * @param offset
+   *          the number of results to skip
+   * @param limit
+   *          the maximum number of results to return
+   * @return the IDs of the matching posts
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public List<Long> search(final String query, final int offset, final int limit)
+          throws SQLException {
+    Preconditions.checkArgument(offset >= 0);
+    Preconditions.checkArgument(limit >= 0);
+
+    return new ReadTransaction<List<Long>>() {
+
+      @Override
+      List<Long> runTransaction(Session session) throws SQLException {
+        return doSearch(session, query, offset, limit);
+      }
+    }.execute();
+  }
+
+  /**
+   * Searches the text content of posts, as in {@link #search(String, int, int)}, and returns the
+   * matching posts themselves.
+   * 
+   * @param query
+   *          the words to search for
+   * @param offset
+   *          the number of results to skip
+   * @param limit
+   *          the maximum number of results to return
+   * @return the matching posts, most relevant first
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public List<Post> searchPosts(final String query, final int offset, final int limit)
+          throws SQLException {
+    Preconditions.checkArgument(offset >= 0);
+    Preconditions.checkArgument(limit >= 0);
+
+    return new ReadTransaction<List<Post>>() {
+
+      @Override
+      List<Post> runTransaction(Session session) throws SQLException {
+        List<Long> ids = doSearch(session, query, offset, limit);
+
+        LongObjectHashMap<Post> postById = new LongObjectHashMap<>();
+        for (Post post : doGetAll(session, Longs.toArray(ids))) {
+          postById.put(post.getId(), post);
+        }
+
+        ImmutableList.Builder<Post> resultBuilder = ImmutableList.builder();
+        for (long id : ids) {
+          resultBuilder.add(postById.get(id));
+        }
+        return resultBuilder.build();
+      }
+    }.execute();
+  }
+
   private static String buildInQuery(int numItemsInSet) {
     Preconditions.checkArgument(numItemsInSet > 0);
     StringBuilder builder = new StringBuilder("?");
@@ -1407,4 +2876,72 @@ public class SqlitePostDb implements PostDb, AutoCloseable {
     }
     return builder.toString();
   }
+
+  /**
+   * Gets the text of a post that should be searchable, with any HTML markup removed.
+   */
+  private static String getSearchText(Post post) {
+    List<String> parts = new ArrayList<>();
+
+    switch (post.getType()) {
+    case ANSWER:
+      AnswerPost answerPost = (AnswerPost) post;
+      parts.add(answerPost.getQuestion());
+      parts.add(answerPost.getAnswer());
+      break;
+    case AUDIO:
+      AudioPost audioPost = (AudioPost) post;
+      parts.add(audioPost.getCaption());
+      parts.add(audioPost.getArtist());
+      parts.add(audioPost.getAlbum());
+      parts.add(audioPost.getTrackName());
+      break;
+    case CHAT:
+      ChatPost chatPost = (ChatPost) post;
+      parts.add(chatPost.getTitle());
+      parts.add(chatPost.getBody());
+      for (Dialogue dialogue : chatPost.getDialogue()) {
+        parts.add(dialogue.getPhrase());
+      }
+      break;
+    case LINK:
+      LinkPost linkPost = (LinkPost) post;
+      parts.add(linkPost.getTitle());
+      parts.add(linkPost.getDescription());
+      break;
+    case PHOTO:
+      PhotoPost photoPost = (PhotoPost) post;
+      parts.add(photoPost.getCaption());
+      for (Photo photo : photoPost.getPhotos()) {
+        parts.add(photo.getCaption());
+      }
+      break;
+    case QUOTE:
+      QuotePost quotePost = (QuotePost) post;
+      parts.add(quotePost.getText());
+      parts.add(quotePost.getSource());
+      break;
+    case TEXT:
+      TextPost textPost = (TextPost) post;
+      parts.add(textPost.getTitle());
+      parts.add(textPost.getBody());
+      break;
+    case VIDEO:
+      parts.add(((VideoPost) post).getCaption());
+      break;
+    default:
+      throw new AssertionError(String.format("Post %d has impossible type %s.", post.getId(),
+              post.getType().toString()));
+    }
+
+    StringBuilder builder = new StringBuilder();
+    for (String part : parts) {
+      builder.append(Html.toPlainText(part)).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static String getUrl(String dbFile) {
+    return String.format("jdbc:sqlite:%s", new File(dbFile).getPath());
+  }
 }
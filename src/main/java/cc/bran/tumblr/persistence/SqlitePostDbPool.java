@@ -0,0 +1,287 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.joda.time.Duration;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A pool of per-blog {@link SqlitePostDb} files, for collections of blogs too large to keep every
+ * database open at once. Databases are opened on demand and kept open in a bounded
+ * least-recently-used set; handles that nobody is using are closed when the set is full or when
+ * they have been idle for longer than the idle timeout.
+ * 
+ * Callers borrow a database with {@link #lease(String)} and must close the returned lease when they
+ * are done with it. A leased database is never closed underneath its holder, so the pool may
+ * briefly hold more than its limit of open handles if every handle is in use. Different blogs are
+ * opened concurrently; callers asking for the same blog share a single handle.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SqlitePostDbPool implements AutoCloseable {
+
+  /**
+   * An open database for a single blog.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Handle {
+
+    private final String dbFile;
+
+    private long lastReleasedNanos;
+
+    private int leaseCount;
+
+    private SqlitePostDb postDb;
+
+    public Handle(String dbFile) {
+      this.dbFile = dbFile;
+      this.lastReleasedNanos = System.nanoTime();
+      this.leaseCount = 0;
+      this.postDb = null;
+    }
+
+    public synchronized void close() throws SQLException {
+      if (postDb != null) {
+        postDb.close();
+        postDb = null;
+      }
+    }
+
+    /**
+     * Gets the database, opening it if this is the first lease. Holding the handle's monitor while
+     * opening makes concurrent callers for the same blog wait for a single open.
+     */
+    public synchronized SqlitePostDb open() throws SQLException {
+      if (postDb == null) {
+        postDb = new SqlitePostDb(dbFile);
+      }
+      return postDb;
+    }
+  }
+
+  /**
+   * A borrowed database. Closing the lease returns the database to the pool; the database itself
+   * must not be closed by the holder.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public class Lease implements AutoCloseable {
+
+    private final Handle handle;
+
+    private final SqlitePostDb postDb;
+
+    private boolean released;
+
+    private Lease(Handle handle, SqlitePostDb postDb) {
+      this.handle = handle;
+      this.postDb = postDb;
+      this.released = false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      release(handle);
+    }
+
+    public SqlitePostDb getPostDb() {
+      return postDb;
+    }
+  }
+
+  private static final Pattern BLOG_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+  private final String directory;
+
+  private final Map<String, Handle> handleByBlogName;
+
+  private final ScheduledExecutorService idleCloser;
+
+  private final long idleTimeoutNanos;
+
+  private final int maxOpenHandles;
+
+  /**
+   * Creates a new pool. No databases are opened until they are leased.
+   * 
+   * @param directory
+   *          the directory that holds the database files, one per blog
+   * @param maxOpenHandles
+   *          the maximum number of databases to keep open, exceeded only while more than this
+   *          many are leased
+   * @param idleTimeout
+   *          how long an unleased database may stay open without being used
+   */
+  public SqlitePostDbPool(String directory, int maxOpenHandles, Duration idleTimeout) {
+    Preconditions.checkArgument(maxOpenHandles > 0);
+    Preconditions.checkArgument(idleTimeout.getMillis() > 0);
+
+    this.directory = directory;
+    this.handleByBlogName = new LinkedHashMap<>(16, 0.75f, true);
+    this.idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("SqlitePostDbPool-%d").build());
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout.getMillis());
+    this.maxOpenHandles = maxOpenHandles;
+
+    long checkIntervalMillis = Math.max(1, idleTimeout.getMillis() / 2);
+    idleCloser.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          closeIdle();
+        } catch (SQLException exception) {
+          // There is no caller to report to; failed handles have been dropped from the pool anyway.
+        }
+      }
+    }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes every database in the pool, including leased ones. The pool must not be used afterwards.
+   */
+  @Override
+  public void close() throws SQLException {
+    idleCloser.shutdown();
+
+    List<Handle> handles;
+    synchronized (this) {
+      handles = new ArrayList<>(handleByBlogName.values());
+      handleByBlogName.clear();
+    }
+    closeAll(handles);
+  }
+
+  /**
+   * Closes databases that are not leased and have not been used for longer than the idle timeout.
+   * This is called periodically by the pool, but may also be called directly.
+   * 
+   * @return the number of databases closed
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public int closeIdle() throws SQLException {
+    List<Handle> idleHandles = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      Iterator<Handle> handleIterator = handleByBlogName.values().iterator();
+      while (handleIterator.hasNext()) {
+        Handle handle = handleIterator.next();
+        if (handle.leaseCount == 0 && now - handle.lastReleasedNanos > idleTimeoutNanos) {
+          idleHandles.add(handle);
+          handleIterator.remove();
+        }
+      }
+    }
+    closeAll(idleHandles);
+    return idleHandles.size();
+  }
+
+  /**
+   * Removes least-recently-used handles that are not leased until the pool is within its limit.
+   * Must be called with the pool's lock held; the returned handles should be closed after it is
+   * released.
+   */
+  private List<Handle> evict() {
+    List<Handle> evictedHandles = new ArrayList<>();
+    Iterator<Handle> handleIterator = handleByBlogName.values().iterator();
+    while (handleByBlogName.size() > maxOpenHandles && handleIterator.hasNext()) {
+      Handle handle = handleIterator.next();
+      if (handle.leaseCount == 0) {
+        evictedHandles.add(handle);
+        handleIterator.remove();
+      }
+    }
+    return evictedHandles;
+  }
+
+  /**
+   * Gets the number of databases currently open or being opened.
+   */
+  public synchronized int getOpenCount() {
+    return handleByBlogName.size();
+  }
+
+  /**
+   * Leases the database for a blog, opening (and if necessary creating) it.
+   * 
+   * @param blogName
+   *          the name of the blog; this is used as the database's file name
+   * @return a lease on the database, which must be closed when the caller is done with it
+   * @throws SQLException
+   *           if a database error occurs
+   */
+  public Lease lease(String blogName) throws SQLException {
+    Preconditions.checkArgument(BLOG_NAME_PATTERN.matcher(blogName).matches(),
+            "Invalid blog name: %s", blogName);
+
+    Handle handle;
+    List<Handle> evictedHandles;
+    synchronized (this) {
+      handle = handleByBlogName.get(blogName);
+      if (handle == null) {
+        handle = new Handle(new File(directory, blogName + ".db").getPath());
+        handleByBlogName.put(blogName, handle);
+      }
+      ++handle.leaseCount;
+      evictedHandles = evict();
+    }
+    closeAll(evictedHandles);
+
+    // Open outside of the pool's lock, so that a slow open does not hold up other blogs.
+    try {
+      return new Lease(handle, handle.open());
+    } catch (SQLException exception) {
+      release(handle);
+      throw exception;
+    }
+  }
+
+  private void release(Handle handle) throws SQLException {
+    List<Handle> evictedHandles;
+    synchronized (this) {
+      --handle.leaseCount;
+      handle.lastReleasedNanos = System.nanoTime();
+      evictedHandles = evict();
+    }
+    closeAll(evictedHandles);
+  }
+
+  private static void closeAll(List<Handle> handles) throws SQLException {
+    SQLException exception = null;
+    for (Handle handle : handles) {
+      try {
+        handle.close();
+      } catch (SQLException ex) {
+        if (exception != null) {
+          ex.addSuppressed(exception);
+        }
+        exception = ex;
+      }
+    }
+
+    if (exception != null) {
+      throw exception;
+    }
+  }
+}
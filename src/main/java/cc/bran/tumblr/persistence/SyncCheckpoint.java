@@ -0,0 +1,105 @@
+package cc.bran.tumblr.persistence;
+
+import java.util.Objects;
+
+import org.joda.time.Instant;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The progress of one run of a blog sync, as of its last committed batch of posts. The position is
+ * a cursor into the blog's posts, newest first: the ID of the last post read and the number of
+ * posts read in that post's second. A restarted sync resumes from here under the same run ID.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SyncCheckpoint {
+
+  private final String blogName;
+
+  private final Instant cutoff;
+
+  private final long lastPostId;
+
+  private final int offset;
+
+  private final String runId;
+
+  /**
+   * Creates a new checkpoint.
+   * 
+   * @param blogName
+   *          the name of the blog being synced
+   * @param runId
+   *          an ID shared by every checkpoint of the same run
+   * @param lastPostId
+   *          the ID of the last post read
+   * @param offset
+   *          the number of posts read in the last post's second, including the last post
+   * @param cutoff
+   *          the posted instant at which the run stops once it reaches stored posts, or null if it
+   *          reads every post
+   */
+  public SyncCheckpoint(String blogName, String runId, long lastPostId, int offset,
+          Instant cutoff) {
+    Preconditions.checkNotNull(blogName);
+    Preconditions.checkNotNull(runId);
+    Preconditions.checkArgument(offset > 0);
+
+    this.blogName = blogName;
+    this.cutoff = cutoff;
+    this.lastPostId = lastPostId;
+    this.offset = offset;
+    this.runId = runId;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof SyncCheckpoint)) {
+      return false;
+    }
+    SyncCheckpoint otherCheckpoint = (SyncCheckpoint) other;
+    return Objects.equals(this.blogName, otherCheckpoint.blogName)
+            && Objects.equals(this.cutoff, otherCheckpoint.cutoff)
+            && Objects.equals(this.lastPostId, otherCheckpoint.lastPostId)
+            && Objects.equals(this.offset, otherCheckpoint.offset)
+            && Objects.equals(this.runId, otherCheckpoint.runId);
+  }
+
+  public String getBlogName() {
+    return blogName;
+  }
+
+  /**
+   * Gets the posted instant at which the run stops once it reaches stored posts, or null if it
+   * reads every post.
+   */
+  public Instant getCutoff() {
+    return cutoff;
+  }
+
+  public long getLastPostId() {
+    return lastPostId;
+  }
+
+  /**
+   * Gets the number of posts read in the last post's second, including the last post.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  public String getRunId() {
+    return runId;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(blogName, cutoff, lastPostId, offset, runId);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s@%d+%d (run %s)", blogName, lastPostId, offset, runId);
+  }
+}
@@ -0,0 +1,248 @@
+package cc.bran.tumblr.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * An in-memory index over the tag vocabulary supporting fast case-insensitive prefix lookups. Tags
+ * are stored in a trie keyed by their normalized (lower-cased) form; each node records the highest
+ * post count anywhere beneath it, so the most-used completions of a prefix can be found without
+ * visiting the rest of the subtree. This class is thread-safe.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+class TagIndex {
+
+  /**
+   * A search candidate: either a finished tag or a subtree that has yet to be expanded. Candidates
+   * are ordered by count, most-used first.
+   */
+  private static class Candidate implements Comparable<Candidate> {
+
+    private final long count;
+
+    private final Node node;
+
+    private final String tag;
+
+    public Candidate(long count, Node node, String tag) {
+      this.count = count;
+      this.node = node;
+      this.tag = tag;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      int result = Long.compare(other.count, count);
+      if (result != 0) {
+        return result;
+      }
+
+      // Prefer finished tags over subtrees with the same count, so that the search stops as early
+      // as possible.
+      if (tag != null && other.tag != null) {
+        return tag.compareTo(other.tag);
+      }
+      return (tag != null ? -1 : (other.tag != null ? 1 : 0));
+    }
+  }
+
+  private static class Node {
+
+    private static final char[] NO_KEYS = new char[0];
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private Node[] children = NO_CHILDREN;
+
+    private Map<String, Long> countByTag = null;
+
+    private char[] keys = NO_KEYS;
+
+    private long maxCount = 0;
+
+    public Node getChild(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      return (index < 0 ? null : children[index]);
+    }
+
+    public Node getOrCreateChild(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      if (index >= 0) {
+        return children[index];
+      }
+
+      // Keep keys sorted so that lookups can binary search; nodes rarely have many children.
+      int insertionIndex = -(index + 1);
+      char[] newKeys = new char[keys.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, insertionIndex);
+      System.arraycopy(children, 0, newChildren, 0, insertionIndex);
+      System.arraycopy(keys, insertionIndex, newKeys, insertionIndex + 1, keys.length
+              - insertionIndex);
+      System.arraycopy(children, insertionIndex, newChildren, insertionIndex + 1, children.length
+              - insertionIndex);
+
+      Node child = new Node();
+      newKeys[insertionIndex] = key;
+      newChildren[insertionIndex] = child;
+      keys = newKeys;
+      children = newChildren;
+      return child;
+    }
+
+    public boolean isEmpty() {
+      return children.length == 0 && countByTag == null;
+    }
+
+    public void recomputeMaxCount() {
+      long newMaxCount = 0;
+      if (countByTag != null) {
+        for (long count : countByTag.values()) {
+          newMaxCount = Math.max(newMaxCount, count);
+        }
+      }
+      for (Node child : children) {
+        newMaxCount = Math.max(newMaxCount, child.maxCount);
+      }
+      maxCount = newMaxCount;
+    }
+
+    public void removeChild(char key) {
+      int index = Arrays.binarySearch(keys, key);
+      if (index < 0) {
+        return;
+      }
+
+      char[] newKeys = new char[keys.length - 1];
+      Node[] newChildren = new Node[children.length - 1];
+      System.arraycopy(keys, 0, newKeys, 0, index);
+      System.arraycopy(children, 0, newChildren, 0, index);
+      System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+      System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+      keys = (newKeys.length == 0 ? NO_KEYS : newKeys);
+      children = (newChildren.length == 0 ? NO_CHILDREN : newChildren);
+    }
+  }
+
+  private final Node root = new Node();
+
+  private int size = 0;
+
+  /**
+   * Adjusts the post count of a tag, adding it to the index if necessary. Tags whose count drops to
+   * zero are removed.
+   * 
+   * @param tag
+   *          the tag, exactly as it appears on posts
+   * @param delta
+   *          the change in the number of posts with the tag
+   */
+  public synchronized void adjust(String tag, long delta) {
+    if (delta == 0) {
+      return;
+    }
+
+    String normalizedTag = normalize(tag);
+    Node[] path = new Node[normalizedTag.length() + 1];
+    path[0] = root;
+    for (int i = 0; i < normalizedTag.length(); ++i) {
+      path[i + 1] = path[i].getOrCreateChild(normalizedTag.charAt(i));
+    }
+
+    Node node = path[normalizedTag.length()];
+    if (node.countByTag == null) {
+      node.countByTag = new HashMap<>(2);
+    }
+    Long currentCount = node.countByTag.get(tag);
+    long newCount = (currentCount == null ? 0 : currentCount) + delta;
+    if (newCount > 0) {
+      if (currentCount == null) {
+        size++;
+      }
+      node.countByTag.put(tag, newCount);
+    } else {
+      if (currentCount != null) {
+        size--;
+      }
+      node.countByTag.remove(tag);
+      if (node.countByTag.isEmpty()) {
+        node.countByTag = null;
+      }
+    }
+
+    // Walk back up the path, pruning empty nodes and fixing up the subtree maximums.
+    for (int i = normalizedTag.length(); i >= 0; --i) {
+      if (i > 0 && path[i].isEmpty()) {
+        path[i - 1].removeChild(normalizedTag.charAt(i - 1));
+      } else {
+        path[i].recomputeMaxCount();
+      }
+    }
+  }
+
+  /**
+   * Finds the most-used tags starting with the given prefix, ignoring case.
+   * 
+   * @param prefix
+   *          the prefix to complete
+   * @param limit
+   *          the maximum number of tags to return
+   * @return an ordered map from tag to post count, most-used first
+   */
+  public synchronized Map<String, Long> complete(String prefix, int limit) {
+    Preconditions.checkArgument(limit >= 0);
+
+    String normalizedPrefix = normalize(prefix);
+    Node node = root;
+    for (int i = 0; node != null && i < normalizedPrefix.length(); ++i) {
+      node = node.getChild(normalizedPrefix.charAt(i));
+    }
+
+    ImmutableMap.Builder<String, Long> resultBuilder = ImmutableMap.builder();
+    if (node == null || limit == 0) {
+      return resultBuilder.build();
+    }
+
+    // Best-first search: a subtree is only expanded once nothing better is waiting in the queue.
+    PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+    candidates.add(new Candidate(node.maxCount, node, null));
+    int resultCount = 0;
+    while (!candidates.isEmpty() && resultCount < limit) {
+      Candidate candidate = candidates.poll();
+      if (candidate.tag != null) {
+        resultBuilder.put(candidate.tag, candidate.count);
+        resultCount++;
+        continue;
+      }
+
+      Node candidateNode = candidate.node;
+      if (candidateNode.countByTag != null) {
+        for (Map.Entry<String, Long> entry : candidateNode.countByTag.entrySet()) {
+          candidates.add(new Candidate(entry.getValue(), null, entry.getKey()));
+        }
+      }
+      for (Node child : candidateNode.children) {
+        candidates.add(new Candidate(child.maxCount, child, null));
+      }
+    }
+    return resultBuilder.build();
+  }
+
+  /**
+   * Gets the number of distinct tags in the index.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  private static String normalize(String tag) {
+    return tag.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,286 @@
+package cc.bran.tumblr.sync;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.api.PostCursor;
+import cc.bran.tumblr.api.TumblrApi;
+import cc.bran.tumblr.persistence.PostCodec;
+import cc.bran.tumblr.persistence.SqlitePostDb;
+import cc.bran.tumblr.persistence.SyncCheckpoint;
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+/**
+ * Copies blogs' posts from tumblr into a {@link SqlitePostDb}. Syncs are incremental: posts are
+ * read newest first, and reading stops at the first post that is already stored, unchanged, and no
+ * newer than the blog's latest stored post less an overlap window. A routine sync therefore costs
+ * about as many requests as there are new posts, rather than the size of the archive. Posts edited
+ * within the overlap window of the latest stored post are picked up; older edits are not.
+ * 
+ * A blog with no stored posts is read in full.
+ * 
+ * Each batch of posts is written together with a {@link SyncCheckpoint} of the sync's position, in
+ * one transaction. A sync that is interrupted, whether by a failure, by being closed early or by a
+ * crash, leaves its checkpoint behind, and the next sync of the blog resumes from the last
+ * committed batch rather than starting over. Resumed syncs read a page at a time, without the
+ * API's prefetching.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class BlogSyncer {
+
+  /**
+   * A sync of one blog in progress, which may be run a few batches at a time. Closing it stops
+   * reading posts that will not be needed.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public class BlogSync implements AutoCloseable {
+
+    private final String blogName;
+
+    /**
+     * The position of the last batch read, which is checkpointed along with the batch's posts.
+     */
+    private final PostCursor cursor;
+
+    private final Instant cutoff;
+
+    private boolean done;
+
+    private final Iterator<Post> postIterator;
+
+    private int readCount;
+
+    private final boolean resumed;
+
+    private final String runId;
+
+    private int writeCount;
+
+    private BlogSync(String blogName, String runId, Instant cutoff, PostCursor cursor,
+            Iterator<Post> postIterator, boolean resumed) {
+      this.blogName = blogName;
+      this.cursor = cursor;
+      this.cutoff = cutoff;
+      this.done = false;
+      this.postIterator = postIterator;
+      this.readCount = 0;
+      this.resumed = resumed;
+      this.runId = runId;
+      this.writeCount = 0;
+    }
+
+    @Override
+    public void close() {
+      done = true;
+      if (postIterator instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) postIterator).close();
+        } catch (Exception exception) {
+          throw Throwables.propagate(exception);
+        }
+      }
+    }
+
+    public String getBlogName() {
+      return blogName;
+    }
+
+    /**
+     * Gets the number of posts read from the API so far.
+     */
+    public int getReadCount() {
+      return readCount;
+    }
+
+    /**
+     * Gets the ID of this run, which is kept when an interrupted run is resumed.
+     */
+    public String getRunId() {
+      return runId;
+    }
+
+    /**
+     * Gets the number of posts written so far, whether new or edited.
+     */
+    public int getWriteCount() {
+      return writeCount;
+    }
+
+    public boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Determines whether this run resumed from the checkpoint of an interrupted run.
+     */
+    public boolean isResumed() {
+      return resumed;
+    }
+
+    /**
+     * Reads and writes up to the given number of batches of posts, stopping early if the sync is
+     * done.
+     * 
+     * @param maxBatches
+     *          the maximum number of batches to run
+     * @return true if the sync is done
+     * @throws Exception
+     *           if reading from the API or writing to the database fails
+     */
+    public boolean runBatches(int maxBatches) throws Exception {
+      for (int batchCount = 0; !done && batchCount < maxBatches; ++batchCount) {
+        if (!postIterator.hasNext()) {
+          done = true;
+          postDb.deleteSyncCheckpoint(blogName);
+          break;
+        }
+
+        List<Post> batch = new ArrayList<>(BATCH_SIZE);
+        while (batch.size() < BATCH_SIZE && postIterator.hasNext()) {
+          batch.add(postIterator.next());
+        }
+        readCount += batch.size();
+
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (Post post : batch) {
+          ids.add(post.getId());
+        }
+        Map<Long, Post> storedPostById = new HashMap<>();
+        for (Post storedPost : postDb.getAll(ids)) {
+          storedPostById.put(storedPost.getId(), storedPost);
+        }
+
+        List<Post> changedPosts = new ArrayList<>(batch.size());
+        for (Post post : batch) {
+          Post storedPost = storedPostById.get(post.getId());
+          if (storedPost == null || !PostCodec.hasSameContent(storedPost, post)) {
+            changedPosts.add(post);
+          } else if (cutoff != null && !post.getPostedInstant().isAfter(cutoff)) {
+            done = true;
+          }
+        }
+
+        cursor.advance(batch);
+        if (done) {
+          // If this run dies between these transactions, the next one resumes at the start of this
+          // batch, finds it stored and stops there.
+          postDb.put(changedPosts);
+          postDb.deleteSyncCheckpoint(blogName);
+        } else {
+          postDb.put(changedPosts, new SyncCheckpoint(blogName, runId, cursor.getLastPost()
+                  .getId(), cursor.getOffset(), cutoff));
+        }
+        writeCount += changedPosts.size();
+      }
+
+      if (done) {
+        // Stop any prefetching of pages that will not be read.
+        close();
+      }
+      return done;
+    }
+  }
+
+  private static final int BATCH_SIZE = TumblrApi.PAGE_SIZE;
+
+  private final TumblrApi api;
+
+  private final Duration overlap;
+
+  private final SqlitePostDb postDb;
+
+  /**
+   * Creates a new syncer.
+   * 
+   * @param api
+   *          the API to read posts from
+   * @param postDb
+   *          the database to write posts to
+   * @param overlap
+   *          how far back from the latest stored post to keep checking for edited posts
+   */
+  public BlogSyncer(TumblrApi api, SqlitePostDb postDb, Duration overlap) {
+    Preconditions.checkArgument(overlap.getMillis() >= 0);
+
+    this.api = api;
+    this.overlap = overlap;
+    this.postDb = postDb;
+  }
+
+  /**
+   * Gets an iterator over a blog's posts past a cursor, requesting a page at a time.
+   */
+  private Iterator<Post> getPostsAfter(final String blogName, final PostCursor cursor) {
+    return Iterators.concat(new AbstractIterator<Iterator<Post>>() {
+
+      @Override
+      protected Iterator<Post> computeNext() {
+        List<Post> page = cursor.nextPage(api, blogName);
+        if (page.isEmpty()) {
+          return endOfData();
+        }
+        return page.iterator();
+      }
+    });
+  }
+
+  /**
+   * Starts syncing a blog's new and recently edited posts, resuming the blog's interrupted sync if
+   * there is one. The caller must run the sync to completion or close it.
+   * 
+   * @param blogName
+   *          the name of the blog to sync
+   * @return the sync, which has not yet read any posts
+   * @throws SQLException
+   *           if reading the blog's checkpoint or latest stored post fails
+   */
+  public BlogSync start(String blogName) throws SQLException {
+    SyncCheckpoint checkpoint = postDb.getSyncCheckpoint(blogName);
+    if (checkpoint != null) {
+      Post lastPost = postDb.get(checkpoint.getLastPostId());
+      // The checkpointed post is written along with its checkpoint, but may since have been
+      // deleted; the sync then starts over.
+      if (lastPost != null) {
+        return new BlogSync(blogName, checkpoint.getRunId(), checkpoint.getCutoff(),
+                new PostCursor(lastPost, checkpoint.getOffset()), getPostsAfter(blogName,
+                        new PostCursor(lastPost, checkpoint.getOffset())), true);
+      }
+    }
+
+    Post latestPost = postDb.getLatestPost(blogName);
+    Instant cutoff = (latestPost != null) ? latestPost.getPostedInstant().minus(overlap) : null;
+    return new BlogSync(blogName, UUID.randomUUID().toString(), cutoff, new PostCursor(), api
+            .getAllPosts(blogName).iterator(), false);
+  }
+
+  /**
+   * Syncs a blog's new and recently edited posts.
+   * 
+   * @param blogName
+   *          the name of the blog to sync
+   * @return the number of posts written, whether new or edited
+   * @throws Exception
+   *           if reading from the API or writing to the database fails
+   */
+  public int sync(String blogName) throws Exception {
+    try (BlogSync blogSync = start(blogName)) {
+      blogSync.runBatches(Integer.MAX_VALUE);
+      return blogSync.getWriteCount();
+    }
+  }
+}
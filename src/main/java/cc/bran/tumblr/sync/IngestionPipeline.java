@@ -0,0 +1,439 @@
+package cc.bran.tumblr.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+
+import cc.bran.tumblr.api.TumblrApi;
+import cc.bran.tumblr.persistence.PostDb;
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies blogs' posts from a {@link TumblrApi} into a {@link PostDb} in three stages, each run by
+ * its own threads and connected to the next by a bounded queue, so a slow stage holds back the
+ * stages before it rather than letting posts pile up in memory:
+ * 
+ * <ol>
+ * <li>fetch: reads each blog's posts from the API, one blog per thread at a time;</li>
+ * <li>convert: applies a function to each post, which may drop the post by returning null;</li>
+ * <li>persist: writes posts with {@link PostDb#put(Collection)} in batches, each of which is
+ * written once it is full or once its first post has waited long enough.</li>
+ * </ol>
+ * 
+ * Each stage keeps {@link StageMetrics} for the current or most recent run. A failure in any stage
+ * stops the run.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class IngestionPipeline {
+
+  /**
+   * Builds an {@link IngestionPipeline}.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public static class Builder {
+
+    private final TumblrApi api;
+
+    private Function<Post, Post> converter;
+
+    private int convertThreadCount;
+
+    private int fetchThreadCount;
+
+    private Duration maxBatchDelay;
+
+    private int maxBatchSize;
+
+    private int persistThreadCount;
+
+    private final PostDb postDb;
+
+    private int queueCapacity;
+
+    public Builder(TumblrApi api, PostDb postDb) {
+      this.api = api;
+      this.converter = Functions.identity();
+      this.convertThreadCount = 1;
+      this.fetchThreadCount = 1;
+      this.maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+      this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+      this.persistThreadCount = 1;
+      this.postDb = postDb;
+      this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    }
+
+    public IngestionPipeline build() {
+      return new IngestionPipeline(this);
+    }
+
+    /**
+     * Sets the function applied to each post before it is persisted. The function may return null
+     * to drop the post, and must be safe to call from several threads at once if the convert stage
+     * has more than one.
+     */
+    public void setConverter(Function<Post, Post> converter) {
+      this.converter = Preconditions.checkNotNull(converter);
+    }
+
+    public void setConvertThreadCount(int convertThreadCount) {
+      Preconditions.checkArgument(convertThreadCount > 0);
+      this.convertThreadCount = convertThreadCount;
+    }
+
+    public void setFetchThreadCount(int fetchThreadCount) {
+      Preconditions.checkArgument(fetchThreadCount > 0);
+      this.fetchThreadCount = fetchThreadCount;
+    }
+
+    /**
+     * Sets how long the first post of a batch may wait for the batch to fill before the batch is
+     * written anyway.
+     */
+    public void setMaxBatchDelay(Duration maxBatchDelay) {
+      Preconditions.checkArgument(maxBatchDelay.getMillis() >= 0);
+      this.maxBatchDelay = maxBatchDelay;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+      Preconditions.checkArgument(maxBatchSize > 0);
+      this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setPersistThreadCount(int persistThreadCount) {
+      Preconditions.checkArgument(persistThreadCount > 0);
+      this.persistThreadCount = persistThreadCount;
+    }
+
+    /**
+     * Sets the number of posts each queue between two stages can hold.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+      Preconditions.checkArgument(queueCapacity > 0);
+      this.queueCapacity = queueCapacity;
+    }
+  }
+
+  /**
+   * Throughput and latency of one stage of a run. Each operation of a stage handles one or more
+   * posts: fetch and convert operations handle one post each, and persist operations one batch.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public static class StageMetrics {
+
+    private long endNanos;
+
+    private long itemCount;
+
+    private long maxLatencyNanos;
+
+    private long operationCount;
+
+    private final long startNanos;
+
+    private long totalLatencyNanos;
+
+    private StageMetrics() {
+      this.endNanos = 0;
+      this.itemCount = 0;
+      this.maxLatencyNanos = 0;
+      this.operationCount = 0;
+      this.startNanos = System.nanoTime();
+      this.totalLatencyNanos = 0;
+    }
+
+    /**
+     * Gets the number of posts the stage has handled.
+     */
+    public synchronized long getItemCount() {
+      return itemCount;
+    }
+
+    /**
+     * Gets the longest time a single operation took, in milliseconds.
+     */
+    public synchronized double getMaxLatencyMillis() {
+      return maxLatencyNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Gets the mean time an operation took, in milliseconds.
+     */
+    public synchronized double getMeanLatencyMillis() {
+      return (operationCount > 0) ? totalLatencyNanos / NANOS_PER_MILLI / operationCount : 0;
+    }
+
+    public synchronized long getOperationCount() {
+      return operationCount;
+    }
+
+    /**
+     * Gets the number of posts handled per second, from the start of the run until the stage
+     * finished or, if it has not, until now.
+     */
+    public synchronized double getThroughput() {
+      long elapsedNanos = ((endNanos != 0) ? endNanos : System.nanoTime()) - startNanos;
+      return (elapsedNanos > 0) ? itemCount * NANOS_PER_SECOND / elapsedNanos : 0;
+    }
+
+    private synchronized void finish() {
+      endNanos = System.nanoTime();
+    }
+
+    private synchronized void record(int items, long latencyNanos) {
+      itemCount += items;
+      maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+      ++operationCount;
+      totalLatencyNanos += latencyNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d posts, %.1f posts/s, %.3f ms mean, %.3f ms max", getItemCount(),
+              getThroughput(), getMeanLatencyMillis(), getMaxLatencyMillis());
+    }
+  }
+
+  private static final Duration DEFAULT_MAX_BATCH_DELAY = Duration.millis(500);
+
+  private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  /**
+   * The end of a stage's input. Each thread of a stage takes one from its input queue and stops.
+   */
+  private static final Optional<Post> END = Optional.absent();
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final TumblrApi api;
+
+  private volatile StageMetrics convertMetrics;
+
+  private final Function<Post, Post> converter;
+
+  private final int convertThreadCount;
+
+  private volatile StageMetrics fetchMetrics;
+
+  private final int fetchThreadCount;
+
+  private final long maxBatchDelayNanos;
+
+  private final int maxBatchSize;
+
+  private volatile StageMetrics persistMetrics;
+
+  private final int persistThreadCount;
+
+  private final PostDb postDb;
+
+  private final int queueCapacity;
+
+  private IngestionPipeline(Builder builder) {
+    this.api = builder.api;
+    this.convertMetrics = null;
+    this.converter = builder.converter;
+    this.convertThreadCount = builder.convertThreadCount;
+    this.fetchMetrics = null;
+    this.fetchThreadCount = builder.fetchThreadCount;
+    this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxBatchDelay.getMillis());
+    this.maxBatchSize = builder.maxBatchSize;
+    this.persistMetrics = null;
+    this.persistThreadCount = builder.persistThreadCount;
+    this.postDb = builder.postDb;
+    this.queueCapacity = builder.queueCapacity;
+  }
+
+  private void convert(BlockingQueue<Optional<Post>> input, BlockingQueue<Optional<Post>> output)
+          throws InterruptedException {
+    for (Optional<Post> item = input.take(); item.isPresent(); item = input.take()) {
+      long startNanos = System.nanoTime();
+      Post post = converter.apply(item.get());
+      convertMetrics.record(1, System.nanoTime() - startNanos);
+      if (post != null) {
+        output.put(Optional.of(post));
+      }
+    }
+  }
+
+  private void fetch(BlockingQueue<String> blogNames, BlockingQueue<Optional<Post>> output)
+          throws Exception {
+    for (String blogName = blogNames.poll(); blogName != null; blogName = blogNames.poll()) {
+      Iterator<Post> postIterator = api.getAllPosts(blogName).iterator();
+      try {
+        while (true) {
+          long startNanos = System.nanoTime();
+          if (!postIterator.hasNext()) {
+            break;
+          }
+          Post post = postIterator.next();
+          fetchMetrics.record(1, System.nanoTime() - startNanos);
+          output.put(Optional.of(post));
+        }
+      } finally {
+        if (postIterator instanceof AutoCloseable) {
+          ((AutoCloseable) postIterator).close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the metrics of the convert stage of the current or most recent run, or null if the
+   * pipeline has not been run.
+   */
+  public StageMetrics getConvertMetrics() {
+    return convertMetrics;
+  }
+
+  /**
+   * Gets the metrics of the fetch stage of the current or most recent run, or null if the pipeline
+   * has not been run.
+   */
+  public StageMetrics getFetchMetrics() {
+    return fetchMetrics;
+  }
+
+  /**
+   * Gets the metrics of the persist stage of the current or most recent run, or null if the
+   * pipeline has not been run.
+   */
+  public StageMetrics getPersistMetrics() {
+    return persistMetrics;
+  }
+
+  private void persist(BlockingQueue<Optional<Post>> input) throws Exception {
+    List<Post> batch = new ArrayList<>(maxBatchSize);
+    boolean ended = false;
+    while (!ended) {
+      // Wait as long as it takes for the first post of a batch, then until its deadline for more.
+      Optional<Post> item = input.take();
+      long deadlineNanos = System.nanoTime() + maxBatchDelayNanos;
+      while (item != null && item.isPresent()) {
+        batch.add(item.get());
+        if (batch.size() == maxBatchSize) {
+          break;
+        }
+        item = input.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+      ended = (item != null && !item.isPresent());
+
+      if (!batch.isEmpty()) {
+        long startNanos = System.nanoTime();
+        postDb.put(batch);
+        persistMetrics.record(batch.size(), System.nanoTime() - startNanos);
+        batch = new ArrayList<>(maxBatchSize);
+      }
+    }
+  }
+
+  /**
+   * Copies the given blogs' posts into the database, returning once every post has been written.
+   * 
+   * @param blogNames
+   *          the names of the blogs to copy
+   * @throws Exception
+   *           if any stage fails, after the other stages have been stopped
+   */
+  public synchronized void run(Collection<String> blogNames) throws Exception {
+    final BlockingQueue<String> blogNameQueue = new LinkedBlockingQueue<>(blogNames);
+    final BlockingQueue<Optional<Post>> fetchedQueue = new ArrayBlockingQueue<>(queueCapacity);
+    final BlockingQueue<Optional<Post>> convertedQueue = new ArrayBlockingQueue<>(queueCapacity);
+    final AtomicInteger remainingFetchThreads = new AtomicInteger(fetchThreadCount);
+    final AtomicInteger remainingConvertThreads = new AtomicInteger(convertThreadCount);
+    fetchMetrics = new StageMetrics();
+    convertMetrics = new StageMetrics();
+    persistMetrics = new StageMetrics();
+
+    int threadCount = fetchThreadCount + convertThreadCount + persistThreadCount;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("IngestionPipeline-%d")
+                    .build());
+    CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+    try {
+      for (int i = 0; i < fetchThreadCount; ++i) {
+        completionService.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            fetch(blogNameQueue, fetchedQueue);
+            if (remainingFetchThreads.decrementAndGet() == 0) {
+              fetchMetrics.finish();
+              for (int j = 0; j < convertThreadCount; ++j) {
+                fetchedQueue.put(END);
+              }
+            }
+            return null;
+          }
+        });
+      }
+      for (int i = 0; i < convertThreadCount; ++i) {
+        completionService.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            convert(fetchedQueue, convertedQueue);
+            if (remainingConvertThreads.decrementAndGet() == 0) {
+              convertMetrics.finish();
+              for (int j = 0; j < persistThreadCount; ++j) {
+                convertedQueue.put(END);
+              }
+            }
+            return null;
+          }
+        });
+      }
+      for (int i = 0; i < persistThreadCount; ++i) {
+        completionService.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            persist(convertedQueue);
+            return null;
+          }
+        });
+      }
+
+      for (int i = 0; i < threadCount; ++i) {
+        try {
+          completionService.take().get();
+        } catch (ExecutionException exception) {
+          Throwable cause = exception.getCause();
+          if (cause instanceof Exception) {
+            throw (Exception) cause;
+          }
+          throw (Error) cause;
+        }
+      }
+      persistMetrics.finish();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
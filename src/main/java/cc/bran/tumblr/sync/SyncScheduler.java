@@ -0,0 +1,407 @@
+package cc.bran.tumblr.sync;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.joda.time.YearMonth;
+
+import cc.bran.tumblr.persistence.SqlitePostDb;
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Syncs many blogs at once with a {@link BlogSyncer}, using at most a fixed number of threads. Each
+ * blog is synced a slice of a few batches at a time, and the blog that has run the fewest slices
+ * goes next, so a handful of huge blogs cannot hold up the small ones behind them. Among blogs that
+ * have run equally many slices, the one expected to have the most new posts goes first: its stored
+ * posting rate times the time since it was last synced. Blogs with no stored posts go first of all.
+ * 
+ * The scheduler bounds concurrency but not the request rate; requests made by all of its threads
+ * share the rate budget of the syncer's {@link cc.bran.tumblr.api.TumblrApi}, such as the
+ * {@link cc.bran.tumblr.api.AdaptiveRateLimiter} of a
+ * {@link cc.bran.tumblr.api.JumblrTumblrApi}. A blog that fails to sync is recorded as failed
+ * without stopping the others.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SyncScheduler {
+
+  /**
+   * A snapshot of the progress of one blog's sync.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  public static class BlogProgress {
+
+    private final String blogName;
+
+    private final Instant endInstant;
+
+    private final double expectedNewPosts;
+
+    private final Throwable failure;
+
+    private final int readCount;
+
+    private final int sliceCount;
+
+    private final Instant startInstant;
+
+    private final State state;
+
+    private final int writeCount;
+
+    private BlogProgress(String blogName, State state, double expectedNewPosts, int sliceCount,
+            int readCount, int writeCount, Instant startInstant, Instant endInstant,
+            Throwable failure) {
+      this.blogName = blogName;
+      this.endInstant = endInstant;
+      this.expectedNewPosts = expectedNewPosts;
+      this.failure = failure;
+      this.readCount = readCount;
+      this.sliceCount = sliceCount;
+      this.startInstant = startInstant;
+      this.state = state;
+      this.writeCount = writeCount;
+    }
+
+    public String getBlogName() {
+      return blogName;
+    }
+
+    /**
+     * Gets the time spent syncing the blog so far, or zero if it has not started.
+     */
+    public Duration getElapsed() {
+      if (startInstant == null) {
+        return Duration.ZERO;
+      }
+      return new Duration(startInstant, (endInstant != null) ? endInstant : Instant.now());
+    }
+
+    /**
+     * Gets the instant the blog's sync finished or failed, or null if it has not.
+     */
+    public Instant getEndInstant() {
+      return endInstant;
+    }
+
+    /**
+     * Gets the number of new posts the blog was expected to have when it was scheduled.
+     */
+    public double getExpectedNewPosts() {
+      return expectedNewPosts;
+    }
+
+    /**
+     * Gets the exception or error the blog's sync failed with, or null if it has not failed.
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+
+    /**
+     * Gets the number of posts read per second of the blog's sync so far.
+     */
+    public double getPostsPerSecond() {
+      long elapsedMillis = getElapsed().getMillis();
+      return (elapsedMillis > 0) ? readCount * 1000.0 / elapsedMillis : 0;
+    }
+
+    public int getReadCount() {
+      return readCount;
+    }
+
+    public int getSliceCount() {
+      return sliceCount;
+    }
+
+    /**
+     * Gets the instant the blog's sync started, or null if it has not.
+     */
+    public Instant getStartInstant() {
+      return startInstant;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public int getWriteCount() {
+      return writeCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %s, %d read, %d written, %.1f posts/s", blogName, state,
+              readCount, writeCount, getPostsPerSecond());
+    }
+  }
+
+  /**
+   * The state of one blog's sync.
+   */
+  public enum State {
+    PENDING, RUNNING, DONE, FAILED
+  }
+
+  /**
+   * One blog's place in the schedule. Only the worker that has taken a task from the queue runs
+   * it, so its sync is never run by two threads at once; its progress may be read at any time.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private class Task implements Comparable<Task>, Runnable {
+
+    private BlogSyncer.BlogSync blogSync;
+
+    private final String blogName;
+
+    private volatile Instant endInstant;
+
+    private final double expectedNewPosts;
+
+    private volatile Throwable failure;
+
+    private volatile int readCount;
+
+    private volatile int sliceCount;
+
+    private volatile Instant startInstant;
+
+    private volatile State state;
+
+    private volatile int writeCount;
+
+    public Task(String blogName, double expectedNewPosts) {
+      this.blogSync = null;
+      this.blogName = blogName;
+      this.endInstant = null;
+      this.expectedNewPosts = expectedNewPosts;
+      this.failure = null;
+      this.readCount = 0;
+      this.sliceCount = 0;
+      this.startInstant = null;
+      this.state = State.PENDING;
+      this.writeCount = 0;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (sliceCount != other.sliceCount) {
+        return (sliceCount < other.sliceCount) ? -1 : 1;
+      }
+      return Double.compare(other.expectedNewPosts, expectedNewPosts);
+    }
+
+    private void finish(State endState) {
+      endInstant = Instant.now();
+      state = endState;
+      if (endState == State.DONE) {
+        lastSyncInstantByBlogName.put(blogName, startInstant);
+      }
+      remainingTaskLatch.countDown();
+    }
+
+    public BlogProgress getProgress() {
+      return new BlogProgress(blogName, state, expectedNewPosts, sliceCount, readCount,
+              writeCount, startInstant, endInstant, failure);
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (blogSync == null) {
+          startInstant = Instant.now();
+          state = State.RUNNING;
+          blogSync = syncer.start(blogName);
+        }
+
+        boolean done = blogSync.runBatches(batchesPerSlice);
+        readCount = blogSync.getReadCount();
+        writeCount = blogSync.getWriteCount();
+        ++sliceCount;
+
+        if (done) {
+          finish(State.DONE);
+        } else {
+          taskQueue.add(this);
+        }
+      } catch (Throwable throwable) {
+        // Errors are caught too, such as an AssertionError from an unknown post type: a worker that
+        // died here would never finish the task, and sync() would wait for it forever.
+        failure = throwable;
+        try {
+          if (blogSync != null) {
+            blogSync.close();
+          }
+        } catch (Exception closeException) {
+          // The sync has already failed; report the original failure.
+        }
+        finish(State.FAILED);
+      }
+    }
+  }
+
+  private static final long MILLIS_PER_MINUTE = 60000;
+
+  private final int batchesPerSlice;
+
+  private final Map<String, Instant> lastSyncInstantByBlogName;
+
+  private final int maxConcurrentSyncs;
+
+  private final SqlitePostDb postDb;
+
+  private volatile CountDownLatch remainingTaskLatch;
+
+  private final BlogSyncer syncer;
+
+  private final PriorityBlockingQueue<Task> taskQueue;
+
+  private volatile Map<String, Task> tasksByBlogName;
+
+  /**
+   * Creates a new scheduler.
+   * 
+   * @param syncer
+   *          the syncer to sync each blog with
+   * @param postDb
+   *          the database the syncer writes to, which is read to estimate each blog's new posts
+   * @param maxConcurrentSyncs
+   *          the number of blogs to sync at once
+   * @param batchesPerSlice
+   *          the number of batches of posts to sync from a blog before moving on to another blog
+   */
+  public SyncScheduler(BlogSyncer syncer, SqlitePostDb postDb, int maxConcurrentSyncs,
+          int batchesPerSlice) {
+    Preconditions.checkArgument(maxConcurrentSyncs > 0);
+    Preconditions.checkArgument(batchesPerSlice > 0);
+
+    this.batchesPerSlice = batchesPerSlice;
+    this.lastSyncInstantByBlogName = new ConcurrentHashMap<>();
+    this.maxConcurrentSyncs = maxConcurrentSyncs;
+    this.postDb = postDb;
+    this.remainingTaskLatch = null;
+    this.syncer = syncer;
+    this.taskQueue = new PriorityBlockingQueue<>();
+    this.tasksByBlogName = Collections.emptyMap();
+  }
+
+  /**
+   * Estimates how many posts a blog has published since it was last synced, from its stored
+   * posting rate. Blogs with no stored posts are expected to have infinitely many.
+   */
+  private double estimateNewPosts(String blogName) throws SQLException {
+    Post latestPost = postDb.getLatestPost(blogName);
+    if (latestPost == null) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    Map<YearMonth, Long> monthlyPostCounts = postDb.getMonthlyPostCounts(blogName);
+    long postCount = 0;
+    for (long monthlyPostCount : monthlyPostCounts.values()) {
+      postCount += monthlyPostCount;
+    }
+    Instant firstMonthInstant = monthlyPostCounts.keySet().iterator().next().toLocalDate(1)
+            .toDateTimeAtStartOfDay(DateTimeZone.UTC).toInstant();
+    long postingMillis = Math.max(MILLIS_PER_MINUTE, latestPost.getPostedInstant().getMillis()
+            - firstMonthInstant.getMillis());
+
+    Instant lastSyncInstant = lastSyncInstantByBlogName.get(blogName);
+    if (lastSyncInstant == null) {
+      lastSyncInstant = latestPost.getRetrievedInstant();
+    }
+    long unsyncedMillis = Math.max(0, Instant.now().getMillis() - lastSyncInstant.getMillis());
+
+    return (double) postCount * unsyncedMillis / postingMillis;
+  }
+
+  /**
+   * Gets the progress of each blog in the current or most recent call to
+   * {@link #sync(Collection)}, in the order the blogs were given.
+   */
+  public Map<String, BlogProgress> getProgress() {
+    Map<String, BlogProgress> progressByBlogName = new LinkedHashMap<>();
+    for (Task task : tasksByBlogName.values()) {
+      progressByBlogName.put(task.blogName, task.getProgress());
+    }
+    return progressByBlogName;
+  }
+
+  /**
+   * Syncs the given blogs, returning once every blog has either finished or failed.
+   * 
+   * @param blogNames
+   *          the names of the blogs to sync
+   * @return the final progress of each blog, in the order the blogs were given
+   * @throws SQLException
+   *           if estimating the blogs' new posts fails
+   * @throws InterruptedException
+   *           if interrupted while waiting for the blogs to sync
+   */
+  public synchronized Map<String, BlogProgress> sync(Collection<String> blogNames)
+          throws SQLException, InterruptedException {
+    Map<String, Task> tasks = new LinkedHashMap<>();
+    for (String blogName : blogNames) {
+      if (!tasks.containsKey(blogName)) {
+        tasks.put(blogName, new Task(blogName, estimateNewPosts(blogName)));
+      }
+    }
+
+    remainingTaskLatch = new CountDownLatch(tasks.size());
+    tasksByBlogName = tasks;
+    taskQueue.clear();
+    taskQueue.addAll(tasks.values());
+
+    ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentSyncs,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SyncScheduler-%d").build());
+    try {
+      for (int i = 0; i < maxConcurrentSyncs; ++i) {
+        executor.execute(new Runnable() {
+
+          @Override
+          public void run() {
+            try {
+              while (true) {
+                taskQueue.take().run();
+              }
+            } catch (InterruptedException exception) {
+              // The scheduler is shutting down.
+            }
+          }
+        });
+      }
+      remainingTaskLatch.await();
+    } finally {
+      // Wait for the workers to exit, so that none of them can take a task from the next run.
+      executor.shutdownNow();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      for (Task task : tasks.values()) {
+        if (task.blogSync != null && task.state == State.RUNNING) {
+          try {
+            task.blogSync.close();
+          } catch (Exception exception) {
+            // The sync was abandoned; there is nothing more to do with it.
+          }
+        }
+      }
+    }
+
+    return getProgress();
+  }
+}
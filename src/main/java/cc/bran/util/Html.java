@@ -0,0 +1,146 @@
+package cc.bran.util;
+
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Utilities for dealing with the HTML that tumblr embeds in post content.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class Html {
+
+  private static final ImmutableMap<String, Character> CHARACTER_BY_ENTITY = ImmutableMap
+          .<String, Character> builder().put("amp", '&').put("lt", '<').put("gt", '>')
+          .put("quot", '"').put("apos", '\'').put("nbsp", ' ').put("ndash", '\u2013')
+          .put("mdash", '\u2014').put("lsquo", '\u2018').put("rsquo", '\u2019')
+          .put("ldquo", '\u201c').put("rdquo", '\u201d').put("hellip", '\u2026').build();
+
+  private static final int MAX_ENTITY_LENGTH = 10;
+
+  private Html() {
+  }
+
+  /**
+   * Converts a fragment of HTML to plain text. Tags are removed (along with the contents of
+   * {@code script} and {@code style} elements), character entities are decoded, and tags are
+   * replaced by whitespace so that words on either side of them are not run together. This is a
+   * lenient scan rather than a full parser; it never fails, even on malformed input.
+   * 
+   * @param html
+   *          the HTML to convert
+   * @return the text content of the HTML
+   */
+  public static String toPlainText(String html) {
+    StringBuilder builder = new StringBuilder(html.length());
+
+    int index = 0;
+    while (index < html.length()) {
+      char c = html.charAt(index);
+
+      if (c == '<') {
+        int tagEnd = html.indexOf('>', index);
+        if (tagEnd == -1) {
+          // A '<' that never closes isn't a tag; keep it as text.
+          builder.append(c);
+          index++;
+          continue;
+        }
+
+        String tagName = getTagName(html, index + 1, tagEnd);
+        index = tagEnd + 1;
+        if (tagName.equals("script") || tagName.equals("style")) {
+          int closeIndex = indexOfIgnoreCase(html, "</" + tagName, index);
+          if (closeIndex == -1) {
+            break;
+          }
+          tagEnd = html.indexOf('>', closeIndex);
+          index = (tagEnd == -1 ? html.length() : tagEnd + 1);
+        }
+
+        appendSpace(builder);
+      } else if (c == '&') {
+        int entityEnd = html.indexOf(';', index);
+        Character decoded = null;
+        if (entityEnd != -1 && entityEnd - index <= MAX_ENTITY_LENGTH) {
+          decoded = decodeEntity(html.substring(index + 1, entityEnd));
+        }
+
+        if (decoded == null) {
+          builder.append(c);
+          index++;
+        } else {
+          builder.append(decoded.charValue());
+          index = entityEnd + 1;
+        }
+      } else {
+        if (Character.isWhitespace(c)) {
+          appendSpace(builder);
+        } else {
+          builder.append(c);
+        }
+        index++;
+      }
+    }
+
+    return builder.toString().trim();
+  }
+
+  private static void appendSpace(StringBuilder builder) {
+    if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ' ') {
+      builder.append(' ');
+    }
+  }
+
+  private static Character decodeEntity(String entity) {
+    if (entity.startsWith("#")) {
+      try {
+        int codePoint;
+        if (entity.startsWith("#x") || entity.startsWith("#X")) {
+          codePoint = Integer.parseInt(entity.substring(2), 16);
+        } else {
+          codePoint = Integer.parseInt(entity.substring(1));
+        }
+
+        // Characters outside the BMP can't be represented by a single char; they don't matter for
+        // tokenization, so treat them as whitespace.
+        if (codePoint < 0 || codePoint > Character.MAX_VALUE) {
+          return ' ';
+        }
+        return (char) codePoint;
+      } catch (NumberFormatException exception) {
+        return null;
+      }
+    }
+
+    return CHARACTER_BY_ENTITY.get(entity.toLowerCase(Locale.ROOT));
+  }
+
+  private static String getTagName(String html, int start, int end) {
+    int index = start;
+    if (index < end && html.charAt(index) == '/') {
+      index++;
+    }
+
+    int nameStart = index;
+    while (index < end && Character.isLetterOrDigit(html.charAt(index))) {
+      index++;
+    }
+
+    // Closing tags never start a script or style element.
+    if (nameStart != start) {
+      return "";
+    }
+    return html.substring(nameStart, index).toLowerCase(Locale.ROOT);
+  }
+
+  private static int indexOfIgnoreCase(String html, String target, int fromIndex) {
+    for (int index = fromIndex; index <= html.length() - target.length(); ++index) {
+      if (html.regionMatches(true, index, target, 0, target.length())) {
+        return index;
+      }
+    }
+    return -1;
+  }
+}
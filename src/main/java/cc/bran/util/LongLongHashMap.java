@@ -0,0 +1,208 @@
+package cc.bran.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hash map from {@code long} to {@code long} that stores its entries in primitive arrays, without
+ * boxing or a per-entry object. It uses open addressing with linear probing, so lookups touch
+ * adjacent memory. Absent keys are reported with a "missing value" chosen when the map is created,
+ * which must be a value that is never stored. This class is not thread-safe.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class LongLongHashMap {
+
+  private static final int DEFAULT_EXPECTED_SIZE = 16;
+
+  static final double MAX_LOAD_FACTOR = 0.75;
+
+  private long[] keys;
+
+  private final long missingValue;
+
+  private int size;
+
+  private boolean[] used;
+
+  private long[] values;
+
+  /**
+   * Creates an empty map.
+   * 
+   * @param missingValue
+   *          the value returned for keys that are not in the map
+   */
+  public LongLongHashMap(long missingValue) {
+    this(missingValue, DEFAULT_EXPECTED_SIZE);
+  }
+
+  /**
+   * Creates an empty map with room for the given number of entries.
+   * 
+   * @param missingValue
+   *          the value returned for keys that are not in the map
+   * @param expectedSize
+   *          the number of entries the map can hold before it must grow
+   */
+  public LongLongHashMap(long missingValue, int expectedSize) {
+    Preconditions.checkArgument(expectedSize >= 0);
+
+    this.missingValue = missingValue;
+    allocate(getCapacity(expectedSize));
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    used = new boolean[capacity];
+    values = new long[capacity];
+    size = 0;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private long[] collect(long[] source) {
+    long[] result = new long[size];
+    int i = 0;
+    for (int slot = 0; slot < used.length; ++slot) {
+      if (used[slot]) {
+        result[i++] = source[slot];
+      }
+    }
+    return result;
+  }
+
+  public boolean containsKey(long key) {
+    return used[findSlot(key)];
+  }
+
+  /**
+   * Finds the slot holding the given key, or the unused slot where it would be inserted.
+   */
+  private int findSlot(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (used[slot] && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Gets the value for a key, or the missing value if the key is not in the map.
+   */
+  public long get(long key) {
+    int slot = findSlot(key);
+    return used[slot] ? values[slot] : missingValue;
+  }
+
+  /**
+   * Gets the keys in the map, in no particular order.
+   */
+  public long[] keys() {
+    return collect(keys);
+  }
+
+  /**
+   * Sets the value for a key.
+   * 
+   * @return the key's previous value, or the missing value if the key was not in the map
+   */
+  public long put(long key, long value) {
+    int slot = findSlot(key);
+    if (used[slot]) {
+      long previousValue = values[slot];
+      values[slot] = value;
+      return previousValue;
+    }
+
+    used[slot] = true;
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > keys.length * MAX_LOAD_FACTOR) {
+      resize(keys.length * 2);
+    }
+    return missingValue;
+  }
+
+  /**
+   * Removes a key from the map.
+   * 
+   * @return the key's value, or the missing value if the key was not in the map
+   */
+  public long remove(long key) {
+    int slot = findSlot(key);
+    if (!used[slot]) {
+      return missingValue;
+    }
+    long value = values[slot];
+
+    // Shift later entries of the probe sequence back into the hole, so that lookups, which stop at
+    // the first unused slot, still find them.
+    int mask = keys.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; used[next]; next = (next + 1) & mask) {
+      int home = hash(keys[next]) & mask;
+      boolean homeInRange = (hole <= next) ? (hole < home && home <= next)
+              : (hole < home || home <= next);
+      if (!homeInRange) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+    }
+    used[hole] = false;
+    --size;
+    return value;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    boolean[] oldUsed = used;
+    long[] oldValues = values;
+
+    allocate(capacity);
+    for (int slot = 0; slot < oldUsed.length; ++slot) {
+      if (oldUsed[slot]) {
+        put(oldKeys[slot], oldValues[slot]);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the values in the map, in no particular order.
+   */
+  public long[] values() {
+    return collect(values);
+  }
+
+  /**
+   * Gets the table capacity, a power of two, for a map that must hold the given number of entries
+   * without growing.
+   */
+  static int getCapacity(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(1, (int) (expectedSize / MAX_LOAD_FACTOR)));
+    return Math.max(2, capacity * 2);
+  }
+
+  /**
+   * Mixes the bits of a key, since post IDs and locations are far from uniformly distributed in
+   * their low bits. {@link LongObjectHashMap} uses the same hash and capacities.
+   */
+  static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+}
@@ -0,0 +1,181 @@
+package cc.bran.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hash map from {@code long} to objects that stores its keys in a primitive array, without boxing
+ * or a per-entry object. It uses open addressing with linear probing, like {@link LongLongHashMap}.
+ * Null values are not allowed, since {@link #get(long)} returns null for absent keys. This class is
+ * not thread-safe.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ * @param <V>
+ *          the type of the values
+ */
+public class LongObjectHashMap<V> {
+
+  private static final int DEFAULT_EXPECTED_SIZE = 16;
+
+  private long[] keys;
+
+  private int size;
+
+  private Object[] values;
+
+  /**
+   * Creates an empty map.
+   */
+  public LongObjectHashMap() {
+    this(DEFAULT_EXPECTED_SIZE);
+  }
+
+  /**
+   * Creates an empty map with room for the given number of entries.
+   * 
+   * @param expectedSize
+   *          the number of entries the map can hold before it must grow
+   */
+  public LongObjectHashMap(int expectedSize) {
+    Preconditions.checkArgument(expectedSize >= 0);
+
+    allocate(LongLongHashMap.getCapacity(expectedSize));
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    size = 0;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  public boolean containsKey(long key) {
+    return values[findSlot(key)] != null;
+  }
+
+  /**
+   * Finds the slot holding the given key, or the empty slot where it would be inserted.
+   */
+  private int findSlot(long key) {
+    int mask = keys.length - 1;
+    int slot = LongLongHashMap.hash(key) & mask;
+    while (values[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Gets the value for a key, or null if the key is not in the map.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    return (V) values[findSlot(key)];
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Gets the keys in the map, in no particular order.
+   */
+  public long[] keys() {
+    long[] result = new long[size];
+    int i = 0;
+    for (int slot = 0; slot < values.length; ++slot) {
+      if (values[slot] != null) {
+        result[i++] = keys[slot];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sets the value for a key.
+   * 
+   * @return the key's previous value, or null if the key was not in the map
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    Preconditions.checkNotNull(value);
+
+    int slot = findSlot(key);
+    V previousValue = (V) values[slot];
+    keys[slot] = key;
+    values[slot] = value;
+    if (previousValue == null && ++size > keys.length * LongLongHashMap.MAX_LOAD_FACTOR) {
+      resize(keys.length * 2);
+    }
+    return previousValue;
+  }
+
+  /**
+   * Removes a key from the map.
+   * 
+   * @return the key's value, or null if the key was not in the map
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int slot = findSlot(key);
+    V value = (V) values[slot];
+    if (value == null) {
+      return null;
+    }
+
+    // Shift later entries of the probe sequence back into the hole, as in LongLongHashMap.
+    int mask = keys.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+      int home = LongLongHashMap.hash(keys[next]) & mask;
+      boolean homeInRange = (hole <= next) ? (hole < home && home <= next)
+              : (hole < home || home <= next);
+      if (!homeInRange) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+    }
+    values[hole] = null;
+    --size;
+    return value;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+
+    allocate(capacity);
+    for (int slot = 0; slot < oldValues.length; ++slot) {
+      if (oldValues[slot] != null) {
+        put(oldKeys[slot], (V) oldValues[slot]);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the values in the map, in the same order as {@link #keys()}.
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> result = new ArrayList<>(size);
+    for (Object value : values) {
+      if (value != null) {
+        result.add((V) value);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,77 @@
+package cc.bran.tumblr.api;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Duration;
+
+/**
+ * Tests for {@link AdaptiveRateLimiter}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class AdaptiveRateLimiterTest extends TestCase {
+
+  private static final String CREDENTIAL = "credential";
+
+  private static final String ENDPOINT = "posts";
+
+  public void testAcquire() throws Exception {
+    AdaptiveRateLimiter rateLimiter = buildRateLimiter(100, 100);
+
+    // The bucket holds a second's worth of tokens, so only requests beyond the burst must wait.
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < 150; ++i) {
+      rateLimiter.acquire(CREDENTIAL, ENDPOINT);
+    }
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    assertTrue(elapsedMillis >= 400);
+    assertTrue(elapsedMillis < 5000);
+  }
+
+  public void testOnSuccess() throws Exception {
+    AdaptiveRateLimiter rateLimiter = buildRateLimiter(2, 4);
+
+    rateLimiter.onSuccess(CREDENTIAL, ENDPOINT);
+    assertEquals(2.5, rateLimiter.getRate(CREDENTIAL, ENDPOINT), 1e-9);
+    for (int i = 0; i < 100; ++i) {
+      rateLimiter.onSuccess(CREDENTIAL, ENDPOINT);
+    }
+    assertEquals(4, rateLimiter.getRate(CREDENTIAL, ENDPOINT), 1e-9);
+  }
+
+  public void testOnThrottled() throws Exception {
+    AdaptiveRateLimiter rateLimiter = buildRateLimiter(100, 100);
+    rateLimiter.acquire(CREDENTIAL, ENDPOINT);
+
+    rateLimiter.onThrottled(CREDENTIAL, ENDPOINT);
+    assertEquals(50, rateLimiter.getRate(CREDENTIAL, ENDPOINT), 1e-9);
+
+    // The next request waits out at least half of the base backoff.
+    long startNanos = System.nanoTime();
+    rateLimiter.acquire(CREDENTIAL, ENDPOINT);
+    assertTrue((System.nanoTime() - startNanos) / 1000000 >= 90);
+
+    // Other credentials and endpoints are unaffected.
+    assertEquals(100, rateLimiter.getRate("other credential", ENDPOINT), 1e-9);
+    assertEquals(100, rateLimiter.getRate(CREDENTIAL, "info"), 1e-9);
+  }
+
+  public void testOnThrottled_minimumRate() throws Exception {
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(1, 1, Duration.ZERO, Duration.ZERO);
+    for (int i = 0; i < 100; ++i) {
+      rateLimiter.onThrottled(CREDENTIAL, ENDPOINT);
+    }
+    assertEquals(0.1, rateLimiter.getRate(CREDENTIAL, ENDPOINT), 1e-9);
+  }
+
+  private static AdaptiveRateLimiter buildRateLimiter(double initialRate, double maxRate) {
+    return new AdaptiveRateLimiter(initialRate, maxRate, Duration.millis(200),
+            Duration.standardSeconds(1));
+  }
+
+  public static Test suite() {
+    return new TestSuite(AdaptiveRateLimiterTest.class);
+  }
+}
@@ -0,0 +1,97 @@
+package cc.bran.tumblr.api;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+/**
+ * Tests for {@link BackfillCrawler}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class BackfillCrawlerTest extends TestCase {
+
+  private static final String BLOG_NAME = "foo";
+
+  private static final int POST_COUNT = 1000;
+
+  public void testCrawl() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi(1);
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    BackfillCrawler crawler = new BackfillCrawler(api, 8, 3);
+    assertEquals(FakeTumblrApi.newestFirst(posts), crawler.crawl(BLOG_NAME));
+    assertEquals(0, crawler.getRescanCount());
+    assertTrue(api.getMaxRequestsInFlight() <= 3);
+    assertTrue(api.getMaxRequestsInFlight() > 1);
+  }
+
+  public void testCrawl_emptyBlog() throws Exception {
+    assertTrue(new BackfillCrawler(new FakeTumblrApi(), 4, 4).crawl(BLOG_NAME).isEmpty());
+  }
+
+  public void testCrawl_failure() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi() {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        if (requestNumber == 10) {
+          throw new IllegalStateException("request failed");
+        }
+      }
+    };
+    api.publish(FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT));
+
+    try {
+      new BackfillCrawler(api, 4, 4).crawl(BLOG_NAME);
+      fail();
+    } catch (IllegalStateException exception) {
+      assertEquals("request failed", exception.getMessage());
+    }
+  }
+
+  public void testCrawl_postsPublishedDuringCrawl() throws Exception {
+    final List<Post> newPosts = FakeTumblrApi.buildPosts(BLOG_NAME, 2 * POST_COUNT).subList(
+            POST_COUNT, 2 * POST_COUNT);
+    FakeTumblrApi api = new FakeTumblrApi(1) {
+
+      private int published = 0;
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        // Publish a few posts every few requests, shifting every offset.
+        if (requestNumber % 5 == 0 && published + 3 <= newPosts.size()) {
+          publish(newPosts.subList(published, published + 3));
+          published += 3;
+        }
+      }
+    };
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    BackfillCrawler crawler = new BackfillCrawler(api, 8, 8);
+    List<Post> crawledPosts = crawler.crawl(BLOG_NAME);
+    assertTrue(crawledPosts.containsAll(posts));
+    assertEquals(crawledPosts.size(), getIds(crawledPosts).size());
+    assertTrue(crawler.getRescanCount() > 0);
+  }
+
+  private static Set<Long> getIds(List<Post> posts) {
+    Set<Long> ids = new HashSet<>();
+    for (Post post : posts) {
+      ids.add(post.getId());
+    }
+    return ids;
+  }
+
+  public static Test suite() {
+    return new TestSuite(BackfillCrawlerTest.class);
+  }
+}
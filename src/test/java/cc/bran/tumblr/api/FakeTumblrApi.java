@@ -0,0 +1,272 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.TextPost;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+/**
+ * An in-memory {@link TumblrApi} for tests. Each blog's posts are kept newest first, as tumblr
+ * serves them, and may be published or deleted while a test is reading them. Subclasses can
+ * override {@link #onRequest(int)} to change the blog between requests.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class FakeTumblrApi implements TumblrApi {
+
+  private int maxRequestsInFlight;
+
+  private final Map<String, List<Post>> postsByBlogName;
+
+  private final AtomicInteger requestCount;
+
+  private final long requestMillis;
+
+  private int requestsInFlight;
+
+  public FakeTumblrApi() {
+    this(0);
+  }
+
+  /**
+   * Creates a new fake API.
+   * 
+   * @param requestMillis
+   *          how long each request takes
+   */
+  public FakeTumblrApi(long requestMillis) {
+    this.maxRequestsInFlight = 0;
+    this.postsByBlogName = new HashMap<>();
+    this.requestCount = new AtomicInteger();
+    this.requestMillis = requestMillis;
+    this.requestsInFlight = 0;
+  }
+
+  private void beginRequest() {
+    onRequest(requestCount.incrementAndGet());
+    synchronized (this) {
+      maxRequestsInFlight = Math.max(maxRequestsInFlight, ++requestsInFlight);
+    }
+
+    try {
+      Thread.sleep(requestMillis);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  public synchronized void delete(String blogName, long id) {
+    Iterator<Post> postIterator = getPostList(blogName).iterator();
+    while (postIterator.hasNext()) {
+      if (postIterator.next().getId() == id) {
+        postIterator.remove();
+      }
+    }
+  }
+
+  private synchronized void endRequest() {
+    --requestsInFlight;
+  }
+
+  @Override
+  public Iterable<Post> getAllPosts(final String blogName) {
+    return new Iterable<Post>() {
+
+      @Override
+      public Iterator<Post> iterator() {
+        return Iterators.concat(new AbstractIterator<Iterator<Post>>() {
+
+          private final PostCursor cursor = new PostCursor();
+
+          @Override
+          protected Iterator<Post> computeNext() {
+            List<Post> page = cursor.nextPage(FakeTumblrApi.this, blogName);
+            if (page.isEmpty()) {
+              return endOfData();
+            }
+            return page.iterator();
+          }
+        });
+      }
+    };
+  }
+
+  @Override
+  public Iterable<Post> getAllPostsWithTag(String blogName, final String tag) {
+    return Iterables.filter(getAllPosts(blogName), new Predicate<Post>() {
+
+      @Override
+      public boolean apply(Post post) {
+        return post.getTags().contains(tag);
+      }
+    });
+  }
+
+  /**
+   * Gets the largest number of requests that were ever in flight at once.
+   */
+  public synchronized int getMaxRequestsInFlight() {
+    return maxRequestsInFlight;
+  }
+
+  @Override
+  public Post getPost(String blogName, long id) {
+    beginRequest();
+    try {
+      synchronized (this) {
+        for (Post post : getPostList(blogName)) {
+          if (post.getId() == id) {
+            return post;
+          }
+        }
+        return null;
+      }
+    } finally {
+      endRequest();
+    }
+  }
+
+  @Override
+  public int getPostCount(String blogName) {
+    beginRequest();
+    try {
+      synchronized (this) {
+        return getPostList(blogName).size();
+      }
+    } finally {
+      endRequest();
+    }
+  }
+
+  private List<Post> getPostList(String blogName) {
+    List<Post> posts = postsByBlogName.get(blogName);
+    if (posts == null) {
+      posts = new ArrayList<>();
+      postsByBlogName.put(blogName, posts);
+    }
+    return posts;
+  }
+
+  @Override
+  public List<Post> getPosts(String blogName, int offset) {
+    beginRequest();
+    try {
+      synchronized (this) {
+        List<Post> posts = getPostList(blogName);
+        if (offset >= posts.size()) {
+          return ImmutableList.of();
+        }
+        return ImmutableList.copyOf(posts.subList(offset,
+                Math.min(offset + PAGE_SIZE, posts.size())));
+      }
+    } finally {
+      endRequest();
+    }
+  }
+
+  @Override
+  public List<Post> getPostsBefore(String blogName, Instant before, int offset) {
+    beginRequest();
+    try {
+      synchronized (this) {
+        List<Post> posts = new ArrayList<>();
+        for (Post post : getPostList(blogName)) {
+          if (post.getPostedInstant().getMillis() / 1000 < before.getMillis() / 1000) {
+            posts.add(post);
+          }
+        }
+        if (offset >= posts.size()) {
+          return ImmutableList.of();
+        }
+        return ImmutableList.copyOf(posts.subList(offset,
+                Math.min(offset + PAGE_SIZE, posts.size())));
+      }
+    } finally {
+      endRequest();
+    }
+  }
+
+  /**
+   * Gets the number of requests made so far.
+   */
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Called at the start of each request, before it reads any posts.
+   * 
+   * @param requestNumber
+   *          the number of requests made so far, including this one
+   */
+  protected void onRequest(int requestNumber) {
+  }
+
+  /**
+   * Publishes posts, which become the newest posts of their blogs in the order given.
+   */
+  public synchronized void publish(Iterable<Post> posts) {
+    for (Post post : posts) {
+      getPostList(post.getBlogName()).add(0, post);
+    }
+  }
+
+  public void publish(Post post) {
+    publish(ImmutableList.of(post));
+  }
+
+  /**
+   * Replaces a post, keeping its place among its blog's posts.
+   */
+  public synchronized void replace(Post post) {
+    List<Post> posts = getPostList(post.getBlogName());
+    for (int i = 0; i < posts.size(); ++i) {
+      if (posts.get(i).getId() == post.getId()) {
+        posts.set(i, post);
+      }
+    }
+  }
+
+  /**
+   * Builds a text post posted the given number of minutes after the epoch.
+   */
+  public static Post buildPost(String blogName, long id, long postedMinute) {
+    return new TextPost(id, blogName, "http://" + blogName + ".tumblr.com/" + id + "/",
+            new Instant(postedMinute * 60000), Instant.now(), ImmutableList.of("tag" + (id % 3)),
+            "post " + id, "body " + id);
+  }
+
+  /**
+   * Builds posts with ids 1 to {@code count}, posted a minute apart, newest last.
+   */
+  public static List<Post> buildPosts(String blogName, int count) {
+    List<Post> posts = new ArrayList<>(count);
+    for (long id = 1; id <= count; ++id) {
+      posts.add(buildPost(blogName, id, id));
+    }
+    return posts;
+  }
+
+  /**
+   * Gets the posts in reverse order, i.e. newest first for posts built by
+   * {@link #buildPosts(String, int)}.
+   */
+  public static List<Post> newestFirst(List<Post> posts) {
+    return ImmutableList.copyOf(Lists.reverse(posts));
+  }
+}
@@ -0,0 +1,248 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.types.TextPost;
+
+/**
+ * Tests for {@link JumblrTumblrApi}'s iteration over all of a blog's posts.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class JumblrTumblrApiTest extends TestCase {
+
+  /**
+   * A Jumblr client that serves posts from memory instead of making requests.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class FakeJumblrClient extends JumblrClient {
+
+    private final List<com.tumblr.jumblr.types.Post> posts;
+
+    private int requestCount;
+
+    public FakeJumblrClient(List<com.tumblr.jumblr.types.Post> posts) {
+      this.posts = posts;
+      this.requestCount = 0;
+    }
+
+    @Override
+    public List<com.tumblr.jumblr.types.Post> blogPosts(String blogName, Map<String, ?> options) {
+      int requestNumber;
+      synchronized (this) {
+        requestNumber = ++requestCount;
+      }
+      onRequest(requestNumber);
+
+      Long before = (Long) options.get("before");
+      int offset = (Integer) options.get("offset");
+      List<com.tumblr.jumblr.types.Post> matchingPosts = new ArrayList<>();
+      for (com.tumblr.jumblr.types.Post post : posts) {
+        if (before == null || post.getTimestamp() < before) {
+          matchingPosts.add(post);
+        }
+      }
+      if (offset >= matchingPosts.size()) {
+        return ImmutableList.of();
+      }
+      return ImmutableList.copyOf(matchingPosts.subList(offset,
+              Math.min(offset + TumblrApi.PAGE_SIZE, matchingPosts.size())));
+    }
+
+    /**
+     * Called at the start of each request; overridden to make requests block or fail.
+     */
+    protected void onRequest(int requestNumber) {
+    }
+  }
+
+  private static final Gson GSON = new Gson();
+
+  private static final int POST_COUNT = 45;
+
+  private static final long WAIT_MILLIS = 30000;
+
+  public void testIteration() {
+    Iterator<Post> iterator = newApi(buildPosts(POST_COUNT)).getAllPosts("ordered").iterator();
+
+    for (long id = POST_COUNT; id > 0; --id) {
+      assertTrue(iterator.hasNext());
+      assertEquals(id, iterator.next().getId());
+    }
+    assertFalse(iterator.hasNext());
+    assertFalse(iterator.hasNext());
+    try {
+      iterator.next();
+      fail("Expected NoSuchElementException");
+    } catch (NoSuchElementException expected) {
+    }
+    assertTrue(waitForFetcherExit("ordered"));
+  }
+
+  public void testIteration_abandoned() {
+    Iterator<Post> iterator = newApi(buildPosts(POST_COUNT)).getAllPosts("abandoned").iterator();
+    iterator.next();
+    iterator = null;
+
+    // The fetcher blocks on the full buffer until the abandoned iterator is collected.
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (isFetcherRunning("abandoned") && System.currentTimeMillis() < deadline) {
+      System.gc();
+      sleep(100);
+    }
+    assertFalse(isFetcherRunning("abandoned"));
+  }
+
+  public void testIteration_close() {
+    JumblrTumblrApi.PostsIterator iterator = (JumblrTumblrApi.PostsIterator) newApi(
+            buildPosts(POST_COUNT)).getAllPosts("closed").iterator();
+    assertEquals(POST_COUNT, iterator.next().getId());
+
+    iterator.close();
+    assertFalse(iterator.hasNext());
+    assertTrue(waitForFetcherExit("closed"));
+  }
+
+  public void testIteration_emptyBlog() {
+    Iterator<Post> iterator = newApi(buildPosts(0)).getAllPosts("empty").iterator();
+
+    assertFalse(iterator.hasNext());
+    assertTrue(waitForFetcherExit("empty"));
+  }
+
+  public void testIteration_fetchError() {
+    // An unknown post type makes conversion throw an AssertionError, which must still reach the
+    // consumer rather than killing the fetcher silently.
+    List<com.tumblr.jumblr.types.Post> posts = new ArrayList<>(buildPosts(POST_COUNT));
+    posts.set(TumblrApi.PAGE_SIZE + 5, GSON.fromJson(
+            "{\"id\": 1000, \"type\": \"hologram\", \"timestamp\": 1385000000}",
+            com.tumblr.jumblr.types.Post.class));
+    Iterator<Post> iterator = newApi(posts).getAllPosts("error").iterator();
+
+    for (int i = 0; i < TumblrApi.PAGE_SIZE; ++i) {
+      iterator.next();
+    }
+    try {
+      iterator.hasNext();
+      fail("Expected AssertionError");
+    } catch (AssertionError expected) {
+    }
+    assertTrue(waitForFetcherExit("error"));
+  }
+
+  public void testIteration_fetchFailure() {
+    JumblrClient client = new FakeJumblrClient(buildPosts(POST_COUNT)) {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        if (requestNumber == 2) {
+          throw new IllegalStateException("request failed");
+        }
+      }
+    };
+    Iterator<Post> iterator = new JumblrTumblrApi(client).getAllPosts("failure").iterator();
+
+    for (int i = 0; i < TumblrApi.PAGE_SIZE; ++i) {
+      iterator.next();
+    }
+    try {
+      iterator.hasNext();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException exception) {
+      assertEquals("request failed", exception.getMessage());
+    }
+    assertFalse(iterator.hasNext());
+    assertTrue(waitForFetcherExit("failure"));
+  }
+
+  public void testIteration_interrupted() {
+    final CountDownLatch requestLatch = new CountDownLatch(1);
+    JumblrClient client = new FakeJumblrClient(buildPosts(POST_COUNT)) {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        try {
+          requestLatch.await();
+        } catch (InterruptedException exception) {
+          throw new IllegalStateException(exception);
+        }
+      }
+    };
+    Iterator<Post> iterator = new JumblrTumblrApi(client).getAllPosts("interrupted").iterator();
+
+    Thread.currentThread().interrupt();
+    try {
+      iterator.hasNext();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertTrue(Thread.interrupted());
+    assertFalse(iterator.hasNext());
+    requestLatch.countDown();
+    assertTrue(waitForFetcherExit("interrupted"));
+  }
+
+  private static List<com.tumblr.jumblr.types.Post> buildPosts(int count) {
+    // Newest first, one second apart.
+    ImmutableList.Builder<com.tumblr.jumblr.types.Post> postsBuilder = ImmutableList.builder();
+    for (long id = count; id > 0; --id) {
+      postsBuilder.add(GSON.fromJson(String.format("{\"id\": %d, \"type\": \"text\", "
+              + "\"blog_name\": \"foo\", \"post_url\": \"http://foo.tumblr.com/post/%d\", "
+              + "\"timestamp\": %d, \"tags\": [\"tag\"], \"title\": \"post %d\", "
+              + "\"body\": \"body %d\"}", id, id, 1385000000 + id, id, id), TextPost.class));
+    }
+    return postsBuilder.build();
+  }
+
+  private static boolean isFetcherRunning(String blogName) {
+    String threadName = "JumblrTumblrApi fetcher for " + blogName;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(threadName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static JumblrTumblrApi newApi(List<com.tumblr.jumblr.types.Post> posts) {
+    return new JumblrTumblrApi(new FakeJumblrClient(posts));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException exception) {
+      throw new AssertionError(exception);
+    }
+  }
+
+  private static boolean waitForFetcherExit(String blogName) {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (isFetcherRunning(blogName)) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      sleep(10);
+    }
+    return true;
+  }
+
+  public static Test suite() {
+    return new TestSuite(JumblrTumblrApiTest.class);
+  }
+}
@@ -0,0 +1,93 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+/**
+ * Tests for {@link OffsetPager}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class OffsetPagerTest extends TestCase {
+
+  private static final String BLOG_NAME = "foo";
+
+  private static final int POST_COUNT = 105;
+
+  public void testNextPage() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi();
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    OffsetPager pager = new OffsetPager();
+    assertEquals(FakeTumblrApi.newestFirst(posts), readAll(api, pager));
+    assertEquals(0, pager.getDuplicateCount());
+    assertEquals(0, pager.getGapCount());
+  }
+
+  public void testNextPage_postsDeletedDuringIteration() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi() {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        // Once a few pages have been read, delete posts that have already been read, shifting
+        // later posts to lower offsets.
+        if (requestNumber == 3) {
+          for (long id = POST_COUNT; id > POST_COUNT - 25; --id) {
+            delete(BLOG_NAME, id);
+          }
+        }
+      }
+    };
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    OffsetPager pager = new OffsetPager();
+    List<Post> readPosts = readAll(api, pager);
+    assertEquals(FakeTumblrApi.newestFirst(posts), readPosts);
+    assertTrue(pager.getGapCount() > 0);
+
+    // Only the window around the gap is requested again.
+    assertTrue(api.getRequestCount() < 2 * (POST_COUNT / TumblrApi.PAGE_SIZE + 1));
+  }
+
+  public void testNextPage_postsPublishedDuringIteration() throws Exception {
+    final List<Post> newPosts = FakeTumblrApi.buildPosts(BLOG_NAME, 2 * POST_COUNT).subList(
+            POST_COUNT, 2 * POST_COUNT);
+    FakeTumblrApi api = new FakeTumblrApi() {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        if (requestNumber > 1) {
+          publish(newPosts.subList(5 * requestNumber, 5 * requestNumber + 5));
+        }
+      }
+    };
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    OffsetPager pager = new OffsetPager();
+    assertEquals(FakeTumblrApi.newestFirst(posts), readAll(api, pager));
+    assertTrue(pager.getDuplicateCount() > 0);
+    assertEquals(0, pager.getGapCount());
+  }
+
+  private static List<Post> readAll(TumblrApi api, OffsetPager pager) {
+    List<Post> posts = new ArrayList<>();
+    for (List<Post> page = pager.nextPage(api, BLOG_NAME); !page.isEmpty(); page = pager
+            .nextPage(api, BLOG_NAME)) {
+      posts.addAll(page);
+    }
+    return posts;
+  }
+
+  public static Test suite() {
+    return new TestSuite(OffsetPagerTest.class);
+  }
+}
@@ -0,0 +1,76 @@
+package cc.bran.tumblr.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+/**
+ * Tests for {@link PostCursor}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class PostCursorTest extends TestCase {
+
+  private static final String BLOG_NAME = "foo";
+
+  private static final int POST_COUNT = 105;
+
+  public void testNextPage() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi();
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    assertEquals(FakeTumblrApi.newestFirst(posts), readAll(api));
+  }
+
+  public void testNextPage_postsChangedDuringIteration() throws Exception {
+    final List<Post> newPosts = FakeTumblrApi.buildPosts(BLOG_NAME, 2 * POST_COUNT).subList(
+            POST_COUNT, 2 * POST_COUNT);
+    FakeTumblrApi api = new FakeTumblrApi() {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        // Once the first page has been read, publish new posts and delete one that has already
+        // been read, which shift later offsets in opposite directions.
+        if (requestNumber > 1) {
+          publish(newPosts.subList(3 * requestNumber, 3 * requestNumber + 3));
+          delete(BLOG_NAME, POST_COUNT - requestNumber);
+        }
+      }
+    };
+    List<Post> posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+
+    assertEquals(FakeTumblrApi.newestFirst(posts), readAll(api));
+  }
+
+  public void testNextPage_tiedPostedInstants() throws Exception {
+    FakeTumblrApi api = new FakeTumblrApi();
+    List<Post> posts = new ArrayList<>();
+    for (long id = 1; id <= POST_COUNT; ++id) {
+      posts.add(FakeTumblrApi.buildPost(BLOG_NAME, id, id / 50));
+    }
+    api.publish(posts);
+
+    assertEquals(FakeTumblrApi.newestFirst(posts), readAll(api));
+  }
+
+  private static List<Post> readAll(TumblrApi api) {
+    PostCursor cursor = new PostCursor();
+    List<Post> posts = new ArrayList<>();
+    for (List<Post> page = cursor.nextPage(api, BLOG_NAME); !page.isEmpty(); page = cursor
+            .nextPage(api, BLOG_NAME)) {
+      posts.addAll(page);
+    }
+    return posts;
+  }
+
+  public static Test suite() {
+    return new TestSuite(PostCursorTest.class);
+  }
+}
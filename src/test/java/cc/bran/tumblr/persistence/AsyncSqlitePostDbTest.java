@@ -0,0 +1,223 @@
+package cc.bran.tumblr.persistence;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Tests for {@link AsyncSqlitePostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class AsyncSqlitePostDbTest extends TestCase {
+
+  /**
+   * An executor that only runs tasks when told to, so that tests can control what is in flight.
+   */
+  private static class ManualExecutor implements Executor {
+
+    private final List<Runnable> tasks = Lists.newArrayList();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  private static final long WAIT_MILLIS = 30000;
+
+  private SqlitePostDb sqlitePostDb;
+
+  @Override
+  public void setUp() throws Exception {
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:"));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    sqlitePostDb.close();
+  }
+
+  public void testCancel() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb, executor, 1);
+
+    ListenableFuture<Void> putFuture = asyncPostDb.put(PostDbTestCase.buildPost(1));
+    assertEquals(1, asyncPostDb.getInFlightCount());
+    assertTrue(putFuture.cancel(false));
+    assertEquals(0, asyncPostDb.getInFlightCount());
+
+    executor.runAll();
+    assertNull(sqlitePostDb.get(1));
+  }
+
+  public void testCancel_running() throws Exception {
+    final CountDownLatch getStartedLatch = new CountDownLatch(1);
+    final CountDownLatch getLatch = new CountDownLatch(1);
+    sqlitePostDb.close();
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:")) {
+
+      @Override
+      public Post get(long id) throws SQLException {
+        getStartedLatch.countDown();
+        Uninterruptibles.awaitUninterruptibly(getLatch);
+        return super.get(id);
+      }
+    };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb, executor, 1);
+      ListenableFuture<Post> getFuture = asyncPostDb.get(1);
+      getStartedLatch.await();
+
+      // The read keeps running after its future is cancelled, so it keeps its slot.
+      assertTrue(getFuture.cancel(true));
+      assertEquals(1, asyncPostDb.getInFlightCount());
+      try {
+        asyncPostDb.get(2).get();
+        fail("Expected ExecutionException");
+      } catch (ExecutionException expected) {
+        assertTrue(expected.getCause() instanceof RejectedExecutionException);
+      }
+
+      getLatch.countDown();
+      assertTrue(waitForInFlightCount(asyncPostDb, 0));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testCancel_scanBetweenBatches() throws Exception {
+    final AtomicInteger batchCount = new AtomicInteger();
+    final CountDownLatch firstBatchLatch = new CountDownLatch(1);
+    final CountDownLatch cancelledLatch = new CountDownLatch(1);
+    sqlitePostDb.close();
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:")) {
+
+      @Override
+      public List<Post> getAll(Collection<Long> ids) throws SQLException {
+        List<Post> posts = super.getAll(ids);
+        if (batchCount.incrementAndGet() == 1) {
+          firstBatchLatch.countDown();
+          // Waiting uninterruptibly keeps the cancellation's interrupt for the scan to see.
+          Uninterruptibles.awaitUninterruptibly(cancelledLatch);
+        }
+        return posts;
+      }
+    };
+    List<Post> posts = Lists.newArrayList();
+    for (long id = 1; id <= 1200; ++id) {
+      posts.add(PostDbTestCase.buildPost(id));
+    }
+    sqlitePostDb.put(posts);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb, executor, 1);
+      ListenableFuture<List<Post>> getAllFuture = asyncPostDb.getAll();
+      firstBatchLatch.await();
+      assertTrue(getAllFuture.cancel(true));
+      cancelledLatch.countDown();
+
+      assertTrue(waitForInFlightCount(asyncPostDb, 0));
+      assertEquals(1, batchCount.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testGetAll() throws Exception {
+    AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb,
+            MoreExecutors.sameThreadExecutor(), 1);
+
+    List<Post> posts = Lists.newArrayList();
+    for (long id = 1; id <= 1200; ++id) {
+      posts.add(PostDbTestCase.buildPost(id));
+    }
+    asyncPostDb.put(posts).get();
+
+    assertEquals(ImmutableSet.copyOf(posts), ImmutableSet.copyOf(asyncPostDb.getAll().get()));
+  }
+
+  public void testInFlightLimit() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb, executor, 2);
+
+    ListenableFuture<Void> firstPutFuture = asyncPostDb.put(PostDbTestCase.buildPost(1));
+    ListenableFuture<Void> secondPutFuture = asyncPostDb.put(PostDbTestCase.buildPost(2));
+    ListenableFuture<Post> rejectedGetFuture = asyncPostDb.get(1);
+    assertEquals(2, asyncPostDb.getInFlightCount());
+    try {
+      rejectedGetFuture.get();
+      fail("Expected ExecutionException");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof RejectedExecutionException);
+    }
+
+    executor.runAll();
+    assertTrue(firstPutFuture.isDone());
+    assertTrue(secondPutFuture.isDone());
+    assertEquals(0, asyncPostDb.getInFlightCount());
+
+    ListenableFuture<Post> getFuture = asyncPostDb.get(1);
+    executor.runAll();
+    assertEquals(PostDbTestCase.buildPost(1), getFuture.get());
+  }
+
+  public void testPutGetDelete() throws Exception {
+    AsyncSqlitePostDb asyncPostDb = new AsyncSqlitePostDb(sqlitePostDb,
+            MoreExecutors.sameThreadExecutor(), 1);
+
+    asyncPostDb.put(ImmutableList.of(PostDbTestCase.buildPost(1), PostDbTestCase.buildPost(2)))
+            .get();
+    assertEquals(PostDbTestCase.buildPost(1), asyncPostDb.get(1).get());
+
+    asyncPostDb.delete(1).get();
+    assertNull(asyncPostDb.get(1).get());
+    assertEquals(PostDbTestCase.buildPost(2), asyncPostDb.get(2).get());
+  }
+
+  private static boolean waitForInFlightCount(AsyncSqlitePostDb asyncPostDb, int inFlightCount)
+          throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (asyncPostDb.getInFlightCount() != inFlightCount) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  public static Test suite() {
+    return new TestSuite(AsyncSqlitePostDbTest.class);
+  }
+}
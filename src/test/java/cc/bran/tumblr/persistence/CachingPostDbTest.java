@@ -0,0 +1,113 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+/**
+ * Tests for {@link CachingPostDb}.
+ *
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class CachingPostDbTest extends PostDbTestCase<CachingPostDb> {
+
+  private static final int CACHE_SIZE = 100;
+
+  private SqlitePostDb sqlitePostDb;
+
+  @Override
+  CachingPostDb openPostDb() throws Exception {
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:"));
+    return CachingPostDb.withMaximumSize(sqlitePostDb, CACHE_SIZE);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    sqlitePostDb.close();
+  }
+
+  public void testEviction() throws Exception {
+    postDb.put(buildPostCollection(2 * CACHE_SIZE).values());
+    for (long id = 1; id <= 2 * CACHE_SIZE; ++id) {
+      postDb.get(id);
+    }
+
+    assertTrue(postDb.getStats().evictionCount() >= CACHE_SIZE);
+  }
+
+  public void testEviction_weight() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(CACHE_SIZE);
+    sqlitePostDb.put(posts.values());
+    postDb = CachingPostDb.withMaximumWeight(sqlitePostDb,
+            10 * PostCodec.encode(posts.get(1L)).length);
+    for (long id = 1; id <= CACHE_SIZE; ++id) {
+      assertEquals(posts.get(id), postDb.get(id));
+    }
+
+    assertTrue(postDb.getStats().evictionCount() >= CACHE_SIZE - 10);
+  }
+
+  public void testHitsAndMisses() throws Exception {
+    postDb.put(TEXT_POST_1);
+
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+    assertEquals(1, postDb.getStats().missCount());
+    assertEquals(1, postDb.getStats().hitCount());
+  }
+
+  public void testHotSet() throws Exception {
+    File file = File.createTempFile("CachingPostDbTest", ".hot");
+    try {
+      file.delete();
+      assertEquals(0, postDb.loadHotSet(file));
+
+      postDb.put(buildPostCollection(10).values());
+      postDb.get(3);
+      postDb.get(7);
+      postDb.get(11);
+      postDb.saveHotSet(file);
+
+      postDb = CachingPostDb.withMaximumSize(sqlitePostDb, CACHE_SIZE);
+      assertEquals(2, postDb.loadHotSet(file));
+      postDb.get(3);
+      postDb.get(7);
+      assertEquals(2, postDb.getStats().hitCount());
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testInvalidation() throws Exception {
+    postDb.put(TEXT_POST_1);
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+
+    postDb.put(TEXT_POST_1_EDITED);
+    assertEquals(TEXT_POST_1_EDITED, postDb.get(TEXT_POST_1.getId()));
+
+    postDb.delete(TEXT_POST_1.getId());
+    assertNull(postDb.get(TEXT_POST_1.getId()));
+  }
+
+  public void testMissingPostIsCached() throws Exception {
+    assertNull(postDb.get(TEXT_POST_1.getId()));
+
+    // A write that bypasses the cache is not seen until the cached lookup is invalidated.
+    sqlitePostDb.put(TEXT_POST_1);
+    assertNull(postDb.get(TEXT_POST_1.getId()));
+    assertEquals(1, postDb.getStats().hitCount());
+
+    postDb.put(TEXT_POST_1);
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+  }
+
+  public static Test suite() {
+    return new TestSuite(CachingPostDbTest.class);
+  }
+}
@@ -0,0 +1,181 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link ConcurrentPostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class ConcurrentPostDbTest extends TestCase {
+
+  private static final int CLOSE_ROUNDS = 20;
+
+  private static final int THREAD_COUNT = 4;
+
+  private static final long WAIT_SECONDS = 30;
+
+  private static final int WRITES_PER_THREAD = 25;
+
+  private ConcurrentPostDb concurrentPostDb;
+
+  private File dbFile;
+
+  private SqlitePostDb sqlitePostDb;
+
+  @Override
+  public void setUp() throws Exception {
+    dbFile = File.createTempFile("ConcurrentPostDbTest", ".db");
+    sqlitePostDb = new SqlitePostDb(dbFile.getPath(), THREAD_COUNT);
+    concurrentPostDb = new ConcurrentPostDb(sqlitePostDb, 2);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    concurrentPostDb.close();
+    sqlitePostDb.close();
+    dbFile.delete();
+    new File(dbFile.getPath() + "-shm").delete();
+    new File(dbFile.getPath() + "-wal").delete();
+  }
+
+  public void testClose() throws Exception {
+    concurrentPostDb.put(PostDbTestCase.buildPost(1));
+    concurrentPostDb.close();
+
+    try {
+      concurrentPostDb.put(PostDbTestCase.buildPost(2));
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(PostDbTestCase.buildPost(1), concurrentPostDb.get(1));
+    assertNull(concurrentPostDb.get(2));
+  }
+
+  public void testCloseDuringWrites() throws Exception {
+    // With room for a single queued write, writers are often blocked in the queue or between
+    // checking for close and queueing when close() runs. Each write must either complete or fail;
+    // none may be left waiting for a writer thread that has stopped.
+    for (int round = 0; round < CLOSE_ROUNDS; ++round) {
+      final ConcurrentPostDb postDb = new ConcurrentPostDb(sqlitePostDb, 1);
+      final long firstId = round * THREAD_COUNT * WRITES_PER_THREAD + 1;
+      final CountDownLatch startLatch = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+      try {
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+          final long threadFirstId = firstId + thread * WRITES_PER_THREAD;
+          futures.add(executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+              startLatch.await();
+              for (long id = threadFirstId; id < threadFirstId + WRITES_PER_THREAD; ++id) {
+                try {
+                  postDb.put(PostDbTestCase.buildPost(id));
+                } catch (IllegalStateException expected) {
+                  // Closed before the write was queued, or cancelled by the writer's shutdown.
+                  return null;
+                }
+                assertEquals(PostDbTestCase.buildPost(id), postDb.get(id));
+              }
+              return null;
+            }
+          }));
+        }
+
+        startLatch.countDown();
+        while (postDb.getWriteCount() < THREAD_COUNT) {
+          Thread.yield();
+        }
+        postDb.close();
+        for (Future<Void> future : futures) {
+          future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      assertEquals(0, postDb.getQueueDepth());
+    }
+  }
+
+  public void testClose_interrupted() throws Exception {
+    concurrentPostDb.put(PostDbTestCase.buildPost(1));
+    Thread.currentThread().interrupt();
+    try {
+      concurrentPostDb.close();
+    } catch (SQLException expected) {
+      // Thrown if the writer thread had not stopped yet when close() began waiting for it.
+    }
+    assertTrue(Thread.interrupted());
+
+    // The interrupted close() still queued the shutdown, so the writer thread stops and closing
+    // again returns rather than waiting forever.
+    concurrentPostDb.close();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assertFalse(thread.getName().equals("ConcurrentPostDb writer"));
+    }
+  }
+
+  public void testConcurrentWrites() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+        final int firstId = thread * WRITES_PER_THREAD + 1;
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            for (int id = firstId; id < firstId + WRITES_PER_THREAD; ++id) {
+              concurrentPostDb.put(PostDbTestCase.buildPost(id));
+              assertEquals(PostDbTestCase.buildPost(id), concurrentPostDb.get(id));
+            }
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(THREAD_COUNT * WRITES_PER_THREAD, concurrentPostDb.getAll().size());
+    assertEquals(THREAD_COUNT * WRITES_PER_THREAD, concurrentPostDb.getWriteCount());
+    assertEquals(0, concurrentPostDb.getQueueDepth());
+    assertFalse(concurrentPostDb.getMaxWaitTime().isShorterThan(
+            concurrentPostDb.getAverageWaitTime()));
+  }
+
+  public void testDelete() throws Exception {
+    concurrentPostDb.put(ImmutableList.of(PostDbTestCase.buildPost(1),
+            PostDbTestCase.buildPost(2)));
+    concurrentPostDb.delete(1);
+
+    assertNull(concurrentPostDb.get(1));
+    assertEquals(PostDbTestCase.buildPost(2), concurrentPostDb.get(2));
+    assertEquals(2, concurrentPostDb.getWriteCount());
+  }
+
+  public static Test suite() {
+    return new TestSuite(ConcurrentPostDbTest.class);
+  }
+}
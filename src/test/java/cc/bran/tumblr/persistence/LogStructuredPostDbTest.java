@@ -0,0 +1,127 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.TextPost;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link LogStructuredPostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class LogStructuredPostDbTest extends PostDbTestCase<LogStructuredPostDb> {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  private File directory;
+
+  @Override
+  LogStructuredPostDb openPostDb() throws Exception {
+    directory = Files.createTempDirectory("LogStructuredPostDbTest").toFile();
+    return new LogStructuredPostDb(directory.getPath(), SEGMENT_SIZE);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testCompact() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
+    for (int i = 0; i < 4; ++i) {
+      postDb.put(posts.values());
+    }
+    postDb.delete(1);
+
+    // Compaction may already have run in the background; either way, some of the segments that were
+    // written must be gone by the time it has run here.
+    postDb.compact();
+    int maxSegmentNumber = 0;
+    for (File file : directory.listFiles()) {
+      maxSegmentNumber = Math.max(maxSegmentNumber,
+              Integer.parseInt(file.getName().replaceAll("\\D", "")));
+    }
+    assertTrue(postDb.getSegmentCount() < maxSegmentNumber + 1);
+    assertEquals(0, postDb.compact());
+    assertNull(postDb.get(1));
+    assertEquals(posts.get(2L), postDb.get(2));
+    assertEquals(POST_COUNT - 1, postDb.getAll().size());
+
+    postDb.close();
+    postDb = new LogStructuredPostDb(directory.getPath(), SEGMENT_SIZE);
+    assertNull(postDb.get(1));
+    assertEquals(POST_COUNT - 1, postDb.getAll().size());
+  }
+
+  public void testLargePost() throws Exception {
+    Post largePost = new TextPost(1, "foo.tumblr.com", "http://foo.tumblr.com/1/", Instant.now(),
+            Instant.now(), ImmutableList.<String> of(), "large",
+            Strings.repeat("x", 2 * SEGMENT_SIZE));
+    postDb.put(ImmutableList.of(TEXT_POST_1, largePost, QUOTE_POST_1));
+
+    assertEquals(largePost, postDb.get(1));
+    assertEquals(ImmutableSet.of(TEXT_POST_1, largePost, QUOTE_POST_1),
+            ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testReopen() throws Exception {
+    postDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1, PHOTO_POST_1));
+    postDb.put(TEXT_POST_1_EDITED);
+    postDb.delete(QUOTE_POST_1.getId());
+    postDb.close();
+
+    postDb = new LogStructuredPostDb(directory.getPath(), SEGMENT_SIZE);
+    assertEquals(TEXT_POST_1_EDITED, postDb.get(TEXT_POST_1.getId()));
+    assertNull(postDb.get(QUOTE_POST_1.getId()));
+    assertEquals(PHOTO_POST_1, postDb.get(PHOTO_POST_1.getId()));
+
+    // Appends continue where the log left off.
+    postDb.put(QUOTE_POST_1);
+    postDb.close();
+    postDb = new LogStructuredPostDb(directory.getPath(), SEGMENT_SIZE);
+    assertEquals(QUOTE_POST_1, postDb.get(QUOTE_POST_1.getId()));
+  }
+
+  public void testTornRecord() throws Exception {
+    postDb.put(TEXT_POST_1);
+    postDb.put(QUOTE_POST_1);
+    postDb.close();
+
+    // Corrupt the last byte of the second record, as if the write had been interrupted.
+    File segmentFile = directory.listFiles()[0];
+    int textPostLength = PostCodec.encode(TEXT_POST_1).length + 17;
+    int quotePostLength = PostCodec.encode(QUOTE_POST_1).length + 17;
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw")) {
+      long position = textPostLength + quotePostLength - 1;
+      randomAccessFile.seek(position);
+      int lastByte = randomAccessFile.read();
+      randomAccessFile.seek(position);
+      randomAccessFile.write(~lastByte);
+    }
+
+    postDb = new LogStructuredPostDb(directory.getPath(), SEGMENT_SIZE);
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+    assertNull(postDb.get(QUOTE_POST_1.getId()));
+  }
+
+  public static Test suite() {
+    return new TestSuite(LogStructuredPostDbTest.class);
+  }
+}
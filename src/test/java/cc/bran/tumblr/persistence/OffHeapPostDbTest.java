@@ -0,0 +1,73 @@
+package cc.bran.tumblr.persistence;
+
+import java.sql.DriverManager;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link OffHeapPostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class OffHeapPostDbTest extends PostDbTestCase<OffHeapPostDb> {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  @Override
+  OffHeapPostDb openPostDb() {
+    return new OffHeapPostDb(CHUNK_SIZE);
+  }
+
+  public void testCompaction() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
+    postDb.put(posts.values());
+    long allocatedBytes = postDb.getAllocatedBytes();
+
+    for (int i = 0; i < 10; ++i) {
+      postDb.put(posts.values());
+    }
+    assertTrue(postDb.getAllocatedBytes() <= 3 * allocatedBytes);
+    assertEquals(ImmutableSet.copyOf(posts.values()), ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testDeleteMany() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
+    postDb.put(posts.values());
+    for (long id = 1; id <= POST_COUNT; id += 2) {
+      postDb.delete(id);
+    }
+
+    for (long id = 1; id <= POST_COUNT; ++id) {
+      assertEquals(id % 2 == 0 ? posts.get(id) : null, postDb.get(id));
+    }
+    assertEquals(POST_COUNT / 2, postDb.getAll().size());
+  }
+
+  public void testLoadAndDump() throws Exception {
+    try (SqlitePostDb sourcePostDb = new SqlitePostDb(DriverManager
+            .getConnection("jdbc:sqlite::memory:"));
+            SqlitePostDb targetPostDb = new SqlitePostDb(DriverManager
+                    .getConnection("jdbc:sqlite::memory:"))) {
+      sourcePostDb.put(ImmutableList.of(TEXT_POST_1, PHOTO_POST_1, CHAT_POST_1));
+
+      postDb.loadFrom(sourcePostDb);
+      assertEquals(PHOTO_POST_1, postDb.get(PHOTO_POST_1.getId()));
+
+      postDb.put(AUDIO_POST_1);
+      postDb.dumpTo(targetPostDb);
+      assertEquals(ImmutableSet.of(TEXT_POST_1, PHOTO_POST_1, CHAT_POST_1, AUDIO_POST_1),
+              ImmutableSet.copyOf(targetPostDb.getAll()));
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(OffHeapPostDbTest.class);
+  }
+}
@@ -0,0 +1,356 @@
+package cc.bran.tumblr.persistence;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.AnswerPost;
+import cc.bran.tumblr.types.AudioPost;
+import cc.bran.tumblr.types.ChatPost;
+import cc.bran.tumblr.types.ChatPost.Dialogue;
+import cc.bran.tumblr.types.LinkPost;
+import cc.bran.tumblr.types.PhotoPost;
+import cc.bran.tumblr.types.PhotoPost.Photo;
+import cc.bran.tumblr.types.PhotoPost.Photo.PhotoSize;
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.QuotePost;
+import cc.bran.tumblr.types.TextPost;
+import cc.bran.tumblr.types.VideoPost;
+import cc.bran.tumblr.types.VideoPost.Video;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests of the behavior that every {@link PostDb} must share. Subclasses open the implementation
+ * under test and add tests of their own.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+// The databases are closed in tearDown(), never by try-with-resources, so the [try] lint's warning
+// about AutoCloseable.close() throwing InterruptedException does not apply.
+@SuppressWarnings("try")
+public abstract class PostDbTestCase<T extends PostDb & AutoCloseable> extends TestCase {
+
+  protected static final Post ANSWER_POST_1 = new AnswerPost(566, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/566/whee", Instant.now().minus(Duration.millis(5100)),
+          Instant.now().minus(Duration.millis(2200)), ImmutableList.of("tag1", "tag4"), "fool",
+          "http://fool.tumblr.com/", "War, huh, what is it good for?", "Absolutely nothing.");
+
+  protected static final Post ANSWER_POST_1_EDITED = new AnswerPost(566, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/566/whee", Instant.now().minus(Duration.millis(5100)),
+          Instant.now().minus(Duration.millis(2200)), ImmutableList.of("tag1", "tag4"), "fool",
+          "http://fool.tumblr.com/", "War, huh, what is it good for?", "Oil, lol.");
+
+  protected static final Post AUDIO_POST_1 = new AudioPost(414, "foo.tumblr.com",
+          "http://foo.tumblr.com/414/whee", Instant.now().minus(Duration.millis(5200)),
+          Instant.now(), ImmutableList.of("tag2", "tag5"), "a song", "player", 52, "album art",
+          "fartist", "fartistry", "a track name", 2, 1993);
+
+  protected static final Post AUDIO_POST_1_EDITED = new AudioPost(414, "foo.tumblr.com",
+          "http://foo.tumblr.com/414/whee", Instant.now().minus(Duration.millis(5200)),
+          Instant.now(), ImmutableList.of("tag4", "tag5"), "edited song", "player", 52,
+          "album art", "artist formerly known as fartist", "fartistry x 2", "a track name", 2, 1993);
+
+  protected static final Post CHAT_POST_1 = new ChatPost(123, "foo.tumblr.com",
+          "http://foo.tumblr.com/123/whee", Instant.now().minus(Duration.millis(1234)),
+          Instant.now(), ImmutableList.of("tag2", "tag5"), "chat title", "chat body",
+          ImmutableList.of(new Dialogue("person 1", "first", "hello"), new Dialogue("person 2",
+                  "second", "hi")));
+
+  protected static final Post CHAT_POST_1_EDITED = new ChatPost(123, "foo.tumblr.com",
+          "http://foo.tumblr.com/123/whee", Instant.now().minus(Duration.millis(1234)),
+          Instant.now(), ImmutableList.of("tag2", "tag5"), "chat title", "chat body",
+          ImmutableList.of(new Dialogue("person 1", "first", "hello"), new Dialogue("person 2",
+                  "second", "hi"), new Dialogue("person 1", "third", "how are you?")));
+
+  protected static final Post LINK_POST_1 = new LinkPost(4003, "foo.tumblr.com",
+          "http://foo.tumblr.com/4003/whee", Instant.now(), Instant.now(), ImmutableList.of("tag5",
+                  "tag6"), "title", "url", "description");
+
+  protected static final Post LINK_POST_1_EDITED = new LinkPost(4003, "foo.tumblr.com",
+          "http://foo.tumblr.com/4003/whee", Instant.now(), Instant.now(), ImmutableList.of("tag5",
+                  "tag6"), "new-title", "new-url", "new-description");
+
+  protected static final Post PHOTO_POST_1 = new PhotoPost(10003, "foo.tumblr.com",
+          "http://foo.tumblr.com/10003/whee", Instant.now(), Instant.now(), ImmutableList.of(
+                  "tag1", "tag3", "tag5"), ImmutableList.of(
+                  new Photo("caption1", ImmutableList.of(new PhotoSize(800, 600, "hello"),
+                          new PhotoSize(1024, 768, "goodbye"))), new Photo("caption2",
+                          ImmutableList.<PhotoSize> of())), "caption", 800, 600);
+
+  protected static final Post PHOTO_POST_1_EDITED = new PhotoPost(10003, "foo.tumblr.com",
+          "http://foo.tumblr.com/10003/whee", Instant.now(), Instant.now(), ImmutableList.of(
+                  "tag1", "tag3", "tag5"), ImmutableList.of(
+                  new Photo("caption1", ImmutableList.of(new PhotoSize(800, 600, "hello"))),
+                  new Photo("caption2", ImmutableList.of(new PhotoSize(800, 600, "goodbye")))),
+          "caption", 800, 600);
+
+  protected static final int POST_COUNT = 2500;
+
+  protected static final Post QUOTE_POST_1 = new QuotePost(3324, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/3324/whee", Instant.now().minus(Duration.millis(332)),
+          Instant.now(), ImmutableList.of("tag1", "tag2", "tag5"),
+          "a fool and his money are soon parted", "danny de vito");
+
+  protected static final Post QUOTE_POST_1_EDITED = new QuotePost(3324, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/3324/whee", Instant.now().minus(Duration.millis(332)),
+          Instant.now(), ImmutableList.of("tag1", "tag2", "tag5"), "oi u wat mate", "danny de vito");
+
+  protected static final Post TEXT_POST_1 = new TextPost(513, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/513/whee", Instant.now().minus(Duration.millis(5000)),
+          Instant.now(), ImmutableList.of("tag1", "tag2", "tag3"), "test post",
+          "hello world, this is a test post");
+
+  protected static final Post TEXT_POST_1_EDITED = new TextPost(513, "foo.tumblr.com",
+          "http://foo.tumblr.com/posts/513/whee", Instant.now().minus(Duration.millis(6000)),
+          Instant.now().minus(Duration.millis(2100)), ImmutableList.of("tag2", "tag4"),
+          "edited test post", "the old content was bad");
+
+  protected static final Post VIDEO_POST_1 = new VideoPost(9985, "foo.tumblr.com",
+          "http://foo.tumblr.com/9985/whee", Instant.now().minus(Duration.millis(101)),
+          Instant.now(), ImmutableList.of("tag1", "tag5"), "caption", ImmutableList.of(new Video(
+                  200, "embed200"), new Video(400, "embed400")));
+
+  protected static final Post VIDEO_POST_1_EDITED = new VideoPost(9985, "foo.tumblr.com",
+          "http://foo.tumblr.com/9985/whee", Instant.now().minus(Duration.millis(101)),
+          Instant.now(), ImmutableList.of("tag1", "tag5"), "new caption", ImmutableList.of(
+                  new Video(200, "embed200"), new Video(400, "embed400"),
+                  new Video(600, "embed600")));
+
+  protected T postDb;
+
+  public PostDbTestCase() {
+    super();
+  }
+
+  public PostDbTestCase(String testName) {
+    super(testName);
+  }
+
+  public void assertCanDelete(Post post) throws Exception {
+    postDb.put(post);
+    assertNotNull(postDb.get(post.getId()));
+    postDb.delete(post.getId());
+    assertNull(postDb.get(post.getId()));
+  }
+
+  public void assertCanEdit(Post post, Post editedPost) throws Exception {
+    assertEquals(post.getId(), editedPost.getId());
+    assertFalse(post.equals(editedPost));
+
+    postDb.put(post);
+    Post retrievedPost = postDb.get(post.getId());
+    assertEquals(post, retrievedPost);
+
+    postDb.put(editedPost);
+    retrievedPost = postDb.get(post.getId());
+    assertEquals(editedPost, retrievedPost);
+
+    postDb.put(post);
+    retrievedPost = postDb.get(post.getId());
+    assertEquals(post, retrievedPost);
+  }
+
+  public void assertCanGet(Post post) throws Exception {
+    postDb.put(post);
+    Post retrievedPost = postDb.get(post.getId());
+    assertEquals(post, retrievedPost);
+    assertNotSame(post, retrievedPost);
+  }
+
+  public void assertCanPut(Post post) throws Exception {
+    postDb.put(post);
+  }
+
+  /**
+   * Opens an empty instance of the database under test.
+   */
+  abstract T openPostDb() throws Exception;
+
+  @Override
+  public void setUp() throws Exception {
+    postDb = openPostDb();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    postDb.close();
+  }
+
+  public void testDelete_answerPost() throws Exception {
+    assertCanDelete(ANSWER_POST_1);
+  }
+
+  public void testDelete_audioPost() throws Exception {
+    assertCanDelete(AUDIO_POST_1);
+  }
+
+  public void testDelete_chatPost() throws Exception {
+    assertCanDelete(CHAT_POST_1);
+  }
+
+  public void testDelete_linkPost() throws Exception {
+    assertCanDelete(LINK_POST_1);
+  }
+
+  public void testDelete_photoPost() throws Exception {
+    assertCanDelete(PHOTO_POST_1);
+  }
+
+  public void testDelete_quotePost() throws Exception {
+    assertCanDelete(QUOTE_POST_1);
+  }
+
+  public void testDelete_textPost() throws Exception {
+    assertCanDelete(TEXT_POST_1);
+  }
+
+  public void testDelete_videoPost() throws Exception {
+    assertCanDelete(VIDEO_POST_1);
+  }
+
+  public void testEdit_answerPost() throws Exception {
+    assertCanEdit(ANSWER_POST_1, ANSWER_POST_1_EDITED);
+  }
+
+  public void testEdit_audioPost() throws Exception {
+    assertCanEdit(AUDIO_POST_1, AUDIO_POST_1_EDITED);
+  }
+
+  public void testEdit_chatPost() throws Exception {
+    assertCanEdit(CHAT_POST_1, CHAT_POST_1_EDITED);
+  }
+
+  public void testEdit_linkPost() throws Exception {
+    assertCanEdit(LINK_POST_1, LINK_POST_1_EDITED);
+  }
+
+  public void testEdit_photoPost() throws Exception {
+    assertCanEdit(PHOTO_POST_1, PHOTO_POST_1_EDITED);
+  }
+
+  public void testEdit_quotePost() throws Exception {
+    assertCanEdit(QUOTE_POST_1, QUOTE_POST_1_EDITED);
+  }
+
+  public void testEdit_textPost() throws Exception {
+    assertCanEdit(TEXT_POST_1, TEXT_POST_1_EDITED);
+  }
+
+  public void testEdit_videoPost() throws Exception {
+    assertCanEdit(VIDEO_POST_1, VIDEO_POST_1_EDITED);
+  }
+
+  public void testGet_answerPost() throws Exception {
+    assertCanGet(ANSWER_POST_1);
+  }
+
+  public void testGet_audioPost() throws Exception {
+    assertCanGet(AUDIO_POST_1);
+  }
+
+  public void testGet_chatPost() throws Exception {
+    assertCanGet(CHAT_POST_1);
+  }
+
+  public void testGet_linkPost() throws Exception {
+    assertCanGet(LINK_POST_1);
+  }
+
+  public void testGet_nonexistent() throws Exception {
+    assertNull(postDb.get(12345));
+  }
+
+  public void testGet_photoPost() throws Exception {
+    assertCanGet(PHOTO_POST_1);
+  }
+
+  public void testGet_quotePost() throws Exception {
+    assertCanGet(QUOTE_POST_1);
+  }
+
+  public void testGet_textPost() throws Exception {
+    assertCanGet(TEXT_POST_1);
+  }
+
+  public void testGet_videoPost() throws Exception {
+    assertCanGet(VIDEO_POST_1);
+  }
+
+  public void testGetAll() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
+    postDb.put(posts.values());
+
+    List<Post> retrievedPosts = postDb.getAll();
+    HashMap<Long, Post> retrievedPostById = new HashMap<>();
+    for (Post post : retrievedPosts) {
+      assertFalse(retrievedPostById.containsKey(post.getId()));
+      retrievedPostById.put(post.getId(), post);
+    }
+    assertEquals(posts, retrievedPostById);
+  }
+
+  public void testPut_answerPost() throws Exception {
+    assertCanPut(ANSWER_POST_1);
+  }
+
+  public void testPut_audioPost() throws Exception {
+    assertCanPut(AUDIO_POST_1);
+  }
+
+  public void testPut_chatPost() throws Exception {
+    assertCanPut(CHAT_POST_1);
+  }
+
+  public void testPut_linkPost() throws Exception {
+    assertCanPut(LINK_POST_1);
+  }
+
+  public void testPut_photoPost() throws Exception {
+    assertCanPut(PHOTO_POST_1);
+  }
+
+  public void testPut_quotePost() throws Exception {
+    assertCanPut(QUOTE_POST_1);
+  }
+
+  public void testPut_textPost() throws Exception {
+    assertCanPut(TEXT_POST_1);
+  }
+
+  public void testPut_videoPost() throws Exception {
+    assertCanPut(VIDEO_POST_1);
+  }
+
+  public void testPutCollection() throws Exception {
+    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
+    postDb.put(posts.values());
+  }
+
+  protected static Post buildPost(long id) {
+    return buildPost(id, "foo");
+  }
+
+  protected static Post buildPost(long id, String blogName) {
+    Instant instant = new Instant(id * 1000);
+    return new TextPost(id, blogName, "http://" + blogName + ".tumblr.com/" + id + "/", instant,
+            instant, ImmutableList.of("tag"), "post " + id, "body " + id);
+  }
+
+  protected static Map<Long, Post> buildPostCollection(int count) {
+    ImmutableMap.Builder<Long, Post> postsBuilder = new ImmutableMap.Builder<>();
+    Instant now = Instant.now();
+    for (long id = 1; id <= count; id++) {
+      Post post = new TextPost(id, "many", "http://many.tumblr.com/" + id + "/", now.minus(id),
+              now, ImmutableList.of("tag1", "tag2", "tag3"), "post " + id, "body " + id);
+      postsBuilder.put(id, post);
+    }
+    return postsBuilder.build();
+  }
+}
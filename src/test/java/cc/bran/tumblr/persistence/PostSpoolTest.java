@@ -0,0 +1,168 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.DateTimeUtils;
+
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link PostSpool}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class PostSpoolTest extends TestCase {
+
+  private static final int POST_COUNT = 500;
+
+  private static final long SEGMENT_SIZE = 4 * 1024;
+
+  private File directory;
+
+  private SqlitePostDb postDb;
+
+  private List<Post> posts;
+
+  private PostSpool spool;
+
+  @Override
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("PostSpoolTest").toFile();
+    postDb = new SqlitePostDb(":memory:");
+    posts = ImmutableList.copyOf(PostDbTestCase.buildPostCollection(POST_COUNT).values());
+    spool = new PostSpool(directory.getPath(), SEGMENT_SIZE);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    DateTimeUtils.setCurrentMillisSystem();
+    spool.close();
+    postDb.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testAppendAndDrain() throws Exception {
+    assertEquals(0, spool.drain(postDb, 100));
+    spool.append(posts.subList(0, 150));
+    spool.append(posts.get(150));
+    assertEquals(151, spool.getLagPostCount());
+    assertTrue(spool.getLagBytes() > 0);
+    assertTrue(spool.awaitPosts(0));
+
+    assertEquals(100, spool.drain(postDb, 100));
+    assertEquals(51, spool.getLagPostCount());
+    assertEquals(51, spool.drain(postDb, 100));
+    assertEquals(0, spool.getLagPostCount());
+    assertEquals(0, spool.getLagBytes());
+    assertFalse(spool.awaitPosts(0));
+
+    assertEquals(ImmutableSet.copyOf(posts.subList(0, 151)), ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testDrain_failedWrite() throws Exception {
+    spool.append(posts.subList(0, 10));
+    postDb.close();
+    postDb = new SqlitePostDb(":memory:") {
+
+      @Override
+      public void put(Collection<Post> posts) throws SQLException {
+        throw new SQLException("database is locked");
+      }
+    };
+    try {
+      spool.drain(postDb, 100);
+      fail();
+    } catch (SQLException expected) {
+    }
+
+    // The posts stay in the spool for the next attempt.
+    assertEquals(10, spool.getLagPostCount());
+  }
+
+  public void testLag() throws Exception {
+    assertEquals(0, spool.getLag().getMillis());
+    DateTimeUtils.setCurrentMillisFixed(1000);
+    spool.append(posts.get(0));
+    DateTimeUtils.setCurrentMillisFixed(1020);
+    spool.append(posts.get(1));
+    DateTimeUtils.setCurrentMillisFixed(1050);
+    assertEquals(50, spool.getLag().getMillis());
+
+    // Draining the oldest post makes the next one the oldest.
+    spool.drain(postDb, 1);
+    assertEquals(30, spool.getLag().getMillis());
+    spool.drain(postDb, 1);
+    assertEquals(0, spool.getLag().getMillis());
+  }
+
+  public void testReopen() throws Exception {
+    spool.append(posts);
+    spool.drain(postDb, 200);
+    spool.close();
+
+    spool = new PostSpool(directory.getPath(), SEGMENT_SIZE);
+    assertEquals(POST_COUNT - 200, spool.getLagPostCount());
+    assertEquals(POST_COUNT - 200, spool.drain(postDb, POST_COUNT));
+    assertEquals(ImmutableSet.copyOf(posts), ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testTornRecord() throws Exception {
+    spool.close();
+    spool = new PostSpool(directory.getPath());
+    spool.append(posts.get(0));
+    spool.append(posts.get(1));
+    spool.close();
+
+    // Cut the second record short, as if the append had been interrupted.
+    File segmentFile = directory.listFiles()[0];
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw")) {
+      randomAccessFile.setLength(randomAccessFile.length() - 1);
+    }
+
+    spool = new PostSpool(directory.getPath());
+    assertEquals(1, spool.getLagPostCount());
+    spool.append(posts.get(2));
+    assertEquals(2, spool.drain(postDb, 100));
+    assertEquals(ImmutableSet.of(posts.get(0), posts.get(2)), ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testTruncateAfterCommit() throws Exception {
+    for (Post post : posts) {
+      spool.append(post);
+    }
+    int segmentCount = spool.getSegmentCount();
+    assertTrue(segmentCount > 1);
+
+    spool.drain(postDb, POST_COUNT / 2);
+    assertTrue(spool.getSegmentCount() < segmentCount);
+    spool.drain(postDb, POST_COUNT);
+    assertEquals(1, spool.getSegmentCount());
+
+    // Only the last segment and the saved position are left.
+    assertEquals(2, directory.listFiles().length);
+
+    spool.close();
+    spool = new PostSpool(directory.getPath(), SEGMENT_SIZE);
+    assertEquals(0, spool.getLagPostCount());
+    assertEquals(0, spool.drain(postDb, 100));
+  }
+
+  public static Test suite() {
+    return new TestSuite(PostSpoolTest.class);
+  }
+}
@@ -0,0 +1,203 @@
+package cc.bran.tumblr.persistence;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.PostType;
+import cc.bran.tumblr.types.TextPost;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link QueryCachingPostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class QueryCachingPostDbTest extends PostDbTestCase<QueryCachingPostDb> {
+
+  private static final long CACHE_BYTES = 1024 * 1024;
+
+  private static final long WRITE_WAIT_MILLIS = 500;
+
+  private SqlitePostDb sqlitePostDb;
+
+  @Override
+  QueryCachingPostDb openPostDb() throws Exception {
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:"));
+    return new QueryCachingPostDb(sqlitePostDb, CACHE_BYTES);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    sqlitePostDb.close();
+  }
+
+  public void testEviction() throws Exception {
+    postDb = new QueryCachingPostDb(sqlitePostDb, 1024);
+    postDb.put(buildPostCollection(10).values());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(0, postDb.getPostCountForTag("tag" + i + "-unused"));
+    }
+
+    assertTrue(postDb.getStats().evictionCount() > 0);
+  }
+
+  public void testInvalidation_changedPost() throws Exception {
+    postDb.put(buildTextPost(1, "foo", "tag1"));
+    assertEquals(1, postDb.getPostCountForBlog("foo"));
+    assertEquals(1, postDb.getPostCountForTag("tag1"));
+
+    // Moving the post to another blog and tag changes the counts of both the old and new ones.
+    postDb.put(buildTextPost(1, "bar", "tag2"));
+    assertEquals(0, postDb.getPostCountForBlog("foo"));
+    assertEquals(0, postDb.getPostCountForTag("tag1"));
+    assertEquals(1, postDb.getPostCountForBlog("bar"));
+    assertEquals(1, postDb.getPostCountForTag("tag2"));
+
+    postDb.delete(1);
+    assertEquals(0, postDb.getPostCountForBlog("bar"));
+    assertEquals(0, postDb.getPostCountForTag("tag2"));
+    assertEquals(0, postDb.getPostCountForType(PostType.TEXT));
+  }
+
+  public void testInvalidation_concurrentWrites() throws Exception {
+    final CountDownLatch deleteStartedLatch = new CountDownLatch(1);
+    final CountDownLatch deleteLatch = new CountDownLatch(1);
+    sqlitePostDb.close();
+    sqlitePostDb = new SqlitePostDb(DriverManager.getConnection("jdbc:sqlite::memory:")) {
+
+      @Override
+      public void delete(long id) throws SQLException {
+        deleteStartedLatch.countDown();
+        try {
+          deleteLatch.await();
+        } catch (InterruptedException exception) {
+          throw new AssertionError(exception);
+        }
+        super.delete(id);
+      }
+    };
+    postDb = new QueryCachingPostDb(sqlitePostDb, CACHE_BYTES);
+    postDb.put(buildTextPost(1, "foo", "tag1"));
+
+    // Move the post to another blog while a delete that has already read the old version is
+    // waiting to run, then cache a count for the new blog before the delete runs.
+    Thread deleteThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          postDb.delete(1);
+        } catch (SQLException exception) {
+          throw new AssertionError(exception);
+        }
+      }
+    });
+    Thread putThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          postDb.put(buildTextPost(1, "bar", "tag2"));
+        } catch (SQLException exception) {
+          throw new AssertionError(exception);
+        }
+      }
+    });
+    deleteThread.start();
+    deleteStartedLatch.await();
+    putThread.start();
+    putThread.join(WRITE_WAIT_MILLIS);
+    postDb.getPostCountForBlog("bar");
+    deleteLatch.countDown();
+    deleteThread.join();
+    putThread.join();
+
+    assertEquals(sqlitePostDb.getPostCountForBlog("bar"), postDb.getPostCountForBlog("bar"));
+    assertEquals(sqlitePostDb.getPostCountForBlog("foo"), postDb.getPostCountForBlog("foo"));
+  }
+
+  public void testInvalidation_lateRemovalNotification() throws Exception {
+    postDb.put(buildTextPost(1, "foo", "tag1"));
+    assertEquals(1, postDb.getPostCountForBlog("foo"));
+
+    // Empty the cache from another thread while holding the lock that its removal listener needs,
+    // so that the notification for the old result is still pending when the key is cached again.
+    Thread closeThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        postDb.close();
+      }
+    });
+    synchronized (postDb) {
+      closeThread.start();
+      while (closeThread.getState() != Thread.State.BLOCKED && closeThread.isAlive()) {
+        Thread.sleep(1);
+      }
+      assertEquals(1, postDb.getPostCountForBlog("foo"));
+    }
+    closeThread.join();
+
+    postDb.put(buildTextPost(2, "foo", "tag1"));
+    assertEquals(2, postDb.getPostCountForBlog("foo"));
+  }
+
+  public void testInvalidation_unaffectedQueries() throws Exception {
+    postDb.put(ImmutableList.of(buildTextPost(1, "foo", "tag1"), buildTextPost(2, "bar", "tag2"),
+            PHOTO_POST_1));
+    assertEquals(1, postDb.getPostCountForBlog("bar"));
+    assertEquals(1, postDb.getPostCountForTag("tag2"));
+    assertEquals(1, postDb.getPostCountForType(PostType.PHOTO));
+    assertEquals(1, postDb.getMonthlyPostCounts("foo").size());
+
+    postDb.put(buildTextPost(3, "foo", "tag1"));
+    long hitCount = postDb.getStats().hitCount();
+    assertEquals(1, postDb.getPostCountForBlog("bar"));
+    assertEquals(1, postDb.getPostCountForTag("tag2"));
+    assertEquals(1, postDb.getPostCountForType(PostType.PHOTO));
+    assertEquals(hitCount + 3, postDb.getStats().hitCount());
+
+    assertEquals(2, (long) postDb.getMonthlyPostCounts("foo").values().iterator().next());
+    assertEquals(hitCount + 3, postDb.getStats().hitCount());
+  }
+
+  public void testSearchPosts() throws Exception {
+    postDb.put(TEXT_POST_1);
+    assertEquals(ImmutableList.of(TEXT_POST_1), postDb.searchPosts("hello world", 0, 10));
+
+    // Queries that differ only in case and punctuation share a result.
+    assertEquals(ImmutableList.of(TEXT_POST_1), postDb.searchPosts("Hello, WORLD!", 0, 10));
+    assertEquals(1, postDb.getStats().hitCount());
+
+    // Any write may change search results.
+    postDb.put(TEXT_POST_1_EDITED);
+    assertTrue(postDb.searchPosts("hello world", 0, 10).isEmpty());
+    assertEquals(1, postDb.getStats().hitCount());
+  }
+
+  public void testTopTags() throws Exception {
+    postDb.put(buildTextPost(1, "foo", "tag1"));
+    assertEquals(1, postDb.getTopTags(10).size());
+
+    postDb.put(buildTextPost(2, "foo", "tag2"));
+    assertEquals(2, postDb.getTopTags(10).size());
+  }
+
+  private static Post buildTextPost(long id, String blogName, String tag) {
+    return new TextPost(id, blogName, "http://" + blogName + ".tumblr.com/" + id + "/",
+            Instant.now(), Instant.now(), ImmutableList.of(tag), "post " + id, "body " + id);
+  }
+
+  public static Test suite() {
+    return new TestSuite(QueryCachingPostDbTest.class);
+  }
+}
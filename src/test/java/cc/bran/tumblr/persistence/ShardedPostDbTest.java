@@ -0,0 +1,233 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.PostType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link ShardedPostDb}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class ShardedPostDbTest extends TestCase {
+
+  private static final int SHARD_COUNT = 3;
+
+  private static final int THREAD_COUNT = 4;
+
+  private static final int WRITES_PER_THREAD = 25;
+
+  private File directory;
+
+  private ShardedPostDb postDb;
+
+  @Override
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("ShardedPostDbTest").toFile();
+    postDb = new ShardedPostDb(directory.getPath(), SHARD_COUNT);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    postDb.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testConcurrentWrites() throws Exception {
+    // Each thread keeps moving one shared post between blogs while writing posts of its own, so
+    // writers contend for overlapping sets of shards.
+    ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int thread = 0; thread < THREAD_COUNT; ++thread) {
+        final int firstId = 1000 * (thread + 1);
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            for (int i = 0; i < WRITES_PER_THREAD; ++i) {
+              postDb.put(PostDbTestCase.buildPost(1, "blog" + (firstId + i)));
+              postDb.put(PostDbTestCase.buildPost(firstId + i, "blog" + i));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    int sharedPostCount = 0;
+    for (Post post : postDb.getAll()) {
+      if (post.getId() == 1) {
+        ++sharedPostCount;
+      }
+    }
+    assertEquals(1, sharedPostCount);
+    assertEquals(1 + THREAD_COUNT * WRITES_PER_THREAD, postDb.getAll().size());
+  }
+
+  public void testDelete() throws Exception {
+    postDb.put(ImmutableList.of(PostDbTestCase.buildPost(1, "a"),
+            PostDbTestCase.buildPost(2, "b")));
+    postDb.delete(1);
+    postDb.delete(3);
+
+    assertNull(postDb.get(1));
+    assertEquals(PostDbTestCase.buildPost(2, "b"), postDb.get(2));
+  }
+
+  public void testMoveBetweenShards() throws Exception {
+    String firstBlog = "blog0";
+    String secondBlog = findBlogInOtherShard(firstBlog);
+
+    postDb.put(PostDbTestCase.buildPost(1, firstBlog));
+    postDb.put(PostDbTestCase.buildPost(1, secondBlog));
+
+    assertEquals(PostDbTestCase.buildPost(1, secondBlog), postDb.get(1));
+    assertEquals(ImmutableList.of(PostDbTestCase.buildPost(1, secondBlog)), postDb.getAll());
+  }
+
+  public void testMoveBetweenShards_newShardFails() throws Exception {
+    String firstBlog = "blog0";
+    String secondBlog = findBlogInOtherShard(firstBlog);
+    postDb.put(PostDbTestCase.buildPost(1, firstBlog));
+
+    try {
+      postDb.put(ImmutableList.of(PostDbTestCase.buildPost(1, secondBlog),
+              buildUnwritablePost(2, secondBlog)));
+      fail("Expected ClassCastException");
+    } catch (ClassCastException expected) {
+    }
+
+    // The post stays where it was.
+    assertEquals(PostDbTestCase.buildPost(1, firstBlog), postDb.get(1));
+    assertEquals(ImmutableList.of(PostDbTestCase.buildPost(1, firstBlog)), postDb.getAll());
+  }
+
+  public void testMoveBetweenShards_oldShardFails() throws Exception {
+    String firstBlog = "blog0";
+    String secondBlog = findBlogInOtherShard(firstBlog);
+    postDb.put(PostDbTestCase.buildPost(1, firstBlog));
+
+    try {
+      postDb.put(ImmutableList.of(PostDbTestCase.buildPost(1, secondBlog),
+              buildUnwritablePost(2, firstBlog)));
+      fail("Expected ClassCastException");
+    } catch (ClassCastException expected) {
+    }
+
+    // The post reached its new shard, so the move is finished rather than leaving two copies.
+    assertEquals(PostDbTestCase.buildPost(1, secondBlog), postDb.get(1));
+    assertEquals(ImmutableList.of(PostDbTestCase.buildPost(1, secondBlog)), postDb.getAll());
+    assertNull(postDb.get(2));
+  }
+
+  public void testOpenFailure() throws Exception {
+    File otherDirectory = Files.createTempDirectory("ShardedPostDbTest").toFile();
+    File blockedShardFile = new File(otherDirectory, "shard-1.db");
+    try {
+      // A directory in place of the second shard's file makes it fail to open after the first.
+      assertTrue(blockedShardFile.mkdir());
+      try {
+        new ShardedPostDb(otherDirectory.getPath(), SHARD_COUNT).close();
+        fail("Expected SQLException");
+      } catch (SQLException expected) {
+      }
+
+      // Nothing left behind by the failed open stops the database from opening once fixed.
+      assertTrue(blockedShardFile.delete());
+      ShardedPostDb reopenedPostDb = new ShardedPostDb(otherDirectory.getPath(), SHARD_COUNT);
+      reopenedPostDb.put(PostDbTestCase.buildPost(1));
+      reopenedPostDb.close();
+    } finally {
+      for (File file : otherDirectory.listFiles()) {
+        file.delete();
+      }
+      otherDirectory.delete();
+    }
+  }
+
+  public void testPutAndGet() throws Exception {
+    List<Post> posts = buildPosts(60);
+    postDb.put(posts);
+
+    assertEquals(SHARD_COUNT, directory.listFiles().length);
+    for (Post post : posts) {
+      assertEquals(post, postDb.get(post.getId()));
+    }
+    assertNull(postDb.get(1000));
+    assertEquals(ImmutableSet.copyOf(posts), ImmutableSet.copyOf(postDb.getAll()));
+  }
+
+  public void testReopen() throws Exception {
+    List<Post> posts = buildPosts(20);
+    postDb.put(posts);
+    postDb.close();
+
+    postDb = new ShardedPostDb(directory.getPath(), SHARD_COUNT);
+    for (Post post : posts) {
+      assertEquals(post, postDb.get(post.getId()));
+    }
+  }
+
+  private String findBlogInOtherShard(String blogName) {
+    for (int i = 0;; ++i) {
+      String otherBlogName = "blog" + i;
+      if (postDb.getShard(otherBlogName) != postDb.getShard(blogName)) {
+        return otherBlogName;
+      }
+    }
+  }
+
+  private static List<Post> buildPosts(int count) {
+    List<Post> posts = Lists.newArrayList();
+    for (long id = 1; id <= count; ++id) {
+      posts.add(PostDbTestCase.buildPost(id, "blog" + (id % 10)));
+    }
+    return posts;
+  }
+
+  /**
+   * Builds a post that claims to be a text post but isn't, so writing it to a shard fails.
+   */
+  private static Post buildUnwritablePost(long id, String blogName) {
+    Instant instant = new Instant(id * 1000);
+    return new Post(id, blogName, "http://" + blogName + ".tumblr.com/" + id + "/", instant,
+            instant, ImmutableList.of("tag")) {
+
+      @Override
+      public PostType getType() {
+        return PostType.TEXT;
+      }
+    };
+  }
+
+  public static Test suite() {
+    return new TestSuite(ShardedPostDbTest.class);
+  }
+}
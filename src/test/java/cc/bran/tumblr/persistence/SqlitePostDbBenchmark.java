@@ -0,0 +1,163 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.types.ChatPost;
+import cc.bran.tumblr.types.ChatPost.Dialogue;
+import cc.bran.tumblr.types.PhotoPost;
+import cc.bran.tumblr.types.PhotoPost.Photo;
+import cc.bran.tumblr.types.PhotoPost.Photo.PhotoSize;
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.TextPost;
+import cc.bran.tumblr.types.VideoPost;
+import cc.bran.tumblr.types.VideoPost.Video;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * Measures the time, heap allocation and garbage collection of putting and reading back a large
+ * archive of mixed posts with {@link SqlitePostDb}. Run with the number of posts as the only
+ * argument (default 100000); allocation is measured on the benchmark thread, which is where the
+ * database does its work.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SqlitePostDbBenchmark {
+
+  /**
+   * Resource usage since a starting point.
+   * 
+   * @author Brandon Pitman (brandon.pitman@gmail.com)
+   */
+  private static class Measurement {
+
+    private final long startAllocatedBytes;
+
+    private final long startGcCount;
+
+    private final long startGcMillis;
+
+    private final long startNanos;
+
+    public Measurement() {
+      this.startAllocatedBytes = getAllocatedBytes();
+      this.startGcCount = getGcCount();
+      this.startGcMillis = getGcMillis();
+      this.startNanos = System.nanoTime();
+    }
+
+    public void report(String phase) {
+      System.out.printf("%-20s %8d ms %10.1f MB allocated %6d GCs %6d ms in GC%n", phase,
+              (System.nanoTime() - startNanos) / 1000000,
+              (getAllocatedBytes() - startAllocatedBytes) / (1024.0 * 1024.0), getGcCount()
+                      - startGcCount, getGcMillis() - startGcMillis);
+    }
+  }
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static final int DEFAULT_POST_COUNT = 100000;
+
+  private static final int TAG_COUNT = 500;
+
+  public static void main(String[] args) throws Exception {
+    int postCount = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_POST_COUNT;
+    List<Post> posts = buildPosts(postCount);
+
+    File dbFile = File.createTempFile("SqlitePostDbBenchmark", ".db");
+    try (SqlitePostDb postDb = new SqlitePostDb(dbFile.getPath())) {
+      Measurement measurement = new Measurement();
+      for (List<Post> batch : Iterables.partition(posts, BATCH_SIZE)) {
+        postDb.put(batch);
+      }
+      measurement.report("put");
+
+      measurement = new Measurement();
+      for (List<Long> ids : Iterables.partition(postDb.getIds(), BATCH_SIZE)) {
+        postDb.getAll(ids);
+      }
+      measurement.report("getAll(ids)");
+
+      measurement = new Measurement();
+      postDb.getAll();
+      measurement.report("getAll()");
+
+      measurement = new Measurement();
+      for (List<Post> batch : Iterables.partition(posts, BATCH_SIZE)) {
+        postDb.put(batch);
+      }
+      measurement.report("put (overwrite)");
+    } finally {
+      dbFile.delete();
+    }
+  }
+
+  private static List<Post> buildPosts(int count) {
+    List<Post> posts = new ArrayList<>(count);
+    Instant now = Instant.now();
+    for (long id = 1; id <= count; ++id) {
+      String blogName = "blog" + (id % 10);
+      String postUrl = "http://" + blogName + ".tumblr.com/" + id + "/";
+      Instant postedInstant = now.minus(id * 60000);
+      List<String> tags = ImmutableList.of("a" + (id % TAG_COUNT), "b" + (id * 7 % TAG_COUNT), "c"
+              + (id * 13 % TAG_COUNT));
+
+      switch ((int) (id % 4)) {
+      case 0:
+        posts.add(new TextPost(id, blogName, postUrl, postedInstant, now, tags, "post " + id,
+                "body of post " + id));
+        break;
+      case 1:
+        posts.add(new PhotoPost(id, blogName, postUrl, postedInstant, now, tags, ImmutableList.of(
+                buildPhoto(id, 1), buildPhoto(id, 2)), "caption " + id, 1280, 960));
+        break;
+      case 2:
+        posts.add(new ChatPost(id, blogName, postUrl, postedInstant, now, tags, "chat " + id,
+                "chat body " + id, ImmutableList.of(new Dialogue("a", "a:", "hello"), new Dialogue(
+                        "b", "b:", "hi"), new Dialogue("a", "a:", "post " + id))));
+        break;
+      case 3:
+        posts.add(new VideoPost(id, blogName, postUrl, postedInstant, now, tags, "video " + id,
+                ImmutableList.of(new Video(250, "<embed " + id + ">"), new Video(500, "<embed "
+                        + id + ">"))));
+        break;
+      }
+    }
+    return posts;
+  }
+
+  private static Photo buildPhoto(long id, int index) {
+    String url = "http://media.tumblr.com/" + id + "_" + index;
+    return new Photo("photo " + index, ImmutableList.of(new PhotoSize(1280, 960, url + "_1280"),
+            new PhotoSize(500, 375, url + "_500"), new PhotoSize(100, 75, url + "_100")));
+  }
+
+  private static long getAllocatedBytes() {
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += gcBean.getCollectionCount();
+    }
+    return count;
+  }
+
+  private static long getGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += gcBean.getCollectionTime();
+    }
+    return millis;
+  }
+}
@@ -0,0 +1,142 @@
+package cc.bran.tumblr.persistence;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link SqlitePostDbPool}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SqlitePostDbPoolTest extends TestCase {
+
+  private static final int MAX_OPEN_HANDLES = 2;
+
+  private File directory;
+
+  private SqlitePostDbPool pool;
+
+  @Override
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("SqlitePostDbPoolTest").toFile();
+    pool = new SqlitePostDbPool(directory.getPath(), MAX_OPEN_HANDLES, Duration.standardHours(1));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    pool.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testCloseIdle() throws Exception {
+    pool.close();
+    pool = new SqlitePostDbPool(directory.getPath(), MAX_OPEN_HANDLES, Duration.millis(1));
+
+    SqlitePostDbPool.Lease lease = pool.lease("foo");
+    try (SqlitePostDbPool.Lease idleLease = pool.lease("bar")) {
+      idleLease.getPostDb().put(PostDbTestCase.buildPost(1, "bar"));
+    }
+    Thread.sleep(10);
+
+    pool.closeIdle();
+    assertEquals(1, pool.getOpenCount());
+    lease.close();
+  }
+
+  public void testConcurrentLeases() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int i = 0; i < 40; ++i) {
+        final long id = i + 1;
+        final String blogName = "blog" + (i % 5);
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws Exception {
+            try (SqlitePostDbPool.Lease lease = pool.lease(blogName)) {
+              lease.getPostDb().put(PostDbTestCase.buildPost(id, blogName));
+              assertEquals(PostDbTestCase.buildPost(id, blogName), lease.getPostDb().get(id));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(pool.getOpenCount() <= MAX_OPEN_HANDLES);
+    for (int i = 0; i < 40; ++i) {
+      String blogName = "blog" + (i % 5);
+      try (SqlitePostDbPool.Lease lease = pool.lease(blogName)) {
+        assertEquals(PostDbTestCase.buildPost(i + 1, blogName), lease.getPostDb().get(i + 1));
+      }
+    }
+  }
+
+  public void testEviction() throws Exception {
+    try (SqlitePostDbPool.Lease lease = pool.lease("foo")) {
+      lease.getPostDb().put(PostDbTestCase.buildPost(1, "foo"));
+    }
+    try (SqlitePostDbPool.Lease lease = pool.lease("bar")) {
+      lease.getPostDb().put(PostDbTestCase.buildPost(2, "bar"));
+    }
+    try (SqlitePostDbPool.Lease lease = pool.lease("baz")) {
+      lease.getPostDb().put(PostDbTestCase.buildPost(3, "baz"));
+    }
+    assertEquals(MAX_OPEN_HANDLES, pool.getOpenCount());
+
+    // The evicted database is reopened on demand.
+    try (SqlitePostDbPool.Lease lease = pool.lease("foo")) {
+      assertEquals(PostDbTestCase.buildPost(1, "foo"), lease.getPostDb().get(1));
+    }
+    assertEquals(MAX_OPEN_HANDLES, pool.getOpenCount());
+  }
+
+  public void testInvalidBlogName() throws Exception {
+    try {
+      pool.lease("../foo");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testLeasedHandlesAreNotEvicted() throws Exception {
+    List<SqlitePostDbPool.Lease> leases = Lists.newArrayList();
+    for (String blogName : ImmutableList.of("foo", "bar", "baz")) {
+      leases.add(pool.lease(blogName));
+    }
+    assertEquals(3, pool.getOpenCount());
+
+    for (SqlitePostDbPool.Lease lease : leases) {
+      lease.getPostDb().put(PostDbTestCase.buildPost(1, "foo"));
+      lease.close();
+    }
+    assertEquals(MAX_OPEN_HANDLES, pool.getOpenCount());
+  }
+
+  public static Test suite() {
+    return new TestSuite(SqlitePostDbPoolTest.class);
+  }
+}
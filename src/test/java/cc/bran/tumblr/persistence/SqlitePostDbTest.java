@@ -1,128 +1,39 @@
 package cc.bran.tumblr.persistence;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.Test;
-import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
-import org.joda.time.Duration;
 import org.joda.time.Instant;
+import org.joda.time.LocalDate;
+import org.joda.time.YearMonth;
 
-import cc.bran.tumblr.types.AnswerPost;
-import cc.bran.tumblr.types.AudioPost;
-import cc.bran.tumblr.types.ChatPost;
-import cc.bran.tumblr.types.ChatPost.Dialogue;
-import cc.bran.tumblr.types.LinkPost;
-import cc.bran.tumblr.types.PhotoPost;
-import cc.bran.tumblr.types.PhotoPost.Photo;
-import cc.bran.tumblr.types.PhotoPost.Photo.PhotoSize;
 import cc.bran.tumblr.types.Post;
-import cc.bran.tumblr.types.QuotePost;
+import cc.bran.tumblr.types.PostType;
 import cc.bran.tumblr.types.TextPost;
-import cc.bran.tumblr.types.VideoPost;
-import cc.bran.tumblr.types.VideoPost.Video;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 /**
  * Tests for {@link SqlitePostDb}.
  * 
  * @author Brandon Pitman (brandon.pitman@gmail.com)
  */
-public class SqlitePostDbTest extends TestCase {
-
-  private static final Post ANSWER_POST_1 = new AnswerPost(566, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/566/whee", Instant.now().minus(Duration.millis(5100)),
-          Instant.now().minus(Duration.millis(2200)), ImmutableList.of("tag1", "tag4"), "fool",
-          "http://fool.tumblr.com/", "War, huh, what is it good for?", "Absolutely nothing.");
-
-  private static final Post ANSWER_POST_1_EDITED = new AnswerPost(566, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/566/whee", Instant.now().minus(Duration.millis(5100)),
-          Instant.now().minus(Duration.millis(2200)), ImmutableList.of("tag1", "tag4"), "fool",
-          "http://fool.tumblr.com/", "War, huh, what is it good for?", "Oil, lol.");
-
-  private static final Post AUDIO_POST_1 = new AudioPost(414, "foo.tumblr.com",
-          "http://foo.tumblr.com/414/whee", Instant.now().minus(Duration.millis(5200)),
-          Instant.now(), ImmutableList.of("tag2", "tag5"), "a song", "player", 52, "album art",
-          "fartist", "fartistry", "a track name", 2, 1993);
-
-  private static final Post AUDIO_POST_1_EDITED = new AudioPost(414, "foo.tumblr.com",
-          "http://foo.tumblr.com/414/whee", Instant.now().minus(Duration.millis(5200)),
-          Instant.now(), ImmutableList.of("tag4", "tag5"), "edited song", "player", 52,
-          "album art", "artist formerly known as fartist", "fartistry x 2", "a track name", 2, 1993);
-
-  private static final Post CHAT_POST_1 = new ChatPost(123, "foo.tumblr.com",
-          "http://foo.tumblr.com/123/whee", Instant.now().minus(Duration.millis(1234)),
-          Instant.now(), ImmutableList.of("tag2", "tag5"), "chat title", "chat body",
-          ImmutableList.of(new Dialogue("person 1", "first", "hello"), new Dialogue("person 2",
-                  "second", "hi")));
-
-  private static final Post CHAT_POST_1_EDITED = new ChatPost(123, "foo.tumblr.com",
-          "http://foo.tumblr.com/123/whee", Instant.now().minus(Duration.millis(1234)),
-          Instant.now(), ImmutableList.of("tag2", "tag5"), "chat title", "chat body",
-          ImmutableList.of(new Dialogue("person 1", "first", "hello"), new Dialogue("person 2",
-                  "second", "hi"), new Dialogue("person 1", "third", "how are you?")));
-
-  private static final Post LINK_POST_1 = new LinkPost(4003, "foo.tumblr.com",
-          "http://foo.tumblr.com/4003/whee", Instant.now(), Instant.now(), ImmutableList.of("tag5",
-                  "tag6"), "title", "url", "description");
-
-  private static final Post LINK_POST_1_EDITED = new LinkPost(4003, "foo.tumblr.com",
-          "http://foo.tumblr.com/4003/whee", Instant.now(), Instant.now(), ImmutableList.of("tag5",
-                  "tag6"), "new-title", "new-url", "new-description");
-
-  private static final Post PHOTO_POST_1 = new PhotoPost(10003, "foo.tumblr.com",
-          "http://foo.tumblr.com/10003/whee", Instant.now(), Instant.now(), ImmutableList.of(
-                  "tag1", "tag3", "tag5"), ImmutableList.of(
-                  new Photo("caption1", ImmutableList.of(new PhotoSize(800, 600, "hello"),
-                          new PhotoSize(1024, 768, "goodbye"))), new Photo("caption2",
-                          ImmutableList.<PhotoSize> of())), "caption", 800, 600);
-
-  private static final Post PHOTO_POST_1_EDITED = new PhotoPost(10003, "foo.tumblr.com",
-          "http://foo.tumblr.com/10003/whee", Instant.now(), Instant.now(), ImmutableList.of(
-                  "tag1", "tag3", "tag5"), ImmutableList.of(
-                  new Photo("caption1", ImmutableList.of(new PhotoSize(800, 600, "hello"))),
-                  new Photo("caption2", ImmutableList.of(new PhotoSize(800, 600, "goodbye")))),
-          "caption", 800, 600);
-
-  private static final int POST_COUNT = 2500;
-
-  private static final Post QUOTE_POST_1 = new QuotePost(3324, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/3324/whee", Instant.now().minus(Duration.millis(332)),
-          Instant.now(), ImmutableList.of("tag1", "tag2", "tag5"),
-          "a fool and his money are soon parted", "danny de vito");
-
-  private static final Post QUOTE_POST_1_EDITED = new QuotePost(3324, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/3324/whee", Instant.now().minus(Duration.millis(332)),
-          Instant.now(), ImmutableList.of("tag1", "tag2", "tag5"), "oi u wat mate", "danny de vito");
-
-  private static final Post TEXT_POST_1 = new TextPost(513, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/513/whee", Instant.now().minus(Duration.millis(5000)),
-          Instant.now(), ImmutableList.of("tag1", "tag2", "tag3"), "test post",
-          "hello world, this is a test post");
-
-  private static final Post TEXT_POST_1_EDITED = new TextPost(513, "foo.tumblr.com",
-          "http://foo.tumblr.com/posts/513/whee", Instant.now().minus(Duration.millis(6000)),
-          Instant.now().minus(Duration.millis(2100)), ImmutableList.of("tag2", "tag4"),
-          "edited test post", "the old content was bad");
-
-  private static final Post VIDEO_POST_1 = new VideoPost(9985, "foo.tumblr.com",
-          "http://foo.tumblr.com/9985/whee", Instant.now().minus(Duration.millis(101)),
-          Instant.now(), ImmutableList.of("tag1", "tag5"), "caption", ImmutableList.of(new Video(
-                  200, "embed200"), new Video(400, "embed400")));
-
-  private static final Post VIDEO_POST_1_EDITED = new VideoPost(9985, "foo.tumblr.com",
-          "http://foo.tumblr.com/9985/whee", Instant.now().minus(Duration.millis(101)),
-          Instant.now(), ImmutableList.of("tag1", "tag5"), "new caption", ImmutableList.of(
-                  new Video(200, "embed200"), new Video(400, "embed400"),
-                  new Video(600, "embed600")));
+public class SqlitePostDbTest extends PostDbTestCase<SqlitePostDb> {
 
   static {
     try {
@@ -132,215 +43,279 @@ public class SqlitePostDbTest extends TestCase {
     }
   }
 
-  private SqlitePostDb postDb;
-
   public SqlitePostDbTest(String testName) {
     super(testName);
   }
 
-  public void assertCanDelete(Post post) throws SQLException {
-    postDb.put(post);
-    assertNotNull(postDb.get(post.getId()));
-    postDb.delete(post.getId());
-    assertNull(postDb.get(post.getId()));
-  }
-
-  public void assertCanEdit(Post post, Post editedPost) throws SQLException {
-    assertEquals(post.getId(), editedPost.getId());
-    assertFalse(post.equals(editedPost));
-
-    postDb.put(post);
-    Post retrievedPost = postDb.get(post.getId());
-    assertEquals(post, retrievedPost);
-
-    postDb.put(editedPost);
-    retrievedPost = postDb.get(post.getId());
-    assertEquals(editedPost, retrievedPost);
-
-    postDb.put(post);
-    retrievedPost = postDb.get(post.getId());
-    assertEquals(post, retrievedPost);
-  }
-
-  public void assertCanGet(Post post) throws SQLException {
-    postDb.put(post);
-    Post retrievedPost = postDb.get(post.getId());
-    assertEquals(post, retrievedPost);
-    assertNotSame(post, retrievedPost);
-  }
-
-  public void assertCanPut(Post post) throws SQLException {
-    postDb.put(post);
-  }
-
-  public void setUp() throws SQLException {
+  @Override
+  SqlitePostDb openPostDb() throws SQLException {
     Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
-    postDb = new SqlitePostDb(connection);
-  }
-
-  public void tearDown() throws SQLException {
-    postDb.close();
-  }
-
-  public void testDelete_answerPost() throws SQLException {
-    assertCanDelete(ANSWER_POST_1);
-  }
-
-  public void testDelete_audioPost() throws SQLException {
-    assertCanDelete(AUDIO_POST_1);
-  }
-
-  public void testDelete_chatPost() throws SQLException {
-    assertCanDelete(CHAT_POST_1);
-  }
-
-  public void testDelete_linkPost() throws SQLException {
-    assertCanDelete(LINK_POST_1);
-  }
-
-  public void testDelete_photoPost() throws SQLException {
-    assertCanDelete(PHOTO_POST_1);
-  }
-
-  public void testDelete_quotePost() throws SQLException {
-    assertCanDelete(QUOTE_POST_1);
-  }
-
-  public void testDelete_textPost() throws SQLException {
-    assertCanDelete(TEXT_POST_1);
-  }
-
-  public void testDelete_videoPost() throws SQLException {
-    assertCanDelete(VIDEO_POST_1);
-  }
-
-  public void testEdit_answerPost() throws SQLException {
-    assertCanEdit(ANSWER_POST_1, ANSWER_POST_1_EDITED);
-  }
-
-  public void testEdit_audioPost() throws SQLException {
-    assertCanEdit(AUDIO_POST_1, AUDIO_POST_1_EDITED);
-  }
-
-  public void testEdit_chatPost() throws SQLException {
-    assertCanEdit(CHAT_POST_1, CHAT_POST_1_EDITED);
-  }
-
-  public void testEdit_linkPost() throws SQLException {
-    assertCanEdit(LINK_POST_1, LINK_POST_1_EDITED);
-  }
-
-  public void testEdit_photoPost() throws SQLException {
-    assertCanEdit(PHOTO_POST_1, PHOTO_POST_1_EDITED);
-  }
-
-  public void testEdit_quotePost() throws SQLException {
-    assertCanEdit(QUOTE_POST_1, QUOTE_POST_1_EDITED);
+    return new SqlitePostDb(connection);
+  }
+
+  public void testAutocompleteTags() throws SQLException {
+    postDb.put(ImmutableList.of(buildTaggedPost(1, "art", "music"), buildTaggedPost(2, "art",
+            "Artist"), buildTaggedPost(3, "Art", "architecture", "art history")));
+
+    assertEquals(ImmutableMap.of("art", 2L, "Art", 1L, "architecture", 1L, "art history", 1L,
+            "Artist", 1L), postDb.autocompleteTags("AR", 10));
+    assertEquals(ImmutableMap.of("art", 2L), postDb.autocompleteTags("ar", 1));
+    assertEquals(ImmutableMap.of("music", 1L), postDb.autocompleteTags("m", 5));
+    assertTrue(postDb.autocompleteTags("z", 10).isEmpty());
+
+    // The index must follow later writes, and ignore writes that are rolled back.
+    postDb.put(buildTaggedPost(4, "artist", "Artist"));
+    postDb.delete(1);
+    assertEquals(ImmutableMap.of("Artist", 2L), postDb.autocompleteTags("ar", 1));
+    assertEquals(ImmutableMap.of("Artist", 2L, "artist", 1L), postDb.autocompleteTags("artist", 5));
+    assertEquals(6, postDb.autocompleteTags("ar", 10).size());
+    assertTrue(postDb.autocompleteTags("m", 5).isEmpty());
+    try {
+      postDb.put(ImmutableList.of(buildTaggedPost(5, "artsy"), buildTaggedPost(5, "artsy")));
+      fail("Expected the duplicate post ID to be rejected");
+    } catch (SQLException expected) {
+    }
+    assertTrue(postDb.autocompleteTags("arts", 10).isEmpty());
+  }
+
+  public void testCalendar() throws SQLException {
+    Post firstPost = buildTextPost(1, "2013-11-02T10:00:00Z");
+    Post secondPost = buildTextPost(2, "2013-11-02T23:30:00Z");
+    Post thirdPost = buildTextPost(3, "2013-11-20T08:00:00Z");
+    Post fourthPost = buildTextPost(4, "2014-01-01T00:00:00Z");
+    postDb.put(ImmutableList.of(fourthPost, thirdPost, secondPost, firstPost));
+
+    assertEquals(ImmutableMap.of(2013, 3L, 2014, 1L), postDb.getYearlyPostCounts("many"));
+    assertEquals(ImmutableMap.of(new YearMonth(2013, 11), 3L, new YearMonth(2014, 1), 1L),
+            postDb.getMonthlyPostCounts("many"));
+    assertEquals(ImmutableMap.of(new LocalDate(2013, 11, 2), 2L, new LocalDate(2013, 11, 20), 1L),
+            postDb.getDailyPostCounts("many", new YearMonth(2013, 11)));
+    assertEquals(firstPost, postDb.getFirstPost("many", new YearMonth(2013, 11)));
+    assertEquals(thirdPost, postDb.getFirstPost("many", new LocalDate(2013, 11, 20)));
+    assertNull(postDb.getFirstPost("many", new YearMonth(2013, 12)));
+    assertTrue(postDb.getMonthlyPostCounts("foo.tumblr.com").isEmpty());
+
+    postDb.delete(firstPost.getId());
+    postDb.put(buildTextPost(3, "2013-12-05T12:00:00Z"));
+    assertEquals(ImmutableMap.of(new YearMonth(2013, 11), 1L, new YearMonth(2013, 12), 1L,
+            new YearMonth(2014, 1), 1L), postDb.getMonthlyPostCounts("many"));
+    assertEquals(secondPost, postDb.getFirstPost("many", new YearMonth(2013, 11)));
+
+    postDb.rebuildCounts();
+    assertEquals(ImmutableMap.of(new YearMonth(2013, 11), 1L, new YearMonth(2013, 12), 1L,
+            new YearMonth(2014, 1), 1L), postDb.getMonthlyPostCounts("many"));
+  }
+
+  public void testLatestPost() throws SQLException {
+    assertNull(postDb.getLatestPost("many"));
+
+    Post firstPost = buildTextPost(1, "2013-11-02T10:00:00Z");
+    Post secondPost = buildTextPost(2, "2013-11-20T08:00:00Z");
+    Post tiedPost = buildTextPost(3, "2013-11-20T08:00:00Z");
+    postDb.put(ImmutableList.of(secondPost, firstPost));
+    assertEquals(secondPost, postDb.getLatestPost("many"));
+
+    postDb.put(tiedPost);
+    assertEquals(tiedPost, postDb.getLatestPost("many"));
+    assertNull(postDb.getLatestPost("foo.tumblr.com"));
+  }
+
+  public void testPostCounts() throws SQLException {
+    postDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1, VIDEO_POST_1));
+    assertEquals(3, postDb.getPostCountForBlog("foo.tumblr.com"));
+    assertEquals(1, postDb.getPostCountForType(PostType.TEXT));
+    assertEquals(0, postDb.getPostCountForType(PostType.PHOTO));
+    assertEquals(2, postDb.getPostCountForTag("tag2"));
+    assertEquals(0, postDb.getPostCountForTag("tag4"));
+
+    postDb.put(TEXT_POST_1_EDITED);
+    assertEquals(3, postDb.getPostCountForBlog("foo.tumblr.com"));
+    assertEquals(1, postDb.getPostCountForType(PostType.TEXT));
+    assertEquals(2, postDb.getPostCountForTag("tag2"));
+    assertEquals(2, postDb.getPostCountForTag("tag1"));
+    assertEquals(1, postDb.getPostCountForTag("tag4"));
+
+    postDb.delete(TEXT_POST_1.getId());
+    assertEquals(2, postDb.getPostCountForBlog("foo.tumblr.com"));
+    assertEquals(0, postDb.getPostCountForType(PostType.TEXT));
+    assertEquals(1, postDb.getPostCountForTag("tag2"));
+    assertEquals(0, postDb.getPostCountForTag("tag4"));
+    assertEquals(0, postDb.getPostCountForBlog("bar.tumblr.com"));
+  }
+
+  public void testReadConnections() throws Exception {
+    File dbFile = File.createTempFile("SqlitePostDbTest", ".db");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (final SqlitePostDb walPostDb = new SqlitePostDb(dbFile.getPath(), 2)) {
+      walPostDb.put(ImmutableList.of(QUOTE_POST_1, VIDEO_POST_1));
+      assertEquals(VIDEO_POST_1, walPostDb.get(VIDEO_POST_1.getId()));
+      assertEquals(ImmutableList.of(QUOTE_POST_1.getId()), walPostDb.search("money", 0, 10));
+      assertEquals(2, walPostDb.getPostCountForBlog("foo.tumblr.com"));
+
+      try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+              Statement statement = connection.createStatement();
+              ResultSet resultSet = statement.executeQuery("PRAGMA journal_mode;")) {
+        assertEquals("wal", resultSet.getString(1));
+      }
+
+      // Readers share the pool and run alongside the writer.
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (int i = 0; i < 4; ++i) {
+        futures.add(executor.submit(new Callable<Void>() {
+
+          @Override
+          public Void call() throws SQLException {
+            for (int j = 0; j < 50; ++j) {
+              assertEquals(QUOTE_POST_1, walPostDb.get(QUOTE_POST_1.getId()));
+              assertEquals(VIDEO_POST_1, walPostDb.get(VIDEO_POST_1.getId()));
+            }
+            return null;
+          }
+        }));
+      }
+      walPostDb.put(buildPostCollection(POST_COUNT).values());
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      assertEquals(POST_COUNT + 2, walPostDb.getAll().size());
+    } finally {
+      executor.shutdown();
+      dbFile.delete();
+      new File(dbFile.getPath() + "-shm").delete();
+      new File(dbFile.getPath() + "-wal").delete();
+    }
   }
 
-  public void testEdit_textPost() throws SQLException {
-    assertCanEdit(TEXT_POST_1, TEXT_POST_1_EDITED);
+  public void testRebuildCounts() throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (SqlitePostDb countsPostDb = new SqlitePostDb(connection)) {
+      countsPostDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1, VIDEO_POST_1));
+
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("DELETE FROM tagCounts;");
+        statement.execute("UPDATE blogCounts SET postCount = 17;");
+      }
+      connection.commit();
+
+      countsPostDb.rebuildCounts();
+      assertEquals(3, countsPostDb.getPostCountForBlog("foo.tumblr.com"));
+      assertEquals(3, countsPostDb.getPostCountForTag("tag1"));
+      assertEquals(ImmutableMap.of("tag1", 3L, "tag2", 2L), countsPostDb.getTopTags(2));
+    }
   }
 
-  public void testEdit_videoPost() throws SQLException {
-    assertCanEdit(VIDEO_POST_1, VIDEO_POST_1_EDITED);
-  }
+  public void testReopen() throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (SqlitePostDb firstPostDb = new SqlitePostDb(connection)) {
+      firstPostDb.put(TEXT_POST_1);
+    }
 
-  public void testGet_answerPost() throws SQLException {
-    assertCanGet(ANSWER_POST_1);
+    try (SqlitePostDb secondPostDb = new SqlitePostDb(connection)) {
+      assertEquals(TEXT_POST_1, secondPostDb.get(TEXT_POST_1.getId()));
+    }
   }
 
-  public void testGet_audioPost() throws SQLException {
-    assertCanGet(AUDIO_POST_1);
-  }
+  public void testSearch() throws SQLException {
+    Post htmlPost = new TextPost(77, "foo.tumblr.com", "http://foo.tumblr.com/77/whee",
+            Instant.now(), Instant.now(), ImmutableList.<String> of(), "markup",
+            "<p>fish&amp;chips</p><script>var hidden = 1;</script><b>hello</b>world");
+    postDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1, CHAT_POST_1, ANSWER_POST_1, htmlPost));
 
-  public void testGet_chatPost() throws SQLException {
-    assertCanGet(CHAT_POST_1);
-  }
+    assertEquals(ImmutableList.of(TEXT_POST_1.getId()), postDb.search("Test POST", 0, 10));
+    assertEquals(ImmutableList.of(QUOTE_POST_1.getId()), postDb.search("money, fool!", 0, 10));
+    assertEquals(ImmutableList.of(CHAT_POST_1.getId()), postDb.search("hi", 0, 10));
+    assertEquals(ImmutableList.of(ANSWER_POST_1.getId()), postDb.search("war", 0, 10));
+    assertEquals(ImmutableList.of(htmlPost.getId()), postDb.search("chips hello world", 0, 10));
+    assertTrue(postDb.search("hidden", 0, 10).isEmpty());
+    assertTrue(postDb.search("script", 0, 10).isEmpty());
+    assertTrue(postDb.search("\"*", 0, 10).isEmpty());
 
-  public void testGet_linkPost() throws SQLException {
-    assertCanGet(LINK_POST_1);
-  }
+    assertEquals(ImmutableList.of(TEXT_POST_1, CHAT_POST_1, htmlPost),
+            postDb.searchPosts("hello", 0, 10));
+    assertEquals(ImmutableList.of(CHAT_POST_1), postDb.searchPosts("hello", 1, 1));
 
-  public void testGet_nonexistent() throws SQLException {
-    assertNull(postDb.get(12345));
-  }
+    Post catPost = new TextPost(80, "foo.tumblr.com", "http://foo.tumblr.com/80/whee",
+            Instant.now(), Instant.now(), ImmutableList.<String> of(), "", "cat cat cat dog");
+    Post dogPost = new TextPost(90, "foo.tumblr.com", "http://foo.tumblr.com/90/whee",
+            Instant.now(), Instant.now(), ImmutableList.<String> of(), "", "cat dog dog dog");
+    postDb.put(ImmutableList.of(catPost, dogPost));
+    assertEquals(ImmutableList.of(catPost.getId(), dogPost.getId()), postDb.search("cat", 0, 10));
+    assertEquals(ImmutableList.of(dogPost.getId(), catPost.getId()), postDb.search("dog", 0, 10));
 
-  public void testGet_photoPost() throws SQLException {
-    assertCanGet(PHOTO_POST_1);
-  }
+    postDb.put(TEXT_POST_1_EDITED);
+    assertTrue(postDb.search("world", 0, 10).contains(htmlPost.getId()));
+    assertFalse(postDb.search("world", 0, 10).contains(TEXT_POST_1.getId()));
+    assertEquals(ImmutableList.of(TEXT_POST_1.getId()), postDb.search("old content", 0, 10));
 
-  public void testGet_quotePost() throws SQLException {
-    assertCanGet(QUOTE_POST_1);
-  }
+    postDb.delete(TEXT_POST_1.getId());
+    assertTrue(postDb.search("old content", 0, 10).isEmpty());
 
-  public void testGet_textPost() throws SQLException {
-    assertCanGet(TEXT_POST_1);
-  }
+    postDb.rebuildSearchIndex();
+    assertEquals(ImmutableList.of(QUOTE_POST_1.getId()), postDb.search("danny", 0, 10));
 
-  public void testGet_videoPost() throws SQLException {
-    assertCanGet(VIDEO_POST_1);
+    Post unclosedPost = new TextPost(100, "foo.tumblr.com", "http://foo.tumblr.com/100/whee",
+            Instant.now(), Instant.now(), ImmutableList.<String> of(), "", "1 <2 and beyond");
+    postDb.put(unclosedPost);
+    assertEquals(ImmutableList.of(unclosedPost.getId()), postDb.search("beyond", 0, 10));
   }
 
-  public void testGetAll() throws SQLException {
-    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
-    postDb.put(posts.values());
-
-    List<Post> retrievedPosts = postDb.getAll();
-    HashMap<Long, Post> retrievedPostById = new HashMap<>();
-    for (Post post : retrievedPosts) {
-      assertFalse(retrievedPostById.containsKey(post.getId()));
-      retrievedPostById.put(post.getId(), post);
+  public void testSearchIndexMigration() throws SQLException {
+    Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    try (SqlitePostDb firstPostDb = new SqlitePostDb(connection)) {
+      firstPostDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1));
     }
-    assertEquals(posts, retrievedPostById);
-  }
 
-  public void testPut_answerPost() throws SQLException {
-    assertCanPut(ANSWER_POST_1);
-  }
+    // Roll the database back to the version before the search index existed.
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE postText;");
+      statement.execute("DROP TABLE syncCheckpoints;");
+      statement.execute("PRAGMA user_version = 3;");
+    }
+    connection.commit();
 
-  public void testPut_audioPost() throws SQLException {
-    assertCanPut(AUDIO_POST_1);
+    try (SqlitePostDb secondPostDb = new SqlitePostDb(connection)) {
+      assertEquals(ImmutableList.of(QUOTE_POST_1.getId()), secondPostDb.search("danny", 0, 10));
+      assertNull(secondPostDb.getSyncCheckpoint("foo.tumblr.com"));
+    }
   }
 
-  public void testPut_chatPost() throws SQLException {
-    assertCanPut(CHAT_POST_1);
-  }
+  public void testSyncCheckpoint() throws SQLException {
+    assertNull(postDb.getSyncCheckpoint("foo.tumblr.com"));
 
-  public void testPut_linkPost() throws SQLException {
-    assertCanPut(LINK_POST_1);
-  }
+    SyncCheckpoint firstCheckpoint = new SyncCheckpoint("foo.tumblr.com", "run1",
+            TEXT_POST_1.getId(), 1, null);
+    postDb.put(ImmutableList.of(TEXT_POST_1), firstCheckpoint);
+    assertEquals(TEXT_POST_1, postDb.get(TEXT_POST_1.getId()));
+    assertEquals(firstCheckpoint, postDb.getSyncCheckpoint("foo.tumblr.com"));
 
-  public void testPut_photoPost() throws SQLException {
-    assertCanPut(PHOTO_POST_1);
-  }
+    SyncCheckpoint secondCheckpoint = new SyncCheckpoint("foo.tumblr.com", "run1",
+            QUOTE_POST_1.getId(), 2, new Instant(1385000000000L));
+    postDb.put(ImmutableList.of(QUOTE_POST_1), secondCheckpoint);
+    assertEquals(secondCheckpoint, postDb.getSyncCheckpoint("foo.tumblr.com"));
+    assertNull(postDb.getSyncCheckpoint("bar.tumblr.com"));
 
-  public void testPut_quotePost() throws SQLException {
-    assertCanPut(QUOTE_POST_1);
+    postDb.deleteSyncCheckpoint("foo.tumblr.com");
+    assertNull(postDb.getSyncCheckpoint("foo.tumblr.com"));
+    assertEquals(QUOTE_POST_1, postDb.get(QUOTE_POST_1.getId()));
   }
 
-  public void testPut_textPost() throws SQLException {
-    assertCanPut(TEXT_POST_1);
-  }
+  public void testTopTags() throws SQLException {
+    postDb.put(ImmutableList.of(TEXT_POST_1, QUOTE_POST_1, VIDEO_POST_1, PHOTO_POST_1));
 
-  public void testPut_videoPost() throws SQLException {
-    assertCanPut(VIDEO_POST_1);
+    Map<String, Long> topTags = postDb.getTopTags(3);
+    assertEquals(ImmutableList.of("tag1", "tag5", "tag2"), ImmutableList.copyOf(topTags.keySet()));
+    assertEquals(ImmutableList.of(4L, 3L, 2L), ImmutableList.copyOf(topTags.values()));
   }
 
-  public void testPutCollection() throws SQLException {
-    Map<Long, Post> posts = buildPostCollection(POST_COUNT);
-    postDb.put(posts.values());
+  private static Post buildTaggedPost(long id, String... tags) {
+    return new TextPost(id, "many", "http://many.tumblr.com/" + id + "/", Instant.now(),
+            Instant.now(), ImmutableList.copyOf(tags), "post " + id, "body " + id);
   }
 
-  private static Map<Long, Post> buildPostCollection(int count) {
-    ImmutableMap.Builder<Long, Post> postsBuilder = new ImmutableMap.Builder<>();
-    Instant now = Instant.now();
-    for (long id = 1; id <= count; id++) {
-      Post post = new TextPost(id, "many", "http://many.tumblr.com/" + id + "/", now.minus(id),
-              now, ImmutableList.of("tag1", "tag2", "tag3"), "post " + id, "body " + id);
-      postsBuilder.put(id, post);
-    }
-    return postsBuilder.build();
+  private static Post buildTextPost(long id, String postedInstant) {
+    return new TextPost(id, "many", "http://many.tumblr.com/" + id + "/",
+            Instant.parse(postedInstant), Instant.now(), ImmutableList.of("tag1"), "post " + id,
+            "body " + id);
   }
 
   public static Test suite() {
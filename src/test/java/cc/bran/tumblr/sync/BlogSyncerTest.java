@@ -0,0 +1,138 @@
+package cc.bran.tumblr.sync;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.api.FakeTumblrApi;
+import cc.bran.tumblr.api.TumblrApi;
+import cc.bran.tumblr.persistence.SqlitePostDb;
+import cc.bran.tumblr.persistence.SyncCheckpoint;
+import cc.bran.tumblr.types.Post;
+import cc.bran.tumblr.types.TextPost;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link BlogSyncer}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class BlogSyncerTest extends TestCase {
+
+  private static final String BLOG_NAME = "foo";
+
+  private static final Duration OVERLAP = Duration.standardMinutes(30);
+
+  private static final int POST_COUNT = 1000;
+
+  private FakeTumblrApi api;
+
+  private SqlitePostDb postDb;
+
+  private List<Post> posts;
+
+  private BlogSyncer syncer;
+
+  @Override
+  public void setUp() throws Exception {
+    api = new FakeTumblrApi();
+    postDb = new SqlitePostDb(":memory:");
+    posts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT);
+    api.publish(posts);
+    syncer = new BlogSyncer(api, postDb, OVERLAP);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    postDb.close();
+  }
+
+  public void testSync_editedPosts() throws Exception {
+    syncer.sync(BLOG_NAME);
+
+    // Post 980 is within the overlap window of the latest post; post 900 is not.
+    Post recentlyEditedPost = buildEditedPost(posts.get(979));
+    Post oldEditedPost = buildEditedPost(posts.get(899));
+    api.replace(recentlyEditedPost);
+    api.replace(oldEditedPost);
+
+    assertEquals(1, syncer.sync(BLOG_NAME));
+    assertEquals(recentlyEditedPost, postDb.get(recentlyEditedPost.getId()));
+    assertEquals(posts.get(899), postDb.get(oldEditedPost.getId()));
+  }
+
+  public void testSync_emptyDb() throws Exception {
+    assertEquals(POST_COUNT, syncer.sync(BLOG_NAME));
+    assertEquals(POST_COUNT, postDb.getPostCountForBlog(BLOG_NAME));
+    assertEquals(posts.get(POST_COUNT - 1), postDb.getLatestPost(BLOG_NAME));
+  }
+
+  public void testSync_newPosts() throws Exception {
+    syncer.sync(BLOG_NAME);
+    List<Post> newPosts = FakeTumblrApi.buildPosts(BLOG_NAME, POST_COUNT + 3).subList(POST_COUNT,
+            POST_COUNT + 3);
+    api.publish(newPosts);
+
+    int requestCount = api.getRequestCount();
+    assertEquals(3, syncer.sync(BLOG_NAME));
+    assertEquals(POST_COUNT + 3, postDb.getPostCountForBlog(BLOG_NAME));
+
+    // The 3 new posts and the 30 minutes of overlap fit in two pages.
+    assertTrue(api.getRequestCount() - requestCount <= 2);
+  }
+
+  public void testSync_noNewPosts() throws Exception {
+    syncer.sync(BLOG_NAME);
+    assertEquals(0, syncer.sync(BLOG_NAME));
+  }
+
+  public void testSync_resume() throws Exception {
+    FakeTumblrApi failingApi = new FakeTumblrApi() {
+
+      @Override
+      protected void onRequest(int requestNumber) {
+        if (requestNumber > 10) {
+          throw new IllegalStateException("connection lost");
+        }
+      }
+    };
+    failingApi.publish(posts);
+    try {
+      new BlogSyncer(failingApi, postDb, OVERLAP).sync(BLOG_NAME);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    long writtenCount = postDb.getPostCountForBlog(BLOG_NAME);
+    SyncCheckpoint checkpoint = postDb.getSyncCheckpoint(BLOG_NAME);
+    assertTrue(writtenCount > 0);
+    assertEquals(posts.get((int) (POST_COUNT - writtenCount)).getId(), checkpoint.getLastPostId());
+
+    try (BlogSyncer.BlogSync blogSync = syncer.start(BLOG_NAME)) {
+      assertTrue(blogSync.isResumed());
+      assertEquals(checkpoint.getRunId(), blogSync.getRunId());
+      assertTrue(blogSync.runBatches(Integer.MAX_VALUE));
+      assertEquals(POST_COUNT - writtenCount, blogSync.getWriteCount());
+    }
+    assertEquals(POST_COUNT, postDb.getPostCountForBlog(BLOG_NAME));
+    assertNull(postDb.getSyncCheckpoint(BLOG_NAME));
+
+    // Only the pages after the checkpoint were read again.
+    assertTrue(api.getRequestCount() <= (POST_COUNT - writtenCount) / TumblrApi.PAGE_SIZE + 2);
+  }
+
+  private static Post buildEditedPost(Post post) {
+    return new TextPost(post.getId(), post.getBlogName(), post.getPostUrl(),
+            post.getPostedInstant(), Instant.now(), ImmutableList.of("edited"), "edited",
+            "edited body");
+  }
+
+  public static Test suite() {
+    return new TestSuite(BlogSyncerTest.class);
+  }
+}
@@ -0,0 +1,185 @@
+package cc.bran.tumblr.sync;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Duration;
+
+import cc.bran.tumblr.api.FakeTumblrApi;
+import cc.bran.tumblr.persistence.SqlitePostDb;
+import cc.bran.tumblr.sync.IngestionPipeline.StageMetrics;
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link IngestionPipeline}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class IngestionPipelineTest extends TestCase {
+
+  private static final List<String> BLOG_NAMES = ImmutableList.of("foo", "bar", "baz");
+
+  private static final int POST_COUNT = 300;
+
+  private FakeTumblrApi api;
+
+  private SqlitePostDb postDb;
+
+  private AtomicInteger putCount;
+
+  private AtomicInteger writtenPostCount;
+
+  @Override
+  public void setUp() throws Exception {
+    api = new FakeTumblrApi();
+    putCount = new AtomicInteger();
+    writtenPostCount = new AtomicInteger();
+    postDb = new SqlitePostDb(":memory:") {
+
+      @Override
+      public void put(Collection<Post> posts) throws SQLException {
+        putCount.incrementAndGet();
+        super.put(posts);
+        writtenPostCount.addAndGet(posts.size());
+      }
+    };
+
+    long nextId = 1;
+    for (String blogName : BLOG_NAMES) {
+      for (int i = 1; i <= POST_COUNT; ++i) {
+        api.publish(FakeTumblrApi.buildPost(blogName, nextId++, i));
+      }
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    postDb.close();
+  }
+
+  public void testRun() throws Exception {
+    IngestionPipeline.Builder builder = new IngestionPipeline.Builder(api, postDb);
+    builder.setFetchThreadCount(2);
+    builder.setConvertThreadCount(2);
+    builder.setMaxBatchSize(100);
+    IngestionPipeline pipeline = builder.build();
+    pipeline.run(BLOG_NAMES);
+
+    for (String blogName : BLOG_NAMES) {
+      assertEquals(POST_COUNT, postDb.getPostCountForBlog(blogName));
+    }
+    StageMetrics persistMetrics = pipeline.getPersistMetrics();
+    assertEquals(BLOG_NAMES.size() * POST_COUNT, pipeline.getFetchMetrics().getItemCount());
+    assertEquals(BLOG_NAMES.size() * POST_COUNT, pipeline.getConvertMetrics().getItemCount());
+    assertEquals(BLOG_NAMES.size() * POST_COUNT, persistMetrics.getItemCount());
+
+    // Posts are written in batches, not one transaction each.
+    assertEquals(putCount.get(), persistMetrics.getOperationCount());
+    assertTrue(putCount.get() >= BLOG_NAMES.size() * POST_COUNT / 100);
+    assertTrue(putCount.get() < BLOG_NAMES.size() * POST_COUNT / 10);
+    assertTrue(persistMetrics.getThroughput() > 0);
+    assertTrue(persistMetrics.getMaxLatencyMillis() >= persistMetrics.getMeanLatencyMillis());
+  }
+
+  public void testRun_backpressure() throws Exception {
+    final int queueCapacity = 10;
+    final int maxBatchSize = 10;
+    final AtomicInteger maxUnwrittenPostCount = new AtomicInteger();
+    postDb.close();
+    postDb = new SqlitePostDb(":memory:") {
+
+      @Override
+      public void put(Collection<Post> posts) throws SQLException {
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+        }
+        super.put(posts);
+        writtenPostCount.addAndGet(posts.size());
+      }
+    };
+    final AtomicInteger convertedPostCount = new AtomicInteger();
+    IngestionPipeline.Builder builder = new IngestionPipeline.Builder(api, postDb);
+    builder.setConverter(new Function<Post, Post>() {
+
+      @Override
+      public Post apply(Post post) {
+        int unwrittenPostCount = convertedPostCount.incrementAndGet() - writtenPostCount.get();
+        synchronized (maxUnwrittenPostCount) {
+          maxUnwrittenPostCount.set(Math.max(maxUnwrittenPostCount.get(), unwrittenPostCount));
+        }
+        return post;
+      }
+    });
+    builder.setMaxBatchSize(maxBatchSize);
+    builder.setQueueCapacity(queueCapacity);
+    builder.build().run(BLOG_NAMES);
+
+    // A converted post waits in the queue, in a batch being filled, or in the batch being written.
+    assertTrue(maxUnwrittenPostCount.get() <= queueCapacity + 2 * maxBatchSize + 1);
+    assertEquals(BLOG_NAMES.size() * POST_COUNT, writtenPostCount.get());
+  }
+
+  public void testRun_batchDelay() throws Exception {
+    api = new FakeTumblrApi(20);
+    api.publish(FakeTumblrApi.buildPosts("slow", 60));
+    IngestionPipeline.Builder builder = new IngestionPipeline.Builder(api, postDb);
+    builder.setMaxBatchDelay(Duration.millis(1));
+    IngestionPipeline pipeline = builder.build();
+    pipeline.run(ImmutableList.of("slow"));
+
+    // Posts trickle in a page at a time, so batches are written well before they fill.
+    assertEquals(60, postDb.getPostCountForBlog("slow"));
+    assertTrue(pipeline.getPersistMetrics().getOperationCount() > 1);
+  }
+
+  public void testRun_converterDropsPosts() throws Exception {
+    IngestionPipeline.Builder builder = new IngestionPipeline.Builder(api, postDb);
+    builder.setConverter(new Function<Post, Post>() {
+
+      @Override
+      public Post apply(Post post) {
+        return (post.getId() % 2 == 0) ? post : null;
+      }
+    });
+    builder.build().run(BLOG_NAMES);
+
+    for (String blogName : BLOG_NAMES) {
+      assertEquals(POST_COUNT / 2, postDb.getPostCountForBlog(blogName));
+    }
+  }
+
+  public void testRun_failure() throws Exception {
+    IngestionPipeline.Builder builder = new IngestionPipeline.Builder(api, postDb);
+    builder.setConverter(new Function<Post, Post>() {
+
+      @Override
+      public Post apply(Post post) {
+        if (post.getId() == POST_COUNT) {
+          throw new IllegalStateException("cannot convert post " + post.getId());
+        }
+        return post;
+      }
+    });
+    builder.setQueueCapacity(10);
+    try {
+      builder.build().run(BLOG_NAMES);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(IngestionPipelineTest.class);
+  }
+}
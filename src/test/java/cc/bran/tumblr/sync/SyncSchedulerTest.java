@@ -0,0 +1,154 @@
+package cc.bran.tumblr.sync;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import cc.bran.tumblr.api.FakeTumblrApi;
+import cc.bran.tumblr.persistence.SqlitePostDb;
+import cc.bran.tumblr.sync.SyncScheduler.BlogProgress;
+import cc.bran.tumblr.sync.SyncScheduler.State;
+import cc.bran.tumblr.types.Post;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests for {@link SyncScheduler}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class SyncSchedulerTest extends TestCase {
+
+  private static final String BAD_BLOG_NAME = "bad";
+
+  private static final String BROKEN_BLOG_NAME = "broken";
+
+  private static final String HUGE_BLOG_NAME = "huge";
+
+  private static final int HUGE_POST_COUNT = 2000;
+
+  private static final Duration OVERLAP = Duration.standardMinutes(30);
+
+  private static final List<String> SMALL_BLOG_NAMES = ImmutableList.of("small1", "small2",
+          "small3", "small4");
+
+  private static final int SMALL_POST_COUNT = 50;
+
+  private FakeTumblrApi api;
+
+  private SqlitePostDb postDb;
+
+  @Override
+  public void setUp() throws Exception {
+    api = new FakeTumblrApi() {
+
+      private void checkBlogName(String blogName) {
+        if (blogName.equals(BAD_BLOG_NAME)) {
+          throw new IllegalStateException("cannot read " + blogName);
+        }
+        if (blogName.equals(BROKEN_BLOG_NAME)) {
+          throw new AssertionError("cannot convert a post from " + blogName);
+        }
+      }
+
+      @Override
+      public List<Post> getPosts(String blogName, int offset) {
+        checkBlogName(blogName);
+        return super.getPosts(blogName, offset);
+      }
+
+      @Override
+      public List<Post> getPostsBefore(String blogName, Instant before, int offset) {
+        checkBlogName(blogName);
+        return super.getPostsBefore(blogName, before, offset);
+      }
+    };
+    postDb = new SqlitePostDb(":memory:");
+
+    api.publish(FakeTumblrApi.buildPosts(HUGE_BLOG_NAME, HUGE_POST_COUNT));
+    long nextId = HUGE_POST_COUNT + 1;
+    for (String blogName : SMALL_BLOG_NAMES) {
+      for (int i = 1; i <= SMALL_POST_COUNT; ++i) {
+        api.publish(FakeTumblrApi.buildPost(blogName, nextId++, i));
+      }
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    postDb.close();
+  }
+
+  public void testSync() throws Exception {
+    SyncScheduler scheduler = new SyncScheduler(new BlogSyncer(api, postDb, OVERLAP), postDb, 2,
+            1);
+    Map<String, BlogProgress> progress = scheduler.sync(ImmutableList.<String> builder()
+            .add(HUGE_BLOG_NAME).addAll(SMALL_BLOG_NAMES).build());
+
+    assertEquals(HUGE_POST_COUNT, postDb.getPostCountForBlog(HUGE_BLOG_NAME));
+    assertEquals(State.DONE, progress.get(HUGE_BLOG_NAME).getState());
+    assertEquals(HUGE_POST_COUNT, progress.get(HUGE_BLOG_NAME).getWriteCount());
+    for (String blogName : SMALL_BLOG_NAMES) {
+      BlogProgress blogProgress = progress.get(blogName);
+      assertEquals(SMALL_POST_COUNT, postDb.getPostCountForBlog(blogName));
+      assertEquals(State.DONE, blogProgress.getState());
+      assertEquals(SMALL_POST_COUNT, blogProgress.getReadCount());
+
+      // Small blogs are not held up behind the huge one.
+      assertFalse(blogProgress.getEndInstant().isAfter(
+              progress.get(HUGE_BLOG_NAME).getStartInstant().plus(
+                      progress.get(HUGE_BLOG_NAME).getElapsed().getMillis() / 2)));
+    }
+    assertEquals(progress.toString(), scheduler.getProgress().toString());
+  }
+
+  public void testSync_failure() throws Exception {
+    SyncScheduler scheduler = new SyncScheduler(new BlogSyncer(api, postDb, OVERLAP), postDb, 2,
+            1);
+    Map<String, BlogProgress> progress = scheduler.sync(ImmutableList.<String> builder()
+            .add(BAD_BLOG_NAME).addAll(SMALL_BLOG_NAMES).build());
+
+    assertEquals(State.FAILED, progress.get(BAD_BLOG_NAME).getState());
+    assertTrue(progress.get(BAD_BLOG_NAME).getFailure() instanceof IllegalStateException);
+    for (String blogName : SMALL_BLOG_NAMES) {
+      assertEquals(State.DONE, progress.get(blogName).getState());
+      assertEquals(SMALL_POST_COUNT, postDb.getPostCountForBlog(blogName));
+    }
+  }
+
+  public void testSync_failureWithError() throws Exception {
+    SyncScheduler scheduler = new SyncScheduler(new BlogSyncer(api, postDb, OVERLAP), postDb, 2,
+            1);
+    Map<String, BlogProgress> progress = scheduler.sync(ImmutableList.<String> builder()
+            .add(BROKEN_BLOG_NAME).addAll(SMALL_BLOG_NAMES).build());
+
+    assertEquals(State.FAILED, progress.get(BROKEN_BLOG_NAME).getState());
+    assertTrue(progress.get(BROKEN_BLOG_NAME).getFailure() instanceof AssertionError);
+    for (String blogName : SMALL_BLOG_NAMES) {
+      assertEquals(State.DONE, progress.get(blogName).getState());
+      assertEquals(SMALL_POST_COUNT, postDb.getPostCountForBlog(blogName));
+    }
+  }
+
+  public void testSync_incremental() throws Exception {
+    SyncScheduler scheduler = new SyncScheduler(new BlogSyncer(api, postDb, OVERLAP), postDb, 2,
+            1);
+    scheduler.sync(SMALL_BLOG_NAMES);
+    api.publish(FakeTumblrApi.buildPost("small1", 1000000, SMALL_POST_COUNT + 1));
+
+    Map<String, BlogProgress> progress = scheduler.sync(SMALL_BLOG_NAMES);
+    assertEquals(1, progress.get("small1").getWriteCount());
+    assertEquals(0, progress.get("small2").getWriteCount());
+    assertEquals(SMALL_POST_COUNT + 1, postDb.getPostCountForBlog("small1"));
+  }
+
+  public static Test suite() {
+    return new TestSuite(SyncSchedulerTest.class);
+  }
+}
@@ -0,0 +1,178 @@
+package cc.bran.util;
+
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests for {@link LongLongHashMap}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class LongLongHashMapTest extends TestCase {
+
+  /**
+   * The capacity of a map created with {@link #EXPECTED_SIZE}; it holds six entries before growing.
+   */
+  private static final int CAPACITY = 8;
+
+  private static final int EXPECTED_SIZE = 4;
+
+  private static final long MISSING = -1;
+
+  private LongLongHashMap map;
+
+  @Override
+  public void setUp() {
+    map = new LongLongHashMap(MISSING, EXPECTED_SIZE);
+  }
+
+  public void testClear() {
+    map.put(1, 10);
+    map.put(2, 20);
+    map.clear();
+
+    assertEquals(0, map.size());
+    assertFalse(map.containsKey(1));
+    assertEquals(MISSING, map.get(2));
+
+    map.put(2, 30);
+    assertEquals(30, map.get(2));
+  }
+
+  public void testCollisions() {
+    long[] keys = findKeysWithHome(2, 3);
+    for (int i = 0; i < keys.length; ++i) {
+      assertEquals(MISSING, map.put(keys[i], i));
+    }
+
+    assertEquals(keys.length, map.size());
+    for (int i = 0; i < keys.length; ++i) {
+      assertEquals(i, map.get(keys[i]));
+    }
+    assertEquals(1, map.put(keys[1], 100));
+    assertEquals(100, map.get(keys[1]));
+    assertEquals(keys.length, map.size());
+  }
+
+  public void testRemove() {
+    map.put(1, 10);
+
+    assertEquals(MISSING, map.remove(2));
+    assertEquals(10, map.remove(1));
+    assertEquals(MISSING, map.remove(1));
+    assertEquals(0, map.size());
+    assertFalse(map.containsKey(1));
+  }
+
+  public void testRemoveInProbeChain() {
+    // Three keys share home slot 3 and fill slots 3 to 5, which pushes a key with home slot 4 to
+    // slot 6. Removing the middle of the chain must shift the later entries back.
+    long[] chainKeys = findKeysWithHome(3, 3);
+    long displacedKey = findKeysWithHome(4, 1)[0];
+    for (long key : chainKeys) {
+      map.put(key, key * 10);
+    }
+    map.put(displacedKey, displacedKey * 10);
+
+    assertEquals(chainKeys[1] * 10, map.remove(chainKeys[1]));
+    assertFalse(map.containsKey(chainKeys[1]));
+    assertEquals(chainKeys[0] * 10, map.get(chainKeys[0]));
+    assertEquals(chainKeys[2] * 10, map.get(chainKeys[2]));
+    assertEquals(displacedKey * 10, map.get(displacedKey));
+    assertEquals(3, map.size());
+
+    assertEquals(chainKeys[0] * 10, map.remove(chainKeys[0]));
+    assertEquals(chainKeys[2] * 10, map.get(chainKeys[2]));
+    assertEquals(displacedKey * 10, map.get(displacedKey));
+  }
+
+  public void testResize() {
+    for (long key = 0; key < 1000; ++key) {
+      map.put(key, key + 1);
+    }
+
+    assertEquals(1000, map.size());
+    for (long key = 0; key < 1000; ++key) {
+      assertEquals(key + 1, map.get(key));
+    }
+
+    long[] keys = map.keys();
+    long[] values = map.values();
+    Arrays.sort(keys);
+    Arrays.sort(values);
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals(i, keys[i]);
+      assertEquals(i + 1, values[i]);
+    }
+
+    for (long key = 0; key < 1000; key += 2) {
+      assertEquals(key + 1, map.remove(key));
+    }
+    assertEquals(500, map.size());
+    for (long key = 0; key < 1000; ++key) {
+      assertEquals(key % 2 == 0 ? MISSING : key + 1, map.get(key));
+    }
+  }
+
+  public void testSentinelKeys() {
+    // Keys that match the missing value or the arrays' default value are ordinary keys.
+    assertFalse(map.containsKey(0));
+    assertFalse(map.containsKey(MISSING));
+
+    map.put(0, 5);
+    map.put(MISSING, 6);
+    map.put(Long.MIN_VALUE, 7);
+    map.put(Long.MAX_VALUE, 8);
+
+    assertEquals(4, map.size());
+    assertEquals(5, map.get(0));
+    assertEquals(6, map.get(MISSING));
+    assertEquals(7, map.get(Long.MIN_VALUE));
+    assertEquals(8, map.get(Long.MAX_VALUE));
+
+    assertEquals(5, map.remove(0));
+    assertFalse(map.containsKey(0));
+    assertTrue(map.containsKey(MISSING));
+  }
+
+  public void testWraparound() {
+    // Three keys with home slot 7 fill slots 7, 0 and 1, which pushes a key with home slot 0 to
+    // slot 2.
+    long[] wrappedKeys = findKeysWithHome(CAPACITY - 1, 3);
+    long displacedKey = findKeysWithHome(0, 1)[0];
+    for (long key : wrappedKeys) {
+      map.put(key, key * 10);
+    }
+    map.put(displacedKey, displacedKey * 10);
+
+    for (long key : wrappedKeys) {
+      assertEquals(key * 10, map.get(key));
+    }
+    assertEquals(displacedKey * 10, map.get(displacedKey));
+
+    // Removing the entry in the last slot must shift entries back across the end of the array.
+    map.remove(wrappedKeys[0]);
+    assertFalse(map.containsKey(wrappedKeys[0]));
+    assertEquals(wrappedKeys[1] * 10, map.get(wrappedKeys[1]));
+    assertEquals(wrappedKeys[2] * 10, map.get(wrappedKeys[2]));
+    assertEquals(displacedKey * 10, map.get(displacedKey));
+  }
+
+  private static long[] findKeysWithHome(int home, int count) {
+    long[] keys = new long[count];
+    int found = 0;
+    for (long key = 1; found < count; ++key) {
+      if ((LongLongHashMap.hash(key) & (CAPACITY - 1)) == home) {
+        keys[found++] = key;
+      }
+    }
+    return keys;
+  }
+
+  public static Test suite() {
+    return new TestSuite(LongLongHashMapTest.class);
+  }
+}
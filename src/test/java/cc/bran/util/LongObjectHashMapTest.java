@@ -0,0 +1,189 @@
+package cc.bran.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests for {@link LongObjectHashMap}.
+ * 
+ * @author Brandon Pitman (brandon.pitman@gmail.com)
+ */
+public class LongObjectHashMapTest extends TestCase {
+
+  /**
+   * The capacity of a map created with {@link #EXPECTED_SIZE}; it holds six entries before growing.
+   */
+  private static final int CAPACITY = 8;
+
+  private static final int EXPECTED_SIZE = 4;
+
+  private LongObjectHashMap<String> map;
+
+  @Override
+  public void setUp() {
+    map = new LongObjectHashMap<>(EXPECTED_SIZE);
+  }
+
+  public void testClear() {
+    map.put(1, "one");
+    map.put(2, "two");
+    map.clear();
+
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(1));
+    assertNull(map.get(2));
+
+    map.put(2, "three");
+    assertEquals("three", map.get(2));
+  }
+
+  public void testCollisions() {
+    long[] keys = findKeysWithHome(2, 3);
+    for (long key : keys) {
+      assertNull(map.put(key, value(key)));
+    }
+
+    assertEquals(keys.length, map.size());
+    for (long key : keys) {
+      assertEquals(value(key), map.get(key));
+    }
+    assertEquals(value(keys[1]), map.put(keys[1], "replaced"));
+    assertEquals("replaced", map.get(keys[1]));
+    assertEquals(keys.length, map.size());
+  }
+
+  public void testNullValue() {
+    try {
+      map.put(1, null);
+      fail("Expected NullPointerException");
+    } catch (NullPointerException expected) {
+    }
+    assertTrue(map.isEmpty());
+  }
+
+  public void testRemove() {
+    map.put(1, "one");
+
+    assertNull(map.remove(2));
+    assertEquals("one", map.remove(1));
+    assertNull(map.remove(1));
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(1));
+  }
+
+  public void testRemoveInProbeChain() {
+    // Three keys share home slot 3 and fill slots 3 to 5, which pushes a key with home slot 4 to
+    // slot 6. Removing the middle of the chain must shift the later entries back.
+    long[] chainKeys = findKeysWithHome(3, 3);
+    long displacedKey = findKeysWithHome(4, 1)[0];
+    for (long key : chainKeys) {
+      map.put(key, value(key));
+    }
+    map.put(displacedKey, value(displacedKey));
+
+    assertEquals(value(chainKeys[1]), map.remove(chainKeys[1]));
+    assertFalse(map.containsKey(chainKeys[1]));
+    assertEquals(value(chainKeys[0]), map.get(chainKeys[0]));
+    assertEquals(value(chainKeys[2]), map.get(chainKeys[2]));
+    assertEquals(value(displacedKey), map.get(displacedKey));
+    assertEquals(3, map.size());
+
+    assertEquals(value(chainKeys[0]), map.remove(chainKeys[0]));
+    assertEquals(value(chainKeys[2]), map.get(chainKeys[2]));
+    assertEquals(value(displacedKey), map.get(displacedKey));
+  }
+
+  public void testResize() {
+    for (long key = 0; key < 1000; ++key) {
+      map.put(key, value(key));
+    }
+
+    assertEquals(1000, map.size());
+    for (long key = 0; key < 1000; ++key) {
+      assertEquals(value(key), map.get(key));
+    }
+
+    long[] keys = map.keys();
+    List<String> values = map.values();
+    assertEquals(keys.length, values.size());
+    for (int i = 0; i < keys.length; ++i) {
+      assertEquals(value(keys[i]), values.get(i));
+    }
+    Arrays.sort(keys);
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals(i, keys[i]);
+    }
+
+    for (long key = 0; key < 1000; key += 2) {
+      assertEquals(value(key), map.remove(key));
+    }
+    assertEquals(500, map.size());
+    for (long key = 0; key < 1000; ++key) {
+      assertEquals(key % 2 == 0 ? null : value(key), map.get(key));
+    }
+  }
+
+  public void testSentinelKeys() {
+    // A key of zero, the arrays' default value, is an ordinary key.
+    assertFalse(map.containsKey(0));
+
+    map.put(0, "zero");
+    map.put(Long.MIN_VALUE, "min");
+    map.put(Long.MAX_VALUE, "max");
+
+    assertEquals(3, map.size());
+    assertEquals("zero", map.get(0));
+    assertEquals("min", map.get(Long.MIN_VALUE));
+    assertEquals("max", map.get(Long.MAX_VALUE));
+
+    assertEquals("zero", map.remove(0));
+    assertFalse(map.containsKey(0));
+    assertTrue(map.containsKey(Long.MIN_VALUE));
+  }
+
+  public void testWraparound() {
+    // Three keys with home slot 7 fill slots 7, 0 and 1, which pushes a key with home slot 0 to
+    // slot 2.
+    long[] wrappedKeys = findKeysWithHome(CAPACITY - 1, 3);
+    long displacedKey = findKeysWithHome(0, 1)[0];
+    for (long key : wrappedKeys) {
+      map.put(key, value(key));
+    }
+    map.put(displacedKey, value(displacedKey));
+
+    for (long key : wrappedKeys) {
+      assertEquals(value(key), map.get(key));
+    }
+    assertEquals(value(displacedKey), map.get(displacedKey));
+
+    // Removing the entry in the last slot must shift entries back across the end of the array.
+    map.remove(wrappedKeys[0]);
+    assertFalse(map.containsKey(wrappedKeys[0]));
+    assertEquals(value(wrappedKeys[1]), map.get(wrappedKeys[1]));
+    assertEquals(value(wrappedKeys[2]), map.get(wrappedKeys[2]));
+    assertEquals(value(displacedKey), map.get(displacedKey));
+  }
+
+  private static long[] findKeysWithHome(int home, int count) {
+    long[] keys = new long[count];
+    int found = 0;
+    for (long key = 1; found < count; ++key) {
+      if ((LongLongHashMap.hash(key) & (CAPACITY - 1)) == home) {
+        keys[found++] = key;
+      }
+    }
+    return keys;
+  }
+
+  private static String value(long key) {
+    return "value " + key;
+  }
+
+  public static Test suite() {
+    return new TestSuite(LongObjectHashMapTest.class);
+  }
+}